@@ -32,24 +32,70 @@ import org.junit.Rule;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+
 @RunWith(AndroidJUnit4.class)
 @LargeTest
 public class AccountManagerPerfTest {
 
+    /** Threads calling getAccounts() alongside the measured one. */
+    private static final int CONCURRENT_READERS = 4;
+
     @Rule
     public PerfStatusReporter mPerfStatusReporter = new PerfStatusReporter();
 
     @Test
     public void testGetAccounts() {
         BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        AccountManager accountManager = getAccountManager();
+        while (state.keepRunning()) {
+            accountManager.getAccounts();
+        }
+    }
+
+    /**
+     * Measures getAccounts() while other threads of the app keep calling it, the way sync
+     * adapters and apps polling for accounts do; readers shouldn't be slowed down by each other.
+     */
+    @Test
+    public void testGetAccountsWithConcurrentReaders() throws Exception {
+        final AccountManager accountManager = getAccountManager();
+        final AtomicBoolean done = new AtomicBoolean();
+        final CountDownLatch started = new CountDownLatch(CONCURRENT_READERS);
+        final List<Thread> readers = new ArrayList<>();
+        for (int i = 0; i < CONCURRENT_READERS; i++) {
+            Thread reader = new Thread(() -> {
+                started.countDown();
+                while (!done.get()) {
+                    accountManager.getAccounts();
+                }
+            }, "AccountReader" + i);
+            reader.start();
+            readers.add(reader);
+        }
+        try {
+            started.await();
+            BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+            while (state.keepRunning()) {
+                accountManager.getAccounts();
+            }
+        } finally {
+            done.set(true);
+            for (Thread reader : readers) {
+                reader.join();
+            }
+        }
+    }
+
+    private static AccountManager getAccountManager() {
         final Context context = InstrumentationRegistry.getTargetContext();
         if (context.checkSelfPermission(Manifest.permission.GET_ACCOUNTS)
                 != PackageManager.PERMISSION_GRANTED) {
             fail("Missing required GET_ACCOUNTS permission");
         }
-        AccountManager accountManager = AccountManager.get(context);
-        while (state.keepRunning()) {
-            accountManager.getAccounts();
-        }
+        return AccountManager.get(context);
     }
 }
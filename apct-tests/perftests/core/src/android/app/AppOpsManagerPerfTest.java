@@ -0,0 +1,175 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.app;
+
+import android.content.Context;
+import android.os.Process;
+import android.perftests.utils.BenchmarkState;
+import android.perftests.utils.PerfStatusReporter;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.filters.LargeTest;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Measures checking and noting ops while other threads of the same process keep checking or
+ * noting them too, to see how the calls scale with contention in the app ops service.
+ */
+@RunWith(Parameterized.class)
+@LargeTest
+public class AppOpsManagerPerfTest {
+    private static final long TIMEOUT_MS = 5000;
+
+    // Ops a test app is normally allowed, noting them is recorded but shouldn't ask the user
+    private static final int[] OPS = {
+            AppOpsManager.OP_VIBRATE,
+            AppOpsManager.OP_WAKE_LOCK,
+            AppOpsManager.OP_READ_CLIPBOARD,
+            AppOpsManager.OP_TAKE_AUDIO_FOCUS,
+    };
+
+    @Parameterized.Parameters(name = "{0}threads")
+    public static Collection cases() {
+        final List<Object[]> params = new ArrayList<>();
+        for (int threads : new int[]{1, 2, 4, 8}) {
+            params.add(new Object[]{threads});
+        }
+        return params;
+    }
+
+    @Rule
+    public PerfStatusReporter mPerfStatusReporter = new PerfStatusReporter();
+
+    private final int mThreadCount;
+    private AppOpsManager mAppOps;
+    private String mPackageName;
+    private int mUid;
+
+    private CountDownLatch mStartLatch;
+    private AtomicBoolean mRunning;
+    private Thread[] mThreads;
+
+    public AppOpsManagerPerfTest(int threadCount) {
+        mThreadCount = threadCount;
+    }
+
+    @Before
+    public void setUp() {
+        final Context context = InstrumentationRegistry.getTargetContext();
+        mAppOps = context.getSystemService(AppOpsManager.class);
+        mPackageName = context.getPackageName();
+        mUid = Process.myUid();
+    }
+
+    @After
+    public void tearDown() {
+        stopBackgroundThreads();
+    }
+
+    @Test
+    public void timeCheckOp() {
+        startBackgroundThreads(false /* note */);
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        int i = 0;
+        while (state.keepRunning()) {
+            mAppOps.checkOpNoThrow(OPS[i++ % OPS.length], mUid, mPackageName);
+        }
+    }
+
+    @Test
+    public void timeNoteOp() {
+        startBackgroundThreads(true /* note */);
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        int i = 0;
+        while (state.keepRunning()) {
+            mAppOps.noteOpNoThrow(OPS[i++ % OPS.length], mUid, mPackageName);
+        }
+    }
+
+    /**
+     * Measures checking ops while the other threads note them, the mix a busy location or
+     * sensor stack produces.
+     */
+    @Test
+    public void timeCheckOpWhileNoting() {
+        startBackgroundThreads(true /* note */);
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        int i = 0;
+        while (state.keepRunning()) {
+            mAppOps.checkOpNoThrow(OPS[i++ % OPS.length], mUid, mPackageName);
+        }
+    }
+
+    /**
+     * Starts the threads that compete with the measuring thread, the measuring thread counts
+     * towards {@link #mThreadCount}.
+     */
+    private void startBackgroundThreads(boolean note) {
+        final int count = mThreadCount - 1;
+        mStartLatch = new CountDownLatch(count);
+        mRunning = new AtomicBoolean(true);
+        mThreads = new Thread[count];
+        for (int t = 0; t < count; t++) {
+            final int offset = t;
+            mThreads[t] = new Thread(() -> {
+                mStartLatch.countDown();
+                int i = offset;
+                while (mRunning.get()) {
+                    final int op = OPS[i++ % OPS.length];
+                    if (note) {
+                        mAppOps.noteOpNoThrow(op, mUid, mPackageName);
+                    } else {
+                        mAppOps.checkOpNoThrow(op, mUid, mPackageName);
+                    }
+                }
+            });
+            mThreads[t].start();
+        }
+        try {
+            mStartLatch.await(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private void stopBackgroundThreads() {
+        if (mThreads == null) {
+            return;
+        }
+        mRunning.set(false);
+        for (Thread thread : mThreads) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+        }
+        mThreads = null;
+    }
+}
@@ -29,6 +29,10 @@ import org.junit.Rule;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
 import static org.junit.Assert.assertNull;
 
 
@@ -38,10 +42,13 @@ import static org.junit.Assert.assertNull;
 @RunWith(AndroidJUnit4.class)
 @LargeTest
 public class BinderCallsStatsPerfTest {
+    private static final int SAMPLING_INTERVAL = 32;
 
     @Rule
     public PerfStatusReporter mPerfStatusReporter = new PerfStatusReporter();
     private BinderCallsStats mBinderCallsStats;
+    private final List<Thread> mBackgroundThreads = new ArrayList<>();
+    private volatile boolean mStopBackgroundThreads;
 
     @Before
     public void setUp() {
@@ -49,7 +56,12 @@ public class BinderCallsStatsPerfTest {
     }
 
     @After
-    public void tearDown() {
+    public void tearDown() throws Exception {
+        mStopBackgroundThreads = true;
+        for (Thread thread : mBackgroundThreads) {
+            thread.join();
+        }
+        mBackgroundThreads.clear();
     }
 
     @Test
@@ -75,4 +87,68 @@ public class BinderCallsStatsPerfTest {
         }
     }
 
+    @Test
+    public void timeCallSession_1Thread() throws Exception {
+        timeConcurrentCallSessions(1);
+    }
+
+    @Test
+    public void timeCallSession_4Threads() throws Exception {
+        timeConcurrentCallSessions(4);
+    }
+
+    @Test
+    public void timeCallSession_16Threads() throws Exception {
+        timeConcurrentCallSessions(16);
+    }
+
+    @Test
+    public void timeCallSessionSampled_1Thread() throws Exception {
+        mBinderCallsStats.setSamplingInterval(SAMPLING_INTERVAL);
+        timeConcurrentCallSessions(1);
+    }
+
+    @Test
+    public void timeCallSessionSampled_4Threads() throws Exception {
+        mBinderCallsStats.setSamplingInterval(SAMPLING_INTERVAL);
+        timeConcurrentCallSessions(4);
+    }
+
+    @Test
+    public void timeCallSessionSampled_16Threads() throws Exception {
+        mBinderCallsStats.setSamplingInterval(SAMPLING_INTERVAL);
+        timeConcurrentCallSessions(16);
+    }
+
+    /**
+     * Times call sessions on the test thread while {@code threads - 1} other threads record
+     * calls into the same stats as fast as they can.
+     */
+    private void timeConcurrentCallSessions(int threads) throws Exception {
+        final CountDownLatch started = new CountDownLatch(threads - 1);
+        for (int t = 1; t < threads; t++) {
+            final Thread thread = new Thread(() -> {
+                final Binder b = new Binder();
+                started.countDown();
+                int i = 0;
+                while (!mStopBackgroundThreads) {
+                    BinderCallsStats.CallSession s = mBinderCallsStats.callStarted(b, i % 100);
+                    mBinderCallsStats.callEnded(s);
+                    i++;
+                }
+            }, "BinderCallsStatsPerfTest-" + t);
+            mBackgroundThreads.add(thread);
+            thread.start();
+        }
+        started.await();
+
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        Binder b = new Binder();
+        int i = 0;
+        while (state.keepRunning()) {
+            BinderCallsStats.CallSession s = mBinderCallsStats.callStarted(b, i % 100);
+            mBinderCallsStats.callEnded(s);
+            i++;
+        }
+    }
 }
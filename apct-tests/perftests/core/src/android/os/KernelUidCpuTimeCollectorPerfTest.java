@@ -0,0 +1,169 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.os;
+
+import android.content.Context;
+import android.perftests.utils.BenchmarkState;
+import android.perftests.utils.PerfStatusReporter;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.filters.LargeTest;
+import android.support.test.runner.AndroidJUnit4;
+
+import com.android.internal.os.KernelCpuProcReader;
+import com.android.internal.os.KernelUidCpuActiveTimeReader;
+import com.android.internal.os.KernelUidCpuClusterTimeReader;
+import com.android.internal.os.KernelUidCpuFreqTimeReader;
+import com.android.internal.os.KernelUidCpuTimeCollector;
+import com.android.internal.os.KernelUidCpuTimeReader;
+import com.android.internal.os.PowerProfile;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Measures one collection cycle of the per-uid cpu time proc files with 300 uids, read from
+ * files with the layout of the kernel's, and the cycle followed by the deltas of all the
+ * kernel uid readers, as BatteryStats does it.
+ */
+@RunWith(AndroidJUnit4.class)
+@LargeTest
+public class KernelUidCpuTimeCollectorPerfTest {
+    private static final int NUM_UIDS = 300;
+    private static final int NUM_FREQS = 16;
+    private static final int[] CORES_ON_CLUSTER = {4, 4};
+    private static final int NUM_CORES = 8;
+
+    @Rule
+    public PerfStatusReporter mPerfStatusReporter = new PerfStatusReporter();
+
+    private File mDir;
+    private KernelUidCpuTimeCollector mCollector;
+
+    @Before
+    public void setUp() throws IOException {
+        final Context context = InstrumentationRegistry.getContext();
+        mDir = new File(context.getCacheDir(), "KernelUidCpuTimeCollectorPerfTest");
+        mDir.mkdirs();
+        mCollector = new KernelUidCpuTimeCollector(
+                new KernelCpuProcReader(writeCpuTimes("show_uid_stat").getPath()),
+                new KernelCpuProcReader(writeBinary("time_in_state", null, NUM_FREQS).getPath()),
+                new KernelCpuProcReader(
+                        writeBinary("concurrent_active_time", null, NUM_CORES).getPath()),
+                new KernelCpuProcReader(writeBinary("concurrent_policy_time", CORES_ON_CLUSTER,
+                        NUM_CORES).getPath()));
+    }
+
+    @After
+    public void tearDown() {
+        FileUtils.deleteContentsAndDir(mDir);
+    }
+
+    @Test
+    public void timeCollect() {
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        while (state.keepRunning()) {
+            mCollector.collect();
+        }
+    }
+
+    @Test
+    public void timeCollectAndReadDeltas() throws IOException {
+        final KernelUidCpuTimeReader cpuTimeReader = new KernelUidCpuTimeReader(mCollector);
+        final KernelUidCpuFreqTimeReader freqTimeReader =
+                new KernelUidCpuFreqTimeReader(mCollector);
+        final KernelUidCpuActiveTimeReader activeTimeReader =
+                new KernelUidCpuActiveTimeReader(mCollector);
+        final KernelUidCpuClusterTimeReader clusterTimeReader =
+                new KernelUidCpuClusterTimeReader(mCollector);
+        cpuTimeReader.setThrottleInterval(0);
+        freqTimeReader.setThrottleInterval(0);
+        activeTimeReader.setThrottleInterval(0);
+        clusterTimeReader.setThrottleInterval(0);
+        freqTimeReader.readFreqs(new BufferedReader(new StringReader(getFreqsLine())),
+                new PowerProfile(InstrumentationRegistry.getContext()));
+
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        while (state.keepRunning()) {
+            // Collect once and let the readers share it, as within one BatteryStats update.
+            mCollector.setThrottleInterval(0);
+            mCollector.collect();
+            mCollector.setThrottleInterval(60_000);
+            cpuTimeReader.readDelta((uid, userTimeUs, systemTimeUs) -> {});
+            freqTimeReader.readDelta((uid, cpuFreqTimeMs) -> {});
+            activeTimeReader.readDelta((uid, cpuActiveTimeMs) -> {});
+            clusterTimeReader.readDelta((uid, cpuClusterTimeMs) -> {});
+        }
+    }
+
+    private static String getFreqsLine() {
+        final StringBuilder sb = new StringBuilder("uid:");
+        for (int i = 0; i < NUM_FREQS; i++) {
+            sb.append(' ').append(300_000 + i * 100_000);
+        }
+        return sb.toString();
+    }
+
+    private File writeCpuTimes(String name) throws IOException {
+        final StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < NUM_UIDS; i++) {
+            sb.append(10000 + i).append(": ").append((i + 1) * 1_234_567L).append(' ')
+                    .append((i + 1) * 345_678L).append(" 0\n");
+        }
+        return write(name, sb.toString().getBytes(StandardCharsets.US_ASCII));
+    }
+
+    private File writeBinary(String name, int[] coresOnCluster, int width) throws IOException {
+        final int headerSize = coresOnCluster == null ? 1 : 1 + coresOnCluster.length;
+        final ByteBuffer buf = ByteBuffer.allocate((headerSize + NUM_UIDS * (width + 1)) * 4);
+        buf.order(ByteOrder.nativeOrder());
+        if (coresOnCluster == null) {
+            buf.putInt(width);
+        } else {
+            buf.putInt(coresOnCluster.length);
+            for (int cores : coresOnCluster) {
+                buf.putInt(cores);
+            }
+        }
+        for (int i = 0; i < NUM_UIDS; i++) {
+            buf.putInt(10000 + i);
+            for (int j = 0; j < width; j++) {
+                buf.putInt((i + 1) * (j + 1) * 100);
+            }
+        }
+        return write(name, buf.array());
+    }
+
+    private File write(String name, byte[] bytes) throws IOException {
+        final File file = new File(mDir, name);
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            out.write(bytes);
+        }
+        return file;
+    }
+}
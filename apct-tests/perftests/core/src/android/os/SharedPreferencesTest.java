@@ -16,32 +16,142 @@
 
 package android.os;
 
+import android.app.QueuedWork;
 import android.content.Context;
 import android.content.SharedPreferences;
 import android.perftests.utils.BenchmarkState;
 import android.perftests.utils.PerfStatusReporter;
 import android.support.test.InstrumentationRegistry;
 import android.support.test.filters.LargeTest;
-import android.support.test.runner.AndroidJUnit4;
 
+import org.junit.After;
+import org.junit.Before;
 import org.junit.Rule;
 import org.junit.Test;
 import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
 
-@RunWith(AndroidJUnit4.class)
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+@RunWith(Parameterized.class)
 @LargeTest
 public class SharedPreferencesTest {
+    private static final String NAME = "test";
+    private static final String LOAD_NAME = "test_load";
+
+    @Parameterized.Parameters(name = "{0},{1}keys")
+    public static Collection cases() {
+        final List<Object[]> params = new ArrayList<>();
+        for (String backend : new String[]{"xml", "log"}) {
+            for (int keys : new int[]{10, 1000, 10000}) {
+                params.add(new Object[]{backend, keys});
+            }
+        }
+        return params;
+    }
+
     @Rule
     public PerfStatusReporter mPerfStatusReporter = new PerfStatusReporter();
 
+    private final int mMode;
+    private final int mKeyCount;
+    private Context mContext;
+
+    public SharedPreferencesTest(String backend, int keyCount) {
+        mMode = "log".equals(backend) ? Context.MODE_BINARY_LOG : Context.MODE_PRIVATE;
+        mKeyCount = keyCount;
+    }
+
+    @Before
+    public void setUp() {
+        mContext = InstrumentationRegistry.getTargetContext();
+        mContext.deleteSharedPreferences(NAME + mMode + "_" + mKeyCount);
+    }
+
+    @After
+    public void tearDown() {
+        mContext.deleteSharedPreferences(NAME + mMode + "_" + mKeyCount);
+        mContext.deleteSharedPreferences(LOAD_NAME);
+    }
+
     @Test
     public void timeCachedGetSharedPreferences() {
         final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
-        final Context context = InstrumentationRegistry.getTargetContext();
         // Do the real work once as we're only interested in cache-hit performance
-        SharedPreferences prefs = context.getSharedPreferences("test", Context.MODE_PRIVATE);
+        SharedPreferences prefs = mContext.getSharedPreferences(NAME, mMode);
         while (state.keepRunning()) {
-            prefs = context.getSharedPreferences("test", Context.MODE_PRIVATE);
+            prefs = mContext.getSharedPreferences(NAME, mMode);
+        }
+    }
+
+    /**
+     * Measures opening preferences that are not in memory yet, up to the first read.
+     */
+    @Test
+    public void timeLoad() throws Exception {
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        final String name = NAME + mMode + "_" + mKeyCount;
+        fill(mContext.getSharedPreferences(name, mMode));
+        final File source = mContext.getSharedPreferencesPath(name);
+        final File target = mContext.getSharedPreferencesPath(LOAD_NAME);
+        while (state.keepRunning()) {
+            state.pauseTiming();
+            // The copy isn't cached by the context yet
+            mContext.deleteSharedPreferences(LOAD_NAME);
+            copyIfExists(source, target, "");
+            copyIfExists(source, target, ".log");
+            state.resumeTiming();
+
+            mContext.getSharedPreferences(LOAD_NAME, mMode).getInt("key0", 0);
+        }
+    }
+
+    /**
+     * Measures applying one change, followed by waiting for the work an activity would wait
+     * for if it were paused right after.
+     */
+    @Test
+    public void timeApply() {
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        final SharedPreferences prefs = mContext.getSharedPreferences(
+                NAME + mMode + "_" + mKeyCount, mMode);
+        fill(prefs);
+        int i = 0;
+        while (state.keepRunning()) {
+            prefs.edit().putInt("key" + (i % mKeyCount), i).apply();
+            QueuedWork.waitToFinish();
+            i++;
+        }
+    }
+
+    @Test
+    public void timeCommit() {
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        final SharedPreferences prefs = mContext.getSharedPreferences(
+                NAME + mMode + "_" + mKeyCount, mMode);
+        fill(prefs);
+        int i = 0;
+        while (state.keepRunning()) {
+            prefs.edit().putInt("key" + (i % mKeyCount), i).commit();
+            i++;
+        }
+    }
+
+    private void fill(SharedPreferences prefs) {
+        final SharedPreferences.Editor editor = prefs.edit();
+        for (int i = 0; i < mKeyCount; i++) {
+            editor.putInt("key" + i, -i);
+        }
+        editor.commit();
+    }
+
+    private static void copyIfExists(File source, File target, String suffix) throws Exception {
+        final File from = new File(source.getPath() + suffix);
+        if (from.exists()) {
+            FileUtils.copyFileOrThrow(from, new File(target.getPath() + suffix));
         }
     }
 }
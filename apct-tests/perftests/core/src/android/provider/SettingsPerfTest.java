@@ -0,0 +1,117 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.provider;
+
+import android.content.ContentResolver;
+import android.perftests.utils.BenchmarkState;
+import android.perftests.utils.PerfStatusReporter;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.filters.LargeTest;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+/**
+ * Measures reading a typical app startup's worth of global and secure settings in a process
+ * that has no cached value yet, with and without the table snapshots served by the settings
+ * provider.
+ */
+@RunWith(AndroidJUnit4.class)
+@LargeTest
+public class SettingsPerfTest {
+    private static final String[] GLOBAL_SETTINGS = {
+            "adb_enabled", "airplane_mode_on", "airplane_mode_radios",
+            "always_finish_activities", "animator_duration_scale", "auto_time",
+            "auto_time_zone", "bluetooth_on", "boot_count", "data_roaming", "debug_app",
+            "development_settings_enabled", "device_name", "device_provisioned",
+            "http_proxy", "mode_ringer", "network_preference", "radio_bluetooth",
+            "radio_cell", "radio_nfc", "stay_on_while_plugged_in",
+            "transition_animation_scale", "wait_for_debugger", "wifi_on",
+            "window_animation_scale",
+    };
+
+    private static final String[] SECURE_SETTINGS = {
+            "accessibility_enabled", "accessibility_display_inversion_enabled",
+            "accessibility_display_magnification_enabled", "accessibility_captioning_enabled",
+            "accessibility_speak_password", "default_input_method",
+            "enabled_accessibility_services", "enabled_input_methods",
+            "enabled_notification_listeners", "input_method_selector_visibility",
+            "install_non_market_apps", "location_mode", "long_press_timeout",
+            "mock_location", "multi_press_timeout", "selected_input_method_subtype",
+            "selected_spell_checker", "show_ime_with_hard_keyboard", "skip_first_use_hints",
+            "spell_checker_enabled", "touch_exploration_enabled", "tts_default_pitch",
+            "tts_default_rate", "tts_default_synth", "user_setup_complete",
+    };
+
+    @Rule
+    public PerfStatusReporter mPerfStatusReporter = new PerfStatusReporter();
+
+    @After
+    public void tearDown() {
+        Settings.Global.setSnapshotEnabledForTest(true);
+        Settings.Secure.setSnapshotEnabledForTest(true);
+    }
+
+    @Test
+    public void timeColdReadsWithSnapshot() {
+        timeColdReads(true);
+    }
+
+    @Test
+    public void timeColdReadsWithoutSnapshot() {
+        timeColdReads(false);
+    }
+
+    @Test
+    public void timeWarmReads() {
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        final ContentResolver resolver = InstrumentationRegistry.getTargetContext()
+                .getContentResolver();
+        readAll(resolver);
+        while (state.keepRunning()) {
+            readAll(resolver);
+        }
+    }
+
+    private void timeColdReads(boolean useSnapshot) {
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        final ContentResolver resolver = InstrumentationRegistry.getTargetContext()
+                .getContentResolver();
+        Settings.Global.setSnapshotEnabledForTest(useSnapshot);
+        Settings.Secure.setSnapshotEnabledForTest(useSnapshot);
+        while (state.keepRunning()) {
+            state.pauseTiming();
+            Settings.Global.clearProviderForTest();
+            Settings.Secure.clearProviderForTest();
+            state.resumeTiming();
+
+            readAll(resolver);
+        }
+    }
+
+    private static void readAll(ContentResolver resolver) {
+        for (String name : GLOBAL_SETTINGS) {
+            Settings.Global.getString(resolver, name);
+        }
+        for (String name : SECURE_SETTINGS) {
+            Settings.Secure.getString(resolver, name);
+        }
+    }
+}
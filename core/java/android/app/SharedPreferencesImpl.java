@@ -17,9 +17,13 @@
 package android.app;
 
 import android.annotation.Nullable;
+import android.content.Context;
 import android.content.SharedPreferences;
 import android.os.FileUtils;
+import android.os.Handler;
+import android.os.HandlerThread;
 import android.os.Looper;
+import android.os.Process;
 import android.system.ErrnoException;
 import android.system.Os;
 import android.system.StructStat;
@@ -66,6 +70,9 @@ final class SharedPreferencesImpl implements SharedPreferences {
     private final File mFile;
     private final File mBackupFile;
     private final int mMode;
+    /** Storage of preferences opened with {@link Context#MODE_BINARY_LOG}, null otherwise */
+    @Nullable
+    private final SharedPreferencesLog mLog;
     private final Object mLock = new Object();
     private final Object mWritingToDiskLock = new Object();
 
@@ -103,20 +110,54 @@ final class SharedPreferencesImpl implements SharedPreferences {
     private final ExponentiallyBucketedHistogram mSyncTimes = new ExponentiallyBucketedHistogram(16);
     private int mNumSync = 0;
 
+    /**
+     * Commits waiting to be written to {@link #mLog}, in the order they reached memory, as
+     * the log only holds their changes
+     */
+    @GuardedBy("mLock")
+    private final ArrayList<MemoryCommitResult> mPendingLogWrites = new ArrayList<>();
+
+    /** Whether a compaction of {@link #mLog} is posted to the log handler */
+    @GuardedBy("mWritingToDiskLock")
+    private boolean mLogCompactionScheduled;
+
+    /** {@link #getLogHandler() Lazily} created handler writing {@link SharedPreferencesLog}s */
+    @GuardedBy("SharedPreferencesImpl.class")
+    private static Handler sLogHandler;
+
     SharedPreferencesImpl(File file, int mode) {
         mFile = file;
         mBackupFile = makeBackupFile(file);
         mMode = mode;
+        mLog = (mode & Context.MODE_BINARY_LOG) != 0
+                ? new SharedPreferencesLog(SharedPreferencesLog.makeLogFile(file)) : null;
         mLoaded = false;
         mMap = null;
         mThrowable = null;
         startLoadFromDisk();
     }
 
+    private static Handler getLogHandler() {
+        synchronized (SharedPreferencesImpl.class) {
+            if (sLogHandler == null) {
+                HandlerThread handlerThread = new HandlerThread("SharedPreferencesLog",
+                        Process.THREAD_PRIORITY_BACKGROUND);
+                handlerThread.start();
+                sLogHandler = new Handler(handlerThread.getLooper());
+            }
+            return sLogHandler;
+        }
+    }
+
     private void startLoadFromDisk() {
         synchronized (mLock) {
             mLoaded = false;
         }
+        if (mLog != null) {
+            // Mapping the log is cheap, it is loaded by the first caller that needs it, see
+            // awaitLoadedLocked()
+            return;
+        }
         new Thread("SharedPreferencesImpl-load") {
             public void run() {
                 loadFromDisk();
@@ -144,8 +185,21 @@ final class SharedPreferencesImpl implements SharedPreferences {
         StructStat stat = null;
         Throwable thrown = null;
         try {
-            stat = Os.stat(mFile.getPath());
-            if (mFile.canRead()) {
+            if (mLog != null && mLog.exists()) {
+                stat = Os.stat(mLog.getFile().getPath());
+                try {
+                    map = new HashMap<>();
+                    mLog.read(map);
+                } catch (IOException e) {
+                    Log.w(TAG, "Cannot read " + mLog.getFile().getAbsolutePath(), e);
+                    map = null;
+                }
+            } else {
+                // Also the first load of preferences moving to MODE_BINARY_LOG, they are
+                // written to the log on the first commit
+                stat = Os.stat(mFile.getPath());
+            }
+            if (map == null && mFile.canRead()) {
                 BufferedInputStream str = null;
                 try {
                     str = new BufferedInputStream(
@@ -223,7 +277,7 @@ final class SharedPreferencesImpl implements SharedPreferences {
              * violation, but we explicitly want this one.
              */
             BlockGuard.getThreadPolicy().onReadFromDisk();
-            stat = Os.stat(mFile.getPath());
+            stat = Os.stat(getStatFile().getPath());
         } catch (ErrnoException e) {
             return true;
         }
@@ -233,6 +287,13 @@ final class SharedPreferencesImpl implements SharedPreferences {
         }
     }
 
+    /**
+     * Returns the file {@link #mStatTimestamp} and {@link #mStatSize} refer to.
+     */
+    private File getStatFile() {
+        return mLog != null && mLog.exists() ? mLog.getFile() : mFile;
+    }
+
     @Override
     public void registerOnSharedPreferenceChangeListener(OnSharedPreferenceChangeListener listener) {
         synchronized(mLock) {
@@ -254,6 +315,9 @@ final class SharedPreferencesImpl implements SharedPreferences {
             // thread, since the real read will be in a different
             // thread and otherwise ignored by StrictMode.
             BlockGuard.getThreadPolicy().onReadFromDisk();
+            if (mLog != null) {
+                loadFromDisk();
+            }
         }
         while (!mLoaded) {
             try {
@@ -358,6 +422,13 @@ final class SharedPreferencesImpl implements SharedPreferences {
         @Nullable final List<String> keysModified;
         @Nullable final Set<OnSharedPreferenceChangeListener> listeners;
         final Map<String, Object> mapToWriteToDisk;
+        /** Whether the commit cleared the preferences, only tracked for {@link #mLog} */
+        final boolean cleared;
+        /**
+         * New value of each preference changed by the commit, null for removals. Only
+         * tracked for {@link #mLog}.
+         */
+        @Nullable final Map<String, Object> changes;
         final CountDownLatch writtenToDiskLatch = new CountDownLatch(1);
 
         @GuardedBy("mWritingToDiskLock")
@@ -366,11 +437,14 @@ final class SharedPreferencesImpl implements SharedPreferences {
 
         private MemoryCommitResult(long memoryStateGeneration, @Nullable List<String> keysModified,
                 @Nullable Set<OnSharedPreferenceChangeListener> listeners,
-                Map<String, Object> mapToWriteToDisk) {
+                Map<String, Object> mapToWriteToDisk, boolean cleared,
+                @Nullable Map<String, Object> changes) {
             this.memoryStateGeneration = memoryStateGeneration;
             this.keysModified = keysModified;
             this.listeners = listeners;
             this.mapToWriteToDisk = mapToWriteToDisk;
+            this.cleared = cleared;
+            this.changes = changes;
         }
 
         void setDiskWriteResult(boolean wasWritten, boolean result) {
@@ -454,6 +528,13 @@ final class SharedPreferencesImpl implements SharedPreferences {
             final long startTime = System.currentTimeMillis();
 
             final MemoryCommitResult mcr = commitToMemory();
+            if (mLog != null) {
+                // The log only appends what changed, so there is little to lose and no
+                // reason to hold up activity lifecycle transitions with QueuedWork
+                enqueueLogWrite(mcr, false /* isFromSyncCommit */);
+                notifyListeners(mcr);
+                return;
+            }
             final Runnable awaitCommit = new Runnable() {
                     @Override
                     public void run() {
@@ -495,12 +576,15 @@ final class SharedPreferencesImpl implements SharedPreferences {
             List<String> keysModified = null;
             Set<OnSharedPreferenceChangeListener> listeners = null;
             Map<String, Object> mapToWriteToDisk;
+            boolean cleared = false;
+            Map<String, Object> changes = null;
+            MemoryCommitResult mcr;
 
             synchronized (SharedPreferencesImpl.this.mLock) {
                 // We optimistically don't make a deep copy until
                 // a memory commit comes in when we're already
-                // writing to disk.
-                if (mDiskWritesInFlight > 0) {
+                // writing to disk. Writes to the log don't read the map.
+                if (mDiskWritesInFlight > 0 && mLog == null) {
                     // We can't modify our mMap as a currently
                     // in-flight write owns it.  Clone it before
                     // modifying it.
@@ -510,6 +594,10 @@ final class SharedPreferencesImpl implements SharedPreferences {
                 mapToWriteToDisk = mMap;
                 mDiskWritesInFlight++;
 
+                if (mLog != null) {
+                    changes = new HashMap<>();
+                }
+
                 boolean hasListeners = mListeners.size() > 0;
                 if (hasListeners) {
                     keysModified = new ArrayList<String>();
@@ -522,6 +610,7 @@ final class SharedPreferencesImpl implements SharedPreferences {
                     if (mClear) {
                         if (!mapToWriteToDisk.isEmpty()) {
                             changesMade = true;
+                            cleared = true;
                             mapToWriteToDisk.clear();
                         }
                         mClear = false;
@@ -538,6 +627,9 @@ final class SharedPreferencesImpl implements SharedPreferences {
                                 continue;
                             }
                             mapToWriteToDisk.remove(k);
+                            if (changes != null) {
+                                changes.put(k, null);
+                            }
                         } else {
                             if (mapToWriteToDisk.containsKey(k)) {
                                 Object existingValue = mapToWriteToDisk.get(k);
@@ -546,6 +638,9 @@ final class SharedPreferencesImpl implements SharedPreferences {
                                 }
                             }
                             mapToWriteToDisk.put(k, v);
+                            if (changes != null) {
+                                changes.put(k, v);
+                            }
                         }
 
                         changesMade = true;
@@ -562,9 +657,14 @@ final class SharedPreferencesImpl implements SharedPreferences {
 
                     memoryStateGeneration = mCurrentMemoryStateGeneration;
                 }
+
+                mcr = new MemoryCommitResult(memoryStateGeneration, keysModified, listeners,
+                        mapToWriteToDisk, cleared, changes);
+                if (mLog != null) {
+                    mPendingLogWrites.add(mcr);
+                }
             }
-            return new MemoryCommitResult(memoryStateGeneration, keysModified, listeners,
-                    mapToWriteToDisk);
+            return mcr;
         }
 
         @Override
@@ -577,8 +677,12 @@ final class SharedPreferencesImpl implements SharedPreferences {
 
             MemoryCommitResult mcr = commitToMemory();
 
-            SharedPreferencesImpl.this.enqueueDiskWrite(
-                mcr, null /* sync write on this thread okay */);
+            if (mLog != null) {
+                SharedPreferencesImpl.this.enqueueLogWrite(mcr, true /* isFromSyncCommit */);
+            } else {
+                SharedPreferencesImpl.this.enqueueDiskWrite(
+                    mcr, null /* sync write on this thread okay */);
+            }
             try {
                 mcr.writtenToDiskLatch.await();
             } catch (InterruptedException e) {
@@ -666,6 +770,128 @@ final class SharedPreferencesImpl implements SharedPreferences {
         QueuedWork.queue(writeToDiskRunnable, !isFromSyncCommit);
     }
 
+    /**
+     * Like {@link #enqueueDiskWrite} for preferences stored in {@link #mLog}, except that
+     * writes from {@link Editor#apply()} go to the log handler rather than to
+     * {@link QueuedWork}, which activities wait for when they pause or stop.
+     */
+    private void enqueueLogWrite(final MemoryCommitResult mcr, boolean isFromSyncCommit) {
+        final Runnable writeToLogRunnable = () -> {
+            synchronized (mWritingToDiskLock) {
+                writePendingToLog();
+            }
+            synchronized (mLock) {
+                mDiskWritesInFlight--;
+            }
+        };
+
+        if (isFromSyncCommit) {
+            boolean wasEmpty = false;
+            synchronized (mLock) {
+                wasEmpty = mDiskWritesInFlight == 1;
+            }
+            if (wasEmpty) {
+                writeToLogRunnable.run();
+                return;
+            }
+        }
+
+        getLogHandler().post(writeToLogRunnable);
+    }
+
+    /**
+     * Writes every pending commit to {@link #mLog}, the one {@link #enqueueLogWrite} was
+     * called for included, unless it was written by an earlier call already.
+     */
+    @GuardedBy("mWritingToDiskLock")
+    private void writePendingToLog() {
+        final ArrayList<MemoryCommitResult> pending;
+        synchronized (mLock) {
+            pending = new ArrayList<>(mPendingLogWrites);
+            mPendingLogWrites.clear();
+        }
+        for (int i = 0; i < pending.size(); i++) {
+            writeToLog(pending.get(i));
+        }
+    }
+
+    @GuardedBy("mWritingToDiskLock")
+    private void writeToLog(MemoryCommitResult mcr) {
+        // A snapshot taken after this commit reached memory already holds it
+        if (mDiskStateGeneration >= mcr.memoryStateGeneration) {
+            mcr.setDiskWriteResult(false, true);
+            return;
+        }
+
+        try {
+            if (mLog.needsSnapshot()) {
+                writeLogSnapshot();
+            } else {
+                mLog.append(mcr.cleared, mcr.changes);
+                mDiskStateGeneration = mcr.memoryStateGeneration;
+                updateStat(mLog.getFile());
+                if (mLog.needsSnapshot() && !mLogCompactionScheduled) {
+                    mLogCompactionScheduled = true;
+                    getLogHandler().post(this::compactLog);
+                }
+            }
+            mcr.setDiskWriteResult(true, true);
+        } catch (IOException e) {
+            Log.w(TAG, "writeToLog: Got exception:", e);
+            mcr.setDiskWriteResult(false, false);
+        }
+    }
+
+    private void compactLog() {
+        synchronized (mWritingToDiskLock) {
+            mLogCompactionScheduled = false;
+            if (!mLog.needsSnapshot()) {
+                return;
+            }
+            try {
+                writeLogSnapshot();
+            } catch (IOException e) {
+                Log.w(TAG, "compactLog: Got exception:", e);
+            }
+        }
+    }
+
+    /**
+     * Rewrites {@link #mLog} with the preferences as currently in memory. Pending commits
+     * that reached memory before the copy was taken are skipped by {@link #writeToLog}.
+     */
+    @GuardedBy("mWritingToDiskLock")
+    private void writeLogSnapshot() throws IOException {
+        final Map<String, Object> map;
+        final long memoryStateGeneration;
+        synchronized (mLock) {
+            map = new HashMap<>(mMap);
+            memoryStateGeneration = mCurrentMemoryStateGeneration;
+        }
+        mLog.writeSnapshot(map);
+        ContextImpl.setFilePermissionsFromMode(mLog.getFile().getPath(), mMode, 0);
+        mDiskStateGeneration = memoryStateGeneration;
+        updateStat(mLog.getFile());
+
+        // Preferences migrated from XML are only read from the log from now on
+        if (mFile.exists() || mBackupFile.exists()) {
+            mFile.delete();
+            mBackupFile.delete();
+        }
+    }
+
+    private void updateStat(File file) {
+        try {
+            final StructStat stat = Os.stat(file.getPath());
+            synchronized (mLock) {
+                mStatTimestamp = stat.st_mtim;
+                mStatSize = stat.st_size;
+            }
+        } catch (ErrnoException e) {
+            // Do nothing
+        }
+    }
+
     private static FileOutputStream createFileOutputStream(File file) {
         FileOutputStream str = null;
         try {
@@ -0,0 +1,262 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.app;
+
+import com.android.internal.util.AppendOnlyLog;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Binary storage of a {@link SharedPreferencesImpl} opened with
+ * {@link android.content.Context#MODE_BINARY_LOG}.
+ * <p>
+ * The file starts with a snapshot of every preference, written when the log is compacted,
+ * followed by the records of each change committed since. The file itself is an
+ * {@link AppendOnlyLog}: changes are appended, so the cost of a commit depends on what changed
+ * rather than on the number of preferences.
+ * <p>
+ * Not thread safe: callers hold the owning preferences' write lock.
+ */
+final class SharedPreferencesLog {
+    private static final int LOG_MAGIC = 0x53504c47; // "SPLG"
+    private static final int LOG_VERSION = 1;
+
+    private static final byte OP_PUT = 1;
+    private static final byte OP_REMOVE = 2;
+    private static final byte OP_CLEAR = 3;
+    private static final byte OP_END_OF_SNAPSHOT = 4;
+
+    private static final byte TYPE_STRING = 1;
+    private static final byte TYPE_INT = 2;
+    private static final byte TYPE_LONG = 3;
+    private static final byte TYPE_FLOAT = 4;
+    private static final byte TYPE_BOOLEAN = 5;
+    private static final byte TYPE_STRING_SET = 6;
+
+    /** Never compact before this many bytes have been appended */
+    private static final long MIN_BYTES_BEFORE_COMPACTION = 16 * 1024;
+
+    private final AppendOnlyLog mLog;
+
+    /** Size of the snapshot at the start of the file */
+    private long mSnapshotSize;
+
+    SharedPreferencesLog(File file) {
+        mLog = new AppendOnlyLog(file, null, LOG_MAGIC, LOG_VERSION, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Returns the log that stores the preferences otherwise stored in {@code prefsFile}.
+     */
+    static File makeLogFile(File prefsFile) {
+        return new File(prefsFile.getPath() + ".log");
+    }
+
+    File getFile() {
+        return mLog.getFile();
+    }
+
+    boolean exists() {
+        return mLog.exists();
+    }
+
+    /**
+     * Whether the next write must be a {@link #writeSnapshot snapshot} rather than an
+     * {@link #append}.
+     */
+    boolean needsSnapshot() {
+        final long appended = mLog.getSize() - mSnapshotSize;
+        return mLog.needsSnapshot()
+                || appended > Math.max(MIN_BYTES_BEFORE_COMPACTION, mSnapshotSize);
+    }
+
+    /**
+     * Maps the log and replays the snapshot and every record appended after it into
+     * {@code map}.
+     */
+    void read(Map<String, Object> map) throws IOException {
+        mSnapshotSize = AppendOnlyLog.HEADER_SIZE;
+        mLog.read(record -> {
+            final ByteBuffer body = ByteBuffer.wrap(record);
+            try {
+                final byte op = body.get();
+                if (op == OP_PUT) {
+                    final String key = getString(body);
+                    map.put(key, getValue(body));
+                } else if (op == OP_REMOVE) {
+                    map.remove(getString(body));
+                } else if (op == OP_CLEAR) {
+                    map.clear();
+                    // Nothing before a clear is live, count it as part of the snapshot
+                    mSnapshotSize = mLog.getSize();
+                } else if (op == OP_END_OF_SNAPSHOT) {
+                    mSnapshotSize = mLog.getSize();
+                } else {
+                    throw new IOException("Bad op " + op + " in " + mLog.getFile());
+                }
+            } catch (BufferUnderflowException e) {
+                throw new IOException("Truncated record in " + mLog.getFile(), e);
+            }
+        });
+    }
+
+    /**
+     * Rewrites the log so that it holds exactly {@code map}. The new file is synced before
+     * this returns.
+     */
+    void writeSnapshot(Map<String, ?> map) throws IOException {
+        final AppendOnlyLog.Batch batch = new AppendOnlyLog.Batch();
+        for (Map.Entry<String, ?> e : map.entrySet()) {
+            if (e.getValue() != null) {
+                writeRecord(batch, OP_PUT, e.getKey(), e.getValue());
+            }
+        }
+        writeRecord(batch, OP_END_OF_SNAPSHOT, null, null);
+        mLog.writeSnapshot(batch);
+        mSnapshotSize = mLog.getSize();
+    }
+
+    /**
+     * Appends the changes of one commit and syncs them to disk.
+     *
+     * @param cleared whether the commit cleared the preferences before applying
+     *        {@code changes}
+     * @param changes the new value of each changed preference, {@code null} for removals
+     */
+    void append(boolean cleared, Map<String, Object> changes) throws IOException {
+        final AppendOnlyLog.Batch batch = new AppendOnlyLog.Batch();
+        if (cleared) {
+            writeRecord(batch, OP_CLEAR, null, null);
+        }
+        for (Map.Entry<String, Object> e : changes.entrySet()) {
+            writeRecord(batch, e.getValue() != null ? OP_PUT : OP_REMOVE, e.getKey(),
+                    e.getValue());
+        }
+        mLog.append(batch, true /* sync */);
+        if (cleared) {
+            mSnapshotSize = mLog.getSize();
+        }
+    }
+
+    /**
+     * Adds one record to {@code batch}, holding the operation, the key and, for puts, the type
+     * and value.
+     */
+    private static void writeRecord(AppendOnlyLog.Batch batch, byte op, String key,
+            Object value) throws IOException {
+        final DataOutputStream out = batch.beginRecord();
+        out.writeByte(op);
+        if (key != null) {
+            putString(out, key);
+        }
+        if (op == OP_PUT) {
+            putValue(out, value);
+        }
+        batch.endRecord();
+    }
+
+    private static void putValue(DataOutputStream out, Object value) throws IOException {
+        if (value instanceof String) {
+            out.writeByte(TYPE_STRING);
+            putString(out, (String) value);
+        } else if (value instanceof Integer) {
+            out.writeByte(TYPE_INT);
+            out.writeInt((Integer) value);
+        } else if (value instanceof Long) {
+            out.writeByte(TYPE_LONG);
+            out.writeLong((Long) value);
+        } else if (value instanceof Float) {
+            out.writeByte(TYPE_FLOAT);
+            out.writeFloat((Float) value);
+        } else if (value instanceof Boolean) {
+            out.writeByte(TYPE_BOOLEAN);
+            out.writeBoolean((Boolean) value);
+        } else if (value instanceof Set) {
+            out.writeByte(TYPE_STRING_SET);
+            final Set<String> set = (Set<String>) value;
+            out.writeInt(set.size());
+            for (String s : set) {
+                putString(out, s);
+            }
+        } else {
+            throw new IllegalArgumentException("Unsupported value " + value);
+        }
+    }
+
+    private static Object getValue(ByteBuffer in) throws IOException {
+        final byte type = in.get();
+        switch (type) {
+            case TYPE_STRING:
+                return getString(in);
+            case TYPE_INT:
+                return in.getInt();
+            case TYPE_LONG:
+                return in.getLong();
+            case TYPE_FLOAT:
+                return in.getFloat();
+            case TYPE_BOOLEAN:
+                return in.get() != 0;
+            case TYPE_STRING_SET: {
+                final int size = in.getInt();
+                if (size < 0 || size > in.remaining() / 4) {
+                    throw new IOException("Bad set size " + size);
+                }
+                final HashSet<String> set = new HashSet<>(size);
+                for (int i = 0; i < size; i++) {
+                    set.add(getString(in));
+                }
+                return set;
+            }
+            default:
+                throw new IOException("Bad value type " + type);
+        }
+    }
+
+    /**
+     * Strings are stored as UTF-16 code units, so that any string round-trips and can be
+     * read straight from the mapping; a negative length stands for {@code null}.
+     */
+    private static void putString(DataOutputStream out, String value) throws IOException {
+        if (value == null) {
+            out.writeInt(-1);
+            return;
+        }
+        out.writeInt(value.length());
+        out.writeChars(value);
+    }
+
+    private static String getString(ByteBuffer in) throws IOException {
+        final int length = in.getInt();
+        if (length < 0) {
+            return null;
+        }
+        if (length > in.remaining() / 2) {
+            throw new IOException("Bad string length " + length);
+        }
+        final char[] chars = new char[length];
+        in.asCharBuffer().get(chars);
+        in.position(in.position() + 2 * length);
+        return new String(chars);
+    }
+}
@@ -1971,7 +1971,8 @@ public abstract class ContentResolver {
             ContentObserver observer, @UserIdInt int userHandle) {
         try {
             getContentService().registerContentObserver(uri, notifyForDescendents,
-                    observer.getContentObserver(), userHandle, mTargetSdkVersion);
+                    observer.getContentObserver(), userHandle, mTargetSdkVersion,
+                    observer.wantsBatchedNotifications());
         } catch (RemoteException e) {
             throw e.rethrowFromSystemServer();
         }
@@ -105,6 +105,7 @@ public abstract class Context {
             MODE_WORLD_READABLE,
             MODE_WORLD_WRITEABLE,
             MODE_MULTI_PROCESS,
+            MODE_BINARY_LOG,
     })
     @Retention(RetentionPolicy.SOURCE)
     public @interface PreferencesMode {}
@@ -222,6 +223,19 @@ public abstract class Context {
      */
     public static final int MODE_NO_LOCALIZED_COLLATORS = 0x0010;
 
+    /**
+     * SharedPreference loading flag: when set, the preferences are stored in a
+     * memory-mapped binary log rather than in an XML file. The log is loaded
+     * on first use, each commit appends only what changed, and
+     * {@link SharedPreferences.Editor#apply()} does not hold up activity
+     * lifecycle transitions. Existing XML preferences are migrated on the
+     * first write; a file must not be opened without this flag afterwards.
+     *
+     * @see #getSharedPreferences(String, int)
+     * @hide
+     */
+    public static final int MODE_BINARY_LOG = 0x0020;
+
     /** @hide */
     @IntDef(flag = true, prefix = { "BIND_" }, value = {
             BIND_AUTO_CREATE,
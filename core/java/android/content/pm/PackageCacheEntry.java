@@ -0,0 +1,156 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.content.pm;
+
+import android.content.pm.PackageParser.Package;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * A package cache file written by {@link PackageParser}, read through a read-only memory
+ * mapping.
+ * <p>
+ * The file starts with a small header holding the package name, which is all a cache lookup
+ * needs before deciding to use the entry, followed by the opaque payload produced by
+ * {@link PackageParser#toCacheEntry}. A lookup that finds the entry stale from its header
+ * never copies the payload; one that uses it copies and unparcels the whole {@link Package}.
+ *
+ * @hide
+ */
+public final class PackageCacheEntry {
+    private static final int MAGIC = 0x504b4743; // "PKGC"
+
+    /**
+     * Version of the file layout. Bump this whenever the header changes; entries written with
+     * a different version are treated as cache misses.
+     */
+    private static final int FORMAT_VERSION = 2;
+
+    private final ByteBuffer mBuffer;
+    private final int mHeaderStart;
+    private final int mPayloadStart;
+
+    private String mPackageName;
+
+    private PackageCacheEntry(ByteBuffer buffer) throws IOException {
+        mBuffer = buffer;
+        if (buffer.remaining() < 12 || buffer.getInt(0) != MAGIC) {
+            throw new IOException("Not a package cache entry");
+        }
+        final int version = buffer.getInt(4);
+        if (version != FORMAT_VERSION) {
+            throw new IOException("Unsupported package cache version " + version);
+        }
+        final int headerLength = buffer.getInt(8);
+        mHeaderStart = 12;
+        mPayloadStart = mHeaderStart + headerLength;
+        if (headerLength < 0 || mPayloadStart + 4 > buffer.limit()
+                || mPayloadStart + 4 + buffer.getInt(mPayloadStart) > buffer.limit()) {
+            throw new IOException("Truncated package cache entry");
+        }
+    }
+
+    /**
+     * Maps {@code file} into memory. Only the fixed-size preamble is validated here.
+     *
+     * @throws IOException if the file can't be mapped, or isn't an entry of the current
+     *         format version.
+     */
+    public static PackageCacheEntry open(File file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            return new PackageCacheEntry(
+                    channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        }
+    }
+
+    /** Reads an entry held in memory, as written by {@link #write}. */
+    public static PackageCacheEntry wrap(byte[] bytes) throws IOException {
+        return new PackageCacheEntry(ByteBuffer.wrap(bytes));
+    }
+
+    /**
+     * Writes a cache entry for {@code pkg} whose payload is {@code payload}.
+     */
+    public static void write(OutputStream os, Package pkg, byte[] payload) throws IOException {
+        final ByteArrayOutputStream headerBytes = new ByteArrayOutputStream();
+        final DataOutputStream header = new DataOutputStream(headerBytes);
+        writeString(header, pkg.packageName);
+        header.flush();
+
+        final DataOutputStream out = new DataOutputStream(os);
+        out.writeInt(MAGIC);
+        out.writeInt(FORMAT_VERSION);
+        out.writeInt(headerBytes.size());
+        headerBytes.writeTo(out);
+        writeBytes(out, payload);
+        out.flush();
+    }
+
+    public String getPackageName() {
+        if (mPackageName == null) {
+            final ByteBuffer buffer = mBuffer.duplicate();
+            buffer.position(mHeaderStart);
+            buffer.limit(mPayloadStart);
+            mPackageName = readString(buffer);
+        }
+        return mPackageName;
+    }
+
+    /** Copies the serialized package out of the mapping. */
+    public byte[] getPayload() {
+        final ByteBuffer buffer = mBuffer.duplicate();
+        buffer.position(mPayloadStart);
+        return readBytes(buffer);
+    }
+
+    private static void writeBytes(DataOutputStream out, byte[] bytes) throws IOException {
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        if (value == null) {
+            out.writeInt(-1);
+        } else {
+            writeBytes(out, value.getBytes(StandardCharsets.UTF_8));
+        }
+    }
+
+    private static byte[] readBytes(ByteBuffer buffer) {
+        final byte[] bytes = new byte[buffer.getInt()];
+        buffer.get(bytes);
+        return bytes;
+    }
+
+    private static String readString(ByteBuffer buffer) {
+        final int length = buffer.getInt();
+        if (length < 0) {
+            return null;
+        }
+        final byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8).intern();
+    }
+}
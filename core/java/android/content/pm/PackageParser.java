@@ -102,6 +102,7 @@ import libcore.util.EmptyArray;
 import org.xmlpull.v1.XmlPullParser;
 import org.xmlpull.v1.XmlPullParserException;
 
+import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.FileDescriptor;
 import java.io.FileOutputStream;
@@ -1148,10 +1149,10 @@ public class PackageParser {
                 return null;
             }
 
-            final byte[] bytes = IoUtils.readFileAsByteArray(cacheFile.getAbsolutePath());
-            Package p = fromCacheEntry(bytes);
+            // Validate the entry from its header before paying for the full decode.
+            final PackageCacheEntry entry = PackageCacheEntry.open(cacheFile);
             if (mCallback != null) {
-                String[] overlayApks = mCallback.getOverlayApks(p.packageName);
+                String[] overlayApks = mCallback.getOverlayApks(entry.getPackageName());
                 if (overlayApks != null && overlayApks.length > 0) {
                     for (String overlayApk : overlayApks) {
                         // If a static RRO is updated, return null.
@@ -1161,7 +1162,7 @@ public class PackageParser {
                     }
                 }
             }
-            return p;
+            return fromCacheEntry(entry.getPayload());
         } catch (Throwable e) {
             Slog.w(TAG, "Error reading package cache: ", e);
 
@@ -1197,7 +1198,7 @@ public class PackageParser {
             }
 
             try (FileOutputStream fos = new FileOutputStream(cacheFile)) {
-                fos.write(cacheEntry);
+                PackageCacheEntry.write(new BufferedOutputStream(fos), parsed, cacheEntry);
             } catch (IOException ioe) {
                 Slog.w(TAG, "Error writing cache entry.", ioe);
                 cacheFile.delete();
@@ -83,6 +83,17 @@ public abstract class ContentObserver {
         return false;
     }
 
+    /**
+     * Returns true if this observer wants changes that happen in quick succession to be
+     * delivered together through {@link #onChange(boolean, Uri[], int)}, rather than one
+     * {@link #onChange(boolean, Uri, int)} call per change.
+     *
+     * @hide
+     */
+    public boolean wantsBatchedNotifications() {
+        return false;
+    }
+
     /**
      * This method is called when a content change occurs.
      * <p>
@@ -145,6 +156,23 @@ public abstract class ContentObserver {
         onChange(selfChange, uri);
     }
 
+    /**
+     * Dispatches a batch of change notifications to an observer that
+     * {@link #wantsBatchedNotifications wants batched notifications}. By default each uri is
+     * reported through {@link #onChange(boolean, Uri, int)}, in order.
+     *
+     * @param selfChange True if this is a self-change notification.
+     * @param uris The Uris of the changed content, in the order they changed.
+     * @param userId The user whose content changed.
+     *
+     * @hide
+     */
+    public void onChange(boolean selfChange, Uri[] uris, int userId) {
+        for (Uri uri : uris) {
+            onChange(selfChange, uri, userId);
+        }
+    }
+
     /**
      * Dispatches a change notification to the observer.
      * <p>
@@ -199,6 +227,14 @@ public abstract class ContentObserver {
         }
     }
 
+    private void dispatchChange(boolean selfChange, Uri[] uris, int userId) {
+        if (mHandler == null) {
+            onChange(selfChange, uris, userId);
+        } else {
+            mHandler.post(() -> onChange(selfChange, uris, userId));
+        }
+    }
+
 
     private final class NotificationRunnable implements Runnable {
         private final boolean mSelfChange;
@@ -232,6 +268,14 @@ public abstract class ContentObserver {
             }
         }
 
+        @Override
+        public void onChangeUris(boolean selfChange, Uri[] uris, int userId) {
+            ContentObserver contentObserver = mContentObserver;
+            if (contentObserver != null) {
+                contentObserver.dispatchChange(selfChange, uris, userId);
+            }
+        }
+
         public void releaseContentObserver() {
             mContentObserver = null;
         }
@@ -75,6 +75,7 @@ import android.os.Process;
 import android.os.RemoteException;
 import android.os.ResultReceiver;
 import android.os.ServiceManager;
+import android.os.SharedMemory;
 import android.os.UserHandle;
 import android.provider.SettingsValidators.Validator;
 import android.speech.tts.TextToSpeech;
@@ -1639,6 +1640,18 @@ public final class Settings {
      */
     public static final String CALL_METHOD_GENERATION_KEY = "_generation";
 
+    /**
+     * @hide - Specifies that the caller of the fast-path call()-based flow, which must also
+     * track the settings generation, can read values from a snapshot of the table. If this key
+     * is mapped to a <code>null</code> string extra in the request bundle, the response bundle
+     * may contain the same key mapped to a {@link android.os.SharedMemory} holding a
+     * {@link SettingsSnapshot} of the table. The caller should only request a snapshot when it
+     * doesn't have one taken at the current generation.
+     *
+     * @see #CALL_METHOD_TRACK_GENERATION_KEY
+     */
+    public static final String CALL_METHOD_TRACK_SNAPSHOT_KEY = "_track_snapshot";
+
     /**
      * @hide - User handle argument extra to the fast-path call()-based requests
      */
@@ -1934,6 +1947,10 @@ public final class Settings {
             return mCurrentGeneration;
         }
 
+        public int getIndex() {
+            return mIndex;
+        }
+
         private int readCurrentGeneration() {
             try {
                 return mArray.get(mIndex);
@@ -2008,15 +2025,30 @@ public final class Settings {
         private final String mCallGetCommand;
         private final String mCallSetCommand;
 
+        // Whether the provider can serve snapshots of the table, see SettingsSnapshot.
+        private final boolean mSnapshotSupported;
+
         @GuardedBy("this")
         private GenerationTracker mGenerationTracker;
 
+        @GuardedBy("this")
+        private SettingsSnapshot mSnapshot;
+
+        @GuardedBy("this")
+        private boolean mSnapshotEnabled = true;
+
         public NameValueCache(Uri uri, String getCommand, String setCommand,
                 ContentProviderHolder providerHolder) {
+            this(uri, getCommand, setCommand, providerHolder, false);
+        }
+
+        public NameValueCache(Uri uri, String getCommand, String setCommand,
+                ContentProviderHolder providerHolder, boolean snapshotSupported) {
             mUri = uri;
             mCallGetCommand = getCommand;
             mCallSetCommand = setCommand;
             mProviderHolder = providerHolder;
+            mSnapshotSupported = snapshotSupported;
         }
 
         public boolean putStringForUser(ContentResolver cr, String name, String value,
@@ -2059,6 +2091,15 @@ public final class Settings {
                         if (mGenerationTracker != null) {
                             currentGeneration = mGenerationTracker.getCurrentGeneration();
                         }
+                        if (isSnapshotCurrentLocked(currentGeneration)) {
+                            final int index = mSnapshot.indexOf(name);
+                            if (index < 0 || mSnapshot.isCovered(index)) {
+                                final String value = index >= 0
+                                        ? mSnapshot.getValue(index) : null;
+                                mValues.put(name, value);
+                                return value;
+                            }
+                        }
                     }
                 }
             } else {
@@ -2080,6 +2121,7 @@ public final class Settings {
                         args.putInt(CALL_METHOD_USER_KEY, userHandle);
                     }
                     boolean needsGenerationTracker = false;
+                    boolean needsSnapshot = false;
                     synchronized (NameValueCache.this) {
                         if (isSelf && mGenerationTracker == null) {
                             needsGenerationTracker = true;
@@ -2093,6 +2135,14 @@ public final class Settings {
                                         + userHandle);
                             }
                         }
+                        if (isSelf && mSnapshotSupported && mSnapshotEnabled
+                                && !isSnapshotCurrentLocked(currentGeneration)) {
+                            needsSnapshot = true;
+                            if (args == null) {
+                                args = new Bundle();
+                            }
+                            args.putString(CALL_METHOD_TRACK_SNAPSHOT_KEY, null);
+                        }
                     }
                     Bundle b;
                     // If we're in system server and in a binder transaction we need to clear the
@@ -2144,11 +2194,19 @@ public final class Settings {
                                                     mGenerationTracker = null;
                                                     generationTracker.destroy();
                                                     mValues.clear();
+                                                    closeSnapshotLocked();
                                                 }
                                             }
                                         });
                                     }
                                 }
+                                if (needsSnapshot) {
+                                    SharedMemory memory = b.getParcelable(
+                                            CALL_METHOD_TRACK_SNAPSHOT_KEY);
+                                    if (memory != null) {
+                                        updateSnapshotLocked(memory);
+                                    }
+                                }
                                 if (mGenerationTracker != null && currentGeneration ==
                                         mGenerationTracker.getCurrentGeneration()) {
                                     mValues.put(name, value);
@@ -2211,6 +2269,39 @@ public final class Settings {
             }
         }
 
+        @GuardedBy("this")
+        private boolean isSnapshotCurrentLocked(int currentGeneration) {
+            return mSnapshot != null && mGenerationTracker != null
+                    && mSnapshot.getGenerationIndex() == mGenerationTracker.getIndex()
+                    && mSnapshot.getGeneration() == currentGeneration;
+        }
+
+        @GuardedBy("this")
+        private void updateSnapshotLocked(SharedMemory memory) {
+            try {
+                final SettingsSnapshot snapshot = SettingsSnapshot.map(memory);
+                closeSnapshotLocked();
+                mSnapshot = snapshot;
+                if (DEBUG) {
+                    Log.i(TAG, "Received snapshot for type:" + mUri.getPath()
+                            + " with generation:" + snapshot.getGeneration());
+                }
+            } catch (IOException e) {
+                Log.e(TAG, "Error mapping settings snapshot", e);
+            } finally {
+                // The mapping stays valid once the region is closed
+                memory.close();
+            }
+        }
+
+        @GuardedBy("this")
+        private void closeSnapshotLocked() {
+            if (mSnapshot != null) {
+                mSnapshot.close();
+                mSnapshot = null;
+            }
+        }
+
         public void clearGenerationTrackerForTest() {
             synchronized (NameValueCache.this) {
                 if (mGenerationTracker != null) {
@@ -2218,6 +2309,14 @@ public final class Settings {
                 }
                 mValues.clear();
                 mGenerationTracker = null;
+                closeSnapshotLocked();
+            }
+        }
+
+        public void setSnapshotEnabledForTest(boolean enabled) {
+            synchronized (NameValueCache.this) {
+                mSnapshotEnabled = enabled;
+                closeSnapshotLocked();
             }
         }
     }
@@ -5475,7 +5574,8 @@ public final class Settings {
                 CONTENT_URI,
                 CALL_METHOD_GET_SECURE,
                 CALL_METHOD_PUT_SECURE,
-                sProviderHolder);
+                sProviderHolder,
+                true /* snapshotSupported */);
 
         private static ILockSettings sLockSettings = null;
 
@@ -5616,6 +5716,11 @@ public final class Settings {
             sNameValueCache.clearGenerationTrackerForTest();
         }
 
+        /** @hide */
+        public static void setSnapshotEnabledForTest(boolean enabled) {
+            sNameValueCache.setSnapshotEnabledForTest(enabled);
+        }
+
         /**
          * Look up a name in the database.
          * @param resolver to access the database with
@@ -13136,7 +13241,8 @@ public final class Settings {
                     CONTENT_URI,
                     CALL_METHOD_GET_GLOBAL,
                     CALL_METHOD_PUT_GLOBAL,
-                    sProviderHolder);
+                    sProviderHolder,
+                    true /* snapshotSupported */);
 
         // Certain settings have been moved from global to the per-user secure namespace
         private static final HashSet<String> MOVED_TO_SECURE;
@@ -13156,6 +13262,11 @@ public final class Settings {
             sNameValueCache.clearGenerationTrackerForTest();
         }
 
+        /** @hide */
+        public static void setSnapshotEnabledForTest(boolean enabled) {
+            sNameValueCache.setSnapshotEnabledForTest(enabled);
+        }
+
         /**
          * Look up a name in the database.
          * @param resolver to access the database with
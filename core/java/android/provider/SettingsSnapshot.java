@@ -0,0 +1,259 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.provider;
+
+import android.annotation.NonNull;
+import android.annotation.Nullable;
+import android.os.SharedMemory;
+import android.system.ErrnoException;
+import android.system.OsConstants;
+import android.util.ArrayMap;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Set;
+
+/**
+ * A read-only image of one settings table at a given generation, published by the settings
+ * provider in {@link SharedMemory} so that clients can look values up without a binder call.
+ * <p>
+ * The image starts with a header holding the index of the table's generation in the
+ * generation tracking array, the generation the image was taken at and the number of
+ * entries, followed by the offset of each entry and the entries themselves, sorted by name.
+ * Each entry holds the name, a flag and, unless the value is {@code null}, the value.
+ * Strings are stored as UTF-16 code units so that any value round-trips, and so that names can
+ * be compared in place while binary searching.
+ * <p>
+ * Some settings are resolved for each caller by the provider, for example because only some
+ * callers may read them. Those are listed in the image as not covered, and must still be read
+ * through the provider.
+ *
+ * @hide
+ */
+public final class SettingsSnapshot {
+    private static final int MAGIC = 0x53455453; // "SETS"
+    private static final int FORMAT_VERSION = 1;
+
+    private static final int HEADER_SIZE = 20;
+
+    private static final byte FLAG_VALUE = 0;
+    private static final byte FLAG_NULL_VALUE = 1;
+    private static final byte FLAG_NOT_COVERED = 2;
+
+    private final ByteBuffer mBuffer;
+    private final int mGenerationIndex;
+    private final int mGeneration;
+    private final int mCount;
+
+    private SettingsSnapshot(ByteBuffer buffer) throws IOException {
+        mBuffer = buffer;
+        if (buffer.limit() < HEADER_SIZE || buffer.getInt(0) != MAGIC
+                || buffer.getInt(4) != FORMAT_VERSION) {
+            throw new IOException("Not a settings snapshot");
+        }
+        mGenerationIndex = buffer.getInt(8);
+        mGeneration = buffer.getInt(12);
+        mCount = buffer.getInt(16);
+        if (mCount < 0 || HEADER_SIZE + 4L * mCount > buffer.limit()) {
+            throw new IOException("Truncated settings snapshot");
+        }
+    }
+
+    /**
+     * Writes the image of a table into a new, read-only {@link SharedMemory} region.
+     *
+     * @param generationIndex the index of the table's generation, see
+     *        {@link Settings#CALL_METHOD_GENERATION_INDEX_KEY}
+     * @param generation the generation of the table {@code values} were read at
+     * @param values the value of each setting, by name
+     * @param notCovered names of settings that clients must read through the provider
+     */
+    public static @NonNull SharedMemory create(@Nullable String name, int generationIndex,
+            int generation, @NonNull ArrayMap<String, String> values,
+            @NonNull Set<String> notCovered)
+            throws ErrnoException {
+        final String[] names = new String[values.size() + notCovered.size()];
+        int count = 0;
+        for (int i = 0; i < values.size(); i++) {
+            if (!notCovered.contains(values.keyAt(i))) {
+                names[count++] = values.keyAt(i);
+            }
+        }
+        for (String notCoveredName : notCovered) {
+            names[count++] = notCoveredName;
+        }
+        Arrays.sort(names, 0, count);
+
+        int size = HEADER_SIZE + 4 * count;
+        for (int i = 0; i < count; i++) {
+            size += 4 + 2 * names[i].length() + 1;
+            final String value = values.get(names[i]);
+            if (value != null && !notCovered.contains(names[i])) {
+                size += 4 + 2 * value.length();
+            }
+        }
+
+        final SharedMemory memory = SharedMemory.create(name, size);
+        try {
+            final ByteBuffer buffer = memory.mapReadWrite();
+            try {
+                buffer.putInt(MAGIC);
+                buffer.putInt(FORMAT_VERSION);
+                buffer.putInt(generationIndex);
+                buffer.putInt(generation);
+                buffer.putInt(count);
+                int offset = HEADER_SIZE + 4 * count;
+                for (int i = 0; i < count; i++) {
+                    buffer.putInt(HEADER_SIZE + 4 * i, offset);
+                    buffer.position(offset);
+                    putString(buffer, names[i]);
+                    final String value = values.get(names[i]);
+                    if (notCovered.contains(names[i])) {
+                        buffer.put(FLAG_NOT_COVERED);
+                    } else if (value == null) {
+                        buffer.put(FLAG_NULL_VALUE);
+                    } else {
+                        buffer.put(FLAG_VALUE);
+                        putString(buffer, value);
+                    }
+                    offset = buffer.position();
+                }
+            } finally {
+                SharedMemory.unmap(buffer);
+            }
+            memory.setProtect(OsConstants.PROT_READ);
+        } catch (ErrnoException | RuntimeException e) {
+            memory.close();
+            throw e;
+        }
+        return memory;
+    }
+
+    /**
+     * Maps an image written by {@link #create}. The mapping outlives {@code memory}, which
+     * callers can close once this returns.
+     */
+    public static @NonNull SettingsSnapshot map(@NonNull SharedMemory memory)
+            throws IOException {
+        final ByteBuffer buffer;
+        try {
+            buffer = memory.mapReadOnly();
+        } catch (ErrnoException e) {
+            throw e.rethrowAsIOException();
+        }
+        try {
+            return new SettingsSnapshot(buffer);
+        } catch (IOException e) {
+            SharedMemory.unmap(buffer);
+            throw e;
+        }
+    }
+
+    /** Returns the index of the generation of the table this image was taken from. */
+    public int getGenerationIndex() {
+        return mGenerationIndex;
+    }
+
+    /** Returns the generation of the table this image was taken at. */
+    public int getGeneration() {
+        return mGeneration;
+    }
+
+    /**
+     * Looks up the entry for the setting {@code name}.
+     *
+     * @return the index of the entry, or a negative number if the table has no such setting
+     */
+    public int indexOf(@NonNull String name) {
+        int low = 0;
+        int high = mCount - 1;
+        while (low <= high) {
+            final int mid = (low + high) >>> 1;
+            final int cmp = compareName(getEntryOffset(mid), name);
+            if (cmp < 0) {
+                low = mid + 1;
+            } else if (cmp > 0) {
+                high = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return ~low;
+    }
+
+    /**
+     * Whether the value at {@code index} can be used, or must be read through the provider.
+     */
+    public boolean isCovered(int index) {
+        return mBuffer.get(getFlagOffset(index)) != FLAG_NOT_COVERED;
+    }
+
+    /** Returns the value at {@code index}, which must be {@link #isCovered covered}. */
+    public @Nullable String getValue(int index) {
+        final int flagOffset = getFlagOffset(index);
+        if (mBuffer.get(flagOffset) != FLAG_VALUE) {
+            return null;
+        }
+        return getString(flagOffset + 1);
+    }
+
+    /**
+     * Unmaps the image. It must not be accessed after this.
+     */
+    public void close() {
+        SharedMemory.unmap(mBuffer);
+    }
+
+    private int getEntryOffset(int index) {
+        return mBuffer.getInt(HEADER_SIZE + 4 * index);
+    }
+
+    private int getFlagOffset(int index) {
+        final int offset = getEntryOffset(index);
+        return offset + 4 + 2 * mBuffer.getInt(offset);
+    }
+
+    private int compareName(int offset, String name) {
+        final int length = mBuffer.getInt(offset);
+        final int min = Math.min(length, name.length());
+        for (int i = 0; i < min; i++) {
+            final char c = mBuffer.getChar(offset + 4 + 2 * i);
+            final char other = name.charAt(i);
+            if (c != other) {
+                return c - other;
+            }
+        }
+        return length - name.length();
+    }
+
+    private String getString(int offset) {
+        final int length = mBuffer.getInt(offset);
+        final char[] chars = new char[length];
+        for (int i = 0; i < length; i++) {
+            chars[i] = mBuffer.getChar(offset + 4 + 2 * i);
+        }
+        return new String(chars);
+    }
+
+    private static void putString(ByteBuffer buffer, String value) {
+        buffer.putInt(value.length());
+        for (int i = 0; i < value.length(); i++) {
+            buffer.putChar(value.charAt(i));
+        }
+    }
+}
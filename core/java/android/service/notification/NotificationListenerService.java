@@ -1226,6 +1226,10 @@ public abstract class NotificationListenerService extends Service {
                 sbn = sbnHolder.get();
             } catch (RemoteException e) {
                 Log.w(TAG, "onNotificationPosted: Error receiving StatusBarNotification", e);
+                // The update may be a delta on top of the last one; later ones build on it.
+                synchronized (mLock) {
+                    applyUpdateLocked(update);
+                }
                 return;
             }
 
@@ -1267,6 +1271,10 @@ public abstract class NotificationListenerService extends Service {
                 sbn = sbnHolder.get();
             } catch (RemoteException e) {
                 Log.w(TAG, "onNotificationRemoved: Error receiving StatusBarNotification", e);
+                // The update may be a delta on top of the last one; later ones build on it.
+                synchronized (mLock) {
+                    applyUpdateLocked(update);
+                }
                 return;
             }
             // protect subclass from concurrent modifications of (@link mNotificationKeys}.
@@ -1362,7 +1370,9 @@ public abstract class NotificationListenerService extends Service {
      */
     @GuardedBy("mLock")
     public final void applyUpdateLocked(NotificationRankingUpdate update) {
-        mRankingMap = new RankingMap(update);
+        // Deltas only carry the ranking of the notifications that changed since the last update.
+        mRankingMap = new RankingMap(
+                update.applyTo(mRankingMap != null ? mRankingMap.mRankingUpdate : null));
     }
 
     /** @hide */
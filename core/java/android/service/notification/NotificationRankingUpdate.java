@@ -18,12 +18,19 @@ package android.service.notification;
 import android.os.Bundle;
 import android.os.Parcel;
 import android.os.Parcelable;
+import android.util.ArraySet;
 
 /**
+ * The ranking of the notifications visible to a listener.
+ * <p>
+ * An update is either full, or a delta from the previous update sent to the listener: the order,
+ * importance and interception of all the notifications are always there, but the other fields
+ * are only there for the notifications whose ranking changed, as listed by
+ * {@link #getChangedKeys}. {@link #applyTo} turns a delta back into a full update.
+ *
  * @hide
  */
 public class NotificationRankingUpdate implements Parcelable {
-    // TODO: Support incremental updates.
     private final String[] mKeys;
     private final String[] mInterceptedKeys;
     private final Bundle mVisibilityOverrides;
@@ -37,12 +44,28 @@ public class NotificationRankingUpdate implements Parcelable {
     private final Bundle mShowBadge;
     private final Bundle mUserSentiment;
     private final Bundle mHidden;
+    /** Keys of the notifications the bundles are about, or null if they cover all of them. */
+    private final String[] mChangedKeys;
 
     public NotificationRankingUpdate(String[] keys, String[] interceptedKeys,
             Bundle visibilityOverrides, Bundle suppressedVisualEffects,
             int[] importance, Bundle explanation, Bundle overrideGroupKeys,
             Bundle channels, Bundle overridePeople, Bundle snoozeCriteria,
             Bundle showBadge, Bundle userSentiment, Bundle hidden) {
+        this(keys, interceptedKeys, visibilityOverrides, suppressedVisualEffects, importance,
+                explanation, overrideGroupKeys, channels, overridePeople, snoozeCriteria,
+                showBadge, userSentiment, hidden, null);
+    }
+
+    /**
+     * @param changedKeys Keys of the notifications whose ranking changed since the previous
+     *     update, which are the only ones the bundles hold values for; or null for a full update.
+     */
+    public NotificationRankingUpdate(String[] keys, String[] interceptedKeys,
+            Bundle visibilityOverrides, Bundle suppressedVisualEffects,
+            int[] importance, Bundle explanation, Bundle overrideGroupKeys,
+            Bundle channels, Bundle overridePeople, Bundle snoozeCriteria,
+            Bundle showBadge, Bundle userSentiment, Bundle hidden, String[] changedKeys) {
         mKeys = keys;
         mInterceptedKeys = interceptedKeys;
         mVisibilityOverrides = visibilityOverrides;
@@ -56,6 +79,7 @@ public class NotificationRankingUpdate implements Parcelable {
         mShowBadge = showBadge;
         mUserSentiment = userSentiment;
         mHidden = hidden;
+        mChangedKeys = changedKeys;
     }
 
     public NotificationRankingUpdate(Parcel in) {
@@ -73,6 +97,7 @@ public class NotificationRankingUpdate implements Parcelable {
         mShowBadge = in.readBundle();
         mUserSentiment = in.readBundle();
         mHidden = in.readBundle();
+        mChangedKeys = in.readStringArray();
     }
 
     @Override
@@ -95,6 +120,7 @@ public class NotificationRankingUpdate implements Parcelable {
         out.writeBundle(mShowBadge);
         out.writeBundle(mUserSentiment);
         out.writeBundle(mHidden);
+        out.writeStringArray(mChangedKeys);
     }
 
     public static final Parcelable.Creator<NotificationRankingUpdate> CREATOR
@@ -159,4 +185,63 @@ public class NotificationRankingUpdate implements Parcelable {
     public Bundle getHidden() {
         return mHidden;
     }
+
+    public boolean isDelta() {
+        return mChangedKeys != null;
+    }
+
+    public String[] getChangedKeys() {
+        return mChangedKeys;
+    }
+
+    /**
+     * Returns the full update this delta makes of {@code previous}, which is the update the
+     * listener got before this one, taking the ranking of the notifications that didn't change
+     * from it. Returns this update if it is a full one.
+     */
+    public NotificationRankingUpdate applyTo(NotificationRankingUpdate previous) {
+        if (mChangedKeys == null) {
+            return this;
+        }
+        // The values of the previous update to keep: those of the notifications still there
+        // that haven't changed.
+        final ArraySet<String> keep = new ArraySet<>(mKeys.length);
+        for (String key : mKeys) {
+            keep.add(key);
+        }
+        for (String key : mChangedKeys) {
+            keep.remove(key);
+        }
+        return new NotificationRankingUpdate(mKeys, mInterceptedKeys,
+                merge(previous != null ? previous.mVisibilityOverrides : null,
+                        mVisibilityOverrides, keep),
+                merge(previous != null ? previous.mSuppressedVisualEffects : null,
+                        mSuppressedVisualEffects, keep),
+                mImportance,
+                merge(previous != null ? previous.mImportanceExplanation : null,
+                        mImportanceExplanation, keep),
+                merge(previous != null ? previous.mOverrideGroupKeys : null,
+                        mOverrideGroupKeys, keep),
+                merge(previous != null ? previous.mChannels : null, mChannels, keep),
+                merge(previous != null ? previous.mOverridePeople : null, mOverridePeople, keep),
+                merge(previous != null ? previous.mSnoozeCriteria : null, mSnoozeCriteria, keep),
+                merge(previous != null ? previous.mShowBadge : null, mShowBadge, keep),
+                merge(previous != null ? previous.mUserSentiment : null, mUserSentiment, keep),
+                merge(previous != null ? previous.mHidden : null, mHidden, keep));
+    }
+
+    private static Bundle merge(Bundle previous, Bundle changed, ArraySet<String> keep) {
+        final Bundle merged = previous != null ? new Bundle(previous) : new Bundle();
+        if (previous != null) {
+            for (String key : previous.keySet()) {
+                if (!keep.contains(key)) {
+                    merged.remove(key);
+                }
+            }
+        }
+        if (changed != null) {
+            merged.putAll(changed);
+        }
+        return merged;
+    }
 }
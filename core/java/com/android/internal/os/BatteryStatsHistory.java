@@ -0,0 +1,242 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.os;
+
+import android.os.Handler;
+import android.os.Parcel;
+import android.util.AtomicFile;
+import android.util.IntArray;
+import android.util.Slog;
+import android.util.SparseArray;
+
+import com.android.internal.annotations.GuardedBy;
+import com.android.internal.annotations.VisibleForTesting;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Keeps the battery history that has been spilled out of the in-memory history buffer of
+ * {@link BatteryStatsImpl}, as a sequence of pages in a directory, one file per page, named
+ * after its sequence number. Each page holds what the buffer held when it filled up, so only
+ * the current page needs to live in memory and the length of the history is bounded by
+ * {@link #setMaxPages} rather than by RAM.
+ *
+ * Pages are written on the given handler, the oldest pages being deleted once there are more
+ * than the maximum; a page stays in memory until it is written.
+ */
+public class BatteryStatsHistory {
+    private static final String TAG = "BatteryStatsHistory";
+
+    /** Name of the directory of the pages, under the battery stats directory. */
+    public static final String HISTORY_DIR = "battery-history";
+    private static final String PAGE_FILE_SUFFIX = ".bin";
+    private static final String BACKUP_FILE_SUFFIX = ".bak";
+
+    private final File mDir;
+    private final Handler mHandler;
+
+    /** Sequence numbers of the pages, oldest first. */
+    @GuardedBy("this")
+    private final IntArray mPages = new IntArray();
+    /** Pages that haven't been written to disk yet, by sequence number. */
+    @GuardedBy("this")
+    private final SparseArray<byte[]> mPendingPages = new SparseArray<>();
+    @GuardedBy("this")
+    private long mSize;
+    @GuardedBy("this")
+    private int mMaxPages;
+    /** Reused to read the pages back, as they are all about the size of the history buffer. */
+    @GuardedBy("this")
+    private byte[] mReadBuffer;
+
+    public BatteryStatsHistory(File dir, Handler handler, int maxPages) {
+        mDir = dir;
+        mHandler = handler;
+        mMaxPages = maxPages;
+        mDir.mkdirs();
+        final File[] files = mDir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                final int seq = parseSequence(file.getName());
+                if (seq < 0) {
+                    file.delete();
+                } else if (mPages.indexOf(seq) < 0) {
+                    // A page and its backup, if a write was interrupted, count once.
+                    mPages.add(seq);
+                    mSize += getPageLength(seq);
+                }
+            }
+        }
+        final int[] pages = mPages.toArray();
+        Arrays.sort(pages);
+        mPages.clear();
+        mPages.addAll(IntArray.wrap(pages));
+        trimLocked();
+    }
+
+    private static int parseSequence(String name) {
+        if (name.endsWith(BACKUP_FILE_SUFFIX)) {
+            name = name.substring(0, name.length() - BACKUP_FILE_SUFFIX.length());
+        }
+        if (!name.endsWith(PAGE_FILE_SUFFIX)) {
+            return -1;
+        }
+        try {
+            return Integer.parseInt(
+                    name.substring(0, name.length() - PAGE_FILE_SUFFIX.length()));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private AtomicFile getPageFile(int seq) {
+        return new AtomicFile(new File(mDir, seq + PAGE_FILE_SUFFIX));
+    }
+
+    /** Returns the length of the page as {@link AtomicFile#openRead} would read it. */
+    private long getPageLength(int seq) {
+        final File backup = new File(mDir, seq + PAGE_FILE_SUFFIX + BACKUP_FILE_SUFFIX);
+        return backup.exists() ? backup.length() : getPageFile(seq).getBaseFile().length();
+    }
+
+    public synchronized void setMaxPages(int maxPages) {
+        mMaxPages = maxPages;
+        trimLocked();
+    }
+
+    public synchronized int getMaxPages() {
+        return mMaxPages;
+    }
+
+    public synchronized int getPageCount() {
+        return mPages.size();
+    }
+
+    /** Returns the size in bytes of all the pages. */
+    public synchronized long getSize() {
+        return mSize;
+    }
+
+    /**
+     * Adds a page after the existing ones and schedules writing it, dropping the oldest pages
+     * if there are more than the maximum.
+     */
+    public void addPage(byte[] data) {
+        final int seq;
+        synchronized (this) {
+            seq = mPages.size() > 0 ? mPages.get(mPages.size() - 1) + 1 : 0;
+            mPages.add(seq);
+            mPendingPages.put(seq, data);
+            mSize += data.length;
+            trimLocked();
+        }
+        mHandler.post(() -> writePage(seq));
+    }
+
+    private void writePage(int seq) {
+        synchronized (this) {
+            final byte[] data = mPendingPages.get(seq);
+            if (data == null) {
+                // Dropped or cleared before we got to it.
+                return;
+            }
+            final AtomicFile file = getPageFile(seq);
+            FileOutputStream stream = null;
+            try {
+                stream = file.startWrite();
+                stream.write(data);
+                file.finishWrite(stream);
+            } catch (IOException e) {
+                Slog.w(TAG, "Error writing battery history page " + file.getBaseFile(), e);
+                file.failWrite(stream);
+                // Keep the page in memory rather than lose it.
+                return;
+            }
+            mPendingPages.remove(seq);
+        }
+    }
+
+    /**
+     * Reads the page at the given position, 0 being the oldest, into {@code out} and rewinds it.
+     * Returns false if the page could not be read.
+     */
+    public synchronized boolean readPage(int index, Parcel out) {
+        final int seq = mPages.get(index);
+        final byte[] pending = mPendingPages.get(seq);
+        if (pending != null) {
+            out.unmarshall(pending, 0, pending.length);
+            out.setDataPosition(0);
+            return true;
+        }
+        final AtomicFile file = getPageFile(seq);
+        try (FileInputStream stream = file.openRead()) {
+            final int length = (int) stream.getChannel().size();
+            if (mReadBuffer == null || mReadBuffer.length < length) {
+                mReadBuffer = new byte[length];
+            }
+            int pos = 0;
+            while (pos < length) {
+                final int amt = stream.read(mReadBuffer, pos, length - pos);
+                if (amt < 0) {
+                    break;
+                }
+                pos += amt;
+            }
+            out.unmarshall(mReadBuffer, 0, pos);
+            out.setDataPosition(0);
+            return true;
+        } catch (IOException e) {
+            Slog.w(TAG, "Error reading battery history page " + file.getBaseFile(), e);
+            return false;
+        }
+    }
+
+    /** Drops all the pages. */
+    public synchronized void clear() {
+        for (int i = mPages.size() - 1; i >= 0; i--) {
+            getPageFile(mPages.get(i)).delete();
+        }
+        mPages.clear();
+        mPendingPages.clear();
+        mSize = 0;
+    }
+
+    @GuardedBy("this")
+    private void trimLocked() {
+        while (mPages.size() > Math.max(mMaxPages, 0)) {
+            final int seq = mPages.get(0);
+            mPages.remove(0);
+            final byte[] pending = mPendingPages.get(seq);
+            if (pending != null) {
+                mPendingPages.remove(seq);
+                mSize -= pending.length;
+            } else {
+                mSize -= getPageLength(seq);
+                getPageFile(seq).delete();
+            }
+        }
+    }
+
+    @VisibleForTesting
+    public synchronized int getPendingPageCount() {
+        return mPendingPages.size();
+    }
+}
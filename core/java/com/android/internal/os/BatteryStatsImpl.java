@@ -652,6 +652,21 @@ public class BatteryStatsImpl extends BatteryStats {
     int mNumHistoryItems;
 
     final Parcel mHistoryBuffer = Parcel.obtain();
+    // Pages of history spilled out of mHistoryBuffer once it filled up, oldest first, when we
+    // have a directory to keep them in.
+    BatteryStatsHistory mHistoryPages;
+    // Parcel being iterated: a page read into mHistoryPageParcel or mHistoryBuffer, which
+    // always comes last.
+    Parcel mHistoryReadParcel;
+    Parcel mHistoryPageParcel;
+    int mHistoryReadPage;
+    int mHistoryReadEnd;
+    boolean mHistoryReadPageStart;
+    // Every page has its own tag pool. While iterating history that spans pages, these map the
+    // tag indices of each page, then of mHistoryBuffer, to those of the single pool reported
+    // through getHistoryTagPoolString(); the map of the parcel being read is current.
+    int[][] mHistoryPageTagMaps;
+    int[] mHistoryReadTagMap;
     final HistoryItem mHistoryLastWritten = new HistoryItem();
     final HistoryItem mHistoryLastLastWritten = new HistoryItem();
     final HistoryItem mHistoryReadTmp = new HistoryItem();
@@ -3154,6 +3169,14 @@ public class BatteryStatsImpl extends BatteryStats {
     }
 
     private void readHistoryTag(int index, HistoryTag tag) {
+        if (mHistoryReadTagMap != null) {
+            final int readIndex = index < mHistoryReadTagMap.length
+                    ? mHistoryReadTagMap[index] : -1;
+            if (readIndex < 0) {
+                throw new ParcelFormatException("unknown history tag " + index);
+            }
+            index = readIndex;
+        }
         tag.string = mReadHistoryStrings[index];
         tag.uid = mReadHistoryUids[index];
         tag.poolIdx = index;
@@ -3738,6 +3761,11 @@ public class BatteryStatsImpl extends BatteryStats {
         }
 
         boolean recordResetDueToOverflow = false;
+        if (mHistoryPages != null && mHistoryBuffer.dataSize() >= MAX_HISTORY_BUFFER) {
+            // Rather than start dropping detail, move the full buffer to a page on disk
+            // and carry on in an empty one.
+            startNextHistoryPageLocked(elapsedRealtimeMs);
+        }
         final int dataSize = mHistoryBuffer.dataSize();
         if (dataSize >= MAX_MAX_HISTORY_BUFFER*3) {
             // Clients can't deal with history buffers this large. This only
@@ -3829,6 +3857,42 @@ public class BatteryStatsImpl extends BatteryStats {
                 + " size is now " + mHistoryBuffer.dataSize());
     }
 
+    /**
+     * Moves the history buffer, along with the tag pool it refers to, to a new page of
+     * {@link #mHistoryPages} and starts the next page with the current time and an empty tag
+     * pool, so that every page can be read on its own once the pages before it are gone.
+     */
+    private void startNextHistoryPageLocked(long elapsedRealtimeMs) {
+        final Parcel page = Parcel.obtain();
+        try {
+            writeHistory(page, true, false);
+            mHistoryPages.addPage(page.marshall());
+        } finally {
+            page.recycle();
+        }
+        if (DEBUG_HISTORY) Slog.i(TAG, "Moved " + mHistoryBuffer.dataSize()
+                + " bytes of history to page " + (mHistoryPages.getPageCount() - 1));
+
+        // The next page only carries the tags written into it.
+        mHistoryTagPool.clear();
+        mNextHistoryTagIdx = 0;
+        mNumHistoryTagChars = 0;
+
+        final HistoryItem start = new HistoryItem();
+        start.setTo(mHistoryLastWritten);
+        start.wakelockTag = null;
+        start.wakeReasonTag = null;
+        start.eventCode = HistoryItem.EVENT_NONE;
+        start.eventTag = null;
+        start.currentTime = System.currentTimeMillis();
+        mHistoryBuffer.setDataSize(0);
+        mHistoryBuffer.setDataPosition(0);
+        mHistoryBufferLastPos = -1;
+        mHistoryLastLastWritten.clear();
+        mHistoryLastWritten.clear();
+        addHistoryBufferLocked(elapsedRealtimeMs, HistoryItem.CMD_CURRENT_TIME, start);
+    }
+
     int mChangedStates = 0;
     int mChangedStates2 = 0;
 
@@ -10126,6 +10190,11 @@ public class BatteryStatsImpl extends BatteryStats {
         mDailyFile = new AtomicFile(new File(systemDir, "batterystats-daily.xml"));
         mHandler = new MyHandler(handler.getLooper());
         mConstants = new Constants(mHandler);
+        if (systemDir != null) {
+            mHistoryPages = new BatteryStatsHistory(
+                    new File(systemDir, BatteryStatsHistory.HISTORY_DIR),
+                    BackgroundThread.getHandler(), mConstants.MAX_HISTORY_PAGES);
+        }
         mStartCount++;
         mScreenOnTimer = new StopwatchTimer(mClocks, null, -1, null, mOnBatteryTimeBase);
         mScreenDozeTimer = new StopwatchTimer(mClocks, null, -1, null, mOnBatteryTimeBase);
@@ -10649,10 +10718,16 @@ public class BatteryStatsImpl extends BatteryStats {
     }
 
     public int getHistoryTotalSize() {
+        if (mHistoryPages != null) {
+            return MAX_HISTORY_BUFFER * (mHistoryPages.getMaxPages() + 1);
+        }
         return MAX_HISTORY_BUFFER;
     }
 
     public int getHistoryUsedSize() {
+        if (mHistoryPages != null) {
+            return (int) mHistoryPages.getSize() + mHistoryBuffer.dataSize();
+        }
         return mHistoryBuffer.dataSize();
     }
 
@@ -10660,12 +10735,23 @@ public class BatteryStatsImpl extends BatteryStats {
     public boolean startIteratingHistoryLocked() {
         if (DEBUG_HISTORY) Slog.i(TAG, "ITERATING: buff size=" + mHistoryBuffer.dataSize()
                 + " pos=" + mHistoryBuffer.dataPosition());
-        if (mHistoryBuffer.dataSize() <= 0) {
+        final int numPages = mHistoryPages != null ? mHistoryPages.getPageCount() : 0;
+        if (mHistoryBuffer.dataSize() <= 0 && numPages == 0) {
             return false;
         }
-        mHistoryBuffer.setDataPosition(0);
         mReadOverflow = false;
         mIteratingHistory = true;
+        if (numPages > 0) {
+            mHistoryPageParcel = Parcel.obtain();
+            readPagedHistoryTagPoolLocked(numPages);
+        } else {
+            readHistoryTagPoolLocked();
+        }
+        openHistoryPageLocked(0);
+        return true;
+    }
+
+    private void readHistoryTagPoolLocked() {
         mReadHistoryStrings = new String[mHistoryTagPool.size()];
         mReadHistoryUids = new int[mHistoryTagPool.size()];
         mReadHistoryChars = 0;
@@ -10676,6 +10762,133 @@ public class BatteryStatsImpl extends BatteryStats {
             mReadHistoryUids[idx] = tag.uid;
             mReadHistoryChars += tag.string.length() + 1;
         }
+    }
+
+    /**
+     * Merges the tag pools of the pages and of the history buffer into the one reported while
+     * iterating, so that it holds every tag up front whatever page refers to it, and sets up
+     * {@link #mHistoryPageTagMaps} to translate each page's indices.
+     */
+    private void readPagedHistoryTagPoolLocked(int numPages) {
+        final HashMap<HistoryTag, Integer> pool = new HashMap<>();
+        final ArrayList<HistoryTag> tags = new ArrayList<>();
+        mHistoryPageTagMaps = new int[numPages + 1][];
+        for (int i = 0; i < numPages; i++) {
+            int[] map = null;
+            if (mHistoryPages.readPage(i, mHistoryPageParcel)) {
+                try {
+                    mHistoryPageParcel.readLong();
+                    map = readHistoryPageTags(mHistoryPageParcel, pool, tags);
+                } catch (ParcelFormatException e) {
+                    Slog.w(TAG, "Bad tag pool in history page " + i, e);
+                }
+            }
+            mHistoryPageTagMaps[i] = map != null ? map : EmptyArray.INT;
+        }
+
+        final int[] map = new int[mNextHistoryTagIdx];
+        Arrays.fill(map, -1);
+        for (HashMap.Entry<HistoryTag, Integer> ent : mHistoryTagPool.entrySet()) {
+            map[ent.getValue()] = addReadHistoryTag(pool, tags, ent.getKey().string,
+                    ent.getKey().uid);
+        }
+        mHistoryPageTagMaps[numPages] = map;
+
+        mReadHistoryStrings = new String[tags.size()];
+        mReadHistoryUids = new int[tags.size()];
+        mReadHistoryChars = 0;
+        for (int i = 0; i < tags.size(); i++) {
+            final HistoryTag tag = tags.get(i);
+            mReadHistoryStrings[i] = tag.string;
+            mReadHistoryUids[i] = tag.uid;
+            mReadHistoryChars += tag.string.length() + 1;
+        }
+    }
+
+    /**
+     * Reads the tag pool at the current position of a page written by writeHistory(). When
+     * {@code pool} is not null, adds the tags to it and returns the map from the page's tag
+     * indices to theirs; otherwise just skips them.
+     */
+    private static int[] readHistoryPageTags(Parcel page, HashMap<HistoryTag, Integer> pool,
+            ArrayList<HistoryTag> tags) {
+        final int numTags = page.readInt();
+        if (numTags < 0 || numTags > page.dataAvail()) {
+            throw new ParcelFormatException("bad history tag count " + numTags);
+        }
+        int[] map = pool != null ? EmptyArray.INT : null;
+        for (int i = 0; i < numTags; i++) {
+            final int idx = page.readInt();
+            final String str = page.readString();
+            final int uid = page.readInt();
+            if (str == null || idx < 0 || idx >= 0xffff) {
+                throw new ParcelFormatException("bad history tag " + idx);
+            }
+            if (map != null) {
+                if (idx >= map.length) {
+                    final int oldLength = map.length;
+                    map = Arrays.copyOf(map, idx + 1);
+                    Arrays.fill(map, oldLength, map.length, -1);
+                }
+                map[idx] = addReadHistoryTag(pool, tags, str, uid);
+            }
+        }
+        return map;
+    }
+
+    private static int addReadHistoryTag(HashMap<HistoryTag, Integer> pool,
+            ArrayList<HistoryTag> tags, String str, int uid) {
+        final HistoryTag tag = new HistoryTag();
+        tag.string = str;
+        tag.uid = uid;
+        final Integer idx = pool.get(tag);
+        if (idx != null) {
+            return idx;
+        }
+        tag.poolIdx = tags.size();
+        pool.put(tag, tag.poolIdx);
+        tags.add(tag);
+        return tag.poolIdx;
+    }
+
+    /**
+     * Starts reading the page of history at the given index, or the history buffer once past
+     * the last page. Returns false when there is nothing left to read.
+     */
+    private boolean openHistoryPageLocked(int index) {
+        final int numPages = mHistoryPageTagMaps != null ? mHistoryPageTagMaps.length - 1 : 0;
+        if (index > numPages) {
+            return false;
+        }
+        mHistoryReadPage = index;
+        mHistoryReadPageStart = true;
+        mHistoryReadTagMap = mHistoryPageTagMaps != null ? mHistoryPageTagMaps[index] : null;
+        if (index == numPages) {
+            mHistoryBuffer.setDataPosition(0);
+            mHistoryReadParcel = mHistoryBuffer;
+            mHistoryReadEnd = mHistoryBuffer.dataSize();
+            return true;
+        }
+
+        // Pages have the layout written by writeHistory().
+        final Parcel page = mHistoryPageParcel;
+        mHistoryReadParcel = page;
+        mHistoryReadEnd = 0;
+        if (!mHistoryPages.readPage(index, page)) {
+            return true;
+        }
+        try {
+            page.readLong();
+            readHistoryPageTags(page, null, null);
+            final int bufSize = page.readInt();
+            final int end = page.dataPosition() + bufSize;
+            if (bufSize < 0 || end > page.dataSize()) {
+                throw new ParcelFormatException("bad history page size " + bufSize);
+            }
+            mHistoryReadEnd = end;
+        } catch (ParcelFormatException e) {
+            Slog.w(TAG, "Skipping history page " + index, e);
+        }
         return true;
     }
 
@@ -10703,18 +10916,29 @@ public class BatteryStatsImpl extends BatteryStats {
 
     @Override
     public boolean getNextHistoryLocked(HistoryItem out) {
-        final int pos = mHistoryBuffer.dataPosition();
-        if (pos == 0) {
-            out.clear();
+        while (mHistoryReadParcel.dataPosition() >= mHistoryReadEnd) {
+            if (!openHistoryPageLocked(mHistoryReadPage + 1)) {
+                return false;
+            }
         }
-        boolean end = pos >= mHistoryBuffer.dataSize();
-        if (end) {
-            return false;
+        if (mHistoryReadPageStart) {
+            // Pages start from an absolute record, not a delta against the page before.
+            mHistoryReadPageStart = false;
+            out.clear();
         }
 
         final long lastRealtime = out.time;
         final long lastWalltime = out.currentTime;
-        readHistoryDelta(mHistoryBuffer, out);
+        try {
+            readHistoryDelta(mHistoryReadParcel, out);
+        } catch (ParcelFormatException e) {
+            if (mHistoryReadParcel == mHistoryBuffer) {
+                throw e;
+            }
+            Slog.w(TAG, "Skipping the rest of history page " + mHistoryReadPage, e);
+            mHistoryReadParcel.setDataPosition(mHistoryReadEnd);
+            return getNextHistoryLocked(out);
+        }
         if (out.cmd != HistoryItem.CMD_CURRENT_TIME
                 && out.cmd != HistoryItem.CMD_RESET && lastWalltime != 0) {
             out.currentTime = lastWalltime + (out.time - lastRealtime);
@@ -10727,6 +10951,13 @@ public class BatteryStatsImpl extends BatteryStats {
         mIteratingHistory = false;
         mHistoryBuffer.setDataPosition(mHistoryBuffer.dataSize());
         mReadHistoryStrings = null;
+        mHistoryReadParcel = null;
+        mHistoryPageTagMaps = null;
+        mHistoryReadTagMap = null;
+        if (mHistoryPageParcel != null) {
+            mHistoryPageParcel.recycle();
+            mHistoryPageParcel = null;
+        }
     }
 
     @Override
@@ -10951,6 +11182,9 @@ public class BatteryStatsImpl extends BatteryStats {
         initDischarge();
 
         clearHistoryLocked();
+        if (mHistoryPages != null) {
+            mHistoryPages.clear();
+        }
         mHandler.sendEmptyMessage(MSG_REPORT_RESET_STATS);
     }
 
@@ -12377,7 +12611,7 @@ public class BatteryStatsImpl extends BatteryStats {
                     || level >= 90
                     || (mDischargeCurrentLevel < 20 && level >= 80)
                     || (getHighDischargeAmountSinceCharge() >= 200
-                            && mHistoryBuffer.dataSize() >= MAX_HISTORY_BUFFER))) {
+                            && getHistoryUsedSize() >= MAX_HISTORY_BUFFER))) {
                 Slog.i(TAG, "Resetting battery stats: level=" + level + " status=" + oldStatus
                         + " dischargeLevel=" + mDischargeCurrentLevel
                         + " lowAmount=" + getLowDischargeAmountSinceCharge()
@@ -13279,6 +13513,8 @@ public class BatteryStatsImpl extends BatteryStats {
                 = "external_stats_collection_rate_limit_ms";
         public static final String KEY_BATTERY_LEVEL_COLLECTION_DELAY_MS
                 = "battery_level_collection_delay_ms";
+        public static final String KEY_MAX_HISTORY_PAGES
+                = "max_history_pages";
 
         private static final boolean DEFAULT_TRACK_CPU_TIMES_BY_PROC_STATE = true;
         private static final boolean DEFAULT_TRACK_CPU_ACTIVE_CLUSTER_TIME = true;
@@ -13287,6 +13523,7 @@ public class BatteryStatsImpl extends BatteryStats {
         private static final long DEFAULT_UID_REMOVE_DELAY_MS = 5L * 60L * 1000L;
         private static final long DEFAULT_EXTERNAL_STATS_COLLECTION_RATE_LIMIT_MS = 600_000;
         private static final long DEFAULT_BATTERY_LEVEL_COLLECTION_DELAY_MS = 300_000;
+        private static final int DEFAULT_MAX_HISTORY_PAGES = 32;
 
         public boolean TRACK_CPU_TIMES_BY_PROC_STATE = DEFAULT_TRACK_CPU_TIMES_BY_PROC_STATE;
         public boolean TRACK_CPU_ACTIVE_CLUSTER_TIME = DEFAULT_TRACK_CPU_ACTIVE_CLUSTER_TIME;
@@ -13297,6 +13534,7 @@ public class BatteryStatsImpl extends BatteryStats {
                 = DEFAULT_EXTERNAL_STATS_COLLECTION_RATE_LIMIT_MS;
         public long BATTERY_LEVEL_COLLECTION_DELAY_MS
                 = DEFAULT_BATTERY_LEVEL_COLLECTION_DELAY_MS;
+        public int MAX_HISTORY_PAGES = DEFAULT_MAX_HISTORY_PAGES;
 
         private ContentResolver mResolver;
         private final KeyValueListParser mParser = new KeyValueListParser(',');
@@ -13348,6 +13586,11 @@ public class BatteryStatsImpl extends BatteryStats {
                 BATTERY_LEVEL_COLLECTION_DELAY_MS = mParser.getLong(
                         KEY_BATTERY_LEVEL_COLLECTION_DELAY_MS,
                         DEFAULT_BATTERY_LEVEL_COLLECTION_DELAY_MS);
+                MAX_HISTORY_PAGES = mParser.getInt(KEY_MAX_HISTORY_PAGES,
+                        DEFAULT_MAX_HISTORY_PAGES);
+                if (mHistoryPages != null) {
+                    mHistoryPages.setMaxPages(MAX_HISTORY_PAGES);
+                }
             }
         }
 
@@ -13401,6 +13644,8 @@ public class BatteryStatsImpl extends BatteryStats {
             pw.println(EXTERNAL_STATS_COLLECTION_RATE_LIMIT_MS);
             pw.print(KEY_BATTERY_LEVEL_COLLECTION_DELAY_MS); pw.print("=");
             pw.println(BATTERY_LEVEL_COLLECTION_DELAY_MS);
+            pw.print(KEY_MAX_HISTORY_PAGES); pw.print("=");
+            pw.println(MAX_HISTORY_PAGES);
         }
     }
 
@@ -13538,6 +13783,9 @@ public class BatteryStatsImpl extends BatteryStats {
         try {
             File file = mFile.chooseForRead();
             if (!file.exists()) {
+                if (mHistoryPages != null) {
+                    mHistoryPages.clear();
+                }
                 return;
             }
             FileInputStream stream = new FileInputStream(file);
@@ -13554,6 +13802,11 @@ public class BatteryStatsImpl extends BatteryStats {
             resetAllStatsLocked();
         }
 
+        if (mHistoryPages != null && mHistoryBuffer.dataSize() == 0) {
+            // The history that went with the pages is gone, so they no longer line up with it.
+            mHistoryPages.clear();
+        }
+
         mEndPlatformVersion = Build.ID;
 
         if (mHistoryBuffer.dataPosition() > 0) {
@@ -15183,6 +15436,7 @@ public class BatteryStatsImpl extends BatteryStats {
         pw.println((mClocks.uptimeMillis() - mCpuTimeReadsTrackingStartTime) / (60 * 1000));
         pw.print("All UID cpu time reads since the later of device start or stats reset: ");
         pw.println(mNumAllUidCpuTimeReads);
+        KernelUidCpuTimeCollector.getInstance().dump(pw);
         pw.print("UIDs removed since the later of device start or stats reset: ");
         pw.println(mNumUidsRemoved);
     }
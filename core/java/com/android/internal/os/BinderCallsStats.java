@@ -31,23 +31,42 @@ import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.Queue;
-import java.util.concurrent.ConcurrentLinkedQueue;
 
 /**
  * Collects statistics about CPU time spent per binder call across multiple dimensions, e.g.
  * per thread, uid or call description.
+ * <p>
+ * Each binder thread records into its own {@link ThreadStats}, guarded by a lock that is only
+ * ever contended by {@link #dump} and {@link #reset}, so recording a call never waits on other
+ * binder threads. The per-thread accumulators are merged when the stats are dumped.
+ * <p>
+ * With detailed tracking enabled, CPU time and latency are measured for one call out of every
+ * {@link #setSamplingInterval sampling interval} calls on each thread; call counts are always
+ * exact and CPU times are extrapolated from the sampled calls.
  */
 public class BinderCallsStats {
-    private static final int CALL_SESSIONS_POOL_SIZE = 100;
+    private static final int CALL_SESSIONS_POOL_SIZE = 10;
     private static final BinderCallsStats sInstance = new BinderCallsStats();
 
+    /**
+     * Latency histogram buckets are powers of two in microseconds: bucket {@code i} holds calls
+     * that took {@code [2^i, 2^(i+1))} microseconds, the last bucket holds everything slower.
+     */
+    private static final int LATENCY_HISTOGRAM_BUCKETS = 20;
+
     private volatile boolean mDetailedTracking = false;
-    @GuardedBy("mLock")
-    private final SparseArray<UidEntry> mUidEntries = new SparseArray<>();
-    private final Queue<CallSession> mCallSessionsPool = new ConcurrentLinkedQueue<>();
+    private volatile int mSamplingInterval = 1;
     private final Object mLock = new Object();
-    private long mStartTime = System.currentTimeMillis();
+    @GuardedBy("mLock")
+    private final ArrayList<ThreadStats> mThreadStats = new ArrayList<>();
+    private final ThreadLocal<ThreadStats> mLocalThreadStats = ThreadLocal.withInitial(() -> {
+        final ThreadStats stats = new ThreadStats();
+        synchronized (mLock) {
+            mThreadStats.add(stats);
+        }
+        return stats;
+    });
+    private volatile long mStartTime = System.currentTimeMillis();
 
     private BinderCallsStats() {
     }
@@ -62,30 +81,46 @@ public class BinderCallsStats {
     }
 
     private CallSession callStarted(String className, int code) {
-        CallSession s = mCallSessionsPool.poll();
-        if (s == null) {
-            s = new CallSession();
-        }
+        final ThreadStats threadStats = mLocalThreadStats.get();
+        final ArrayList<CallSession> pool = threadStats.mCallSessionsPool;
+        final CallSession s = pool.isEmpty() ? new CallSession() : pool.remove(pool.size() - 1);
+        s.mThreadStats = threadStats;
         s.mCallStat.className = className;
         s.mCallStat.msg = code;
 
-        s.mStarted = getThreadTimeMicro();
+        // Only the owning thread touches mCallsSinceSample, no need to synchronize
+        s.mSampled = mDetailedTracking && ++threadStats.mCallsSinceSample >= mSamplingInterval;
+        if (s.mSampled) {
+            threadStats.mCallsSinceSample = 0;
+            s.mStarted = getThreadTimeMicro();
+            s.mStartedElapsedMicros = getElapsedRealtimeMicro();
+        }
         return s;
     }
 
     public void callEnded(CallSession s) {
         Preconditions.checkNotNull(s);
-        long duration = mDetailedTracking ? getThreadTimeMicro() - s.mStarted : 1;
-        s.mCallingUId = Binder.getCallingUid();
+        final boolean detailed = mDetailedTracking;
+        final long duration;
+        final long latencyMicros;
+        if (s.mSampled) {
+            duration = getThreadTimeMicro() - s.mStarted;
+            latencyMicros = getElapsedRealtimeMicro() - s.mStartedElapsedMicros;
+        } else {
+            duration = detailed ? 0 : 1;
+            latencyMicros = 0;
+        }
+        s.mCallingUId = getCallingUid();
 
-        synchronized (mLock) {
-            UidEntry uidEntry = mUidEntries.get(s.mCallingUId);
+        final ThreadStats threadStats = s.mThreadStats;
+        synchronized (threadStats) {
+            UidEntry uidEntry = threadStats.mUidEntries.get(s.mCallingUId);
             if (uidEntry == null) {
                 uidEntry = new UidEntry(s.mCallingUId);
-                mUidEntries.put(s.mCallingUId, uidEntry);
+                threadStats.mUidEntries.put(s.mCallingUId, uidEntry);
             }
 
-            if (mDetailedTracking) {
+            if (detailed) {
                 // Find CallDesc entry and update its total time
                 CallStat callStat = uidEntry.mCallStats.get(s.mCallStat);
                 // Only create CallStat if it's a new entry, otherwise update existing instance
@@ -94,15 +129,51 @@ public class BinderCallsStats {
                     uidEntry.mCallStats.put(callStat, callStat);
                 }
                 callStat.callCount++;
-                callStat.time += duration;
+                if (s.mSampled) {
+                    callStat.recordSample(duration, latencyMicros);
+                }
             }
 
-            uidEntry.time += duration;
             uidEntry.callCount++;
+            if (s.mSampled || !detailed) {
+                uidEntry.sampledCallCount++;
+                uidEntry.time += duration;
+            }
+        }
+        s.mThreadStats = null;
+        if (threadStats.mCallSessionsPool.size() < CALL_SESSIONS_POOL_SIZE) {
+            threadStats.mCallSessionsPool.add(s);
+        }
+    }
+
+    /**
+     * Merges the accumulators of every binder thread, keyed by calling uid. CPU times of the
+     * returned entries are extrapolated from the sampled calls to all calls.
+     */
+    private SparseArray<UidEntry> mergeThreadStats() {
+        final ArrayList<ThreadStats> threads;
+        synchronized (mLock) {
+            threads = new ArrayList<>(mThreadStats);
+        }
+        final SparseArray<UidEntry> merged = new SparseArray<>();
+        for (int i = 0; i < threads.size(); i++) {
+            final ThreadStats threadStats = threads.get(i);
+            synchronized (threadStats) {
+                for (int j = 0; j < threadStats.mUidEntries.size(); j++) {
+                    final UidEntry e = threadStats.mUidEntries.valueAt(j);
+                    UidEntry total = merged.get(e.uid);
+                    if (total == null) {
+                        total = new UidEntry(e.uid);
+                        merged.put(e.uid, total);
+                    }
+                    total.add(e);
+                }
+            }
         }
-        if (mCallSessionsPool.size() < CALL_SESSIONS_POOL_SIZE) {
-            mCallSessionsPool.add(s);
+        for (int i = 0; i < merged.size(); i++) {
+            merged.valueAt(i).extrapolateSampledTime();
         }
+        return merged;
     }
 
     public void dump(PrintWriter pw) {
@@ -112,22 +183,25 @@ public class BinderCallsStats {
         long totalCallsTime = 0;
         pw.print("Start time: ");
         pw.println(DateFormat.format("yyyy-MM-dd HH:mm:ss", mStartTime));
-        int uidEntriesSize = mUidEntries.size();
+        if (mDetailedTracking) {
+            pw.print("Sampling interval: ");
+            pw.println(mSamplingInterval);
+        }
+        final SparseArray<UidEntry> uidEntries = mergeThreadStats();
+        int uidEntriesSize = uidEntries.size();
         List<UidEntry> entries = new ArrayList<>();
-        synchronized (mLock) {
-            for (int i = 0; i < uidEntriesSize; i++) {
-                UidEntry e = mUidEntries.valueAt(i);
-                entries.add(e);
-                totalCallsTime += e.time;
-                // Update per-uid totals
-                Long totalTimePerUid = uidTimeMap.get(e.uid);
-                uidTimeMap.put(e.uid,
-                        totalTimePerUid == null ? e.time : totalTimePerUid + e.time);
-                Long totalCallsPerUid = uidCallCountMap.get(e.uid);
-                uidCallCountMap.put(e.uid, totalCallsPerUid == null ? e.callCount
-                        : totalCallsPerUid + e.callCount);
-                totalCallsCount += e.callCount;
-            }
+        for (int i = 0; i < uidEntriesSize; i++) {
+            UidEntry e = uidEntries.valueAt(i);
+            entries.add(e);
+            totalCallsTime += e.time;
+            // Update per-uid totals
+            Long totalTimePerUid = uidTimeMap.get(e.uid);
+            uidTimeMap.put(e.uid,
+                    totalTimePerUid == null ? e.time : totalTimePerUid + e.time);
+            Long totalCallsPerUid = uidCallCountMap.get(e.uid);
+            uidCallCountMap.put(e.uid, totalCallsPerUid == null ? e.callCount
+                    : totalCallsPerUid + e.callCount);
+            totalCallsCount += e.callCount;
         }
         if (mDetailedTracking) {
             pw.println("Raw data (uid,call_desc,time):");
@@ -158,6 +232,8 @@ public class BinderCallsStats {
                 }
             }
             pw.println();
+            dumpLatencies(pw, entries);
+            pw.println();
             pw.println("Per UID Summary(UID: time, % of total_time, calls_count):");
             List<Map.Entry<Integer, Long>> uidTotals = new ArrayList<>(uidTimeMap.entrySet());
             uidTotals.sort((o1, o2) -> o2.getValue().compareTo(o1.getValue()));
@@ -184,10 +260,49 @@ public class BinderCallsStats {
         }
     }
 
-    private long getThreadTimeMicro() {
-        // currentThreadTimeMicro is expensive, so we measure cpu time only if detailed tracking is
-        // enabled
-        return mDetailedTracking ? SystemClock.currentThreadTimeMicro() : 0;
+    /**
+     * Prints approximate latency percentiles per call description, merged across uids. The
+     * values are the upper bounds of the histogram buckets the percentiles fall into.
+     */
+    private static void dumpLatencies(PrintWriter pw, List<UidEntry> entries) {
+        final Map<CallStat, CallStat> callStats = new HashMap<>();
+        for (UidEntry uidEntry : entries) {
+            for (CallStat e : uidEntry.mCallStats.keySet()) {
+                CallStat total = callStats.get(e);
+                if (total == null) {
+                    total = new CallStat(e.className, e.msg);
+                    callStats.put(total, total);
+                }
+                total.add(e);
+            }
+        }
+        final List<CallStat> sorted = new ArrayList<>(callStats.keySet());
+        sorted.sort((o1, o2) -> Long.compare(o2.sampledCallCount, o1.sampledCallCount));
+
+        pw.println("Latency (call_desc: sampled_calls, p50_us, p90_us, p99_us):");
+        for (CallStat e : sorted) {
+            if (e.sampledCallCount == 0) {
+                continue;
+            }
+            pw.println(String.format("    %s: %d, <%d, <%d, <%d", e, e.sampledCallCount,
+                    e.getLatencyPercentileMicros(50), e.getLatencyPercentileMicros(90),
+                    e.getLatencyPercentileMicros(99)));
+        }
+    }
+
+    @VisibleForTesting
+    protected long getThreadTimeMicro() {
+        return SystemClock.currentThreadTimeMicro();
+    }
+
+    @VisibleForTesting
+    protected long getElapsedRealtimeMicro() {
+        return SystemClock.elapsedRealtimeNanos() / 1000;
+    }
+
+    @VisibleForTesting
+    protected int getCallingUid() {
+        return Binder.getCallingUid();
     }
 
     public static BinderCallsStats getInstance() {
@@ -201,9 +316,30 @@ public class BinderCallsStats {
         }
     }
 
+    /**
+     * Measures CPU time and latency of one call out of every {@code interval} calls on each
+     * binder thread when detailed tracking is enabled. An interval of 1 measures every call.
+     */
+    public void setSamplingInterval(int interval) {
+        Preconditions.checkArgumentPositive(interval, "interval must be positive");
+        if (interval != mSamplingInterval) {
+            reset();
+            mSamplingInterval = interval;
+        }
+    }
+
+    public int getSamplingInterval() {
+        return mSamplingInterval;
+    }
+
     public void reset() {
         synchronized (mLock) {
-            mUidEntries.clear();
+            for (int i = 0; i < mThreadStats.size(); i++) {
+                final ThreadStats threadStats = mThreadStats.get(i);
+                synchronized (threadStats) {
+                    threadStats.mUidEntries.clear();
+                }
+            }
             mStartTime = System.currentTimeMillis();
         }
     }
@@ -213,6 +349,8 @@ public class BinderCallsStats {
         int msg;
         long time;
         long callCount;
+        long sampledCallCount;
+        long[] latencyHistogram;
 
         CallStat() {
         }
@@ -222,6 +360,48 @@ public class BinderCallsStats {
             this.msg = msg;
         }
 
+        void recordSample(long duration, long latencyMicros) {
+            if (latencyHistogram == null) {
+                latencyHistogram = new long[LATENCY_HISTOGRAM_BUCKETS];
+            }
+            final int bucket = latencyMicros <= 1 ? 0
+                    : Math.min(63 - Long.numberOfLeadingZeros(latencyMicros),
+                            LATENCY_HISTOGRAM_BUCKETS - 1);
+            latencyHistogram[bucket]++;
+            sampledCallCount++;
+            time += duration;
+        }
+
+        void add(CallStat other) {
+            callCount += other.callCount;
+            sampledCallCount += other.sampledCallCount;
+            time += other.time;
+            if (other.latencyHistogram != null) {
+                if (latencyHistogram == null) {
+                    latencyHistogram = new long[LATENCY_HISTOGRAM_BUCKETS];
+                }
+                for (int i = 0; i < LATENCY_HISTOGRAM_BUCKETS; i++) {
+                    latencyHistogram[i] += other.latencyHistogram[i];
+                }
+            }
+        }
+
+        /** Returns the upper bound of the bucket holding the given latency percentile. */
+        long getLatencyPercentileMicros(int percentile) {
+            if (latencyHistogram == null || sampledCallCount == 0) {
+                return 0;
+            }
+            final long target = (sampledCallCount * percentile + 99) / 100;
+            long count = 0;
+            for (int i = 0; i < LATENCY_HISTOGRAM_BUCKETS - 1; i++) {
+                count += latencyHistogram[i];
+                if (count >= target) {
+                    return 1L << (i + 1);
+                }
+            }
+            return Long.MAX_VALUE;
+        }
+
         @Override
         public boolean equals(Object o) {
             if (this == o) {
@@ -249,18 +429,60 @@ public class BinderCallsStats {
     public static class CallSession {
         int mCallingUId;
         long mStarted;
+        long mStartedElapsedMicros;
+        boolean mSampled;
+        ThreadStats mThreadStats;
         CallStat mCallStat = new CallStat();
     }
 
+    /**
+     * Stats recorded by a single binder thread. The owning thread is the only writer; the
+     * object's monitor is taken by readers that merge or clear the stats.
+     */
+    private static class ThreadStats {
+        @GuardedBy("this")
+        final SparseArray<UidEntry> mUidEntries = new SparseArray<>();
+        // Only accessed from the owning thread
+        final ArrayList<CallSession> mCallSessionsPool = new ArrayList<>();
+        int mCallsSinceSample;
+    }
+
     private static class UidEntry {
         int uid;
         long time;
         long callCount;
+        long sampledCallCount;
 
         UidEntry(int uid) {
             this.uid = uid;
         }
 
+        void add(UidEntry other) {
+            time += other.time;
+            callCount += other.callCount;
+            sampledCallCount += other.sampledCallCount;
+            for (CallStat e : other.mCallStats.keySet()) {
+                CallStat callStat = mCallStats.get(e);
+                if (callStat == null) {
+                    callStat = new CallStat(e.className, e.msg);
+                    mCallStats.put(callStat, callStat);
+                }
+                callStat.add(e);
+            }
+        }
+
+        /** Scales the CPU time of the sampled calls up to the total number of calls. */
+        void extrapolateSampledTime() {
+            time = extrapolate(time, sampledCallCount, callCount);
+            for (CallStat e : mCallStats.keySet()) {
+                e.time = extrapolate(e.time, e.sampledCallCount, e.callCount);
+            }
+        }
+
+        private static long extrapolate(long time, long sampled, long total) {
+            return sampled == 0 || sampled == total ? time : time * total / sampled;
+        }
+
         // Aggregate time spent per each call name: call_desc -> cpu_time_micros
         Map<CallStat, CallStat> mCallStats = new ArrayMap<>();
 
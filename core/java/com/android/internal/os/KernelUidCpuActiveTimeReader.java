@@ -22,10 +22,6 @@ import android.util.SparseArray;
 
 import com.android.internal.annotations.VisibleForTesting;
 
-import java.nio.ByteBuffer;
-import java.nio.IntBuffer;
-import java.util.function.Consumer;
-
 /**
  * Reads binary proc file /proc/uid_cpupower/concurrent_active_time and reports CPU active time to
  * BatteryStats to compute {@link PowerProfile#POWER_CPU_ACTIVE}.
@@ -42,9 +38,9 @@ import java.util.function.Consumer;
  * proper delta.
  *
  * This class uses a throttler to reject any {@link #readDelta} call within
- * {@link #mThrottleInterval}. This is different from the throttler in {@link KernelCpuProcReader},
- * which has a shorter throttle interval and returns cached result from last read when the request
- * is throttled.
+ * {@link #mThrottleInterval}. This is different from the throttler in
+ * {@link KernelUidCpuTimeCollector}, which has a shorter throttle interval and returns the snapshot
+ * of its last collection, shared with the other kernel uid readers, when the request is throttled.
  *
  * This class is NOT thread-safe and NOT designed to be accessed by more than one caller since each
  * caller has its own view of delta.
@@ -53,7 +49,7 @@ public class KernelUidCpuActiveTimeReader extends
         KernelUidCpuTimeReaderBase<KernelUidCpuActiveTimeReader.Callback> {
     private static final String TAG = KernelUidCpuActiveTimeReader.class.getSimpleName();
 
-    private final KernelCpuProcReader mProcReader;
+    private final KernelUidCpuTimeCollector mCollector;
     private SparseArray<Double> mLastUidCpuActiveTimeMs = new SparseArray<>();
     private int mCores;
 
@@ -68,51 +64,68 @@ public class KernelUidCpuActiveTimeReader extends
     }
 
     public KernelUidCpuActiveTimeReader() {
-        mProcReader = KernelCpuProcReader.getActiveTimeReaderInstance();
+        mCollector = KernelUidCpuTimeCollector.getInstance();
     }
 
     @VisibleForTesting
     public KernelUidCpuActiveTimeReader(KernelCpuProcReader procReader) {
-        mProcReader = procReader;
+        this(new KernelUidCpuTimeCollector(null, null, procReader, null));
+    }
+
+    @VisibleForTesting
+    public KernelUidCpuActiveTimeReader(KernelUidCpuTimeCollector collector) {
+        mCollector = collector;
     }
 
     @Override
     protected void readDeltaImpl(@Nullable Callback callback) {
-        readImpl((buf) -> {
-            int uid = buf.get();
-            double activeTime = sumActiveTime(buf);
-            if (activeTime > 0) {
-                double delta = activeTime - mLastUidCpuActiveTimeMs.get(uid, 0.0);
-                if (delta > 0) {
-                    mLastUidCpuActiveTimeMs.put(uid, activeTime);
-                    if (callback != null) {
-                        callback.onUidCpuActiveTime(uid, (long) delta);
+        synchronized (mCollector) {
+            final KernelUidCpuTimeCollector.UidTimes times = readTimes();
+            if (times == null) {
+                return;
+            }
+            final int numUids = times.size();
+            for (int index = 0; index < numUids; index++) {
+                final int uid = times.uidAt(index);
+                double activeTime = sumActiveTime(times, index);
+                if (activeTime > 0) {
+                    double delta = activeTime - mLastUidCpuActiveTimeMs.get(uid, 0.0);
+                    if (delta > 0) {
+                        mLastUidCpuActiveTimeMs.put(uid, activeTime);
+                        if (callback != null) {
+                            callback.onUidCpuActiveTime(uid, (long) delta);
+                        }
+                    } else if (delta < 0) {
+                        Slog.e(TAG, "Negative delta from active time proc: " + delta);
                     }
-                } else if (delta < 0) {
-                    Slog.e(TAG, "Negative delta from active time proc: " + delta);
                 }
             }
-        });
+        }
     }
 
     public void readAbsolute(Callback callback) {
-        readImpl((buf) -> {
-            int uid = buf.get();
-            double activeTime = sumActiveTime(buf);
-            if (activeTime > 0) {
-                callback.onUidCpuActiveTime(uid, (long) activeTime);
+        synchronized (mCollector) {
+            final KernelUidCpuTimeCollector.UidTimes times = readTimes();
+            if (times == null) {
+                return;
+            }
+            final int numUids = times.size();
+            for (int index = 0; index < numUids; index++) {
+                double activeTime = sumActiveTime(times, index);
+                if (activeTime > 0) {
+                    callback.onUidCpuActiveTime(times.uidAt(index), (long) activeTime);
+                }
             }
-        });
+        }
     }
 
-    private double sumActiveTime(IntBuffer buffer) {
+    private double sumActiveTime(KernelUidCpuTimeCollector.UidTimes times, int index) {
         double sum = 0;
         boolean corrupted = false;
         for (int j = 1; j <= mCores; j++) {
-            int time = buffer.get();
+            long time = times.timeAt(index, j - 1);
             if (time < 0) {
                 // Even if error happens, we still need to continue reading.
-                // Buffer cannot be skipped.
                 Slog.e(TAG, "Negative time from active time proc: " + time);
                 corrupted = true;
             } else {
@@ -123,46 +136,27 @@ public class KernelUidCpuActiveTimeReader extends
     }
 
     /**
-     * readImpl accepts a callback to process the uid entry. readDeltaImpl needs to store the last
-     * seen results while processing the buffer, while readAbsolute returns the absolute value read
-     * from the buffer without storing. So readImpl contains the common logic of the two, leaving
-     * the difference to a processUid function.
-     *
-     * @param processUid the callback function to process the uid entry in the buffer.
+     * Collects the proc files if the collector's snapshot is stale and returns the active times
+     * table, or null if it is empty or its number of cores changed. The caller needs to hold a
+     * lock on {@link #mCollector} while digesting the table.
      */
-    private void readImpl(Consumer<IntBuffer> processUid) {
-        synchronized (mProcReader) {
-            final ByteBuffer bytes = mProcReader.readBytes();
-            if (bytes == null || bytes.remaining() <= 4) {
-                // Error already logged in mProcReader.
-                return;
-            }
-            if ((bytes.remaining() & 3) != 0) {
-                Slog.wtf(TAG,
-                        "Cannot parse active time proc bytes to int: " + bytes.remaining());
-                return;
-            }
-            final IntBuffer buf = bytes.asIntBuffer();
-            final int cores = buf.get();
-            if (mCores != 0 && cores != mCores) {
-                Slog.wtf(TAG, "Cpu active time wrong # cores: " + cores);
-                return;
-            }
-            mCores = cores;
-            if (cores <= 0 || buf.remaining() % (cores + 1) != 0) {
-                Slog.wtf(TAG,
-                        "Cpu active time format error: " + buf.remaining() + " / " + (cores
-                                + 1));
-                return;
-            }
-            int numUids = buf.remaining() / (cores + 1);
-            for (int i = 0; i < numUids; i++) {
-                processUid.accept(buf);
-            }
-            if (DEBUG) {
-                Slog.d(TAG, "Read uids: " + numUids);
-            }
+    private KernelUidCpuTimeCollector.UidTimes readTimes() {
+        mCollector.collect();
+        final KernelUidCpuTimeCollector.UidTimes times = mCollector.getActiveTimes();
+        if (times.size() == 0) {
+            // Error already logged in mCollector.
+            return null;
+        }
+        final int cores = times.width();
+        if (mCores != 0 && cores != mCores) {
+            Slog.wtf(TAG, "Cpu active time wrong # cores: " + cores);
+            return null;
+        }
+        mCores = cores;
+        if (DEBUG) {
+            Slog.d(TAG, "Read uids: " + times.size());
         }
+        return times;
     }
 
     public void removeUid(int uid) {
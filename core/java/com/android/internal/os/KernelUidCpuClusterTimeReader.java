@@ -22,10 +22,6 @@ import android.util.SparseArray;
 
 import com.android.internal.annotations.VisibleForTesting;
 
-import java.nio.ByteBuffer;
-import java.nio.IntBuffer;
-import java.util.function.Consumer;
-
 /**
  * Reads binary proc file /proc/uid_cpupower/concurrent_policy_time and reports CPU cluster times
  * to BatteryStats to compute cluster power. See
@@ -46,9 +42,9 @@ import java.util.function.Consumer;
  * proper delta.
  *
  * This class uses a throttler to reject any {@link #readDelta} call within
- * {@link #mThrottleInterval}. This is different from the throttler in {@link KernelCpuProcReader},
- * which has a shorter throttle interval and returns cached result from last read when the request
- * is throttled.
+ * {@link #mThrottleInterval}. This is different from the throttler in
+ * {@link KernelUidCpuTimeCollector}, which has a shorter throttle interval and returns the snapshot
+ * of its last collection, shared with the other kernel uid readers, when the request is throttled.
  *
  * This class is NOT thread-safe and NOT designed to be accessed by more than one caller since each
  * caller has its own view of delta.
@@ -57,7 +53,7 @@ public class KernelUidCpuClusterTimeReader extends
         KernelUidCpuTimeReaderBase<KernelUidCpuClusterTimeReader.Callback> {
     private static final String TAG = KernelUidCpuClusterTimeReader.class.getSimpleName();
 
-    private final KernelCpuProcReader mProcReader;
+    private final KernelUidCpuTimeCollector mCollector;
     private SparseArray<double[]> mLastUidPolicyTimeMs = new SparseArray<>();
 
     private int mNumClusters = -1;
@@ -80,63 +76,83 @@ public class KernelUidCpuClusterTimeReader extends
     }
 
     public KernelUidCpuClusterTimeReader() {
-        mProcReader = KernelCpuProcReader.getClusterTimeReaderInstance();
+        mCollector = KernelUidCpuTimeCollector.getInstance();
     }
 
     @VisibleForTesting
     public KernelUidCpuClusterTimeReader(KernelCpuProcReader procReader) {
-        mProcReader = procReader;
+        this(new KernelUidCpuTimeCollector(null, null, null, procReader));
+    }
+
+    @VisibleForTesting
+    public KernelUidCpuClusterTimeReader(KernelUidCpuTimeCollector collector) {
+        mCollector = collector;
     }
 
     @Override
     protected void readDeltaImpl(@Nullable Callback cb) {
-        readImpl((buf) -> {
-            int uid = buf.get();
-            double[] lastTimes = mLastUidPolicyTimeMs.get(uid);
-            if (lastTimes == null) {
-                lastTimes = new double[mNumClusters];
-                mLastUidPolicyTimeMs.put(uid, lastTimes);
-            }
-            if (!sumClusterTime(buf, mCurTime)) {
+        synchronized (mCollector) {
+            final KernelUidCpuTimeCollector.UidTimes times = readTimes();
+            if (times == null) {
                 return;
             }
-            boolean valid = true;
-            boolean notify = false;
-            for (int i = 0; i < mNumClusters; i++) {
-                mDeltaTime[i] = (long) (mCurTime[i] - lastTimes[i]);
-                if (mDeltaTime[i] < 0) {
-                    Slog.e(TAG, "Negative delta from cluster time proc: " + mDeltaTime[i]);
-                    valid = false;
+            final int numUids = times.size();
+            for (int index = 0; index < numUids; index++) {
+                final int uid = times.uidAt(index);
+                double[] lastTimes = mLastUidPolicyTimeMs.get(uid);
+                if (lastTimes == null) {
+                    lastTimes = new double[mNumClusters];
+                    mLastUidPolicyTimeMs.put(uid, lastTimes);
                 }
-                notify |= mDeltaTime[i] > 0;
-            }
-            if (notify && valid) {
-                System.arraycopy(mCurTime, 0, lastTimes, 0, mNumClusters);
-                if (cb != null) {
-                    cb.onUidCpuPolicyTime(uid, mDeltaTime);
+                if (!sumClusterTime(times, index, mCurTime)) {
+                    continue;
+                }
+                boolean valid = true;
+                boolean notify = false;
+                for (int i = 0; i < mNumClusters; i++) {
+                    mDeltaTime[i] = (long) (mCurTime[i] - lastTimes[i]);
+                    if (mDeltaTime[i] < 0) {
+                        Slog.e(TAG, "Negative delta from cluster time proc: " + mDeltaTime[i]);
+                        valid = false;
+                    }
+                    notify |= mDeltaTime[i] > 0;
+                }
+                if (notify && valid) {
+                    System.arraycopy(mCurTime, 0, lastTimes, 0, mNumClusters);
+                    if (cb != null) {
+                        cb.onUidCpuPolicyTime(uid, mDeltaTime);
+                    }
                 }
             }
-        });
+        }
     }
 
     public void readAbsolute(Callback callback) {
-        readImpl((buf) -> {
-            int uid = buf.get();
-            if (sumClusterTime(buf, mCurTime)) {
-                for (int i = 0; i < mNumClusters; i++) {
-                    mCurTimeRounded[i] = (long) mCurTime[i];
+        synchronized (mCollector) {
+            final KernelUidCpuTimeCollector.UidTimes times = readTimes();
+            if (times == null) {
+                return;
+            }
+            final int numUids = times.size();
+            for (int index = 0; index < numUids; index++) {
+                if (sumClusterTime(times, index, mCurTime)) {
+                    for (int i = 0; i < mNumClusters; i++) {
+                        mCurTimeRounded[i] = (long) mCurTime[i];
+                    }
+                    callback.onUidCpuPolicyTime(times.uidAt(index), mCurTimeRounded);
                 }
-                callback.onUidCpuPolicyTime(uid, mCurTimeRounded);
             }
-        });
+        }
     }
 
-    private boolean sumClusterTime(IntBuffer buffer, double[] clusterTime) {
+    private boolean sumClusterTime(KernelUidCpuTimeCollector.UidTimes times, int index,
+            double[] clusterTime) {
         boolean valid = true;
+        int core = 0;
         for (int i = 0; i < mNumClusters; i++) {
             clusterTime[i] = 0;
             for (int j = 1; j <= mNumCoresOnCluster[i]; j++) {
-                int time = buffer.get();
+                long time = times.timeAt(index, core++);
                 if (time < 0) {
                     Slog.e(TAG, "Negative time from cluster time proc: " + time);
                     valid = false;
@@ -148,81 +164,45 @@ public class KernelUidCpuClusterTimeReader extends
     }
 
     /**
-     * readImpl accepts a callback to process the uid entry. readDeltaImpl needs to store the last
-     * seen results while processing the buffer, while readAbsolute returns the absolute value read
-     * from the buffer without storing. So readImpl contains the common logic of the two, leaving
-     * the difference to a processUid function.
-     *
-     * @param processUid the callback function to process the uid entry in the buffer.
+     * Collects the proc files if the collector's snapshot is stale and returns the cluster times
+     * table, or null if it is empty or its layout of clusters changed. The caller needs to hold a
+     * lock on {@link #mCollector} while digesting the table.
      */
-    private void readImpl(Consumer<IntBuffer> processUid) {
-        synchronized (mProcReader) {
-            ByteBuffer bytes = mProcReader.readBytes();
-            if (bytes == null || bytes.remaining() <= 4) {
-                // Error already logged in mProcReader.
-                return;
-            }
-            if ((bytes.remaining() & 3) != 0) {
-                Slog.wtf(TAG,
-                        "Cannot parse cluster time proc bytes to int: " + bytes.remaining());
-                return;
-            }
-            IntBuffer buf = bytes.asIntBuffer();
-            final int numClusters = buf.get();
-            if (numClusters <= 0) {
-                Slog.wtf(TAG, "Cluster time format error: " + numClusters);
-                return;
-            }
-            if (mNumClusters == -1) {
-                mNumClusters = numClusters;
-            }
-            if (buf.remaining() < numClusters) {
-                Slog.wtf(TAG, "Too few data left in the buffer: " + buf.remaining());
-                return;
-            }
-            if (mNumCores <= 0) {
-                if (!readCoreInfo(buf, numClusters)) {
-                    return;
-                }
-            } else {
-                buf.position(buf.position() + numClusters);
-            }
-
-            if (buf.remaining() % (mNumCores + 1) != 0) {
-                Slog.wtf(TAG,
-                        "Cluster time format error: " + buf.remaining() + " / " + (mNumCores
-                                + 1));
-                return;
-            }
-            int numUids = buf.remaining() / (mNumCores + 1);
-
-            for (int i = 0; i < numUids; i++) {
-                processUid.accept(buf);
-            }
-            if (DEBUG) {
-                Slog.d(TAG, "Read uids: " + numUids);
-            }
+    private KernelUidCpuTimeCollector.UidTimes readTimes() {
+        mCollector.collect();
+        final KernelUidCpuTimeCollector.UidTimes times = mCollector.getClusterTimes();
+        if (times.size() == 0) {
+            // Error already logged in mCollector.
+            return null;
+        }
+        if (mNumClusters == -1) {
+            mNumClusters = times.headerSize();
         }
+        if (mNumCores <= 0) {
+            readCoreInfo(times);
+        }
+        if (times.headerSize() != mNumClusters || times.width() != mNumCores) {
+            Slog.wtf(TAG, "Cluster time format error: " + times.headerSize() + " clusters, "
+                    + times.width() + " cores");
+            return null;
+        }
+        if (DEBUG) {
+            Slog.d(TAG, "Read uids: " + times.size());
+        }
+        return times;
     }
 
-    // Returns if it has read valid info.
-    private boolean readCoreInfo(IntBuffer buf, int numClusters) {
-        int numCores = 0;
+    private void readCoreInfo(KernelUidCpuTimeCollector.UidTimes times) {
+        final int numClusters = times.headerSize();
         int[] numCoresOnCluster = new int[numClusters];
         for (int i = 0; i < numClusters; i++) {
-            numCoresOnCluster[i] = buf.get();
-            numCores += numCoresOnCluster[i];
-        }
-        if (numCores <= 0) {
-            Slog.e(TAG, "Invalid # cores from cluster time proc file: " + numCores);
-            return false;
+            numCoresOnCluster[i] = times.headerAt(i);
         }
-        mNumCores = numCores;
+        mNumCores = times.width();
         mNumCoresOnCluster = numCoresOnCluster;
         mCurTime = new double[numClusters];
         mDeltaTime = new long[numClusters];
         mCurTimeRounded = new long[numClusters];
-        return true;
     }
 
     public void removeUid(int uid) {
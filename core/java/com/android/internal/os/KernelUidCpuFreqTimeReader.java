@@ -30,9 +30,6 @@ import com.android.internal.annotations.VisibleForTesting;
 import java.io.BufferedReader;
 import java.io.FileReader;
 import java.io.IOException;
-import java.nio.ByteBuffer;
-import java.nio.IntBuffer;
-import java.util.function.Consumer;
 
 /**
  * Reads /proc/uid_time_in_state which has the format:
@@ -54,9 +51,9 @@ import java.util.function.Consumer;
  * delta.
  *
  * This class uses a throttler to reject any {@link #readDelta} call within
- * {@link #mThrottleInterval}. This is different from the throttler in {@link KernelCpuProcReader},
- * which has a shorter throttle interval and returns cached result from last read when the request
- * is throttled.
+ * {@link #mThrottleInterval}. This is different from the throttler in
+ * {@link KernelUidCpuTimeCollector}, which has a shorter throttle interval and returns the snapshot
+ * of its last collection, shared with the other kernel uid readers, when the request is throttled.
  *
  * This class is NOT thread-safe and NOT designed to be accessed by more than one caller since each
  * caller has its own view of delta.
@@ -74,7 +71,7 @@ public class KernelUidCpuFreqTimeReader extends
     private long[] mCurTimes; // Reuse to prevent GC.
     private long[] mDeltaTimes; // Reuse to prevent GC.
     private int mCpuFreqsCount;
-    private final KernelCpuProcReader mProcReader;
+    private final KernelUidCpuTimeCollector mCollector;
 
     private SparseArray<long[]> mLastUidCpuFreqTimeMs = new SparseArray<>();
 
@@ -86,12 +83,17 @@ public class KernelUidCpuFreqTimeReader extends
     private boolean mAllUidTimesAvailable = true;
 
     public KernelUidCpuFreqTimeReader() {
-        mProcReader = KernelCpuProcReader.getFreqTimeReaderInstance();
+        mCollector = KernelUidCpuTimeCollector.getInstance();
     }
 
     @VisibleForTesting
     public KernelUidCpuFreqTimeReader(KernelCpuProcReader procReader) {
-        mProcReader = procReader;
+        this(new KernelUidCpuTimeCollector(null, procReader, null, null));
+    }
+
+    @VisibleForTesting
+    public KernelUidCpuFreqTimeReader(KernelUidCpuTimeCollector collector) {
+        mCollector = collector;
     }
 
     public boolean perClusterTimesAvailable() {
@@ -170,48 +172,62 @@ public class KernelUidCpuFreqTimeReader extends
         if (mCpuFreqs == null) {
             return;
         }
-        readImpl((buf) -> {
-            int uid = buf.get();
-            long[] lastTimes = mLastUidCpuFreqTimeMs.get(uid);
-            if (lastTimes == null) {
-                lastTimes = new long[mCpuFreqsCount];
-                mLastUidCpuFreqTimeMs.put(uid, lastTimes);
-            }
-            if (!getFreqTimeForUid(buf, mCurTimes)) {
+        synchronized (mCollector) {
+            final KernelUidCpuTimeCollector.UidTimes times = readTimes();
+            if (times == null) {
                 return;
             }
-            boolean notify = false;
-            boolean valid = true;
-            for (int i = 0; i < mCpuFreqsCount; i++) {
-                mDeltaTimes[i] = mCurTimes[i] - lastTimes[i];
-                if (mDeltaTimes[i] < 0) {
-                    Slog.e(TAG, "Negative delta from freq time proc: " + mDeltaTimes[i]);
-                    valid = false;
+            final int numUids = times.size();
+            for (int index = 0; index < numUids; index++) {
+                final int uid = times.uidAt(index);
+                long[] lastTimes = mLastUidCpuFreqTimeMs.get(uid);
+                if (lastTimes == null) {
+                    lastTimes = new long[mCpuFreqsCount];
+                    mLastUidCpuFreqTimeMs.put(uid, lastTimes);
                 }
-                notify |= mDeltaTimes[i] > 0;
-            }
-            if (notify && valid) {
-                System.arraycopy(mCurTimes, 0, lastTimes, 0, mCpuFreqsCount);
-                if (callback != null) {
-                    callback.onUidCpuFreqTime(uid, mDeltaTimes);
+                if (!getFreqTimeForUid(times, index, mCurTimes)) {
+                    continue;
+                }
+                boolean notify = false;
+                boolean valid = true;
+                for (int i = 0; i < mCpuFreqsCount; i++) {
+                    mDeltaTimes[i] = mCurTimes[i] - lastTimes[i];
+                    if (mDeltaTimes[i] < 0) {
+                        Slog.e(TAG, "Negative delta from freq time proc: " + mDeltaTimes[i]);
+                        valid = false;
+                    }
+                    notify |= mDeltaTimes[i] > 0;
+                }
+                if (notify && valid) {
+                    System.arraycopy(mCurTimes, 0, lastTimes, 0, mCpuFreqsCount);
+                    if (callback != null) {
+                        callback.onUidCpuFreqTime(uid, mDeltaTimes);
+                    }
                 }
             }
-        });
+        }
     }
 
     public void readAbsolute(Callback callback) {
-        readImpl((buf) -> {
-            int uid = buf.get();
-            if (getFreqTimeForUid(buf, mCurTimes)) {
-                callback.onUidCpuFreqTime(uid, mCurTimes);
+        synchronized (mCollector) {
+            final KernelUidCpuTimeCollector.UidTimes times = readTimes();
+            if (times == null) {
+                return;
+            }
+            final int numUids = times.size();
+            for (int index = 0; index < numUids; index++) {
+                if (getFreqTimeForUid(times, index, mCurTimes)) {
+                    callback.onUidCpuFreqTime(times.uidAt(index), mCurTimes);
+                }
             }
-        });
+        }
     }
 
-    private boolean getFreqTimeForUid(IntBuffer buffer, long[] freqTime) {
+    private boolean getFreqTimeForUid(KernelUidCpuTimeCollector.UidTimes times, int index,
+            long[] freqTime) {
         boolean valid = true;
         for (int i = 0; i < mCpuFreqsCount; i++) {
-            freqTime[i] = (long) buffer.get() * 10; // Unit is 10ms.
+            freqTime[i] = times.timeAt(index, i) * 10; // Unit is 10ms.
             if (freqTime[i] < 0) {
                 Slog.e(TAG, "Negative time from freq time proc: " + freqTime[i]);
                 valid = false;
@@ -221,42 +237,25 @@ public class KernelUidCpuFreqTimeReader extends
     }
 
     /**
-     * readImpl accepts a callback to process the uid entry. readDeltaImpl needs to store the last
-     * seen results while processing the buffer, while readAbsolute returns the absolute value read
-     * from the buffer without storing. So readImpl contains the common logic of the two, leaving
-     * the difference to a processUid function.
-     *
-     * @param processUid the callback function to process the uid entry in the buffer.
+     * Collects the proc files if the collector's snapshot is stale and returns the freq times
+     * table, or null if it is empty or doesn't match the freqs read by {@link #readFreqs}. The
+     * caller needs to hold a lock on {@link #mCollector} while digesting the table.
      */
-    private void readImpl(Consumer<IntBuffer> processUid) {
-        synchronized (mProcReader) {
-            ByteBuffer bytes = mProcReader.readBytes();
-            if (bytes == null || bytes.remaining() <= 4) {
-                // Error already logged in mProcReader.
-                return;
-            }
-            if ((bytes.remaining() & 3) != 0) {
-                Slog.wtf(TAG, "Cannot parse freq time proc bytes to int: " + bytes.remaining());
-                return;
-            }
-            IntBuffer buf = bytes.asIntBuffer();
-            final int freqs = buf.get();
-            if (freqs != mCpuFreqsCount) {
-                Slog.wtf(TAG, "Cpu freqs expect " + mCpuFreqsCount + " , got " + freqs);
-                return;
-            }
-            if (buf.remaining() % (freqs + 1) != 0) {
-                Slog.wtf(TAG, "Freq time format error: " + buf.remaining() + " / " + (freqs + 1));
-                return;
-            }
-            int numUids = buf.remaining() / (freqs + 1);
-            for (int i = 0; i < numUids; i++) {
-                processUid.accept(buf);
-            }
-            if (DEBUG) {
-                Slog.d(TAG, "Read uids: #" + numUids);
-            }
+    private KernelUidCpuTimeCollector.UidTimes readTimes() {
+        mCollector.collect();
+        final KernelUidCpuTimeCollector.UidTimes times = mCollector.getFreqTimes();
+        if (times.size() == 0) {
+            // Error already logged in mCollector.
+            return null;
+        }
+        if (times.width() != mCpuFreqsCount) {
+            Slog.wtf(TAG, "Cpu freqs expect " + mCpuFreqsCount + " , got " + times.width());
+            return null;
+        }
+        if (DEBUG) {
+            Slog.d(TAG, "Read uids: #" + times.size());
         }
+        return times;
     }
 
     public void removeUid(int uid) {
@@ -0,0 +1,471 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.os;
+
+import android.annotation.Nullable;
+import android.os.SystemClock;
+import android.util.Slog;
+
+import com.android.internal.annotations.GuardedBy;
+import com.android.internal.annotations.VisibleForTesting;
+
+import libcore.util.EmptyArray;
+
+import java.io.PrintWriter;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Reads all the per-uid cpu time proc files in one pass and keeps the results as a snapshot that
+ * the kernel uid readers ({@link KernelUidCpuTimeReader}, {@link KernelUidCpuFreqTimeReader},
+ * {@link KernelUidCpuActiveTimeReader} and {@link KernelUidCpuClusterTimeReader}) share.
+ *
+ * Every {@link #collect()} reads /proc/uid_cputime/show_uid_stat and the three
+ * /proc/uid_cpupower files through {@link KernelCpuProcReader}, and parses them into arrays that
+ * are allocated once and reused, so nothing is allocated per uid. Collections are throttled
+ * (adjustable interval, 3000ms by default) so that BatteryStats and the statsd pullers asking
+ * for the same data within a short time get the same snapshot instead of reading the files
+ * again. All four tables of a snapshot come from the same collection.
+ *
+ * Callers need to hold a lock on this object while calling {@link #collect()} and digesting the
+ * tables, which are overwritten by the next collection.
+ */
+public class KernelUidCpuTimeCollector {
+    private static final String TAG = "KernelUidCpuTimeCollector";
+    private static final boolean DEBUG = false;
+    // Throttle interval in milliseconds
+    private static final long DEFAULT_THROTTLE_INTERVAL = 3000L;
+    // Enough for the uids of a typical device, the tables grow if there are more.
+    private static final int INITIAL_UIDS = 512;
+    private static final String PROC_UID_CPU_TIME = "/proc/uid_cputime/show_uid_stat";
+
+    private static final KernelUidCpuTimeCollector sInstance = createDefault();
+
+    /**
+     * Returns the collector of the built-in proc files, shared by all the readers in this process.
+     */
+    public static KernelUidCpuTimeCollector getInstance() {
+        return sInstance;
+    }
+
+    private static KernelUidCpuTimeCollector createDefault() {
+        final KernelUidCpuTimeCollector collector = new KernelUidCpuTimeCollector(
+                new KernelCpuProcReader(PROC_UID_CPU_TIME),
+                KernelCpuProcReader.getFreqTimeReaderInstance(),
+                KernelCpuProcReader.getActiveTimeReaderInstance(),
+                KernelCpuProcReader.getClusterTimeReaderInstance());
+        collector.setThrottleInterval(DEFAULT_THROTTLE_INTERVAL);
+        return collector;
+    }
+
+    /**
+     * The times of each uid found in one proc file. Row {@code i} holds uid {@link #uidAt(int)}
+     * followed by {@link #width()} times, in the units of the proc file.
+     */
+    public static final class UidTimes {
+        private int mSize;
+        private int mWidth;
+        private int[] mUids = EmptyArray.INT;
+        private long[] mTimes = EmptyArray.LONG;
+        private int[] mHeader = EmptyArray.INT;
+        private int mHeaderSize;
+
+        /** Returns the number of uids in the table. */
+        public int size() {
+            return mSize;
+        }
+
+        /** Returns the number of times stored for each uid. */
+        public int width() {
+            return mWidth;
+        }
+
+        public int uidAt(int index) {
+            return mUids[index];
+        }
+
+        public long timeAt(int index, int column) {
+            return mTimes[index * mWidth + column];
+        }
+
+        /** Returns the number of values the proc file lists before the per-uid rows. */
+        public int headerSize() {
+            return mHeaderSize;
+        }
+
+        public int headerAt(int index) {
+            return mHeader[index];
+        }
+
+        void clear() {
+            mSize = 0;
+            mHeaderSize = 0;
+        }
+
+        void setHeaderSize(int headerSize) {
+            if (mHeader.length < headerSize) {
+                mHeader = new int[headerSize];
+            }
+            mHeaderSize = headerSize;
+        }
+
+        /** Empties the table and makes room for {@code capacity} rows of {@code width} times. */
+        void reset(int capacity, int width) {
+            mSize = 0;
+            mWidth = width;
+            ensureCapacity(capacity);
+        }
+
+        /** Adds a row for the uid and returns its index, the times are left to the caller. */
+        int add(int uid) {
+            ensureCapacity(mSize + 1);
+            mUids[mSize] = uid;
+            return mSize++;
+        }
+
+        void set(int index, int column, long time) {
+            mTimes[index * mWidth + column] = time;
+        }
+
+        void removeUidsInRange(int startUid, int endUid) {
+            int newSize = 0;
+            for (int i = 0; i < mSize; i++) {
+                final int uid = mUids[i];
+                if (uid >= startUid && uid <= endUid) {
+                    continue;
+                }
+                if (newSize != i) {
+                    mUids[newSize] = uid;
+                    System.arraycopy(mTimes, i * mWidth, mTimes, newSize * mWidth, mWidth);
+                }
+                newSize++;
+            }
+            mSize = newSize;
+        }
+
+        private void ensureCapacity(int capacity) {
+            if (mUids.length < capacity) {
+                mUids = Arrays.copyOf(mUids, Math.max(capacity, Math.max(INITIAL_UIDS,
+                        mUids.length * 2)));
+            }
+            final int timesCapacity = mUids.length * mWidth;
+            if (mTimes.length < timesCapacity) {
+                mTimes = Arrays.copyOf(mTimes, timesCapacity);
+            }
+        }
+    }
+
+    private final KernelCpuProcReader mCpuTimeReader;
+    private final KernelCpuProcReader mFreqTimeReader;
+    private final KernelCpuProcReader mActiveTimeReader;
+    private final KernelCpuProcReader mClusterTimeReader;
+
+    private final UidTimes mCpuTimes = new UidTimes();
+    private final UidTimes mFreqTimes = new UidTimes();
+    private final UidTimes mActiveTimes = new UidTimes();
+    private final UidTimes mClusterTimes = new UidTimes();
+
+    @GuardedBy("this")
+    private long mThrottleInterval;
+    @GuardedBy("this")
+    private long mLastCollectTimeMs = Long.MIN_VALUE;
+
+    @GuardedBy("this")
+    private int mNumCollections;
+    @GuardedBy("this")
+    private long mLastCollectionCpuTimeUs;
+    @GuardedBy("this")
+    private long mTotalCollectionCpuTimeUs;
+
+    /**
+     * Creates a collector of the given proc files, any of which can be null if it isn't needed.
+     * The collector reads the files on every {@link #collect()} until a throttle interval is set.
+     */
+    @VisibleForTesting
+    public KernelUidCpuTimeCollector(@Nullable KernelCpuProcReader cpuTimeReader,
+            @Nullable KernelCpuProcReader freqTimeReader,
+            @Nullable KernelCpuProcReader activeTimeReader,
+            @Nullable KernelCpuProcReader clusterTimeReader) {
+        mCpuTimeReader = cpuTimeReader;
+        mFreqTimeReader = freqTimeReader;
+        mActiveTimeReader = activeTimeReader;
+        mClusterTimeReader = clusterTimeReader;
+        // The files are throttled together here, so that a snapshot is from one read of each.
+        for (KernelCpuProcReader reader : new KernelCpuProcReader[] {
+                cpuTimeReader, freqTimeReader, activeTimeReader, clusterTimeReader}) {
+            if (reader != null) {
+                synchronized (reader) {
+                    reader.setThrottleInterval(0);
+                }
+            }
+        }
+    }
+
+    /**
+     * Reads all the proc files, unless the last collection is more recent than the throttle
+     * interval.
+     *
+     * @return whether the tables were updated.
+     */
+    public synchronized boolean collect() {
+        final long nowMs = SystemClock.elapsedRealtime();
+        if (nowMs < mLastCollectTimeMs + mThrottleInterval) {
+            if (DEBUG) {
+                Slog.d(TAG, "Throttle");
+            }
+            return false;
+        }
+        mLastCollectTimeMs = nowMs;
+        final long startCpuTimeUs = SystemClock.currentThreadTimeMicro();
+
+        readCpuTimes(mCpuTimeReader, mCpuTimes);
+        readBinaryTimes(mFreqTimeReader, mFreqTimes, false);
+        readBinaryTimes(mActiveTimeReader, mActiveTimes, false);
+        readBinaryTimes(mClusterTimeReader, mClusterTimes, true);
+
+        mLastCollectionCpuTimeUs = SystemClock.currentThreadTimeMicro() - startCpuTimeUs;
+        mTotalCollectionCpuTimeUs += mLastCollectionCpuTimeUs;
+        mNumCollections++;
+        if (DEBUG) {
+            Slog.d(TAG, "Collected " + mCpuTimes.size() + " uids in "
+                    + mLastCollectionCpuTimeUs + "us");
+        }
+        return true;
+    }
+
+    /**
+     * Sets the throttle interval. Set to 0 will disable throttling.
+     *
+     * @param throttleInterval throttle interval in milliseconds
+     */
+    public synchronized void setThrottleInterval(long throttleInterval) {
+        if (throttleInterval >= 0) {
+            mThrottleInterval = throttleInterval;
+        }
+    }
+
+    /**
+     * Returns the user and system times in microseconds of each uid, from
+     * /proc/uid_cputime/show_uid_stat.
+     */
+    public UidTimes getCpuTimes() {
+        return mCpuTimes;
+    }
+
+    /**
+     * Returns the times in 10ms of each uid at each frequency, from
+     * /proc/uid_cpupower/time_in_state.
+     */
+    public UidTimes getFreqTimes() {
+        return mFreqTimes;
+    }
+
+    /**
+     * Returns the times in 10ms of each uid running concurrently with other cpus, from
+     * /proc/uid_cpupower/concurrent_active_time.
+     */
+    public UidTimes getActiveTimes() {
+        return mActiveTimes;
+    }
+
+    /**
+     * Returns the times in 10ms of each uid running concurrently with other cpus of the same
+     * cluster, from /proc/uid_cpupower/concurrent_policy_time. The header of the table holds the
+     * number of cores of each cluster.
+     */
+    public UidTimes getClusterTimes() {
+        return mClusterTimes;
+    }
+
+    /**
+     * Drops the uids from the table of /proc/uid_cputime/show_uid_stat, for when they are removed
+     * from the kernel module, so that readers don't see them again until they show up in the
+     * proc file again.
+     */
+    public synchronized void removeUidsInRange(int startUid, int endUid) {
+        mCpuTimes.removeUidsInRange(startUid, endUid);
+    }
+
+    public synchronized int getCollectionCount() {
+        return mNumCollections;
+    }
+
+    /** Returns the cpu time in microseconds the last collection took. */
+    public synchronized long getLastCollectionCpuTimeUs() {
+        return mLastCollectionCpuTimeUs;
+    }
+
+    public synchronized void dump(PrintWriter pw) {
+        pw.print("Kernel uid cpu time collections: ");
+        pw.print(mNumCollections);
+        pw.print(", last took ");
+        pw.print(mLastCollectionCpuTimeUs);
+        pw.print("us cpu for ");
+        pw.print(mCpuTimes.size());
+        pw.print(" uids");
+        if (mNumCollections > 0) {
+            pw.print(", average ");
+            pw.print(mTotalCollectionCpuTimeUs / mNumCollections);
+            pw.print("us cpu");
+        }
+        pw.println();
+    }
+
+    /**
+     * Parses the lines of /proc/uid_cputime/show_uid_stat, which have the format:
+     *
+     * uid: user_time_micro_seconds system_time_micro_seconds power_in_milli-amp-micro_seconds
+     */
+    private static void readCpuTimes(@Nullable KernelCpuProcReader reader, UidTimes out) {
+        out.reset(0, 2);
+        if (reader == null) {
+            return;
+        }
+        synchronized (reader) {
+            final ByteBuffer bytes = reader.readBytes();
+            if (bytes == null) {
+                // Error already logged in reader.
+                return;
+            }
+            final int limit = bytes.limit();
+            int pos = bytes.position();
+            while (pos < limit) {
+                final int lineEnd = indexOf(bytes, pos, limit, (byte) '\n');
+                pos = skipToDigit(bytes, pos, lineEnd);
+                if (pos == lineEnd) {
+                    // Blank line
+                    pos = lineEnd + 1;
+                    continue;
+                }
+                final int uidEnd = skipDigits(bytes, pos, lineEnd);
+                final int userStart = skipToDigit(bytes, uidEnd, lineEnd);
+                final int userEnd = skipDigits(bytes, userStart, lineEnd);
+                final int systemStart = skipToDigit(bytes, userEnd, lineEnd);
+                if (systemStart == lineEnd) {
+                    Slog.e(TAG, "Malformed line in uid_cputime at " + pos);
+                    return;
+                }
+                final int index = out.add((int) parseLong(bytes, pos, uidEnd));
+                out.set(index, 0, parseLong(bytes, userStart, userEnd));
+                out.set(index, 1, parseLong(bytes, systemStart,
+                        skipDigits(bytes, systemStart, lineEnd)));
+                pos = lineEnd + 1;
+            }
+        }
+    }
+
+    /**
+     * Parses one of the binary /proc/uid_cpupower files. They are arrays of u32's in the format
+     * [n, (n cores per cluster if hasClusterHeader), uid0, time0_0, time0_1, ..., uid1, ...],
+     * where each uid has n times or as many times as the clusters have cores.
+     */
+    private static void readBinaryTimes(@Nullable KernelCpuProcReader reader, UidTimes out,
+            boolean hasClusterHeader) {
+        out.clear();
+        if (reader == null) {
+            return;
+        }
+        synchronized (reader) {
+            final ByteBuffer bytes = reader.readBytes();
+            if (bytes == null || bytes.remaining() <= 4) {
+                // Error already logged in reader.
+                return;
+            }
+            if ((bytes.remaining() & 3) != 0) {
+                Slog.wtf(TAG, "Cannot parse proc bytes to int: " + bytes.remaining());
+                return;
+            }
+            final int limit = bytes.limit();
+            int pos = bytes.position();
+            final int count = bytes.getInt(pos);
+            pos += 4;
+            if (count <= 0) {
+                Slog.wtf(TAG, "Uid cpu time format error: " + count);
+                return;
+            }
+            int width = count;
+            if (hasClusterHeader) {
+                if (limit - pos < count * 4) {
+                    Slog.wtf(TAG, "Too few data left in the buffer: " + (limit - pos) / 4);
+                    return;
+                }
+                out.setHeaderSize(count);
+                width = 0;
+                for (int i = 0; i < count; i++) {
+                    out.mHeader[i] = bytes.getInt(pos);
+                    width += out.mHeader[i];
+                    pos += 4;
+                }
+                if (width <= 0) {
+                    Slog.e(TAG, "Invalid # cores from cluster time proc file: " + width);
+                    out.clear();
+                    return;
+                }
+            }
+            final int rowBytes = (width + 1) * 4;
+            if ((limit - pos) % rowBytes != 0) {
+                Slog.wtf(TAG, "Uid cpu time format error: " + (limit - pos) / 4 + " / "
+                        + (width + 1));
+                out.clear();
+                return;
+            }
+            final int numUids = (limit - pos) / rowBytes;
+            out.reset(numUids, width);
+            for (int i = 0; i < numUids; i++) {
+                final int index = out.add(bytes.getInt(pos));
+                pos += 4;
+                for (int column = 0; column < width; column++) {
+                    out.set(index, column, bytes.getInt(pos));
+                    pos += 4;
+                }
+            }
+        }
+    }
+
+    private static int indexOf(ByteBuffer bytes, int pos, int limit, byte b) {
+        while (pos < limit && bytes.get(pos) != b) {
+            pos++;
+        }
+        return pos;
+    }
+
+    private static int skipToDigit(ByteBuffer bytes, int pos, int limit) {
+        while (pos < limit && !isDigit(bytes.get(pos))) {
+            pos++;
+        }
+        return pos;
+    }
+
+    private static int skipDigits(ByteBuffer bytes, int pos, int limit) {
+        while (pos < limit && isDigit(bytes.get(pos))) {
+            pos++;
+        }
+        return pos;
+    }
+
+    private static long parseLong(ByteBuffer bytes, int start, int end) {
+        long value = 0;
+        for (int pos = start; pos < end; pos++) {
+            value = value * 10 + bytes.get(pos) - '0';
+        }
+        return value;
+    }
+
+    private static boolean isDigit(byte b) {
+        return b >= '0' && b <= '9';
+    }
+}
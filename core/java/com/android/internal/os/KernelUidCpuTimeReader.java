@@ -18,13 +18,12 @@ package com.android.internal.os;
 import android.annotation.Nullable;
 import android.os.StrictMode;
 import android.os.SystemClock;
-import android.text.TextUtils;
 import android.util.Slog;
 import android.util.SparseLongArray;
 import android.util.TimeUtils;
 
-import java.io.BufferedReader;
-import java.io.FileReader;
+import com.android.internal.annotations.VisibleForTesting;
+
 import java.io.FileWriter;
 import java.io.IOException;
 
@@ -37,11 +36,13 @@ import java.io.IOException;
  * The file contains a monotonically increasing count of time for a single boot. This class
  * maintains the previous results of a call to {@link #readDelta} in order to provide a proper
  * delta.
+ *
+ * The proc file is read through the shared {@link KernelUidCpuTimeCollector}, together with the
+ * other per-uid cpu time proc files.
  */
 public class KernelUidCpuTimeReader extends
         KernelUidCpuTimeReaderBase<KernelUidCpuTimeReader.Callback> {
     private static final String TAG = KernelUidCpuTimeReader.class.getSimpleName();
-    private static final String sProcFile = "/proc/uid_cputime/show_uid_stat";
     private static final String sRemoveUidProcFile = "/proc/uid_cputime/remove_uid_range";
 
     /**
@@ -56,10 +57,20 @@ public class KernelUidCpuTimeReader extends
         void onUidCpuTime(int uid, long userTimeUs, long systemTimeUs);
     }
 
+    private final KernelUidCpuTimeCollector mCollector;
     private SparseLongArray mLastUserTimeUs = new SparseLongArray();
     private SparseLongArray mLastSystemTimeUs = new SparseLongArray();
     private long mLastTimeReadUs = 0;
 
+    public KernelUidCpuTimeReader() {
+        mCollector = KernelUidCpuTimeCollector.getInstance();
+    }
+
+    @VisibleForTesting
+    public KernelUidCpuTimeReader(KernelUidCpuTimeCollector collector) {
+        mCollector = collector;
+    }
+
     /**
      * Reads the proc file, calling into the callback with a delta of time for each UID.
      *
@@ -69,17 +80,15 @@ public class KernelUidCpuTimeReader extends
      */
     @Override
     protected void readDeltaImpl(@Nullable Callback callback) {
-        final int oldMask = StrictMode.allowThreadDiskReadsMask();
         long nowUs = SystemClock.elapsedRealtime() * 1000;
-        try (BufferedReader reader = new BufferedReader(new FileReader(sProcFile))) {
-            TextUtils.SimpleStringSplitter splitter = new TextUtils.SimpleStringSplitter(' ');
-            String line;
-            while ((line = reader.readLine()) != null) {
-                splitter.setString(line);
-                final String uidStr = splitter.next();
-                final int uid = Integer.parseInt(uidStr.substring(0, uidStr.length() - 1), 10);
-                final long userTimeUs = Long.parseLong(splitter.next(), 10);
-                final long systemTimeUs = Long.parseLong(splitter.next(), 10);
+        synchronized (mCollector) {
+            mCollector.collect();
+            final KernelUidCpuTimeCollector.UidTimes times = mCollector.getCpuTimes();
+            final int numUids = times.size();
+            for (int i = 0; i < numUids; i++) {
+                final int uid = times.uidAt(i);
+                final long userTimeUs = times.timeAt(i, 0);
+                final long systemTimeUs = times.timeAt(i, 1);
 
                 boolean notifyCallback = false;
                 long userTimeDeltaUs = userTimeUs;
@@ -126,10 +135,6 @@ public class KernelUidCpuTimeReader extends
                     callback.onUidCpuTime(uid, userTimeDeltaUs, systemTimeDeltaUs);
                 }
             }
-        } catch (IOException e) {
-            Slog.e(TAG, "Failed to read uid_cputime: " + e.getMessage());
-        } finally {
-            StrictMode.setThreadPolicyMask(oldMask);
         }
         mLastTimeReadUs = nowUs;
     }
@@ -139,22 +144,13 @@ public class KernelUidCpuTimeReader extends
      * @param callback The callback to invoke for each line of the proc file.
      */
     public void readAbsolute(Callback callback) {
-        final int oldMask = StrictMode.allowThreadDiskReadsMask();
-        try (BufferedReader reader = new BufferedReader(new FileReader(sProcFile))) {
-            TextUtils.SimpleStringSplitter splitter = new TextUtils.SimpleStringSplitter(' ');
-            String line;
-            while ((line = reader.readLine()) != null) {
-                splitter.setString(line);
-                final String uidStr = splitter.next();
-                final int uid = Integer.parseInt(uidStr.substring(0, uidStr.length() - 1), 10);
-                final long userTimeUs = Long.parseLong(splitter.next(), 10);
-                final long systemTimeUs = Long.parseLong(splitter.next(), 10);
-                callback.onUidCpuTime(uid, userTimeUs, systemTimeUs);
+        synchronized (mCollector) {
+            mCollector.collect();
+            final KernelUidCpuTimeCollector.UidTimes times = mCollector.getCpuTimes();
+            final int numUids = times.size();
+            for (int i = 0; i < numUids; i++) {
+                callback.onUidCpuTime(times.uidAt(i), times.timeAt(i, 0), times.timeAt(i, 1));
             }
-        } catch (IOException e) {
-            Slog.e(TAG, "Failed to read uid_cputime: " + e.getMessage());
-        } finally {
-            StrictMode.setThreadPolicyMask(oldMask);
         }
     }
 
@@ -199,6 +195,7 @@ public class KernelUidCpuTimeReader extends
 
     private void removeUidsFromKernelModule(int startUid, int endUid) {
         Slog.d(TAG, "Removing uids " + startUid + "-" + endUid);
+        mCollector.removeUidsInRange(startUid, endUid);
         final int oldMask = StrictMode.allowThreadDiskWritesMask();
         try (FileWriter writer = new FileWriter(sRemoveUidProcFile)) {
             writer.write(startUid + "-" + endUid);
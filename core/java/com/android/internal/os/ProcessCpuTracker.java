@@ -24,6 +24,7 @@ import android.os.StrictMode;
 import android.os.SystemClock;
 import android.system.Os;
 import android.system.OsConstants;
+import android.util.ArrayMap;
 import android.util.Slog;
 
 import com.android.internal.util.FastPrintWriter;
@@ -31,7 +32,6 @@ import com.android.internal.util.FastPrintWriter;
 import libcore.io.IoUtils;
 import libcore.io.Libcore;
 
-import java.io.File;
 import java.io.FileInputStream;
 import java.io.PrintWriter;
 import java.io.StringWriter;
@@ -179,6 +179,28 @@ public class ProcessCpuTracker {
 
     private byte[] mBuffer = new byte[4096];
 
+    // Names of the processes and threads, so that the many threads sharing a name (and the
+    // processes coming back with the same one) share a single string.
+    private static final int MAX_CACHED_NAMES = 1024;
+    private final ArrayMap<String, String> mNameCache = new ArrayMap<>();
+
+    // Cost of the last update, for dumpsys cpuinfo.
+    private long mLastUpdateDurationMicros;
+    private long mLastUpdateCpuTimeMicros;
+    private int mLastUpdateFilesRead;
+    private int mLastUpdateIdleSkipped;
+    private int mLastUpdateStatsAllocated;
+    private int mLastUpdateNamesCached;
+    private int mUpdateCount;
+    private long mTotalUpdateDurationMicros;
+    private long mTotalUpdateCpuTimeMicros;
+
+    // Counted while an update is collecting stats.
+    private int mFilesRead;
+    private int mIdleSkipped;
+    private int mStatsAllocated;
+    private int mNamesCached;
+
     public interface FilterStats {
         /** Which stats to pick when filtering */
         boolean needed(Stats stats);
@@ -245,13 +267,13 @@ public class ProcessCpuTracker {
         public boolean added;
         public boolean removed;
 
-        Stats(int _pid, int parentPid, boolean includeThreads) {
+        Stats(int _pid, int parentPid, int parentUid, boolean includeThreads) {
             pid = _pid;
             if (parentPid < 0) {
-                final File procDir = new File("/proc", Integer.toString(pid));
-                statFile = new File(procDir, "stat").toString();
-                cmdlineFile = new File(procDir, "cmdline").toString();
-                threadsDir = (new File(procDir, "task")).toString();
+                final String procDir = "/proc/" + pid;
+                statFile = procDir + "/stat";
+                cmdlineFile = procDir + "/cmdline";
+                threadsDir = procDir + "/task";
                 if (includeThreads) {
                     threadStats = new ArrayList<Stats>();
                     workingThreads = new ArrayList<Stats>();
@@ -259,18 +281,16 @@ public class ProcessCpuTracker {
                     threadStats = null;
                     workingThreads = null;
                 }
+                uid = FileUtils.getUid(statFile);
             } else {
-                final File procDir = new File("/proc", Integer.toString(
-                        parentPid));
-                final File taskDir = new File(
-                        new File(procDir, "task"), Integer.toString(pid));
-                statFile = new File(taskDir, "stat").toString();
+                statFile = "/proc/" + parentPid + "/task/" + pid + "/stat";
                 cmdlineFile = null;
                 threadsDir = null;
                 threadStats = null;
                 workingThreads = null;
+                // Threads always belong to the uid of their process.
+                uid = parentUid;
             }
-            uid = FileUtils.getUid(statFile.toString());
         }
     }
 
@@ -315,6 +335,13 @@ public class ProcessCpuTracker {
     public void update() {
         if (DEBUG) Slog.v(TAG, "Update: " + this);
 
+        final long startRealtimeNanos = SystemClock.elapsedRealtimeNanos();
+        final long startCpuTimeMicros = SystemClock.currentThreadTimeMicro();
+        mFilesRead = 0;
+        mIdleSkipped = 0;
+        mStatsAllocated = 0;
+        mNamesCached = 0;
+
         final long nowUptime = SystemClock.uptimeMillis();
         final long nowRealtime = SystemClock.elapsedRealtime();
         final long nowWallTime = System.currentTimeMillis();
@@ -385,7 +412,7 @@ public class ProcessCpuTracker {
 
         final StrictMode.ThreadPolicy savedPolicy = StrictMode.allowThreadDiskReads();
         try {
-            mCurPids = collectStats("/proc", -1, mFirst, mCurPids, mProcStats);
+            mCurPids = collectStats("/proc", -1, -1, mFirst, mCurPids, mProcStats);
         } finally {
             StrictMode.setThreadPolicy(savedPolicy);
         }
@@ -409,12 +436,24 @@ public class ProcessCpuTracker {
 
         mWorkingProcsSorted = false;
         mFirst = false;
+
+        mLastUpdateDurationMicros = (SystemClock.elapsedRealtimeNanos() - startRealtimeNanos)
+                / 1000;
+        mLastUpdateCpuTimeMicros = SystemClock.currentThreadTimeMicro() - startCpuTimeMicros;
+        mLastUpdateFilesRead = mFilesRead;
+        mLastUpdateIdleSkipped = mIdleSkipped;
+        mLastUpdateStatsAllocated = mStatsAllocated;
+        mLastUpdateNamesCached = mNamesCached;
+        mUpdateCount++;
+        mTotalUpdateDurationMicros += mLastUpdateDurationMicros;
+        mTotalUpdateCpuTimeMicros += mLastUpdateCpuTimeMicros;
     }
 
-    private int[] collectStats(String statsFile, int parentPid, boolean first,
+    private int[] collectStats(String statsFile, int parentPid, int parentUid, boolean first,
             int[] curPids, ArrayList<Stats> allProcs) {
 
         int[] pids = Process.getPids(statsFile, curPids);
+        mFilesRead++;
         int NP = (pids == null) ? 0 : pids.length;
         int NS = allProcs.size();
         int curStatsIndex = 0;
@@ -438,8 +477,11 @@ public class ProcessCpuTracker {
                 if (st.interesting) {
                     final long uptime = SystemClock.uptimeMillis();
 
+                    // Only read the times, the rest of the stat file and the name are only
+                    // looked at if the process ran since the last update.
                     final long[] procStats = mProcessStatsData;
-                    if (!Process.readProcFile(st.statFile.toString(),
+                    mFilesRead++;
+                    if (!Process.readProcFile(st.statFile,
                             PROCESS_STATS_FORMAT, null, procStats, null)) {
                         continue;
                     }
@@ -457,6 +499,7 @@ public class ProcessCpuTracker {
                         if (st.active) {
                             st.active = false;
                         }
+                        mIdleSkipped++;
                         continue;
                     }
 
@@ -467,7 +510,7 @@ public class ProcessCpuTracker {
                     if (parentPid < 0) {
                         getName(st, st.cmdlineFile);
                         if (st.threadStats != null) {
-                            mCurThreadPids = collectStats(st.threadsDir, pid, false,
+                            mCurThreadPids = collectStats(st.threadsDir, pid, st.uid, false,
                                     mCurThreadPids, st.threadStats);
                         }
                     }
@@ -496,7 +539,8 @@ public class ProcessCpuTracker {
 
             if (st == null || st.pid > pid) {
                 // We have a new process!
-                st = new Stats(pid, parentPid, mIncludeThreads);
+                st = new Stats(pid, parentPid, parentUid, mIncludeThreads);
+                mStatsAllocated++;
                 allProcs.add(curStatsIndex, st);
                 curStatsIndex++;
                 NS++;
@@ -507,9 +551,8 @@ public class ProcessCpuTracker {
                 final String[] procStatsString = mProcessFullStatsStringData;
                 final long[] procStats = mProcessFullStatsData;
                 st.base_uptime = SystemClock.uptimeMillis();
-                String path = st.statFile.toString();
-                //Slog.d(TAG, "Reading proc file: " + path);
-                if (Process.readProcFile(path, PROCESS_FULL_STATS_FORMAT, procStatsString,
+                mFilesRead++;
+                if (Process.readProcFile(st.statFile, PROCESS_FULL_STATS_FORMAT, procStatsString,
                         procStats, null)) {
                     // This is a possible way to filter out processes that
                     // are actually kernel threads...  do we want to?  Some
@@ -518,7 +561,7 @@ public class ProcessCpuTracker {
                     st.vsize = procStats[PROCESS_FULL_STAT_VSIZE];
                     if (true || procStats[PROCESS_FULL_STAT_VSIZE] != 0) {
                         st.interesting = true;
-                        st.baseName = procStatsString[0];
+                        st.baseName = getCachedName(procStatsString[0]);
                         st.base_minfaults = procStats[PROCESS_FULL_STAT_MINOR_FAULTS];
                         st.base_majfaults = procStats[PROCESS_FULL_STAT_MAJOR_FAULTS];
                         st.base_utime = procStats[PROCESS_FULL_STAT_UTIME] * mJiffyMillis;
@@ -526,7 +569,7 @@ public class ProcessCpuTracker {
                     } else {
                         Slog.i(TAG, "Skipping kernel process pid " + pid
                                 + " name " + procStatsString[0]);
-                        st.baseName = procStatsString[0];
+                        st.baseName = getCachedName(procStatsString[0]);
                     }
                 } else {
                     Slog.w(TAG, "Skipping unknown process pid " + pid);
@@ -538,7 +581,7 @@ public class ProcessCpuTracker {
                 if (parentPid < 0) {
                     getName(st, st.cmdlineFile);
                     if (st.threadStats != null) {
-                        mCurThreadPids = collectStats(st.threadsDir, pid, true,
+                        mCurThreadPids = collectStats(st.threadsDir, pid, st.uid, true,
                                 mCurThreadPids, st.threadStats);
                     }
                 } else if (st.interesting) {
@@ -803,6 +846,38 @@ public class ProcessCpuTracker {
         return sw.toString();
     }
 
+    /**
+     * Describes what the last update cost, and the average cost of all of them.
+     */
+    final public String printUpdateStats() {
+        StringWriter sw = new StringWriter();
+        PrintWriter pw = new FastPrintWriter(sw, false, 256);
+        pw.print("Last update: ");
+        pw.print(mLastUpdateDurationMicros);
+        pw.print("us (");
+        pw.print(mLastUpdateCpuTimeMicros);
+        pw.print("us cpu), ");
+        pw.print(mLastUpdateFilesRead);
+        pw.print(" files read, ");
+        pw.print(mLastUpdateIdleSkipped);
+        pw.print(" idle skipped, allocated ");
+        pw.print(mLastUpdateStatsAllocated);
+        pw.print(" stats, cached ");
+        pw.print(mLastUpdateNamesCached);
+        pw.println(" new names");
+        if (mUpdateCount > 0) {
+            pw.print("Average of ");
+            pw.print(mUpdateCount);
+            pw.print(" updates: ");
+            pw.print(mTotalUpdateDurationMicros / mUpdateCount);
+            pw.print("us (");
+            pw.print(mTotalUpdateCpuTimeMicros / mUpdateCount);
+            pw.println("us cpu)");
+        }
+        pw.flush();
+        return sw.toString();
+    }
+
     private void printRatio(PrintWriter pw, long numerator, long denominator) {
         long thousands = (numerator*1000)/denominator;
         long hundreds = thousands/10;
@@ -893,10 +968,27 @@ public class ProcessCpuTracker {
         return null;
     }
 
+    private String getCachedName(String name) {
+        if (name == null) {
+            return null;
+        }
+        final String cached = mNameCache.get(name);
+        if (cached != null) {
+            return cached;
+        }
+        if (mNameCache.size() >= MAX_CACHED_NAMES) {
+            mNameCache.clear();
+        }
+        mNameCache.put(name, name);
+        mNamesCached++;
+        return name;
+    }
+
     private void getName(Stats st, String cmdlineFile) {
         String newName = st.name;
         if (st.name == null || st.name.equals("app_process")
                 || st.name.equals("<pre-initialized>")) {
+            mFilesRead++;
             String cmdName = readFile(cmdlineFile, '\0');
             if (cmdName != null && cmdName.length() > 1) {
                 newName = cmdName;
@@ -910,7 +1002,7 @@ public class ProcessCpuTracker {
             }
         }
         if (st.name == null || !newName.equals(st.name)) {
-            st.name = newName;
+            st.name = getCachedName(newName);
             st.nameWidth = onMeasureProcessName(st.name);
         }
     }
@@ -0,0 +1,343 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.util;
+
+import android.os.FileUtils;
+import android.util.AtomicFile;
+import android.util.Log;
+
+import libcore.io.IoUtils;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.zip.CRC32;
+
+/**
+ * A file of records that changes are appended to, and that is rewritten from time to time
+ * with a snapshot of what its records add up to.
+ * <p>
+ * The file starts with a magic number and a format version, followed by records framed as
+ * {@code length, body, crc32(body)}. Record bodies are opaque to the log. A record torn by a
+ * crash during an append is cut short or fails its checksum, and ends the log on the next
+ * {@link #read}; the log then {@link #needsSnapshot needs a snapshot} before anything can be
+ * appended to it. Snapshots are written through an {@link AtomicFile}, so an interrupted
+ * snapshot leaves the previous file in place.
+ * <p>
+ * Not thread safe.
+ */
+public final class AppendOnlyLog {
+    private static final String TAG = "AppendOnlyLog";
+
+    /** Size of the magic number and version the file starts with */
+    public static final int HEADER_SIZE = 8;
+
+    /** Size of the framing around the body of a record */
+    public static final int RECORD_OVERHEAD = 8;
+
+    /** Reads the bodies of the records of a log, in order. */
+    public interface RecordReader {
+        void readRecord(byte[] body) throws IOException;
+    }
+
+    private final AtomicFile mFile;
+    private final int mMagic;
+    private final int mVersion;
+    private final int mMaxRecordSize;
+    private final CRC32 mCrc = new CRC32();
+
+    /** Size of the file, as far as we know */
+    private long mSize;
+
+    /** Number of records in the file */
+    private int mRecordCount;
+
+    /** Set when the file can't be trusted to be followed by new records */
+    private boolean mNeedsSnapshot = true;
+
+    /** Kept open between appends, closed by {@link #close} */
+    private FileOutputStream mAppendStream;
+
+    /** Whether records were appended since the last {@link #sync} */
+    private boolean mUnsynced;
+
+    /**
+     * @param file the log file
+     * @param commitTag the tag snapshots are logged with, see {@link AtomicFile}, or
+     *        {@code null}
+     * @param magic the number the file starts with
+     * @param version the version of the format of the record bodies; files of another version
+     *        fail to {@link #read}
+     * @param maxRecordSize upper bound for the body of a record, anything larger is taken for
+     *        a torn record
+     */
+    public AppendOnlyLog(File file, String commitTag, int magic, int version,
+            int maxRecordSize) {
+        mFile = new AtomicFile(file, commitTag);
+        mMagic = magic;
+        mVersion = version;
+        mMaxRecordSize = maxRecordSize;
+    }
+
+    public File getFile() {
+        return mFile.getBaseFile();
+    }
+
+    public boolean exists() {
+        return mFile.exists();
+    }
+
+    public long getLastModifiedTime() {
+        return mFile.getLastModifiedTime();
+    }
+
+    /** Size of the file, as of the last read, snapshot or append. */
+    public long getSize() {
+        return mSize;
+    }
+
+    /** Number of records in the file, as of the last read, snapshot or append. */
+    public int getRecordCount() {
+        return mRecordCount;
+    }
+
+    /**
+     * Whether the next write must be a {@link #writeSnapshot snapshot} rather than an
+     * {@link #append}: the file was never read or written, ends with a torn record, or an
+     * append failed.
+     */
+    public boolean needsSnapshot() {
+        return mNeedsSnapshot;
+    }
+
+    /**
+     * Maps the file and hands the body of each of its records to {@code reader}. A torn
+     * record at the end of the file, and whatever follows it, is dropped.
+     *
+     * @throws IOException if the file can't be read, doesn't start with the expected magic
+     *         number and version, or {@code reader} fails
+     */
+    public void read(RecordReader reader) throws IOException {
+        close();
+        mNeedsSnapshot = true;
+        mSize = 0;
+        mRecordCount = 0;
+        final ByteBuffer buffer;
+        // openRead() restores the backup left behind by an interrupted snapshot, if any
+        try (FileInputStream fis = mFile.openRead(); FileChannel channel = fis.getChannel()) {
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        if (buffer.remaining() < HEADER_SIZE || buffer.getInt() != mMagic) {
+            throw new IOException("Bad magic in " + mFile.getBaseFile());
+        }
+        final int version = buffer.getInt();
+        if (version != mVersion) {
+            throw new IOException("Unsupported version " + version + " of "
+                    + mFile.getBaseFile());
+        }
+        mSize = HEADER_SIZE;
+
+        boolean torn = false;
+        while (buffer.hasRemaining()) {
+            final int length = buffer.remaining() >= 4 ? buffer.getInt() : -1;
+            if (length < 1 || length > mMaxRecordSize || buffer.remaining() < length + 4) {
+                torn = true;
+                break;
+            }
+            final byte[] body = new byte[length];
+            buffer.get(body);
+            mCrc.reset();
+            mCrc.update(body, 0, length);
+            if ((int) mCrc.getValue() != buffer.getInt()) {
+                torn = true;
+                break;
+            }
+            mSize = buffer.position();
+            mRecordCount++;
+            reader.readRecord(body);
+        }
+        if (torn) {
+            Log.w(TAG, "Dropping torn record at end of " + mFile.getBaseFile());
+        }
+        mNeedsSnapshot = torn;
+    }
+
+    /**
+     * Rewrites the file so that it holds exactly the records of {@code batch}. The new file
+     * is synced before this returns.
+     */
+    public void writeSnapshot(Batch batch) throws IOException {
+        close();
+        mNeedsSnapshot = true;
+        FileOutputStream fos = null;
+        try {
+            fos = mFile.startWrite();
+            final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos));
+            out.writeInt(mMagic);
+            out.writeInt(mVersion);
+            batch.writeTo(out);
+            out.flush();
+            mFile.finishWrite(fos);
+            fos = null;
+        } finally {
+            if (fos != null) {
+                mFile.failWrite(fos);
+            }
+        }
+        mSize = HEADER_SIZE + batch.getSize();
+        mRecordCount = batch.getRecordCount();
+        mNeedsSnapshot = false;
+    }
+
+    /**
+     * Appends the records of {@code batch} to the file. Must not be called while the log
+     * {@link #needsSnapshot needs a snapshot}.
+     *
+     * @param sync whether to sync the file before returning, rather than on the next call to
+     *        {@link #sync}
+     */
+    public void append(Batch batch, boolean sync) throws IOException {
+        if (batch.getRecordCount() == 0) {
+            return;
+        }
+        try {
+            if (mAppendStream == null) {
+                mAppendStream = new FileOutputStream(mFile.getBaseFile(), true /*append*/);
+            }
+            batch.writeTo(mAppendStream);
+            mUnsynced = true;
+            if (sync && !sync()) {
+                throw new IOException("Failed to sync " + mFile.getBaseFile());
+            }
+        } catch (IOException e) {
+            // Whatever made it to disk can't be appended to anymore
+            IoUtils.closeQuietly(mAppendStream);
+            mAppendStream = null;
+            mNeedsSnapshot = true;
+            throw e;
+        }
+        mSize += batch.getSize();
+        mRecordCount += batch.getRecordCount();
+    }
+
+    /**
+     * Syncs the records appended since the last call to disk. If that fails, nothing tells
+     * what made it there, so the log needs a snapshot.
+     *
+     * @return whether the records were synced
+     */
+    public boolean sync() {
+        if (!mUnsynced || mAppendStream == null) {
+            return true;
+        }
+        mUnsynced = false;
+        if (!FileUtils.sync(mAppendStream)) {
+            mNeedsSnapshot = true;
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Syncs and closes the file. The log can still be written after this.
+     */
+    public void close() {
+        sync();
+        IoUtils.closeQuietly(mAppendStream);
+        mAppendStream = null;
+    }
+
+    public void delete() {
+        close();
+        mFile.delete();
+        mSize = 0;
+        mRecordCount = 0;
+        mNeedsSnapshot = true;
+    }
+
+    /**
+     * SHA-256 digest callers can keep for a record payload, to skip appending a payload that is
+     * the same as the one already in the log. Compare digests with
+     * {@link java.util.Arrays#equals(byte[], byte[])}.
+     */
+    public static byte[] digest(byte[] payload) {
+        try {
+            return MessageDigest.getInstance("SHA-256").digest(payload);
+        } catch (NoSuchAlgorithmException e) {
+            throw new AssertionError("Missing digest algorithm: ", e);
+        }
+    }
+
+    /**
+     * Records framed in memory, to be written to a log as a snapshot or appended to it in one
+     * go.
+     */
+    public static final class Batch {
+        private final ByteArrayOutputStream mBytes = new ByteArrayOutputStream();
+        private final DataOutputStream mOut = new DataOutputStream(mBytes);
+        private final ByteArrayOutputStream mBody = new ByteArrayOutputStream();
+        private final DataOutputStream mBodyOut = new DataOutputStream(mBody);
+        private final CRC32 mCrc = new CRC32();
+        private int mRecordCount;
+
+        /**
+         * Starts a record. Its body is what is written to the returned stream until
+         * {@link #endRecord}.
+         */
+        public DataOutputStream beginRecord() {
+            mBody.reset();
+            return mBodyOut;
+        }
+
+        /** Frames the record started by {@link #beginRecord} and adds it to the batch. */
+        public void endRecord() throws IOException {
+            mBodyOut.flush();
+            final byte[] body = mBody.toByteArray();
+            if (body.length == 0) {
+                throw new IllegalStateException("Empty record");
+            }
+            mCrc.reset();
+            mCrc.update(body, 0, body.length);
+            mOut.writeInt(body.length);
+            mOut.write(body);
+            mOut.writeInt((int) mCrc.getValue());
+            mRecordCount++;
+        }
+
+        public int getRecordCount() {
+            return mRecordCount;
+        }
+
+        /** Size of the framed records. */
+        public int getSize() {
+            return mBytes.size();
+        }
+
+        void writeTo(OutputStream out) throws IOException {
+            mBytes.writeTo(out);
+        }
+    }
+}
@@ -39,9 +39,19 @@ public class NotificationMessagingUtil {
     private static final String DEFAULT_SMS_APP_SETTING = Settings.Secure.SMS_DEFAULT_APPLICATION;
     private final Context mContext;
     private ArrayMap<Integer, String> mDefaultSmsApp = new ArrayMap<>();
+    private final Runnable mOnDefaultSmsAppChanged;
 
     public NotificationMessagingUtil(Context context) {
+        this(context, null);
+    }
+
+    /**
+     * @param onDefaultSmsAppChanged run on the main thread whenever the default SMS app of a
+     *        user changes, once {@link #isImportantMessaging} reflects the change
+     */
+    public NotificationMessagingUtil(Context context, Runnable onDefaultSmsAppChanged) {
         mContext = context;
+        mOnDefaultSmsAppChanged = onDefaultSmsAppChanged;
         mContext.getContentResolver().registerContentObserver(
                 Settings.Secure.getUriFor(DEFAULT_SMS_APP_SETTING), false, mSmsContentObserver);
     }
@@ -80,6 +90,9 @@ public class NotificationMessagingUtil {
         public void onChange(boolean selfChange, Uri uri, int userId) {
             if (Settings.Secure.getUriFor(DEFAULT_SMS_APP_SETTING).equals(uri)) {
                 cacheDefaultSmsApp(userId);
+                if (mOnDefaultSmsAppChanged != null) {
+                    mOnDefaultSmsAppChanged.run();
+                }
             }
         }
     };
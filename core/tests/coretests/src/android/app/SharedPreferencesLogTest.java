@@ -0,0 +1,219 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.app;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.Handler;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.filters.SmallTest;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Tests for shared preferences opened with {@link Context#MODE_BINARY_LOG}.
+ * <p>
+ * Preferences are opened directly rather than through {@link Context#getSharedPreferences},
+ * which caches them for the life of the process, so that each test can load them again.
+ *
+ * atest FrameworksCoreTests:android.app.SharedPreferencesLogTest
+ */
+@SmallTest
+@RunWith(AndroidJUnit4.class)
+public class SharedPreferencesLogTest {
+    private File mFile;
+    private File mLogFile;
+
+    @Before
+    public void setUp() {
+        mFile = new File(InstrumentationRegistry.getContext().getCacheDir(),
+                "SharedPreferencesLogTest.xml");
+        mLogFile = new File(mFile.getPath() + ".log");
+        deleteFiles();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        waitForLogWrites();
+        deleteFiles();
+    }
+
+    @Test
+    public void testRoundTripsEveryType() throws Exception {
+        final Set<String> set = new HashSet<>(Arrays.asList("a", "", "\u00e9\u4e2d\ud83d\ude00"));
+        assertTrue(open(Context.MODE_BINARY_LOG).edit()
+                .putString("string", "value \u00e9\u4e2d\ud83d\ude00")
+                .putString("empty", "")
+                .putInt("int", Integer.MIN_VALUE)
+                .putLong("long", Long.MAX_VALUE)
+                .putFloat("float", 1.5f)
+                .putBoolean("boolean", true)
+                .putStringSet("set", set)
+                .putStringSet("emptySet", new HashSet<>())
+                .commit());
+        assertTrue(mLogFile.exists());
+        assertFalse(mFile.exists());
+
+        final SharedPreferences prefs = open(Context.MODE_BINARY_LOG);
+        assertEquals(8, prefs.getAll().size());
+        assertEquals("value \u00e9\u4e2d\ud83d\ude00", prefs.getString("string", null));
+        assertEquals("", prefs.getString("empty", null));
+        assertEquals(Integer.MIN_VALUE, prefs.getInt("int", 0));
+        assertEquals(Long.MAX_VALUE, prefs.getLong("long", 0));
+        assertEquals(1.5f, prefs.getFloat("float", 0), 0);
+        assertTrue(prefs.getBoolean("boolean", false));
+        assertEquals(set, prefs.getStringSet("set", null));
+        assertEquals(new HashSet<>(), prefs.getStringSet("emptySet", null));
+    }
+
+    @Test
+    public void testChangesAreAppended() throws Exception {
+        SharedPreferences prefs = open(Context.MODE_BINARY_LOG);
+        assertTrue(prefs.edit().putInt("a", 1).putInt("b", 2).commit());
+        final long snapshotLength = mLogFile.length();
+        assertTrue(prefs.edit().putInt("a", 3).remove("b").putString("c", "x").commit());
+        assertTrue(mLogFile.length() > snapshotLength);
+
+        prefs = open(Context.MODE_BINARY_LOG);
+        assertEquals(map("a", 3, "c", "x"), prefs.getAll());
+    }
+
+    @Test
+    public void testClear() throws Exception {
+        SharedPreferences prefs = open(Context.MODE_BINARY_LOG);
+        assertTrue(prefs.edit().putInt("a", 1).putString("b", "x").commit());
+        assertTrue(prefs.edit().clear().putInt("c", 2).commit());
+        assertEquals(map("c", 2), prefs.getAll());
+
+        prefs = open(Context.MODE_BINARY_LOG);
+        assertEquals(map("c", 2), prefs.getAll());
+        assertTrue(prefs.edit().clear().commit());
+
+        prefs = open(Context.MODE_BINARY_LOG);
+        assertTrue(prefs.getAll().isEmpty());
+    }
+
+    @Test
+    public void testMigratesFromXml() throws Exception {
+        assertTrue(open(Context.MODE_PRIVATE).edit()
+                .putInt("a", 1)
+                .putStringSet("b", new HashSet<>(Arrays.asList("x", "y")))
+                .commit());
+        assertTrue(mFile.exists());
+
+        // The XML file is read until the first commit moves the preferences to the log.
+        SharedPreferences prefs = open(Context.MODE_BINARY_LOG);
+        assertEquals(1, prefs.getInt("a", 0));
+        assertFalse(mLogFile.exists());
+        assertTrue(prefs.edit().putInt("c", 2).commit());
+        assertTrue(mLogFile.exists());
+        assertFalse(mFile.exists());
+
+        prefs = open(Context.MODE_BINARY_LOG);
+        assertEquals(map("a", 1, "b", new HashSet<>(Arrays.asList("x", "y")), "c", 2),
+                prefs.getAll());
+    }
+
+    @Test
+    public void testTornTailIsDropped() throws Exception {
+        SharedPreferences prefs = open(Context.MODE_BINARY_LOG);
+        assertTrue(prefs.edit().putInt("a", 1).commit());
+        assertTrue(prefs.edit().putInt("b", 2).commit());
+
+        // A commit interrupted halfway through its append.
+        try (RandomAccessFile raf = new RandomAccessFile(mLogFile, "rw")) {
+            raf.setLength(raf.length() - 1);
+        }
+
+        prefs = open(Context.MODE_BINARY_LOG);
+        assertEquals(map("a", 1), prefs.getAll());
+
+        // The next commit rewrites the log rather than appending after the torn record.
+        assertTrue(prefs.edit().putInt("c", 3).commit());
+        prefs = open(Context.MODE_BINARY_LOG);
+        assertEquals(map("a", 1, "c", 3), prefs.getAll());
+    }
+
+    @Test
+    public void testCompaction() throws Exception {
+        final char[] chars = new char[100];
+        Arrays.fill(chars, 'x');
+        final String value = new String(chars);
+
+        // Without compaction these commits would append well over 100 KB.
+        final SharedPreferences prefs = open(Context.MODE_BINARY_LOG);
+        for (int i = 0; i < 500; i++) {
+            assertTrue(prefs.edit().putString("key", value + i).putInt("count", i).commit());
+        }
+        waitForLogWrites();
+        assertTrue(mLogFile.length() < 32 * 1024);
+
+        assertEquals(map("key", value + 499, "count", 499),
+                open(Context.MODE_BINARY_LOG).getAll());
+    }
+
+    private SharedPreferences open(int mode) throws Exception {
+        final Constructor<?> constructor = Class.forName("android.app.SharedPreferencesImpl")
+                .getDeclaredConstructor(File.class, int.class);
+        constructor.setAccessible(true);
+        return (SharedPreferences) constructor.newInstance(mFile, mode);
+    }
+
+    /** Waits for the compactions posted by the preferences opened so far. */
+    private static void waitForLogWrites() throws Exception {
+        final Field field = Class.forName("android.app.SharedPreferencesImpl")
+                .getDeclaredField("sLogHandler");
+        field.setAccessible(true);
+        final Handler handler = (Handler) field.get(null);
+        if (handler != null) {
+            handler.runWithScissors(() -> {}, 10_000);
+        }
+    }
+
+    private void deleteFiles() {
+        mFile.delete();
+        new File(mFile.getPath() + ".bak").delete();
+        mLogFile.delete();
+        new File(mLogFile.getPath() + ".bak").delete();
+    }
+
+    private static Map<String, Object> map(Object... keysAndValues) {
+        final Map<String, Object> map = new HashMap<>();
+        for (int i = 0; i < keysAndValues.length; i += 2) {
+            map.put((String) keysAndValues[i], keysAndValues[i + 1]);
+        }
+        return map;
+    }
+}
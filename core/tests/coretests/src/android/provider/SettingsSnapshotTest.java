@@ -0,0 +1,119 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.provider;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import android.os.SharedMemory;
+import android.support.test.filters.SmallTest;
+import android.support.test.runner.AndroidJUnit4;
+import android.system.ErrnoException;
+import android.util.ArrayMap;
+import android.util.ArraySet;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.nio.ByteBuffer;
+
+@RunWith(AndroidJUnit4.class)
+@SmallTest
+public class SettingsSnapshotTest {
+    private static final String BROKEN_SURROGATES = "\uD800ab\uDC00 日本";
+
+    @Test
+    public void testLookup() throws Exception {
+        final ArrayMap<String, String> values = new ArrayMap<>();
+        for (int i = 0; i < 100; i++) {
+            values.put("setting_" + i, "value_" + i);
+        }
+        values.put("null_setting", null);
+        values.put("binary_setting", BROKEN_SURROGATES);
+        values.put("hidden_setting", "hidden");
+        final ArraySet<String> notCovered = new ArraySet<>();
+        notCovered.add("hidden_setting");
+        notCovered.add("absent_hidden_setting");
+
+        final SettingsSnapshot snapshot = createAndMap(7, 42, values, notCovered);
+        try {
+            assertEquals(7, snapshot.getGenerationIndex());
+            assertEquals(42, snapshot.getGeneration());
+            for (int i = 0; i < 100; i++) {
+                final int index = snapshot.indexOf("setting_" + i);
+                assertTrue(index >= 0);
+                assertTrue(snapshot.isCovered(index));
+                assertEquals("value_" + i, snapshot.getValue(index));
+            }
+
+            int index = snapshot.indexOf("null_setting");
+            assertTrue(index >= 0);
+            assertTrue(snapshot.isCovered(index));
+            assertNull(snapshot.getValue(index));
+
+            index = snapshot.indexOf("binary_setting");
+            assertEquals(BROKEN_SURROGATES, snapshot.getValue(index));
+
+            assertFalse(snapshot.isCovered(snapshot.indexOf("hidden_setting")));
+            assertFalse(snapshot.isCovered(snapshot.indexOf("absent_hidden_setting")));
+
+            assertTrue(snapshot.indexOf("setting_") < 0);
+            assertTrue(snapshot.indexOf("setting_1000") < 0);
+            assertTrue(snapshot.indexOf("") < 0);
+        } finally {
+            snapshot.close();
+        }
+    }
+
+    @Test
+    public void testEmpty() throws Exception {
+        final SettingsSnapshot snapshot = createAndMap(0, 1, new ArrayMap<>(), new ArraySet<>());
+        try {
+            assertTrue(snapshot.indexOf("setting") < 0);
+        } finally {
+            snapshot.close();
+        }
+    }
+
+    @Test
+    public void testReadOnly() throws Exception {
+        final SharedMemory memory = SettingsSnapshot.create("test", 0, 1, new ArrayMap<>(),
+                new ArraySet<>());
+        try {
+            final ByteBuffer buffer = memory.mapReadWrite();
+            SharedMemory.unmap(buffer);
+            fail("Snapshot must not be writable");
+        } catch (ErrnoException expected) {
+        } finally {
+            memory.close();
+        }
+    }
+
+    private static SettingsSnapshot createAndMap(int generationIndex, int generation,
+            ArrayMap<String, String> values, ArraySet<String> notCovered) throws Exception {
+        final SharedMemory memory = SettingsSnapshot.create("test", generationIndex, generation,
+                values, notCovered);
+        try {
+            return SettingsSnapshot.map(memory);
+        } finally {
+            memory.close();
+        }
+    }
+}
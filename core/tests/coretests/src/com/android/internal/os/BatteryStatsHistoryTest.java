@@ -0,0 +1,243 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.os;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import android.content.Context;
+import android.os.BatteryStats.HistoryItem;
+import android.os.FileUtils;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Parcel;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.filters.SmallTest;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+
+/**
+ * Test class for {@link BatteryStatsHistory}.
+ *
+ * $ atest FrameworksCoreTests:com.android.internal.os.BatteryStatsHistoryTest
+ */
+@SmallTest
+@RunWith(AndroidJUnit4.class)
+public class BatteryStatsHistoryTest {
+    private static final int UID = 10500;
+
+    private File mDir;
+    private HandlerThread mThread;
+    private Handler mHandler;
+
+    @Before
+    public void setUp() {
+        final Context context = InstrumentationRegistry.getContext();
+        mDir = new File(context.getCacheDir(), "BatteryStatsHistoryTest");
+        FileUtils.deleteContentsAndDir(mDir);
+        mThread = new HandlerThread("BatteryStatsHistoryTest");
+        mThread.start();
+        mHandler = new Handler(mThread.getLooper());
+    }
+
+    @After
+    public void tearDown() {
+        mThread.quitSafely();
+        FileUtils.deleteContentsAndDir(mDir);
+    }
+
+    @Test
+    public void testAddAndReadPages() {
+        final BatteryStatsHistory history = new BatteryStatsHistory(mDir, mHandler, 3);
+        for (int i = 0; i < 5; i++) {
+            history.addPage(newPage(i));
+        }
+
+        // Only the newest pages are kept, whether or not they have been written yet.
+        assertEquals(3, history.getPageCount());
+        assertPages(history, 2, 3, 4);
+        waitForHandler();
+        assertEquals(0, history.getPendingPageCount());
+        assertEquals(3, mDir.list().length);
+        assertPages(history, 2, 3, 4);
+    }
+
+    @Test
+    public void testPagesAreReloaded() {
+        BatteryStatsHistory history = new BatteryStatsHistory(mDir, mHandler, 3);
+        for (int i = 0; i < 3; i++) {
+            history.addPage(newPage(i));
+        }
+        waitForHandler();
+        final long size = history.getSize();
+
+        history = new BatteryStatsHistory(mDir, mHandler, 3);
+        assertEquals(3, history.getPageCount());
+        assertEquals(size, history.getSize());
+        history.addPage(newPage(3));
+        assertPages(history, 1, 2, 3);
+
+        history.setMaxPages(1);
+        assertPages(history, 3);
+    }
+
+    @Test
+    public void testClear() {
+        final BatteryStatsHistory history = new BatteryStatsHistory(mDir, mHandler, 3);
+        history.addPage(newPage(0));
+        waitForHandler();
+        history.addPage(newPage(1));
+        history.clear();
+        waitForHandler();
+
+        assertEquals(0, history.getPageCount());
+        assertEquals(0, history.getSize());
+        assertEquals(0, mDir.list().length);
+    }
+
+    @Test
+    public void testHistorySpillsToPages() {
+        final MockClocks clocks = new MockClocks();
+        final MockBatteryStatsImpl bi = new MockBatteryStatsImpl(clocks);
+        bi.mHistoryPages = new BatteryStatsHistory(mDir, mHandler, 100);
+        bi.setRecordAllHistoryLocked(true);
+        bi.forceRecordAllHistory();
+        bi.updateTimeBasesLocked(true, android.view.Display.STATE_OFF, 0, 0);
+
+        // Enough alarms to fill the history buffer a few times over.
+        int alarms = 0;
+        while (bi.mHistoryPages.getPageCount() < 3) {
+            clocks.realtime = clocks.uptime = 1000 + alarms * 10;
+            bi.noteAlarmStartLocked("alarm" + (alarms % 50), null, UID);
+            bi.noteAlarmFinishLocked("alarm" + (alarms % 50), null, UID);
+            alarms++;
+        }
+
+        // All of it is read back, pages first, with each page's tags.
+        final HistoryItem item = new HistoryItem();
+        int starts = 0;
+        long lastTime = 0;
+        assertTrue(bi.startIteratingHistoryLocked());
+        try {
+            while (bi.getNextHistoryLocked(item)) {
+                assertTrue(item.time >= lastTime);
+                lastTime = item.time;
+                if (item.eventCode == HistoryItem.EVENT_ALARM_START) {
+                    assertEquals("alarm" + (starts % 50), item.eventTag.string);
+                    assertEquals(UID, item.eventTag.uid);
+                    starts++;
+                }
+            }
+        } finally {
+            bi.finishIteratingHistoryLocked();
+        }
+        assertEquals(alarms, starts);
+        assertTrue(bi.getHistoryUsedSize() > 3 * BatteryStatsImpl.MAX_HISTORY_BUFFER);
+    }
+
+    @Test
+    public void testHistoryPagesOnlyHoldTheirTags() {
+        final MockClocks clocks = new MockClocks();
+        final MockBatteryStatsImpl bi = new MockBatteryStatsImpl(clocks);
+        bi.mHistoryPages = new BatteryStatsHistory(mDir, mHandler, 100);
+        bi.setRecordAllHistoryLocked(true);
+        bi.forceRecordAllHistory();
+        bi.updateTimeBasesLocked(true, android.view.Display.STATE_OFF, 0, 0);
+
+        // A new tag for every alarm.
+        int alarms = 0;
+        while (bi.mHistoryPages.getPageCount() < 3) {
+            clocks.realtime = clocks.uptime = 1000 + alarms * 10;
+            bi.noteAlarmStartLocked("alarm" + alarms, null, UID);
+            bi.noteAlarmFinishLocked("alarm" + alarms, null, UID);
+            alarms++;
+        }
+
+        // Each tag is in the page its alarm was written to, plus the next one at most when
+        // the alarm straddles two pages.
+        final int numPages = bi.mHistoryPages.getPageCount();
+        int tags = bi.mHistoryTagPool.size();
+        final Parcel page = Parcel.obtain();
+        try {
+            for (int i = 0; i < numPages; i++) {
+                assertTrue(bi.mHistoryPages.readPage(i, page));
+                page.readLong();
+                tags += page.readInt();
+            }
+        } finally {
+            page.recycle();
+        }
+        assertTrue(tags >= alarms);
+        assertTrue(tags <= alarms + numPages);
+
+        // Dumps print one pool up front and refer to it by index, so the pool reported while
+        // iterating holds the tags of every page, and the indices of the items point into it.
+        final HistoryItem item = new HistoryItem();
+        int starts = 0;
+        assertTrue(bi.startIteratingHistoryLocked());
+        try {
+            assertEquals(alarms, bi.getHistoryStringPoolSize());
+            while (bi.getNextHistoryLocked(item)) {
+                if (item.eventCode == HistoryItem.EVENT_ALARM_START) {
+                    assertEquals("alarm" + starts, item.eventTag.string);
+                    assertEquals(item.eventTag.string,
+                            bi.getHistoryTagPoolString(item.eventTag.poolIdx));
+                    assertEquals(UID, bi.getHistoryTagPoolUid(item.eventTag.poolIdx));
+                    starts++;
+                }
+            }
+        } finally {
+            bi.finishIteratingHistoryLocked();
+        }
+        assertEquals(alarms, starts);
+    }
+
+    private void waitForHandler() {
+        mHandler.runWithScissors(() -> {}, 10_000);
+    }
+
+    private static byte[] newPage(int value) {
+        final Parcel parcel = Parcel.obtain();
+        try {
+            parcel.writeInt(value);
+            parcel.writeString("page" + value);
+            return parcel.marshall();
+        } finally {
+            parcel.recycle();
+        }
+    }
+
+    private static void assertPages(BatteryStatsHistory history, int... values) {
+        assertEquals(values.length, history.getPageCount());
+        final Parcel parcel = Parcel.obtain();
+        try {
+            for (int i = 0; i < values.length; i++) {
+                assertTrue(history.readPage(i, parcel));
+                assertEquals(values[i], parcel.readInt());
+                assertEquals("page" + values[i], parcel.readString());
+            }
+        } finally {
+            parcel.recycle();
+        }
+    }
+}
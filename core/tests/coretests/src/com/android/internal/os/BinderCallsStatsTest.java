@@ -0,0 +1,140 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.os;
+
+import static org.junit.Assert.assertTrue;
+
+import android.os.Binder;
+import android.support.test.filters.SmallTest;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+
+/**
+ * Test class for {@link BinderCallsStats}.
+ *
+ * $ atest FrameworksCoreTests:com.android.internal.os.BinderCallsStatsTest
+ */
+@SmallTest
+@RunWith(AndroidJUnit4.class)
+public class BinderCallsStatsTest {
+    private static final String CALL = "android.os.Binder/1";
+
+    private final Binder mBinder = new Binder();
+
+    @Test
+    public void testMergesThreadsPerUid() throws Exception {
+        final TestBinderCallsStats stats = new TestBinderCallsStats();
+        call(stats, 1 /* uid */, 10 /* cpuMicros */, 0 /* latencyMicros */);
+        final Thread thread = new Thread(() -> {
+            call(stats, 1 /* uid */, 20 /* cpuMicros */, 0 /* latencyMicros */);
+            call(stats, 2 /* uid */, 5 /* cpuMicros */, 0 /* latencyMicros */);
+        });
+        thread.start();
+        thread.join();
+
+        final String dump = dump(stats);
+        assertContains(dump, "    1," + CALL + ",30\n");
+        assertContains(dump, "    2," + CALL + ",5\n");
+        assertContains(dump, String.format("  %7d: %11d %3.0f%% %8d\n", 1, 30, 100d * 30 / 35, 2));
+        assertContains(dump, String.format("  %7d: %11d %3.0f%% %8d\n", 2, 5, 100d * 5 / 35, 1));
+        assertContains(dump, "Summary: total_time=35, calls_count=3, avg_call_time=12\n");
+    }
+
+    @Test
+    public void testExtrapolatesSampledTime() {
+        final TestBinderCallsStats stats = new TestBinderCallsStats();
+        stats.setSamplingInterval(4);
+        // Only the 4th and the 8th calls are measured, for 40 + 80 us
+        for (int i = 1; i <= 8; i++) {
+            call(stats, 1 /* uid */, i * 10 /* cpuMicros */, 0 /* latencyMicros */);
+        }
+
+        final String dump = dump(stats);
+        assertContains(dump, "Sampling interval: 4\n");
+        assertContains(dump, "    1," + CALL + ",480\n");
+        assertContains(dump, "Summary: total_time=480, calls_count=8, avg_call_time=60\n");
+        assertContains(dump, "    " + CALL + ": 2, ");
+    }
+
+    @Test
+    public void testLatencyPercentiles() {
+        final TestBinderCallsStats stats = new TestBinderCallsStats();
+        for (int i = 0; i < 50; i++) {
+            call(stats, 1 /* uid */, 1 /* cpuMicros */, 3 /* latencyMicros */);
+        }
+        for (int i = 0; i < 40; i++) {
+            call(stats, 2 /* uid */, 1 /* cpuMicros */, 100 /* latencyMicros */);
+        }
+        for (int i = 0; i < 10; i++) {
+            call(stats, 1 /* uid */, 1 /* cpuMicros */, 5000 /* latencyMicros */);
+        }
+
+        // Merged across uids, reported as the upper bounds of the power of two buckets
+        assertContains(dump(stats), "    " + CALL + ": 100, <4, <128, <8192\n");
+    }
+
+    private void call(TestBinderCallsStats stats, int uid, long cpuMicros, long latencyMicros) {
+        stats.callingUid = uid;
+        final BinderCallsStats.CallSession s = stats.callStarted(mBinder, 1 /* code */);
+        stats.time += cpuMicros;
+        stats.elapsedTime += latencyMicros;
+        stats.callEnded(s);
+    }
+
+    private static String dump(BinderCallsStats stats) {
+        final StringWriter sw = new StringWriter();
+        final PrintWriter pw = new PrintWriter(sw);
+        stats.dump(pw);
+        pw.flush();
+        return sw.toString();
+    }
+
+    private static void assertContains(String dump, String expected) {
+        assertTrue("Expected " + expected + " in:\n" + dump, dump.contains(expected));
+    }
+
+    /** Calls are only ever made from one thread at a time. */
+    private static class TestBinderCallsStats extends BinderCallsStats {
+        volatile long time;
+        volatile long elapsedTime;
+        volatile int callingUid;
+
+        TestBinderCallsStats() {
+            super(true /* detailedTracking */);
+        }
+
+        @Override
+        protected long getThreadTimeMicro() {
+            return time;
+        }
+
+        @Override
+        protected long getElapsedRealtimeMicro() {
+            return elapsedTime;
+        }
+
+        @Override
+        protected int getCallingUid() {
+            return callingUid;
+        }
+    }
+}
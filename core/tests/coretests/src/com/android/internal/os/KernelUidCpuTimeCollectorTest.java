@@ -0,0 +1,242 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.os;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import android.support.test.filters.SmallTest;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.Mockito;
+import org.mockito.MockitoAnnotations;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Test class for {@link KernelUidCpuTimeCollector}.
+ *
+ * $ atest FrameworksCoreTests:com.android.internal.os.KernelUidCpuTimeCollectorTest
+ */
+@SmallTest
+@RunWith(AndroidJUnit4.class)
+public class KernelUidCpuTimeCollectorTest {
+    private static final int NUM_UIDS = 300;
+
+    @Mock
+    private KernelCpuProcReader mCpuTimeReader;
+    @Mock
+    private KernelCpuProcReader mFreqTimeReader;
+    @Mock
+    private KernelCpuProcReader mActiveTimeReader;
+    @Mock
+    private KernelCpuProcReader mClusterTimeReader;
+    @Mock
+    private KernelUidCpuTimeReader.Callback mCpuTimeCallback;
+    @Mock
+    private KernelUidCpuActiveTimeReader.Callback mActiveTimeCallback;
+
+    private KernelUidCpuTimeCollector mCollector;
+
+    @Before
+    public void setUp() {
+        MockitoAnnotations.initMocks(this);
+        mCollector = new KernelUidCpuTimeCollector(mCpuTimeReader, mFreqTimeReader,
+                mActiveTimeReader, mClusterTimeReader);
+    }
+
+    @Test
+    public void testCollectCpuTimes() {
+        when(mCpuTimeReader.readBytes()).thenReturn(getCpuTimeBytes());
+        assertTrue(mCollector.collect());
+
+        final KernelUidCpuTimeCollector.UidTimes times = mCollector.getCpuTimes();
+        assertEquals(NUM_UIDS, times.size());
+        assertEquals(2, times.width());
+        for (int i = 0; i < NUM_UIDS; i++) {
+            assertEquals(uid(i), times.uidAt(i));
+            assertEquals(userTimeUs(i), times.timeAt(i, 0));
+            assertEquals(systemTimeUs(i), times.timeAt(i, 1));
+        }
+    }
+
+    @Test
+    public void testCollectCpuTimes_malformedLine() {
+        final String text = "1000: 10 20 30\n1001: 40\n1002: 50 60 70\n";
+        when(mCpuTimeReader.readBytes()).thenReturn(
+                ByteBuffer.wrap(text.getBytes(StandardCharsets.US_ASCII)));
+        mCollector.collect();
+
+        // The lines before the malformed one are kept.
+        final KernelUidCpuTimeCollector.UidTimes times = mCollector.getCpuTimes();
+        assertEquals(1, times.size());
+        assertEquals(1000, times.uidAt(0));
+        assertEquals(10, times.timeAt(0, 0));
+        assertEquals(20, times.timeAt(0, 1));
+    }
+
+    @Test
+    public void testCollectBinaryTimes() {
+        final int[] clusters = {2, 4};
+        when(mFreqTimeReader.readBytes()).thenReturn(getBinaryBytes(null, 15));
+        when(mActiveTimeReader.readBytes()).thenReturn(getBinaryBytes(null, 6));
+        when(mClusterTimeReader.readBytes()).thenReturn(getBinaryBytes(clusters, 6));
+        mCollector.collect();
+
+        assertBinaryTimes(mCollector.getFreqTimes(), 15);
+        assertBinaryTimes(mCollector.getActiveTimes(), 6);
+        final KernelUidCpuTimeCollector.UidTimes clusterTimes = mCollector.getClusterTimes();
+        assertBinaryTimes(clusterTimes, 6);
+        assertEquals(clusters.length, clusterTimes.headerSize());
+        for (int i = 0; i < clusters.length; i++) {
+            assertEquals(clusters[i], clusterTimes.headerAt(i));
+        }
+    }
+
+    @Test
+    public void testCollectBinaryTimes_formatError() {
+        when(mFreqTimeReader.readBytes()).thenReturn(getBinaryBytes(null, 15));
+        mCollector.collect();
+        assertEquals(NUM_UIDS, mCollector.getFreqTimes().size());
+
+        // The table is emptied rather than left with the last collection's times.
+        when(mFreqTimeReader.readBytes()).thenReturn(getBinaryBytes(null, 15).putInt(0, 13));
+        mCollector.collect();
+        assertEquals(0, mCollector.getFreqTimes().size());
+    }
+
+    @Test
+    public void testThrottle() {
+        when(mCpuTimeReader.readBytes()).thenReturn(getCpuTimeBytes());
+        when(mFreqTimeReader.readBytes()).thenReturn(getBinaryBytes(null, 15));
+        mCollector.setThrottleInterval(60_000);
+        assertTrue(mCollector.collect());
+        assertFalse(mCollector.collect());
+        verify(mCpuTimeReader, times(1)).readBytes();
+        verify(mFreqTimeReader, times(1)).readBytes();
+        assertEquals(1, mCollector.getCollectionCount());
+
+        mCollector.setThrottleInterval(0);
+        assertTrue(mCollector.collect());
+        verify(mCpuTimeReader, times(2)).readBytes();
+        assertEquals(2, mCollector.getCollectionCount());
+    }
+
+    @Test
+    public void testReadersShareCollection() {
+        final KernelUidCpuTimeReader cpuTimeReader = new KernelUidCpuTimeReader(mCollector);
+        final KernelUidCpuActiveTimeReader activeTimeReader =
+                new KernelUidCpuActiveTimeReader(mCollector);
+        when(mCpuTimeReader.readBytes()).thenReturn(getCpuTimeBytes());
+        when(mActiveTimeReader.readBytes()).thenReturn(getBinaryBytes(null, 1));
+        mCollector.setThrottleInterval(60_000);
+
+        cpuTimeReader.readAbsolute(mCpuTimeCallback);
+        activeTimeReader.readAbsolute(mActiveTimeCallback);
+        for (int i = 0; i < NUM_UIDS; i++) {
+            verify(mCpuTimeCallback).onUidCpuTime(uid(i), userTimeUs(i), systemTimeUs(i));
+            verify(mActiveTimeCallback).onUidCpuActiveTime(uid(i), (i + 1) * 10);
+        }
+        verify(mCpuTimeReader, times(1)).readBytes();
+        verify(mActiveTimeReader, times(1)).readBytes();
+        assertEquals(1, mCollector.getCollectionCount());
+    }
+
+    @Test
+    public void testRemoveUidsInRange() {
+        final KernelUidCpuTimeReader reader = new KernelUidCpuTimeReader(mCollector);
+        when(mCpuTimeReader.readBytes()).thenReturn(getCpuTimeBytes());
+        mCollector.setThrottleInterval(60_000);
+        mCollector.collect();
+
+        mCollector.removeUidsInRange(uid(10), uid(19));
+        reader.readAbsolute(mCpuTimeCallback);
+        for (int i = 0; i < NUM_UIDS; i++) {
+            verify(mCpuTimeCallback, times(i >= 10 && i < 20 ? 0 : 1)).onUidCpuTime(uid(i),
+                    userTimeUs(i), systemTimeUs(i));
+        }
+        Mockito.verifyNoMoreInteractions(mCpuTimeCallback);
+    }
+
+    private static int uid(int index) {
+        return 10000 + index;
+    }
+
+    private static long userTimeUs(int index) {
+        return (index + 1) * 1_000_003L;
+    }
+
+    private static long systemTimeUs(int index) {
+        return (index + 1) * 500_009L;
+    }
+
+    private static ByteBuffer getCpuTimeBytes() {
+        final StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < NUM_UIDS; i++) {
+            sb.append(uid(i)).append(": ").append(userTimeUs(i)).append(' ')
+                    .append(systemTimeUs(i)).append(" 0\n");
+        }
+        return ByteBuffer.wrap(sb.toString().getBytes(StandardCharsets.US_ASCII));
+    }
+
+    /**
+     * Returns a binary proc file of {@link #NUM_UIDS} uids where each uid has {@code width}
+     * times, the time of uid i at column j being (i + 1) * (j + 1).
+     */
+    private static ByteBuffer getBinaryBytes(int[] clusters, int width) {
+        final int headerSize = clusters == null ? 1 : 1 + clusters.length;
+        final ByteBuffer buf = ByteBuffer.allocate((headerSize + NUM_UIDS * (width + 1)) * 4);
+        buf.order(ByteOrder.nativeOrder());
+        if (clusters == null) {
+            buf.putInt(width);
+        } else {
+            buf.putInt(clusters.length);
+            for (int cores : clusters) {
+                buf.putInt(cores);
+            }
+        }
+        for (int i = 0; i < NUM_UIDS; i++) {
+            buf.putInt(uid(i));
+            for (int j = 0; j < width; j++) {
+                buf.putInt((i + 1) * (j + 1));
+            }
+        }
+        buf.flip();
+        return buf.order(ByteOrder.nativeOrder());
+    }
+
+    private static void assertBinaryTimes(KernelUidCpuTimeCollector.UidTimes times, int width) {
+        assertEquals(NUM_UIDS, times.size());
+        assertEquals(width, times.width());
+        for (int i = 0; i < NUM_UIDS; i++) {
+            assertEquals(uid(i), times.uidAt(i));
+            for (int j = 0; j < width; j++) {
+                assertEquals((i + 1) * (j + 1), times.timeAt(i, j));
+            }
+        }
+    }
+}
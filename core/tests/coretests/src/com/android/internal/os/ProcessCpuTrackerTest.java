@@ -0,0 +1,75 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.os;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import android.os.Process;
+import android.support.test.filters.SmallTest;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+/**
+ * Test class for {@link ProcessCpuTracker}.
+ *
+ * $ atest FrameworksCoreTests:com.android.internal.os.ProcessCpuTrackerTest
+ */
+@SmallTest
+@RunWith(AndroidJUnit4.class)
+public class ProcessCpuTrackerTest {
+
+    private static ProcessCpuTracker.Stats findStats(ProcessCpuTracker tracker, int pid) {
+        for (int i = 0; i < tracker.countStats(); i++) {
+            final ProcessCpuTracker.Stats stats = tracker.getStats(i);
+            if (stats.pid == pid) {
+                return stats;
+            }
+        }
+        return null;
+    }
+
+    @Test
+    public void testThreadsTakeTheUidOfTheirProcess() {
+        final ProcessCpuTracker tracker = new ProcessCpuTracker(true);
+        tracker.init();
+
+        final ProcessCpuTracker.Stats stats = findStats(tracker, Process.myPid());
+        assertNotNull(stats);
+        assertEquals(Process.myUid(), stats.uid);
+        assertNotNull(stats.name);
+        assertFalse(stats.threadStats.isEmpty());
+        for (ProcessCpuTracker.Stats thread : stats.threadStats) {
+            assertEquals(Process.myUid(), thread.uid);
+        }
+    }
+
+    @Test
+    public void testUpdateStats() {
+        final ProcessCpuTracker tracker = new ProcessCpuTracker(false);
+        tracker.init();
+        tracker.update();
+
+        final String updateStats = tracker.printUpdateStats();
+        assertTrue(updateStats, updateStats.startsWith("Last update: "));
+        assertTrue(updateStats, updateStats.contains("Average of 2 updates"));
+    }
+}
@@ -0,0 +1,186 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.util;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import android.support.test.InstrumentationRegistry;
+import android.support.test.filters.SmallTest;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * atest FrameworksCoreTests:AppendOnlyLogTest
+ */
+@RunWith(AndroidJUnit4.class)
+@SmallTest
+public class AppendOnlyLogTest {
+    private static final int MAGIC = 0x54455354; // "TEST"
+    private static final int VERSION = 1;
+    private static final int MAX_RECORD_SIZE = 1024;
+
+    private File mFile;
+
+    @Before
+    public void setUp() {
+        mFile = new File(InstrumentationRegistry.getContext().getCacheDir(), "test.log");
+        newLog().delete();
+    }
+
+    @After
+    public void tearDown() {
+        newLog().delete();
+    }
+
+    @Test
+    public void testSnapshotThenAppend() throws Exception {
+        final AppendOnlyLog log = newLog();
+        assertTrue(log.needsSnapshot());
+        log.writeSnapshot(batch("a", "b"));
+        assertFalse(log.needsSnapshot());
+        log.append(batch("c"), true /* sync */);
+        log.append(batch("d", "e"), false /* sync */);
+        log.close();
+        assertEquals(5, log.getRecordCount());
+
+        final AppendOnlyLog reopened = newLog();
+        assertEquals(list("a", "b", "c", "d", "e"), read(reopened));
+        assertFalse(reopened.needsSnapshot());
+        assertEquals(5, reopened.getRecordCount());
+        assertEquals(mFile.length(), reopened.getSize());
+    }
+
+    @Test
+    public void testSnapshotReplacesRecords() throws Exception {
+        final AppendOnlyLog log = newLog();
+        log.writeSnapshot(batch("a"));
+        log.append(batch("b"), true /* sync */);
+        log.writeSnapshot(batch("c"));
+
+        assertEquals(list("c"), read(newLog()));
+    }
+
+    @Test
+    public void testTornRecord() throws Exception {
+        final AppendOnlyLog log = newLog();
+        log.writeSnapshot(batch("a"));
+        log.append(batch("b"), true /* sync */);
+        log.close();
+
+        // Cut the last record short, as a crash in the middle of an append would.
+        try (RandomAccessFile file = new RandomAccessFile(mFile, "rw")) {
+            file.setLength(file.length() - 3);
+        }
+        final AppendOnlyLog reopened = newLog();
+        assertEquals(list("a"), read(reopened));
+        assertTrue(reopened.needsSnapshot());
+    }
+
+    @Test
+    public void testBadChecksum() throws Exception {
+        final AppendOnlyLog log = newLog();
+        log.writeSnapshot(batch("a", "b"));
+
+        // Flip the last byte of the body of the last record.
+        try (RandomAccessFile file = new RandomAccessFile(mFile, "rw")) {
+            file.seek(file.length() - 5);
+            final int b = file.read();
+            file.seek(file.length() - 5);
+            file.write(b ^ 0xff);
+        }
+        final AppendOnlyLog reopened = newLog();
+        assertEquals(list("a"), read(reopened));
+        assertTrue(reopened.needsSnapshot());
+    }
+
+    @Test
+    public void testOtherVersion() throws Exception {
+        newLog().writeSnapshot(batch("a"));
+        try {
+            read(new AppendOnlyLog(mFile, null, MAGIC, VERSION + 1, MAX_RECORD_SIZE));
+            fail("Read a log of another version");
+        } catch (IOException expected) {
+        }
+    }
+
+    @Test
+    public void testFailedReadNeedsSnapshot() throws Exception {
+        final AppendOnlyLog log = newLog();
+        log.writeSnapshot(batch("a"));
+        try {
+            log.read(body -> {
+                throw new IOException();
+            });
+            fail("Reader failure not reported");
+        } catch (IOException expected) {
+        }
+        assertTrue(log.needsSnapshot());
+    }
+
+    @Test
+    public void testDigest() {
+        assertArrayEquals(AppendOnlyLog.digest(new byte[] { 1, 2 }),
+                AppendOnlyLog.digest(new byte[] { 1, 2 }));
+        assertFalse(Arrays.equals(AppendOnlyLog.digest(new byte[] { 1, 2 }),
+                AppendOnlyLog.digest(new byte[] { 2, 1 })));
+        // Same length and CRC32, which a checksum based comparison would take as unchanged.
+        assertFalse(Arrays.equals(AppendOnlyLog.digest(new byte[8]),
+                AppendOnlyLog.digest(new byte[] { 0, 0, 0, 1, (byte) 0x96, 0x30, 0x07, 0x77 })));
+    }
+
+    private AppendOnlyLog newLog() {
+        return new AppendOnlyLog(mFile, null, MAGIC, VERSION, MAX_RECORD_SIZE);
+    }
+
+    private static AppendOnlyLog.Batch batch(String... records) throws IOException {
+        final AppendOnlyLog.Batch batch = new AppendOnlyLog.Batch();
+        for (String record : records) {
+            batch.beginRecord().writeUTF(record);
+            batch.endRecord();
+        }
+        return batch;
+    }
+
+    private static List<String> read(AppendOnlyLog log) throws IOException {
+        final List<String> records = new ArrayList<>();
+        log.read(body -> records.add(new String(body, 2, body.length - 2, "UTF-8")));
+        return records;
+    }
+
+    private static List<String> list(String... records) {
+        final List<String> list = new ArrayList<>();
+        for (String record : records) {
+            list.add(record);
+        }
+        return list;
+    }
+}
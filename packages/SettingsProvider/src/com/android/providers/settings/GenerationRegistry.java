@@ -17,19 +17,29 @@
 package com.android.providers.settings;
 
 import android.os.Bundle;
+import android.os.Parcel;
+import android.os.SharedMemory;
 import android.os.UserManager;
 import android.provider.Settings;
+import android.provider.SettingsSnapshot;
+import android.system.ErrnoException;
+import android.util.ArrayMap;
 import android.util.MemoryIntArray;
 import android.util.Slog;
+import android.util.SparseArray;
 import android.util.SparseIntArray;
 import com.android.internal.annotations.GuardedBy;
 
 import java.io.IOException;
+import java.util.List;
+import java.util.Set;
 
 /**
  * This class tracks changes for global/secure/system tables on a
  * per user basis and updates a shared memory region which client
  * processes can read to determine if their local caches are stale,
+ * It also keeps a {@link SettingsSnapshot} of the tables clients asked
+ * for, taken at the current generation and shared by all clients.
  */
 final class GenerationRegistry {
     private static final String LOG_TAG = "GenerationRegistry";
@@ -44,6 +54,10 @@ final class GenerationRegistry {
     @GuardedBy("mLock")
     private MemoryIntArray mBackingStore;
 
+    /** Snapshot of each table, by key, dropped when the table's generation changes */
+    @GuardedBy("mLock")
+    private final SparseArray<SharedMemory> mSnapshots = new SparseArray<>();
+
     public GenerationRegistry(Object lock) {
         mLock = lock;
     }
@@ -58,6 +72,7 @@ final class GenerationRegistry {
                         final int generation = backingStore.get(index) + 1;
                         backingStore.set(index, generation);
                     }
+                    destroySnapshotLocked(key);
                 } catch (IOException e) {
                     Slog.e(LOG_TAG, "Error updating generation id", e);
                     destroyBackingStore();
@@ -91,6 +106,56 @@ final class GenerationRegistry {
         }
     }
 
+    /**
+     * Adds a snapshot of {@code settingsState} at its current generation to {@code bundle},
+     * taking it if needed. Only tables whose generation is tracked get a snapshot.
+     *
+     * @param notCovered names of the settings clients must keep reading through the provider
+     */
+    public void addSnapshotData(Bundle bundle, int key, SettingsState settingsState,
+            Set<String> notCovered) {
+        synchronized (mLock) {
+            final int index = mKeyToIndexMap.get(key, -1);
+            if (mBackingStore == null || index < 0) {
+                return;
+            }
+            SharedMemory snapshot = mSnapshots.get(key);
+            if (snapshot == null) {
+                // Generations only change with the settings, under the same lock
+                final int generation;
+                try {
+                    generation = mBackingStore.get(index);
+                } catch (IOException e) {
+                    Slog.e(LOG_TAG, "Error reading generation id", e);
+                    destroyBackingStore();
+                    return;
+                }
+                final List<String> names = settingsState.getSettingNamesLocked();
+                final ArrayMap<String, String> values = new ArrayMap<>(names.size());
+                for (int i = 0; i < names.size(); i++) {
+                    final String name = names.get(i);
+                    values.put(name, settingsState.getSettingLocked(name).getValue());
+                }
+                try {
+                    snapshot = SettingsSnapshot.create("settings-snapshot-" + key, index,
+                            generation, values, notCovered);
+                } catch (ErrnoException e) {
+                    Slog.e(LOG_TAG, "Error creating settings snapshot", e);
+                    return;
+                }
+                mSnapshots.put(key, snapshot);
+                if (DEBUG) {
+                    Slog.i(LOG_TAG, "Created snapshot of " + names.size() + " settings for key:"
+                            + SettingsProvider.keyToString(key));
+                }
+            }
+            // The reply is written out after the lock is released, by which time this
+            // snapshot may be closed, so it gets a descriptor of its own.
+            bundle.putParcelable(Settings.CALL_METHOD_TRACK_SNAPSHOT_KEY,
+                    copyForReply(snapshot));
+        }
+    }
+
     public void onUserRemoved(int userId) {
         synchronized (mLock) {
             MemoryIntArray backingStore = getBackingStoreLocked();
@@ -99,6 +164,7 @@ final class GenerationRegistry {
                     final int secureKey = SettingsProvider.makeKey(
                             SettingsProvider.SETTINGS_TYPE_SECURE, userId);
                     resetSlotForKeyLocked(secureKey, mKeyToIndexMap, backingStore);
+                    destroySnapshotLocked(secureKey);
 
                     final int systemKey = SettingsProvider.makeKey(
                             SettingsProvider.SETTINGS_TYPE_SYSTEM, userId);
@@ -130,7 +196,20 @@ final class GenerationRegistry {
         return mBackingStore;
     }
 
+    private void destroySnapshotLocked(int key) {
+        final SharedMemory snapshot = mSnapshots.get(key);
+        if (snapshot != null) {
+            // Clients that mapped it keep their mapping.
+            snapshot.close();
+            mSnapshots.remove(key);
+        }
+    }
+
     private void destroyBackingStore() {
+        for (int i = 0; i < mSnapshots.size(); i++) {
+            mSnapshots.valueAt(i).close();
+        }
+        mSnapshots.clear();
         if (mBackingStore != null) {
             try {
                 mBackingStore.close();
@@ -144,6 +223,17 @@ final class GenerationRegistry {
         }
     }
 
+    private static SharedMemory copyForReply(SharedMemory snapshot) {
+        final Parcel parcel = Parcel.obtain();
+        try {
+            snapshot.writeToParcel(parcel, 0);
+            parcel.setDataPosition(0);
+            return SharedMemory.CREATOR.createFromParcel(parcel);
+        } finally {
+            parcel.recycle();
+        }
+    }
+
     private static void resetSlotForKeyLocked(int key, SparseIntArray keyToIndexMap,
             MemoryIntArray backingStore) throws IOException {
         final int index = keyToIndexMap.get(key, -1);
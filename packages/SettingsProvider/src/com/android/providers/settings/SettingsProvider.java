@@ -94,6 +94,7 @@ import java.security.SecureRandom;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Locale;
@@ -247,6 +248,14 @@ public class SettingsProvider extends ContentProvider {
         Settings.Secure.getCloneToManagedProfileSettings(sSecureCloneToManagedSettings);
     }
 
+    // Secure settings resolved for each caller, which snapshots of the table can't serve.
+    private static final Set<String> sSecureNotInSnapshotSettings = new ArraySet<>();
+    static {
+        sSecureNotInSnapshotSettings.add(Settings.Secure.ANDROID_ID);
+        sSecureNotInSnapshotSettings.add(Settings.Secure.LOCATION_PROVIDERS_ALLOWED);
+        sSecureNotInSnapshotSettings.add("bluetooth_address");
+    }
+
     // Per user system settings that are cloned for the managed profiles of the user.
     private static final Set<String> sSystemCloneToManagedSettings = new ArraySet<>();
     static {
@@ -383,13 +392,15 @@ public class SettingsProvider extends ContentProvider {
         switch (method) {
             case Settings.CALL_METHOD_GET_GLOBAL: {
                 Setting setting = getGlobalSetting(name);
-                return packageValueForCallResult(setting, isTrackingGeneration(args));
+                return packageValueForCallResult(SETTINGS_TYPE_GLOBAL, setting, args,
+                        requestingUserId);
             }
 
             case Settings.CALL_METHOD_GET_SECURE: {
                 Setting setting = getSecureSetting(name, requestingUserId,
                         /*enableOverride=*/ true);
-                return packageValueForCallResult(setting, isTrackingGeneration(args));
+                return packageValueForCallResult(SETTINGS_TYPE_SECURE, setting, args,
+                        requestingUserId);
             }
 
             case Settings.CALL_METHOD_GET_SYSTEM: {
@@ -1893,6 +1904,69 @@ public class SettingsProvider extends ContentProvider {
         return result;
     }
 
+    /**
+     * Packages the value of a setting read from the {@code settingsType} table, adding a
+     * snapshot of the caller's table if it asked for one.
+     */
+    private Bundle packageValueForCallResult(int settingsType, Setting setting, Bundle args,
+            int requestingUserId) {
+        final Set<String> notCovered = getSnapshotNotCoveredSettings(args, settingsType,
+                requestingUserId);
+        if (notCovered == null || setting == null) {
+            return packageValueForCallResult(setting, isTrackingGeneration(args));
+        }
+        Bundle result = new Bundle();
+        result.putString(Settings.NameValueTable.VALUE,
+                !setting.isNull() ? setting.getValue() : null);
+        if (isTrackingGeneration(args)) {
+            mSettingsRegistry.mGenerationRegistry.addGenerationData(result, setting.getKey());
+        }
+
+        // The global table is kept for the system user only
+        final int userId = settingsType == SETTINGS_TYPE_GLOBAL
+                ? UserHandle.USER_SYSTEM : UserHandle.getCallingUserId();
+        synchronized (mLock) {
+            final SettingsState settingsState = mSettingsRegistry.getSettingsLocked(
+                    settingsType, userId);
+            if (settingsState != null) {
+                mSettingsRegistry.mGenerationRegistry.addSnapshotData(result,
+                        makeKey(settingsType, userId), settingsState, notCovered);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Returns the settings to leave out of a snapshot of the table sent to the caller, or
+     * {@code null} if the caller didn't ask for a snapshot or can't be sent one.
+     */
+    private Set<String> getSnapshotNotCoveredSettings(Bundle args, int settingsType,
+            int requestingUserId) {
+        if (args == null || !args.containsKey(Settings.CALL_METHOD_TRACK_SNAPSHOT_KEY)) {
+            return null;
+        }
+        // Snapshots only serve the caller's own user
+        final int callingUserId = UserHandle.getCallingUserId();
+        if (requestingUserId != callingUserId) {
+            return null;
+        }
+        // Instant apps are meant to read a whitelist of settings only
+        if (UserHandle.getAppId(Binder.getCallingUid()) >= Process.FIRST_APPLICATION_UID
+                && getCallingApplicationInfoOrThrow().isInstantApp()) {
+            return null;
+        }
+        if (settingsType == SETTINGS_TYPE_SECURE) {
+            // Profiles read some secure settings from their parent
+            synchronized (mLock) {
+                if (getGroupParentLocked(callingUserId) != callingUserId) {
+                    return null;
+                }
+            }
+            return sSecureNotInSnapshotSettings;
+        }
+        return Collections.emptySet();
+    }
+
     private static int getRequestingUserId(Bundle args) {
         final int callingUserId = UserHandle.getCallingUserId();
         return (args != null) ? args.getInt(Settings.CALL_METHOD_USER_KEY, callingUserId)
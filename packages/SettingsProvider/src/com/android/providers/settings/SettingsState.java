@@ -38,6 +38,7 @@ import android.providers.settings.GlobalSettingsProto;
 import android.providers.settings.SettingsOperationProto;
 import android.text.TextUtils;
 import android.util.ArrayMap;
+import android.util.ArraySet;
 import android.util.AtomicFile;
 import android.util.Base64;
 import android.util.Slog;
@@ -57,10 +58,13 @@ import org.xmlpull.v1.XmlPullParser;
 import org.xmlpull.v1.XmlPullParserException;
 import org.xmlpull.v1.XmlSerializer;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.PrintWriter;
 import java.nio.charset.StandardCharsets;
@@ -71,8 +75,11 @@ import java.util.Set;
 
 /**
  * This class contains the state for one type of settings. It is responsible
- * for saving the state asynchronously to an XML file after a mutation and
- * loading the from an XML file on construction.
+ * for saving the state asynchronously to a {@link SettingsStateJournal} after
+ * a mutation and loading it on construction. Only the settings that changed
+ * since the last write are appended to the journal. State files written in
+ * the legacy XML format are still read, and replaced by a journal on the next
+ * write.
  * <p>
  * This class uses the same lock as the settings provider to ensure that
  * multiple changes made by the settings provider, e,g, upgrade, bulk insert,
@@ -92,6 +99,8 @@ final class SettingsState {
 
     private static final long WRITE_SETTINGS_DELAY_MILLIS = 200;
     private static final long MAX_WRITE_SETTINGS_DELAY_MILLIS = 2000;
+    /** Longest wait between attempts to write settings while writes keep failing */
+    private static final long MAX_WRITE_RETRY_DELAY_MILLIS = 5 * 60 * 1000;
 
     public static final int MAX_BYTES_PER_APP_PACKAGE_UNLIMITED = -1;
     public static final int MAX_BYTES_PER_APP_PACKAGE_LIMITED = 20000;
@@ -138,6 +147,9 @@ final class SettingsState {
 
     private static final String NULL_VALUE = "null";
 
+    /** Longest run of chars encoded with one {@link DataOutputStream#writeUTF} call */
+    private static final int MAX_UTF_CHUNK_LENGTH = 16 * 1024;
+
     private static final Object sLock = new Object();
 
     @GuardedBy("sLock")
@@ -146,8 +158,31 @@ final class SettingsState {
     @GuardedBy("sLock")
     private static Signature sSystemSignature;
 
+    /** States whose journal has records appended that aren't synced yet */
+    @GuardedBy("sPendingJournalSyncs")
+    private static final ArraySet<SettingsState> sPendingJournalSyncs = new ArraySet<>();
+
+    @GuardedBy("sPendingJournalSyncs")
+    private static boolean sJournalSyncScheduled;
+
     private final Object mWriteLock = new Object();
 
+    @GuardedBy("mWriteLock")
+    private final SettingsStateJournal mJournal;
+
+    /**
+     * Delay before the next attempt after a failed write, 0 if the last write went through.
+     * Only changed with mWriteLock held.
+     */
+    private volatile long mWriteRetryDelayMillis;
+
+    /**
+     * Changes captured for writing, in the order they were captured. Only held while adding
+     * or removing a batch, never while taking another lock.
+     */
+    @GuardedBy("mPendingWrites")
+    private final ArrayList<PendingWrite> mPendingWrites = new ArrayList<>();
+
     private final Object mLock;
 
     private final Handler mHandler;
@@ -192,6 +227,21 @@ final class SettingsState {
     @GuardedBy("mLock")
     private boolean mDirty;
 
+    /** Names of the settings changed since the last write was captured */
+    @GuardedBy("mLock")
+    private final ArraySet<String> mDirtySettings = new ArraySet<>();
+
+    /** Set when the next write must rewrite every setting */
+    @GuardedBy("mLock")
+    private boolean mSnapshotNeeded = true;
+
+    /** Set by the writer when the journal asks to be compacted, read when capturing */
+    private volatile boolean mJournalWantsSnapshot;
+
+    /** Settings version as of the last captured write */
+    @GuardedBy("mLock")
+    private int mCapturedVersion = VERSION_UNDEFINED;
+
     @GuardedBy("mLock")
     private boolean mWriteScheduled;
 
@@ -257,6 +307,8 @@ final class SettingsState {
         mStatePersistTag = "settings-" + getTypeFromKey(key) + "-" + getUserIdFromKey(key);
         mKey = key;
         mHandler = new MyHandler(looper);
+        mJournal = new SettingsStateJournal(SettingsStateJournal.getJournalFile(file),
+                mStatePersistTag);
         if (maxBytesPerAppPackage == MAX_BYTES_PER_APP_PACKAGE_LIMITED) {
             mMaxBytesPerAppPackage = maxBytesPerAppPackage;
             mPackageToMemoryUsage = new ArrayMap<>();
@@ -307,6 +359,7 @@ final class SettingsState {
             Setting setting = mSettings.valueAt(i);
             if (packageName.equals(setting.packageName)) {
                 mSettings.removeAt(i);
+                mDirtySettings.add(name);
                 removedSomething = true;
             }
         }
@@ -359,6 +412,7 @@ final class SettingsState {
                     oldSetting.getPackageName(), oldSetting.getTag(), false,
                     oldSetting.getId());
             mSettings.put(name, newSetting);
+            mDirtySettings.add(name);
             updateMemoryUsagePerPackageLocked(newSetting.getPackageName(), oldValue,
                     newSetting.getValue(), oldDefaultValue, newSetting.getDefaultValue());
             scheduleWriteIfNeededLocked();
@@ -386,6 +440,7 @@ final class SettingsState {
             newState = new Setting(name, value, makeDefault, packageName, tag);
             mSettings.put(name, newState);
         }
+        mDirtySettings.add(name);
 
         StatsLog.write(StatsLog.SETTING_CHANGED, name, value, newState.value, oldValue, tag,
             makeDefault, getUserIdFromKey(mKey), StatsLog.SETTING_CHANGED__REASON__UPDATED);
@@ -404,6 +459,9 @@ final class SettingsState {
     public void persistSyncLocked() {
         mHandler.removeMessages(MyHandler.MSG_PERSIST_SETTINGS);
         doWriteState();
+        synchronized (mWriteLock) {
+            mJournal.sync();
+        }
     }
 
     // The settings provider must hold its lock when calling here.
@@ -413,6 +471,7 @@ final class SettingsState {
         }
 
         Setting oldState = mSettings.remove(name);
+        mDirtySettings.add(name);
 
         StatsLog.write(StatsLog.SETTING_CHANGED, name, /* value= */ "", /* newValue= */ "",
             oldState.value, /* tag */ "", false, getUserIdFromKey(mKey),
@@ -443,6 +502,7 @@ final class SettingsState {
         if (!setting.reset()) {
             return false;
         }
+        mDirtySettings.add(name);
 
         String newValue = setting.getValue();
         String newDefaultValue = setting.getDefaultValue();
@@ -467,7 +527,16 @@ final class SettingsState {
                         callback).sendToTarget();
                 return;
             }
+            closeJournal();
             callback.run();
+        } else {
+            closeJournal();
+        }
+    }
+
+    private void closeJournal() {
+        synchronized (mWriteLock) {
+            mJournal.close();
         }
     }
 
@@ -603,6 +672,17 @@ final class SettingsState {
     private void writeStateAsyncLocked() {
         final long currentTimeMillis = SystemClock.uptimeMillis();
 
+        final long retryDelayMillis = mWriteRetryDelayMillis;
+        if (retryDelayMillis > 0) {
+            // Writes are failing: changes wait for the retry rather than trying sooner.
+            if (!mHandler.hasMessages(MyHandler.MSG_PERSIST_SETTINGS)) {
+                mHandler.sendMessageDelayed(
+                        mHandler.obtainMessage(MyHandler.MSG_PERSIST_SETTINGS), retryDelayMillis);
+            }
+            mWriteScheduled = true;
+            return;
+        }
+
         if (mWriteScheduled) {
             mHandler.removeMessages(MyHandler.MSG_PERSIST_SETTINGS);
 
@@ -630,73 +710,95 @@ final class SettingsState {
     }
 
     private void doWriteState() {
-        boolean wroteState = false;
-        final int version;
-        final ArrayMap<String, Setting> settings;
-
         synchronized (mLock) {
-            version = mVersion;
-            settings = new ArrayMap<>(mSettings);
             mDirty = false;
             mWriteScheduled = false;
+            captureWriteLocked();
         }
 
+        boolean wroteState = false;
+        boolean retry = false;
+        long retryDelayMillis = 0;
         synchronized (mWriteLock) {
+            final ArrayList<PendingWrite> writes;
+            synchronized (mPendingWrites) {
+                writes = new ArrayList<>(mPendingWrites);
+                mPendingWrites.clear();
+            }
+
+            // A snapshot supersedes every write captured before it
+            int first = 0;
+            for (int i = writes.size() - 1; i >= 0; i--) {
+                if (writes.get(i).snapshot) {
+                    first = i;
+                    break;
+                }
+            }
+
             if (DEBUG_PERSISTENCE) {
                 Slog.i(LOG_TAG, "[PERSIST START]");
             }
 
-            AtomicFile destination = new AtomicFile(mStatePersistFile, mStatePersistTag);
-            FileOutputStream out = null;
-            try {
-                out = destination.startWrite();
-
-                XmlSerializer serializer = Xml.newSerializer();
-                serializer.setOutput(out, StandardCharsets.UTF_8.name());
-                serializer.setFeature("http://xmlpull.org/v1/doc/features.html#indent-output",
-                        true);
-                serializer.startDocument(null, true);
-                serializer.startTag(null, TAG_SETTINGS);
-                serializer.attribute(null, ATTR_VERSION, String.valueOf(version));
-
-                final int settingCount = settings.size();
-                for (int i = 0; i < settingCount; i++) {
-                    Setting setting = settings.valueAt(i);
-
-                    if (setting.isTransient()) {
-                        if (DEBUG_PERSISTENCE) {
-                            Slog.i(LOG_TAG, "[SKIPPED PERSISTING]" + setting.getName());
+            for (int i = first; i < writes.size(); i++) {
+                final PendingWrite write = writes.get(i);
+                final ArrayMap<String, byte[]> payloads = new ArrayMap<>(write.settings.size());
+                for (int j = 0; j < write.settings.size(); j++) {
+                    final Setting setting = write.settings.valueAt(j);
+                    payloads.put(write.settings.keyAt(j),
+                            setting != null ? encodeSetting(setting) : null);
+                    if (DEBUG_PERSISTENCE) {
+                        Slog.i(LOG_TAG, "[PERSISTED]" + write.settings.keyAt(j) + "="
+                                + (setting != null ? setting.getValue() : "<removed>"));
+                    }
+                }
+                try {
+                    if (write.snapshot) {
+                        mJournal.writeSnapshot(write.version, payloads);
+                        // The journal now replaces any legacy XML state
+                        final AtomicFile legacy = new AtomicFile(mStatePersistFile);
+                        if (legacy.exists()) {
+                            legacy.delete();
                         }
-                        continue;
+                    } else {
+                        mJournal.append(write.version, payloads);
                     }
-
-                    writeSingleSetting(mVersion, serializer, setting.getId(), setting.getName(),
-                            setting.getValue(), setting.getDefaultValue(), setting.getPackageName(),
-                            setting.getTag(), setting.isDefaultFromSystem());
-
-                    if (DEBUG_PERSISTENCE) {
-                        Slog.i(LOG_TAG, "[PERSISTED]" + setting.getName() + "="
-                                + setting.getValue());
+                    wroteState = true;
+                } catch (Throwable t) {
+                    // Only the first failure in a row is worth a wtf; the disk is likely full
+                    // or failing, and retries would report the same thing again.
+                    if (mWriteRetryDelayMillis == 0) {
+                        Slog.wtf(LOG_TAG, "Failed to write settings, rewriting them all", t);
+                    } else {
+                        Slog.w(LOG_TAG, "Failed to write settings again", t);
                     }
+                    // Later changes are part of the snapshot taken on retry
+                    retry = true;
+                    break;
                 }
+            }
+            mJournalWantsSnapshot = retry || mJournal.needsSnapshot();
+            if (retry) {
+                retryDelayMillis = mWriteRetryDelayMillis == 0 ? WRITE_SETTINGS_DELAY_MILLIS
+                        : Math.min(mWriteRetryDelayMillis * 2, MAX_WRITE_RETRY_DELAY_MILLIS);
+                mWriteRetryDelayMillis = retryDelayMillis;
+            } else if (wroteState) {
+                mWriteRetryDelayMillis = 0;
+            }
 
-                serializer.endTag(null, TAG_SETTINGS);
-                serializer.endDocument();
-                destination.finishWrite(out);
-
-                wroteState = true;
-
-                if (DEBUG_PERSISTENCE) {
-                    Slog.i(LOG_TAG, "[PERSIST END]");
-                }
-            } catch (Throwable t) {
-                Slog.wtf(LOG_TAG, "Failed to write settings, restoring backup", t);
-                destination.failWrite(out);
-            } finally {
-                IoUtils.closeQuietly(out);
+            if (DEBUG_PERSISTENCE) {
+                Slog.i(LOG_TAG, "[PERSIST END]");
             }
         }
 
+        if (wroteState) {
+            scheduleJournalSync(this);
+        }
+        if (retry) {
+            // Back off while the failure persists rather than encoding everything over and over
+            mHandler.sendMessageDelayed(mHandler.obtainMessage(MyHandler.MSG_PERSIST_SETTINGS),
+                    retryDelayMillis);
+        }
+
         if (wroteState) {
             synchronized (mLock) {
                 addHistoricalOperationLocked(HISTORICAL_OPERATION_PERSIST, null);
@@ -704,6 +806,130 @@ final class SettingsState {
         }
     }
 
+    /**
+     * Copies the settings that need to be written, every setting if the journal has to be
+     * rewritten or just those that changed otherwise, and queues them for the writer.
+     */
+    @GuardedBy("mLock")
+    private void captureWriteLocked() {
+        final boolean snapshot = mSnapshotNeeded || mJournalWantsSnapshot;
+        if (!snapshot && mDirtySettings.isEmpty() && mCapturedVersion == mVersion) {
+            return;
+        }
+        final ArrayMap<String, Setting> settings;
+        if (snapshot) {
+            settings = new ArrayMap<>(mSettings.size());
+            for (int i = 0; i < mSettings.size(); i++) {
+                final Setting setting = mSettings.valueAt(i);
+                if (!setting.isTransient()) {
+                    settings.put(mSettings.keyAt(i), new Setting(setting));
+                }
+            }
+        } else {
+            settings = new ArrayMap<>(mDirtySettings.size());
+            for (int i = 0; i < mDirtySettings.size(); i++) {
+                final String name = mDirtySettings.valueAt(i);
+                final Setting setting = mSettings.get(name);
+                settings.put(name, setting != null && !setting.isTransient()
+                        ? new Setting(setting) : null);
+            }
+        }
+        mDirtySettings.clear();
+        mSnapshotNeeded = false;
+        mJournalWantsSnapshot = false;
+        mCapturedVersion = mVersion;
+        synchronized (mPendingWrites) {
+            mPendingWrites.add(new PendingWrite(snapshot, mVersion, settings));
+        }
+    }
+
+    /**
+     * Queues a sync of {@code state}'s journal. All queued journals are synced together once
+     * the writes that are already due on the settings thread have run.
+     */
+    private static void scheduleJournalSync(SettingsState state) {
+        synchronized (sPendingJournalSyncs) {
+            sPendingJournalSyncs.add(state);
+            if (!sJournalSyncScheduled) {
+                sJournalSyncScheduled = true;
+                state.mHandler.sendEmptyMessage(MyHandler.MSG_SYNC_JOURNALS);
+            }
+        }
+    }
+
+    private static void syncPendingJournals() {
+        final ArraySet<SettingsState> states;
+        synchronized (sPendingJournalSyncs) {
+            states = new ArraySet<>(sPendingJournalSyncs);
+            sPendingJournalSyncs.clear();
+            sJournalSyncScheduled = false;
+        }
+        for (int i = 0; i < states.size(); i++) {
+            final SettingsState state = states.valueAt(i);
+            synchronized (state.mWriteLock) {
+                state.mJournal.sync();
+            }
+        }
+    }
+
+    private static byte[] encodeSetting(Setting setting) {
+        try {
+            final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            final DataOutputStream out = new DataOutputStream(bytes);
+            writeString(out, setting.getId());
+            writeString(out, setting.getValue());
+            writeString(out, setting.getDefaultValue());
+            writeString(out, setting.getPackageName());
+            writeString(out, setting.getTag());
+            out.writeBoolean(setting.isDefaultFromSystem());
+            out.flush();
+            return bytes.toByteArray();
+        } catch (IOException e) {
+            // Can't happen with an in-memory stream
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private Setting decodeSetting(String name, byte[] payload) throws IOException {
+        final DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+        final String id = readString(in);
+        final String value = readString(in);
+        final String defaultValue = readString(in);
+        final String packageName = readString(in);
+        final String tag = readString(in);
+        final boolean fromSystem = in.readBoolean();
+        return new Setting(name, value, defaultValue, packageName, tag, fromSystem, id);
+    }
+
+    /**
+     * Writes {@code value} in modified UTF-8, which unlike standard UTF-8 round-trips any
+     * char sequence, including broken surrogate pairs. Long values are split in chunks to
+     * stay within the length limit of {@link DataOutputStream#writeUTF}.
+     */
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        if (value == null) {
+            out.writeInt(-1);
+            return;
+        }
+        final int length = value.length();
+        out.writeInt(length);
+        for (int start = 0; start < length; start += MAX_UTF_CHUNK_LENGTH) {
+            out.writeUTF(value.substring(start, Math.min(length, start + MAX_UTF_CHUNK_LENGTH)));
+        }
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        final int length = in.readInt();
+        if (length < 0) {
+            return null;
+        }
+        final StringBuilder builder = new StringBuilder(length);
+        while (builder.length() < length) {
+            builder.append(in.readUTF());
+        }
+        return builder.toString();
+    }
+
     static void writeSingleSetting(int version, XmlSerializer serializer, String id,
             String name, String value, String defaultValue, String packageName,
             String tag, boolean defaultSysSet) throws IOException {
@@ -776,10 +1002,11 @@ final class SettingsState {
         try {
             in = new AtomicFile(mStatePersistFile).openRead();
         } catch (FileNotFoundException fnfe) {
-            Slog.i(LOG_TAG, "No settings state " + mStatePersistFile);
-            addHistoricalOperationLocked(HISTORICAL_OPERATION_INITIALIZE, null);
+            readJournalSyncLocked();
             return;
         }
+        // Settings saved by a release that predates the journal. They are migrated to the
+        // journal by the next write, which deletes the XML file.
         try {
             XmlPullParser parser = Xml.newPullParser();
             parser.setInput(in, StandardCharsets.UTF_8.name());
@@ -793,14 +1020,44 @@ final class SettingsState {
         }
     }
 
+    private void readJournalSyncLocked() {
+        synchronized (mWriteLock) {
+            if (!mJournal.exists()) {
+                Slog.i(LOG_TAG, "No settings state " + mStatePersistFile);
+                addHistoricalOperationLocked(HISTORICAL_OPERATION_INITIALIZE, null);
+                return;
+            }
+            try {
+                final ArrayMap<String, byte[]> payloads = new ArrayMap<>();
+                mVersion = mJournal.read(payloads);
+                for (int i = 0; i < payloads.size(); i++) {
+                    final String name = payloads.keyAt(i);
+                    final Setting setting = decodeSetting(name, payloads.valueAt(i));
+                    mSettings.put(name, setting);
+
+                    if (DEBUG_PERSISTENCE) {
+                        Slog.i(LOG_TAG, "[RESTORED] " + name + "=" + setting.getValue());
+                    }
+                }
+            } catch (IOException e) {
+                String message = "Failed reading settings journal for: " + mStatePersistFile;
+                Slog.wtf(LOG_TAG, message);
+                throw new IllegalStateException(message, e);
+            }
+            mSnapshotNeeded = mJournal.needsSnapshot();
+            mCapturedVersion = mVersion;
+        }
+    }
+
     /**
-     * Uses AtomicFile to check if the file or its backup exists.
+     * Uses AtomicFile to check if the file, its backup or the journal replacing it exists.
      * @param file The file to check for existence
-     * @return whether the original or backup exist
+     * @return whether the original, backup or journal exist
      */
     public static boolean stateFileExists(File file) {
         AtomicFile stateFile = new AtomicFile(file);
-        return stateFile.exists();
+        return stateFile.exists()
+                || new AtomicFile(SettingsStateJournal.getJournalFile(file)).exists();
     }
 
     private void parseStateLocked(XmlPullParser parser)
@@ -860,6 +1117,7 @@ final class SettingsState {
 
     private final class MyHandler extends Handler {
         public static final int MSG_PERSIST_SETTINGS = 1;
+        public static final int MSG_SYNC_JOURNALS = 2;
 
         public MyHandler(Looper looper) {
             super(looper);
@@ -872,14 +1130,33 @@ final class SettingsState {
                     Runnable callback = (Runnable) message.obj;
                     doWriteState();
                     if (callback != null) {
+                        closeJournal();
                         callback.run();
                     }
                 }
                 break;
+
+                case MSG_SYNC_JOURNALS: {
+                    syncPendingJournals();
+                }
+                break;
             }
         }
     }
 
+    /** A batch of settings captured for writing, {@code null} for removed settings */
+    private static final class PendingWrite {
+        final boolean snapshot;
+        final int version;
+        final ArrayMap<String, Setting> settings;
+
+        PendingWrite(boolean snapshot, int version, ArrayMap<String, Setting> settings) {
+            this.snapshot = snapshot;
+            this.version = version;
+            this.settings = settings;
+        }
+    }
+
     private class HistoricalOperation {
         final long mTimestamp;
         final String mOperation;
@@ -0,0 +1,224 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.providers.settings;
+
+import android.util.ArrayMap;
+import android.util.ArraySet;
+
+import com.android.internal.util.AppendOnlyLog;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Binary persistence for the settings of one {@link SettingsState}.
+ * <p>
+ * The file starts with a snapshot of every persisted setting, written when the journal is
+ * compacted, followed by the put and remove records of the settings that changed since, plus
+ * a record whenever the settings version changes. The file itself is an
+ * {@link AppendOnlyLog}. Setting payloads are opaque to the journal, see
+ * {@link SettingsState}.
+ * <p>
+ * Appends are not synced to disk individually: {@link #sync} is called once a batch of states
+ * has been written, so that the journals of a user's settings share one round of syncs.
+ * <p>
+ * Not thread safe: callers hold the owning state's write lock.
+ */
+final class SettingsStateJournal {
+    private static final int JOURNAL_MAGIC = 0x5354474a; // "STGJ"
+    private static final int JOURNAL_VERSION = 1;
+
+    private static final int OP_PUT = 1;
+    private static final int OP_REMOVE = 2;
+    private static final int OP_VERSION = 3;
+
+    /** Never compact before this many records have been appended */
+    private static final int MIN_RECORDS_BEFORE_COMPACTION = 256;
+
+    /** Upper bound for a single record, anything larger means the file is corrupt */
+    private static final int MAX_RECORD_SIZE = 1024 * 1024;
+
+    private static final String JOURNAL_SUFFIX = ".journal";
+
+    private final AppendOnlyLog mLog;
+
+    /** Names of the settings currently persisted */
+    private final ArraySet<String> mPersisted = new ArraySet<>();
+
+    /** Settings version as currently persisted */
+    private int mPersistedVersion = SettingsState.VERSION_UNDEFINED;
+
+    SettingsStateJournal(File file, String commitTag) {
+        mLog = new AppendOnlyLog(file, commitTag, JOURNAL_MAGIC, JOURNAL_VERSION,
+                MAX_RECORD_SIZE);
+    }
+
+    /**
+     * Returns the journal that replaces the XML state file {@code stateFile}.
+     */
+    static File getJournalFile(File stateFile) {
+        String name = stateFile.getName();
+        if (name.endsWith(".xml")) {
+            name = name.substring(0, name.length() - ".xml".length());
+        }
+        return new File(stateFile.getParentFile(), name + JOURNAL_SUFFIX);
+    }
+
+    boolean exists() {
+        return mLog.exists();
+    }
+
+    void delete() {
+        mLog.delete();
+        mPersisted.clear();
+        mPersistedVersion = SettingsState.VERSION_UNDEFINED;
+    }
+
+    /**
+     * Whether the next write must be a {@link #writeSnapshot snapshot} rather than an
+     * {@link #append}.
+     */
+    boolean needsSnapshot() {
+        final int appendedRecords = mLog.getRecordCount() - mPersisted.size();
+        return mLog.needsSnapshot()
+                || appendedRecords > Math.max(MIN_RECORDS_BEFORE_COMPACTION, mPersisted.size());
+    }
+
+    /**
+     * Replays the snapshot and every record appended after it.
+     *
+     * @param settings receives the payload of each live setting, by name
+     * @return the persisted settings version
+     */
+    int read(ArrayMap<String, byte[]> settings) throws IOException {
+        final int[] settingsVersion = { SettingsState.VERSION_UNDEFINED };
+        mPersisted.clear();
+        mLog.read(record -> {
+            final DataInputStream in = new DataInputStream(new ByteArrayInputStream(record));
+            final int op = in.readByte();
+            switch (op) {
+                case OP_PUT: {
+                    final String name = in.readUTF();
+                    final byte[] payload = new byte[in.available()];
+                    in.readFully(payload);
+                    settings.put(name, payload);
+                } break;
+                case OP_REMOVE: {
+                    settings.remove(in.readUTF());
+                } break;
+                case OP_VERSION: {
+                    settingsVersion[0] = in.readInt();
+                } break;
+                default:
+                    throw new IOException("Bad journal op " + op);
+            }
+        });
+        mPersisted.addAll(settings.keySet());
+        mPersistedVersion = settingsVersion[0];
+        return settingsVersion[0];
+    }
+
+    /**
+     * Rewrites the journal so that it holds exactly {@code settings}. The new file is synced
+     * before this returns.
+     */
+    void writeSnapshot(int settingsVersion, ArrayMap<String, byte[]> settings)
+            throws IOException {
+        final AppendOnlyLog.Batch batch = new AppendOnlyLog.Batch();
+        writeVersionRecord(batch, settingsVersion);
+        for (int i = 0; i < settings.size(); i++) {
+            writeRecord(batch, OP_PUT, settings.keyAt(i), settings.valueAt(i));
+        }
+        mLog.writeSnapshot(batch);
+        mPersisted.clear();
+        mPersisted.addAll(settings.keySet());
+        mPersistedVersion = settingsVersion;
+    }
+
+    /**
+     * Appends the settings that changed, where a {@code null} payload removes the setting.
+     * The records are written but not synced, see {@link #sync}.
+     *
+     * @return the number of records appended
+     */
+    int append(int settingsVersion, ArrayMap<String, byte[]> changes) throws IOException {
+        final AppendOnlyLog.Batch batch = new AppendOnlyLog.Batch();
+        if (settingsVersion != mPersistedVersion) {
+            writeVersionRecord(batch, settingsVersion);
+        }
+        for (int i = 0; i < changes.size(); i++) {
+            final String name = changes.keyAt(i);
+            final byte[] payload = changes.valueAt(i);
+            if (payload != null) {
+                writeRecord(batch, OP_PUT, name, payload);
+            } else if (mPersisted.contains(name)) {
+                writeRecord(batch, OP_REMOVE, name, null);
+            }
+        }
+        mLog.append(batch, false /* sync */);
+
+        for (int i = 0; i < changes.size(); i++) {
+            if (changes.valueAt(i) != null) {
+                mPersisted.add(changes.keyAt(i));
+            } else {
+                mPersisted.remove(changes.keyAt(i));
+            }
+        }
+        mPersistedVersion = settingsVersion;
+        return batch.getRecordCount();
+    }
+
+    /**
+     * Flushes the records appended since the last call to disk.
+     */
+    void sync() {
+        mLog.sync();
+    }
+
+    /**
+     * Syncs and closes the journal. The journal can still be written after this.
+     */
+    void close() {
+        mLog.close();
+    }
+
+    private static void writeVersionRecord(AppendOnlyLog.Batch batch, int settingsVersion)
+            throws IOException {
+        final DataOutputStream out = batch.beginRecord();
+        out.writeByte(OP_VERSION);
+        out.writeInt(settingsVersion);
+        batch.endRecord();
+    }
+
+    /**
+     * Adds one record to {@code batch}, holding the operation, the setting name and, for puts,
+     * the payload.
+     */
+    private static void writeRecord(AppendOnlyLog.Batch batch, int op, String name,
+            byte[] payload) throws IOException {
+        final DataOutputStream out = batch.beginRecord();
+        out.writeByte(op);
+        out.writeUTF(name);
+        if (payload != null) {
+            out.write(payload);
+        }
+        batch.endRecord();
+    }
+}
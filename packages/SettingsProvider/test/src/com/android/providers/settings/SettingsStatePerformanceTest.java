@@ -0,0 +1,150 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.providers.settings;
+
+import android.os.Looper;
+import android.os.SystemClock;
+import android.test.AndroidTestCase;
+import android.util.Log;
+import android.util.Xml;
+
+import org.xmlpull.v1.XmlSerializer;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Performance tests for the persistence of a {@link SettingsState} holding many settings.
+ */
+public class SettingsStatePerformanceTest extends AndroidTestCase {
+    private static final String LOG_TAG = "SettingsStatePerformanceTest";
+
+    private static final int SETTING_COUNT = 5000;
+
+    private static final int ITERATION_COUNT = 100;
+
+    private static final int MICRO_SECONDS_IN_MILLISECOND = 1000;
+
+    private File mFile;
+    private File mJournal;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mFile = new File(getContext().getCacheDir(), "settings_perf.xml");
+        mJournal = SettingsStateJournal.getJournalFile(mFile);
+        mFile.delete();
+        mJournal.delete();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mFile.delete();
+        mJournal.delete();
+        super.tearDown();
+    }
+
+    /**
+     * Times changing one setting and persisting it, with {@link #SETTING_COUNT} settings
+     * already stored.
+     */
+    public void testPutAndPersistThroughput() {
+        final Object lock = new Object();
+        final SettingsState state = newSettingsState(lock);
+        synchronized (lock) {
+            for (int i = 0; i < SETTING_COUNT; i++) {
+                state.insertSettingLocked("key" + i, "value" + i, null, false, "package");
+            }
+            state.persistSyncLocked();
+        }
+
+        final long startTimeMicro = SystemClock.currentTimeMicro();
+        synchronized (lock) {
+            for (int i = 0; i < ITERATION_COUNT; i++) {
+                state.insertSettingLocked("key" + i, "new_value" + i, null, false, "package");
+                state.persistSyncLocked();
+            }
+        }
+        final long elapsedTimeMicro = SystemClock.currentTimeMicro() - startTimeMicro;
+
+        Log.i(LOG_TAG, "Average time to put and persist one of " + SETTING_COUNT
+                + " settings: " + (elapsedTimeMicro / ITERATION_COUNT) + " us");
+    }
+
+    /**
+     * Compares loading {@link #SETTING_COUNT} settings from the journal against loading them
+     * from the XML file used by earlier releases.
+     */
+    public void testColdLoad() throws Exception {
+        final Object lock = new Object();
+        final SettingsState writer = newSettingsState(lock);
+        synchronized (lock) {
+            writer.setVersionLocked(SettingsState.SETTINGS_VERSION_NEW_ENCODING);
+            for (int i = 0; i < SETTING_COUNT; i++) {
+                writer.insertSettingLocked("key" + i, "value" + i, null, false, "package");
+            }
+            writer.persistSyncLocked();
+        }
+        final long journalMicros = timeLoad(lock);
+        assertFalse(mFile.exists());
+
+        writeXmlState();
+        mJournal.delete();
+        final long xmlMicros = timeLoad(lock);
+
+        Log.i(LOG_TAG, "Average time to load " + SETTING_COUNT + " settings: journal "
+                + (journalMicros / MICRO_SECONDS_IN_MILLISECOND) + " ms, xml "
+                + (xmlMicros / MICRO_SECONDS_IN_MILLISECOND) + " ms");
+    }
+
+    private long timeLoad(Object lock) {
+        final int iterations = ITERATION_COUNT / 10;
+        final long startTimeMicro = SystemClock.currentTimeMicro();
+        for (int i = 0; i < iterations; i++) {
+            final SettingsState state = newSettingsState(lock);
+            synchronized (lock) {
+                assertEquals("value0", state.getSettingLocked("key0").getValue());
+                assertEquals(SETTING_COUNT, state.getSettingNamesLocked().size());
+            }
+        }
+        return (SystemClock.currentTimeMicro() - startTimeMicro) / iterations;
+    }
+
+    private void writeXmlState() throws Exception {
+        try (FileOutputStream out = new FileOutputStream(mFile)) {
+            final XmlSerializer serializer = Xml.newSerializer();
+            serializer.setOutput(out, StandardCharsets.UTF_8.name());
+            serializer.startDocument(null, true);
+            serializer.startTag(null, "settings");
+            serializer.attribute(null, "version",
+                    String.valueOf(SettingsState.SETTINGS_VERSION_NEW_ENCODING));
+            for (int i = 0; i < SETTING_COUNT; i++) {
+                SettingsState.writeSingleSetting(SettingsState.SETTINGS_VERSION_NEW_ENCODING,
+                        serializer, String.valueOf(i), "key" + i, "value" + i, null,
+                        "package", null, false);
+            }
+            serializer.endTag(null, "settings");
+            serializer.endDocument();
+        }
+    }
+
+    private SettingsState newSettingsState(Object lock) {
+        return new SettingsState(getContext(), lock, mFile, 1,
+                SettingsState.MAX_BYTES_PER_APP_PACKAGE_UNLIMITED, Looper.getMainLooper());
+    }
+}
@@ -25,6 +25,7 @@ import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.PrintStream;
+import java.io.RandomAccessFile;
 import java.nio.charset.StandardCharsets;
 
 public class SettingsStateTest extends AndroidTestCase {
@@ -182,4 +183,79 @@ public class SettingsStateTest extends AndroidTestCase {
             assertEquals("p2", s.getPackageName());
         }
     }
+
+    /**
+     * Make sure changes made after the first write are appended to the journal, and replace
+     * the XML file.
+     */
+    public void testJournalAppend() {
+        final File file = new File(getContext().getCacheDir(), "setting.xml");
+        final File journal = SettingsStateJournal.getJournalFile(file);
+        file.delete();
+        journal.delete();
+        final Object lock = new Object();
+
+        final SettingsState ssWriter = new SettingsState(getContext(), lock, file, 1,
+                SettingsState.MAX_BYTES_PER_APP_PACKAGE_UNLIMITED, Looper.getMainLooper());
+        synchronized (lock) {
+            ssWriter.setVersionLocked(SettingsState.SETTINGS_VERSION_NEW_ENCODING);
+            ssWriter.insertSettingLocked("k1", "v1", null, false, "p1");
+            ssWriter.insertSettingLocked("k2", "v2", null, false, "p2");
+            ssWriter.persistSyncLocked();
+        }
+        final long snapshotLength = journal.length();
+        assertTrue(snapshotLength > 0);
+        assertFalse(file.exists());
+
+        synchronized (lock) {
+            ssWriter.insertSettingLocked("k1", CRAZY_STRING, null, false, "p1");
+            ssWriter.deleteSettingLocked("k2");
+            ssWriter.insertSettingLocked("k3", null, null, false, "p3");
+            ssWriter.setVersionLocked(SettingsState.SETTINGS_VERSION_NEW_ENCODING + 1);
+            ssWriter.persistSyncLocked();
+        }
+        assertTrue(journal.length() > snapshotLength);
+
+        final SettingsState ssReader = new SettingsState(getContext(), lock, file, 1,
+                SettingsState.MAX_BYTES_PER_APP_PACKAGE_UNLIMITED, Looper.getMainLooper());
+        synchronized (lock) {
+            assertEquals(SettingsState.SETTINGS_VERSION_NEW_ENCODING + 1,
+                    ssReader.getVersionLocked());
+            assertEquals(CRAZY_STRING, ssReader.getSettingLocked("k1").getValue());
+            assertTrue(ssReader.getSettingLocked("k2").isNull());
+            assertEquals(null, ssReader.getSettingLocked("k3").getValue());
+            assertEquals("p3", ssReader.getSettingLocked("k3").getPackageName());
+        }
+    }
+
+    /**
+     * Make sure a record torn by a crash while appending is dropped, keeping the earlier ones.
+     */
+    public void testJournalTornRecord() throws Exception {
+        final File file = new File(getContext().getCacheDir(), "setting.xml");
+        final File journal = SettingsStateJournal.getJournalFile(file);
+        file.delete();
+        journal.delete();
+        final Object lock = new Object();
+
+        final SettingsState ssWriter = new SettingsState(getContext(), lock, file, 1,
+                SettingsState.MAX_BYTES_PER_APP_PACKAGE_UNLIMITED, Looper.getMainLooper());
+        synchronized (lock) {
+            ssWriter.insertSettingLocked("k1", "v1", null, false, "p1");
+            ssWriter.persistSyncLocked();
+            ssWriter.insertSettingLocked("k2", "v2", null, false, "p2");
+            ssWriter.persistSyncLocked();
+        }
+
+        try (RandomAccessFile raf = new RandomAccessFile(journal, "rw")) {
+            raf.setLength(raf.length() - 2);
+        }
+
+        final SettingsState ssReader = new SettingsState(getContext(), lock, file, 1,
+                SettingsState.MAX_BYTES_PER_APP_PACKAGE_UNLIMITED, Looper.getMainLooper());
+        synchronized (lock) {
+            assertEquals("v1", ssReader.getSettingLocked("k1").getValue());
+            assertTrue(ssReader.getSettingLocked("k2").isNull());
+        }
+    }
 }
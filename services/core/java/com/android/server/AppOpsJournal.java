@@ -0,0 +1,213 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.server;
+
+import android.util.SparseArray;
+
+import com.android.internal.util.AppendOnlyLog;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Binary, append-only log of the persisted app ops state.
+ * <p>
+ * The file starts with a snapshot of the state of every uid, written when the journal is
+ * compacted, followed by batches of put and remove records for the uids that changed since.
+ * Each put record holds the whole state of one uid, encoded by {@link AppOpsService}, so a
+ * change to one op costs a record the size of its uid's state rather than a rewrite of the
+ * state of every uid. The file itself is an {@link AppendOnlyLog}.
+ * <p>
+ * Not thread safe: callers hold the lock on the journal.
+ */
+final class AppOpsJournal {
+    private static final int JOURNAL_MAGIC = 0x41504f4a; // "APOJ"
+    private static final int JOURNAL_VERSION = 1;
+
+    private static final int OP_PUT = 1;
+    private static final int OP_REMOVE = 2;
+    private static final int OP_VERSION = 3;
+
+    /** Never compact before this many records have been appended */
+    private static final int MIN_RECORDS_BEFORE_COMPACTION = 256;
+
+    /** Upper bound for a single record, anything larger means the file is corrupt */
+    private static final int MAX_RECORD_SIZE = 4 * 1024 * 1024;
+
+    private static final String JOURNAL_SUFFIX = ".journal";
+
+    private final AppendOnlyLog mLog;
+
+    /** Digests of the uid payloads as they are currently persisted, by uid */
+    private final SparseArray<byte[]> mPersisted = new SparseArray<>();
+
+    /** State version as currently persisted */
+    private int mPersistedVersion;
+
+    AppOpsJournal(File file) {
+        mLog = new AppendOnlyLog(file, "appops", JOURNAL_MAGIC, JOURNAL_VERSION,
+                MAX_RECORD_SIZE);
+    }
+
+    /**
+     * Returns the journal that replaces the XML state file {@code stateFile}.
+     */
+    static File getJournalFile(File stateFile) {
+        String name = stateFile.getName();
+        if (name.endsWith(".xml")) {
+            name = name.substring(0, name.length() - ".xml".length());
+        }
+        return new File(stateFile.getParentFile(), name + JOURNAL_SUFFIX);
+    }
+
+    File getFile() {
+        return mLog.getFile();
+    }
+
+    boolean exists() {
+        return mLog.exists();
+    }
+
+    void delete() {
+        mLog.delete();
+        mPersisted.clear();
+    }
+
+    /**
+     * Whether the next write must be a {@link #writeSnapshot snapshot} rather than an
+     * {@link #append}.
+     */
+    boolean needsSnapshot() {
+        return mLog.needsSnapshot() || mLog.getRecordCount()
+                > Math.max(MIN_RECORDS_BEFORE_COMPACTION, 2 * mPersisted.size());
+    }
+
+    /**
+     * Replays the snapshot and every batch appended after it.
+     *
+     * @param uids receives the payload of each persisted uid
+     * @return the persisted state version
+     */
+    int read(SparseArray<byte[]> uids) throws IOException {
+        final int[] stateVersion = { -1 };
+        mPersisted.clear();
+        mLog.read(record -> {
+            if (record.length < 5) {
+                throw new IOException("Bad journal record");
+            }
+            final int op = record[0];
+            final int key = getInt(record, 1);
+            switch (op) {
+                case OP_PUT: {
+                    final byte[] payload = new byte[record.length - 5];
+                    System.arraycopy(record, 5, payload, 0, payload.length);
+                    uids.put(key, payload);
+                } break;
+                case OP_REMOVE: {
+                    uids.delete(key);
+                } break;
+                case OP_VERSION: {
+                    stateVersion[0] = key;
+                } break;
+                default:
+                    throw new IOException("Bad journal op " + op);
+            }
+        });
+        for (int i = 0; i < uids.size(); i++) {
+            mPersisted.put(uids.keyAt(i), AppendOnlyLog.digest(uids.valueAt(i)));
+        }
+        mPersistedVersion = stateVersion[0];
+        return stateVersion[0];
+    }
+
+    /**
+     * Rewrites the journal so that it holds exactly {@code uids}.
+     */
+    void writeSnapshot(int stateVersion, SparseArray<byte[]> uids) throws IOException {
+        final AppendOnlyLog.Batch batch = new AppendOnlyLog.Batch();
+        writeRecord(batch, OP_VERSION, stateVersion, null);
+        for (int i = 0; i < uids.size(); i++) {
+            writeRecord(batch, OP_PUT, uids.keyAt(i), uids.valueAt(i));
+        }
+        mLog.writeSnapshot(batch);
+        mPersisted.clear();
+        for (int i = 0; i < uids.size(); i++) {
+            mPersisted.put(uids.keyAt(i), AppendOnlyLog.digest(uids.valueAt(i)));
+        }
+        mPersistedVersion = stateVersion;
+    }
+
+    /**
+     * Appends one batch of changes with a single sync. A {@code null} payload removes the uid.
+     * Puts whose payload is identical to the persisted one are skipped.
+     *
+     * @return the number of records appended
+     */
+    int append(int stateVersion, SparseArray<byte[]> changes) throws IOException {
+        final AppendOnlyLog.Batch batch = new AppendOnlyLog.Batch();
+        if (stateVersion != mPersistedVersion) {
+            writeRecord(batch, OP_VERSION, stateVersion, null);
+        }
+        for (int i = 0; i < changes.size(); i++) {
+            final int uid = changes.keyAt(i);
+            final byte[] payload = changes.valueAt(i);
+            final int index = mPersisted.indexOfKey(uid);
+            if (payload == null) {
+                if (index >= 0) {
+                    writeRecord(batch, OP_REMOVE, uid, null);
+                }
+            } else if (index < 0
+                    || !Arrays.equals(mPersisted.valueAt(index), AppendOnlyLog.digest(payload))) {
+                writeRecord(batch, OP_PUT, uid, payload);
+            }
+        }
+        mLog.append(batch, true /* sync */);
+
+        for (int i = 0; i < changes.size(); i++) {
+            final byte[] payload = changes.valueAt(i);
+            if (payload == null) {
+                mPersisted.delete(changes.keyAt(i));
+            } else {
+                mPersisted.put(changes.keyAt(i), AppendOnlyLog.digest(payload));
+            }
+        }
+        mPersistedVersion = stateVersion;
+        return batch.getRecordCount();
+    }
+
+    /**
+     * Adds one record to {@code batch}, holding the operation, the uid (or the state version)
+     * and, for puts, the payload.
+     */
+    private static void writeRecord(AppendOnlyLog.Batch batch, int op, int key, byte[] payload)
+            throws IOException {
+        final DataOutputStream out = batch.beginRecord();
+        out.writeByte(op);
+        out.writeInt(key);
+        if (payload != null) {
+            out.write(payload);
+        }
+        batch.endRecord();
+    }
+
+    private static int getInt(byte[] bytes, int offset) {
+        return ((bytes[offset] & 0xff) << 24) | ((bytes[offset + 1] & 0xff) << 16)
+                | ((bytes[offset + 2] & 0xff) << 8) | (bytes[offset + 3] & 0xff);
+    }
+}
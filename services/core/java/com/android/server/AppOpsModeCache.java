@@ -0,0 +1,188 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.server;
+
+import android.app.AppOpsManager;
+import android.os.UserHandle;
+import android.util.ArrayMap;
+import android.util.SparseArray;
+import android.util.SparseIntArray;
+
+import com.android.internal.annotations.GuardedBy;
+
+import java.io.PrintWriter;
+
+/**
+ * Lock-striped cache of the op modes of each uid, so that {@link AppOpsService#checkOperation}
+ * can be answered without the service lock.
+ * <p>
+ * Entries are immutable snapshots of a uid's modes. They are only added and invalidated while
+ * holding the service lock, by the code that changes the modes, so an entry never outlives a
+ * change it doesn't reflect. Readers only take the lock of the stripe the uid falls in, which
+ * is never held for longer than a lookup.
+ */
+final class AppOpsModeCache {
+    /** Returned when the cache can't answer and the caller has to take the slow path */
+    static final int MODE_UNKNOWN = -1;
+
+    private static final int STRIPE_COUNT = 16;
+
+    /** The modes of one uid, as seen by checkOperation. */
+    static final class UidModes {
+        /** Uid wide modes, they take precedence over the package ones; {@code null} if none */
+        final SparseIntArray uidModes;
+        /** The modes of the ops each package of the uid has an entry for */
+        final ArrayMap<String, SparseIntArray> packageModes;
+
+        UidModes(SparseIntArray uidModes, ArrayMap<String, SparseIntArray> packageModes) {
+            this.uidModes = uidModes;
+            this.packageModes = packageModes;
+        }
+
+        int getMode(int switchCode, String packageName) {
+            if (uidModes != null) {
+                final int index = uidModes.indexOfKey(switchCode);
+                if (index >= 0) {
+                    return uidModes.valueAt(index);
+                }
+            }
+            final SparseIntArray modes = packageModes.get(packageName);
+            if (modes != null) {
+                final int index = modes.indexOfKey(switchCode);
+                if (index >= 0) {
+                    return modes.valueAt(index);
+                }
+            }
+            return AppOpsManager.opToDefaultMode(switchCode);
+        }
+    }
+
+    private static final class Stripe {
+        @GuardedBy("this")
+        final SparseArray<UidModes> entries = new SparseArray<>();
+        @GuardedBy("this")
+        long hits;
+        @GuardedBy("this")
+        long misses;
+    }
+
+    private final Stripe[] mStripes = new Stripe[STRIPE_COUNT];
+
+    /**
+     * For each user, the ops that some client restricts. Replaced, never modified, when the
+     * restrictions change.
+     */
+    private volatile SparseArray<boolean[]> mRestrictedOps = new SparseArray<>();
+
+    AppOpsModeCache() {
+        for (int i = 0; i < STRIPE_COUNT; i++) {
+            mStripes[i] = new Stripe();
+        }
+    }
+
+    private Stripe getStripe(int uid) {
+        return mStripes[(uid & Integer.MAX_VALUE) % STRIPE_COUNT];
+    }
+
+    /**
+     * Returns the mode checkOperation would return for the given op, or {@link #MODE_UNKNOWN}
+     * if the uid isn't cached or the op may be restricted.
+     */
+    int getMode(int code, int uid, String packageName) {
+        if (isMaybeRestricted(code, UserHandle.getUserId(uid))) {
+            return MODE_UNKNOWN;
+        }
+        final Stripe stripe = getStripe(uid);
+        final UidModes modes;
+        synchronized (stripe) {
+            modes = stripe.entries.get(uid);
+            if (modes == null) {
+                stripe.misses++;
+                return MODE_UNKNOWN;
+            }
+            stripe.hits++;
+        }
+        return modes.getMode(AppOpsManager.opToSwitch(code), packageName);
+    }
+
+    /**
+     * Whether some client restricts {@code code} for {@code userId}, not taking the packages
+     * they exempt into account.
+     */
+    boolean isMaybeRestricted(int code, int userId) {
+        final boolean[] restricted = mRestrictedOps.get(userId);
+        return restricted != null && restricted[code];
+    }
+
+    boolean contains(int uid) {
+        final Stripe stripe = getStripe(uid);
+        synchronized (stripe) {
+            return stripe.entries.indexOfKey(uid) >= 0;
+        }
+    }
+
+    /** Must be called with the service lock held. */
+    void put(int uid, UidModes modes) {
+        final Stripe stripe = getStripe(uid);
+        synchronized (stripe) {
+            stripe.entries.put(uid, modes);
+        }
+    }
+
+    /** Must be called with the service lock held, when the modes of {@code uid} change. */
+    void invalidate(int uid) {
+        final Stripe stripe = getStripe(uid);
+        synchronized (stripe) {
+            stripe.entries.remove(uid);
+        }
+    }
+
+    /** Must be called with the service lock held, when the modes of many uids change. */
+    void invalidateAll() {
+        for (int i = 0; i < STRIPE_COUNT; i++) {
+            final Stripe stripe = mStripes[i];
+            synchronized (stripe) {
+                stripe.entries.clear();
+            }
+        }
+    }
+
+    /**
+     * Replaces the restricted ops, the arrays must not be modified afterwards.
+     */
+    void setRestrictedOps(SparseArray<boolean[]> restrictedOps) {
+        mRestrictedOps = restrictedOps;
+    }
+
+    void dump(PrintWriter pw) {
+        int entries = 0;
+        long hits = 0;
+        long misses = 0;
+        for (int i = 0; i < STRIPE_COUNT; i++) {
+            final Stripe stripe = mStripes[i];
+            synchronized (stripe) {
+                entries += stripe.entries.size();
+                hits += stripe.hits;
+                misses += stripe.misses;
+            }
+        }
+        pw.println("  Mode cache:");
+        pw.print("    uids="); pw.print(entries);
+        pw.print(" hits="); pw.print(hits);
+        pw.print(" misses="); pw.println(misses);
+    }
+}
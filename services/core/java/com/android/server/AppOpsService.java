@@ -67,6 +67,7 @@ import android.util.SparseIntArray;
 import android.util.TimeUtils;
 import android.util.Xml;
 
+import com.android.internal.annotations.GuardedBy;
 import com.android.internal.annotations.VisibleForTesting;
 import com.android.internal.app.IAppOpsActiveCallback;
 import com.android.internal.app.IAppOpsCallback;
@@ -74,7 +75,6 @@ import com.android.internal.app.IAppOpsService;
 import com.android.internal.os.Zygote;
 import com.android.internal.util.ArrayUtils;
 import com.android.internal.util.DumpUtils;
-import com.android.internal.util.FastXmlSerializer;
 import com.android.internal.util.Preconditions;
 import com.android.internal.util.XmlUtils;
 import com.android.internal.util.function.pooled.PooledLambda;
@@ -85,13 +85,15 @@ import libcore.util.EmptyArray;
 
 import org.xmlpull.v1.XmlPullParser;
 import org.xmlpull.v1.XmlPullParserException;
-import org.xmlpull.v1.XmlSerializer;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileDescriptor;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.PrintWriter;
 import java.lang.Math;
@@ -188,6 +190,8 @@ public class AppOpsService extends IAppOpsService.Stub {
 
     Context mContext;
     final AtomicFile mFile;
+    /** Where the state is persisted, {@link #mFile} is only read to migrate from xml */
+    final AppOpsJournal mJournal;
     final Handler mHandler;
     final Looper mLooper;
 
@@ -200,6 +204,14 @@ public class AppOpsService extends IAppOpsService.Stub {
 
     boolean mWriteScheduled;
     boolean mFastWriteScheduled;
+
+    /** Uids whose state changed since it was last written */
+    @GuardedBy("this")
+    private final SparseBooleanArray mDirtyUids = new SparseBooleanArray();
+    /** Set when the state of every uid needs to be written */
+    @GuardedBy("this")
+    private boolean mAllUidsDirty;
+
     final Runnable mWriteRunner = new Runnable() {
         public void run() {
             synchronized (AppOpsService.this) {
@@ -320,6 +332,9 @@ public class AppOpsService extends IAppOpsService.Stub {
 
     private final Constants mConstants;
 
+    /** Answers checkOperation without the service lock, see {@link AppOpsModeCache} */
+    private final AppOpsModeCache mModeCache = new AppOpsModeCache();
+
     @VisibleForTesting
     static final class UidState {
         public final int uid;
@@ -625,6 +640,7 @@ public class AppOpsService extends IAppOpsService.Stub {
     public AppOpsService(File storagePath, Handler handler, ActivityManagerService service) {
         LockGuard.installLock(this, LockGuard.INDEX_APP_OPS);
         mFile = new AtomicFile(storagePath, "appops");
+        mJournal = new AppOpsJournal(AppOpsJournal.getJournalFile(storagePath));
         mHandler = handler;
         mConstants = new Constants(mHandler);
         mLooper = Looper.myLooper();
@@ -687,6 +703,7 @@ public class AppOpsService extends IAppOpsService.Stub {
                 }
             }
             if (changed) {
+                mModeCache.invalidateAll();
                 scheduleFastWriteLocked();
             }
         }
@@ -890,7 +907,8 @@ public class AppOpsService extends IAppOpsService.Stub {
             }
 
             if (ops != null) {
-                scheduleFastWriteLocked();
+                mModeCache.invalidate(uid);
+                scheduleFastWriteLocked(uid);
 
                 final int opCount = ops.size();
                 for (int i = 0; i < opCount; i++) {
@@ -908,7 +926,8 @@ public class AppOpsService extends IAppOpsService.Stub {
         synchronized (this) {
             if (mUidStates.indexOfKey(uid) >= 0) {
                 mUidStates.remove(uid);
-                scheduleFastWriteLocked();
+                mModeCache.invalidate(uid);
+                scheduleFastWriteLocked(uid);
             }
         }
     }
@@ -936,6 +955,8 @@ public class AppOpsService extends IAppOpsService.Stub {
                         settleTime = mConstants.BG_STATE_SETTLE_TIME;
                     }
                     uidState.pendingStateCommitTime = SystemClock.uptimeMillis() + settleTime;
+                    // Only the slow path of checkOperation commits the state once it is due
+                    mModeCache.invalidate(uid);
                 }
                 if (uidState.startNesting != 0) {
                     // There is some actively running operation...  need to find it
@@ -948,6 +969,7 @@ public class AppOpsService extends IAppOpsService.Stub {
                             if (op.startNesting > 0) {
                                 op.time[oldPendingState] = now;
                                 op.time[newState] = now;
+                                mDirtyUids.put(op.uid, true);
                             }
                         }
                     }
@@ -1169,12 +1191,14 @@ public class AppOpsService extends IAppOpsService.Stub {
                 uidState.opModes = new SparseIntArray();
                 uidState.opModes.put(code, mode);
                 mUidStates.put(uid, uidState);
-                scheduleWriteLocked();
+                mModeCache.invalidate(uid);
+                scheduleWriteLocked(uid);
             } else if (uidState.opModes == null) {
                 if (mode != defaultMode) {
                     uidState.opModes = new SparseIntArray();
                     uidState.opModes.put(code, mode);
-                    scheduleWriteLocked();
+                    mModeCache.invalidate(uid);
+                    scheduleWriteLocked(uid);
                 }
             } else {
                 if (uidState.opModes.get(code) == mode) {
@@ -1188,7 +1212,8 @@ public class AppOpsService extends IAppOpsService.Stub {
                 } else {
                     uidState.opModes.put(code, mode);
                 }
-                scheduleWriteLocked();
+                mModeCache.invalidate(uid);
+                scheduleWriteLocked(uid);
             }
         }
 
@@ -1288,7 +1313,8 @@ public class AppOpsService extends IAppOpsService.Stub {
                         // if there is nothing else interesting in it.
                         pruneOp(op, uid, packageName);
                     }
-                    scheduleFastWriteLocked();
+                    mModeCache.invalidate(uid);
+                    scheduleFastWriteLocked(uid);
                 }
             }
         }
@@ -1406,6 +1432,7 @@ public class AppOpsService extends IAppOpsService.Stub {
                             if (opModes.size() <= 0) {
                                 uidState.opModes = null;
                             }
+                            mDirtyUids.put(uidState.uid, true);
                             for (String packageName : getPackagesForUid(uidState.uid)) {
                                 callbacks = addCallbacks(callbacks, code, uidState.uid, packageName,
                                         mOpModeWatchers.get(code));
@@ -1462,11 +1489,14 @@ public class AppOpsService extends IAppOpsService.Stub {
                 }
                 if (uidChanged) {
                     uidState.evalForegroundOps(mOpModeWatchers);
+                    mDirtyUids.put(uidState.uid, true);
                 }
             }
 
+            // Uid modes may have been reset even if nothing else changed
+            mModeCache.invalidateAll();
             if (changed) {
-                scheduleFastWriteLocked();
+                scheduleFastWriteRunnerLocked();
             }
         }
         if (callbacks != null) {
@@ -1587,12 +1617,19 @@ public class AppOpsService extends IAppOpsService.Stub {
         if (resolvedPackageName == null) {
             return AppOpsManager.MODE_IGNORED;
         }
+        final int cachedMode = mModeCache.getMode(code, uid, resolvedPackageName);
+        if (cachedMode != AppOpsModeCache.MODE_UNKNOWN) {
+            return cachedMode;
+        }
         synchronized (this) {
             if (isOpRestrictedLocked(uid, code, resolvedPackageName)) {
                 return AppOpsManager.MODE_IGNORED;
             }
             code = AppOpsManager.opToSwitch(code);
             UidState uidState = getUidStateLocked(uid, false);
+            if (!mModeCache.contains(uid)) {
+                cacheUidModesLocked(uid, uidState);
+            }
             if (uidState != null && uidState.opModes != null
                     && uidState.opModes.indexOfKey(code) >= 0) {
                 return uidState.opModes.get(code);
@@ -1742,6 +1779,9 @@ public class AppOpsService extends IAppOpsService.Stub {
                 return AppOpsManager.MODE_ERRORED;
             }
             final Op op = getOpLocked(ops, code, true);
+            // Whatever the outcome, the op's times or counts change. Picked up by the next
+            // write, whenever that is.
+            mDirtyUids.put(uid, true);
             if (isOpRestrictedLocked(uid, code, packageName)) {
                 op.ignoredCount++;
                 return AppOpsManager.MODE_IGNORED;
@@ -1928,6 +1968,9 @@ public class AppOpsService extends IAppOpsService.Stub {
                 return AppOpsManager.MODE_ERRORED;
             }
             final Op op = getOpLocked(ops, code, true);
+            // Whatever the outcome, the op's times or counts change. Picked up by the next
+            // write, whenever that is.
+            mDirtyUids.put(uid, true);
             if (isOpRestrictedLocked(uid, code, resolvedPackageName)) {
                 op.ignoredCount++;
                 return AppOpsManager.MODE_IGNORED;
@@ -2092,6 +2135,8 @@ public class AppOpsService extends IAppOpsService.Stub {
             if (op.startNesting == 1 || finishNested) {
                 op.duration = (int)(SystemClock.elapsedRealtime() - op.startRealtime);
                 op.time[op.uidState.state] = System.currentTimeMillis();
+                // Picked up by the next write, whenever that is
+                mDirtyUids.put(op.uid, true);
             } else {
                 Slog.w(TAG, "Finishing op nesting under-run: uid " + op.uid + " pkg "
                         + op.packageName + " code " + op.op + " time=" + op.time
@@ -2257,7 +2302,20 @@ public class AppOpsService extends IAppOpsService.Stub {
         return ops;
     }
 
+    /**
+     * Schedules writing the state of every uid, for changes that aren't tied to a few uids.
+     */
     private void scheduleWriteLocked() {
+        mAllUidsDirty = true;
+        scheduleWriteRunnerLocked();
+    }
+
+    private void scheduleWriteLocked(int uid) {
+        mDirtyUids.put(uid, true);
+        scheduleWriteRunnerLocked();
+    }
+
+    private void scheduleWriteRunnerLocked() {
         if (!mWriteScheduled) {
             mWriteScheduled = true;
             mHandler.postDelayed(mWriteRunner, WRITE_DELAY);
@@ -2265,6 +2323,16 @@ public class AppOpsService extends IAppOpsService.Stub {
     }
 
     private void scheduleFastWriteLocked() {
+        mAllUidsDirty = true;
+        scheduleFastWriteRunnerLocked();
+    }
+
+    private void scheduleFastWriteLocked(int uid) {
+        mDirtyUids.put(uid, true);
+        scheduleFastWriteRunnerLocked();
+    }
+
+    private void scheduleFastWriteRunnerLocked() {
         if (!mFastWriteScheduled) {
             mWriteScheduled = true;
             mFastWriteScheduled = true;
@@ -2292,12 +2360,72 @@ public class AppOpsService extends IAppOpsService.Stub {
             ops.put(code, op);
         }
         if (edit) {
-            scheduleWriteLocked();
+            scheduleWriteLocked(ops.uidState.uid);
         }
         return op;
     }
 
+    /**
+     * Caches the modes of {@code uid} for checkOperation, unless it has a process state change
+     * pending, which checkOperation only commits on the slow path.
+     */
+    private void cacheUidModesLocked(int uid, UidState uidState) {
+        if (uidState != null && uidState.pendingStateCommitTime != 0) {
+            return;
+        }
+        SparseIntArray uidModes = null;
+        final ArrayMap<String, SparseIntArray> packageModes = new ArrayMap<>();
+        if (uidState != null) {
+            if (uidState.opModes != null && uidState.opModes.size() > 0) {
+                uidModes = uidState.opModes.clone();
+            }
+            if (uidState.pkgOps != null) {
+                packageModes.ensureCapacity(uidState.pkgOps.size());
+                for (int i = 0; i < uidState.pkgOps.size(); i++) {
+                    final Ops ops = uidState.pkgOps.valueAt(i);
+                    final SparseIntArray modes = new SparseIntArray(ops.size());
+                    for (int j = 0; j < ops.size(); j++) {
+                        modes.put(ops.keyAt(j), ops.valueAt(j).mode);
+                    }
+                    packageModes.put(ops.packageName, modes);
+                }
+            }
+        }
+        mModeCache.put(uid, new AppOpsModeCache.UidModes(uidModes, packageModes));
+    }
+
+    /**
+     * Gives the mode cache the ops that any client currently restricts, per user, so that it
+     * only defers to {@link #isOpRestrictedLocked} for those.
+     */
+    private void updateRestrictedOpsLocked() {
+        final SparseArray<boolean[]> restrictedOps = new SparseArray<>();
+        for (int i = 0; i < mOpUserRestrictions.size(); i++) {
+            final SparseArray<boolean[]> perUserRestrictions =
+                    mOpUserRestrictions.valueAt(i).perUserRestrictions;
+            if (perUserRestrictions == null) {
+                continue;
+            }
+            for (int j = 0; j < perUserRestrictions.size(); j++) {
+                final int userId = perUserRestrictions.keyAt(j);
+                boolean[] restricted = restrictedOps.get(userId);
+                if (restricted == null) {
+                    restricted = new boolean[AppOpsManager._NUM_OP];
+                    restrictedOps.put(userId, restricted);
+                }
+                final boolean[] restrictions = perUserRestrictions.valueAt(j);
+                for (int code = 0; code < restrictions.length; code++) {
+                    restricted[code] |= restrictions[code];
+                }
+            }
+        }
+        mModeCache.setRestrictedOps(restrictedOps);
+    }
+
     private boolean isOpRestrictedLocked(int uid, int code, String packageName) {
+        if (!mModeCache.isMaybeRestricted(code, UserHandle.getUserId(uid))) {
+            return false;
+        }
         int userHandle = UserHandle.getUserId(uid);
         final int restrictionSetCount = mOpUserRestrictions.size();
 
@@ -2325,6 +2453,10 @@ public class AppOpsService extends IAppOpsService.Stub {
     void readState() {
         int oldVersion = NO_VERSION;
         synchronized (mFile) {
+            if (mJournal.exists()) {
+                readJournalState();
+                return;
+            }
             synchronized (this) {
                 FileInputStream stream;
                 try {
@@ -2335,6 +2467,7 @@ public class AppOpsService extends IAppOpsService.Stub {
                 }
                 boolean success = false;
                 mUidStates.clear();
+                mModeCache.invalidateAll();
                 try {
                     XmlPullParser parser = Xml.newPullParser();
                     parser.setInput(stream, StandardCharsets.UTF_8.name());
@@ -2397,7 +2530,113 @@ public class AppOpsService extends IAppOpsService.Stub {
         }
         synchronized (this) {
             upgradeLocked(oldVersion);
+            // Move the state over to the journal, the xml is deleted once that's done
+            scheduleFastWriteLocked();
+        }
+    }
+
+    private void readJournalState() {
+        int oldVersion = NO_VERSION;
+        synchronized (mFile) {
+            synchronized (this) {
+                final SparseArray<byte[]> uids = new SparseArray<>();
+                boolean success = false;
+                mUidStates.clear();
+                mModeCache.invalidateAll();
+                try {
+                    oldVersion = mJournal.read(uids);
+                    for (int i = 0; i < uids.size(); i++) {
+                        readUidStateLocked(uids.keyAt(i), uids.valueAt(i));
+                    }
+                    success = true;
+                } catch (IOException e) {
+                    Slog.w(TAG, "Failed reading " + mJournal.getFile() + ": " + e);
+                } finally {
+                    if (!success) {
+                        mUidStates.clear();
+                    }
+                }
+            }
+        }
+        synchronized (this) {
+            upgradeLocked(oldVersion);
+        }
+    }
+
+    /**
+     * Restores the state of one uid from its journal record, as written by
+     * {@link #writeUidStateLocked}.
+     */
+    private void readUidStateLocked(int uid, byte[] record) throws IOException {
+        final DataInputStream in = new DataInputStream(new ByteArrayInputStream(record));
+        final UidState uidState = getUidStateLocked(uid, true);
+        final int uidOpCount = in.readInt();
+        for (int i = 0; i < uidOpCount; i++) {
+            final int code = in.readInt();
+            final int mode = in.readInt();
+            if (uidState.opModes == null) {
+                uidState.opModes = new SparseIntArray();
+            }
+            uidState.opModes.put(code, mode);
+        }
+        final int pkgCount = in.readInt();
+        for (int i = 0; i < pkgCount; i++) {
+            final String pkgName = in.readUTF();
+            final boolean isPrivileged = in.readBoolean();
+            final int opCount = in.readInt();
+            for (int j = 0; j < opCount; j++) {
+                // Ops are stored by name, their codes aren't stable across releases
+                final int code = AppOpsManager.nameToOp(in.readUTF());
+                final int mode = in.readInt();
+                final long[] time = readTimes(in);
+                final long[] rejectTime = readTimes(in);
+                final int duration = in.readInt();
+                final int proxyUid = in.readInt();
+                final String proxyPackageName = in.readBoolean() ? in.readUTF() : null;
+                final int allowedCount = in.readInt();
+                final int ignoredCount = in.readInt();
+                // skip op codes that are out of bounds
+                if (code == AppOpsManager.OP_NONE || code >= AppOpsManager._NUM_OP) {
+                    continue;
+                }
+
+                final Op op = new Op(uidState, pkgName, code, mode);
+                System.arraycopy(time, 0, op.time, 0, _NUM_UID_STATE);
+                System.arraycopy(rejectTime, 0, op.rejectTime, 0, _NUM_UID_STATE);
+                op.duration = duration;
+                op.proxyUid = proxyUid;
+                op.proxyPackageName = proxyPackageName;
+                op.allowedCount = allowedCount;
+                op.ignoredCount = ignoredCount;
+
+                if (uidState.pkgOps == null) {
+                    uidState.pkgOps = new ArrayMap<>();
+                }
+                Ops ops = uidState.pkgOps.get(pkgName);
+                if (ops == null) {
+                    ops = new Ops(pkgName, uidState, isPrivileged);
+                    uidState.pkgOps.put(pkgName, ops);
+                }
+                ops.put(op.op, op);
+            }
+        }
+        if (uidState.isDefault()) {
+            mUidStates.remove(uid);
+        } else {
+            uidState.evalForegroundOps(mOpModeWatchers);
+        }
+    }
+
+    /** Reads the times written by {@link #writeTimes}. */
+    private static long[] readTimes(DataInputStream in) throws IOException {
+        final long[] times = new long[_NUM_UID_STATE];
+        final int present = in.readUnsignedByte();
+        for (int i = 0; i < _NUM_UID_STATE; i++) {
+            if ((present & (1 << i)) != 0) {
+                times[i] = in.readLong();
+            }
         }
+        return times;
     }
 
     private void upgradeRunAnyInBackgroundLocked() {
@@ -2441,6 +2680,7 @@ public class AppOpsService extends IAppOpsService.Stub {
             return;
         }
         Slog.d(TAG, "Upgrading app-ops xml from version " + oldVersion + " to " + CURRENT_VERSION);
+        mModeCache.invalidateAll();
         switch (oldVersion) {
             case NO_VERSION:
                 upgradeRunAnyInBackgroundLocked();
@@ -2666,128 +2906,124 @@ public class AppOpsService extends IAppOpsService.Stub {
     }
 
     void writeState() {
+        boolean compact = false;
         synchronized (mFile) {
-            FileOutputStream stream;
-            try {
-                stream = mFile.startWrite();
-            } catch (IOException e) {
-                Slog.w(TAG, "Failed to write state: " + e);
-                return;
+            final SparseArray<byte[]> uids = new SparseArray<>();
+            final boolean snapshot;
+            synchronized (this) {
+                snapshot = mAllUidsDirty || mJournal.needsSnapshot();
+                try {
+                    if (snapshot) {
+                        for (int i = 0; i < mUidStates.size(); i++) {
+                            final byte[] record = writeUidStateLocked(mUidStates.keyAt(i));
+                            if (record != null) {
+                                uids.put(mUidStates.keyAt(i), record);
+                            }
+                        }
+                    } else {
+                        for (int i = 0; i < mDirtyUids.size(); i++) {
+                            // A null record removes the uid
+                            uids.put(mDirtyUids.keyAt(i), writeUidStateLocked(mDirtyUids.keyAt(i)));
+                        }
+                    }
+                } catch (IOException e) {
+                    Slog.w(TAG, "Failed to write state: " + e);
+                    mAllUidsDirty = true;
+                    return;
+                }
+                mDirtyUids.clear();
+                mAllUidsDirty = false;
             }
 
-            List<AppOpsManager.PackageOps> allOps = getPackagesForOps(null);
-
             try {
-                XmlSerializer out = new FastXmlSerializer();
-                out.setOutput(stream, StandardCharsets.UTF_8.name());
-                out.startDocument(null, true);
-                out.startTag(null, "app-ops");
-                out.attribute(null, "v", String.valueOf(CURRENT_VERSION));
-
-                final int uidStateCount = mUidStates.size();
-                for (int i = 0; i < uidStateCount; i++) {
-                    UidState uidState = mUidStates.valueAt(i);
-                    if (uidState.opModes != null && uidState.opModes.size() > 0) {
-                        out.startTag(null, "uid");
-                        out.attribute(null, "n", Integer.toString(uidState.uid));
-                        SparseIntArray uidOpModes = uidState.opModes;
-                        final int opCount = uidOpModes.size();
-                        for (int j = 0; j < opCount; j++) {
-                            final int op = uidOpModes.keyAt(j);
-                            final int mode = uidOpModes.valueAt(j);
-                            out.startTag(null, "op");
-                            out.attribute(null, "n", Integer.toString(op));
-                            out.attribute(null, "m", Integer.toString(mode));
-                            out.endTag(null, "op");
-                        }
-                        out.endTag(null, "uid");
+                if (snapshot) {
+                    mJournal.writeSnapshot(CURRENT_VERSION, uids);
+                    if (mFile.exists()) {
+                        // Migrated, don't let a stale xml come back if the journal is lost
+                        mFile.delete();
                     }
+                } else {
+                    mJournal.append(CURRENT_VERSION, uids);
+                    compact = mJournal.needsSnapshot();
                 }
+            } catch (IOException e) {
+                Slog.w(TAG, "Failed to write state, writing everything next time.", e);
+                synchronized (this) {
+                    mAllUidsDirty = true;
+                }
+            }
+        }
+        if (compact) {
+            AsyncTask.THREAD_POOL_EXECUTOR.execute(this::writeState);
+        }
+    }
 
-                if (allOps != null) {
-                    String lastPkg = null;
-                    for (int i=0; i<allOps.size(); i++) {
-                        AppOpsManager.PackageOps pkg = allOps.get(i);
-                        if (!pkg.getPackageName().equals(lastPkg)) {
-                            if (lastPkg != null) {
-                                out.endTag(null, "pkg");
-                            }
-                            lastPkg = pkg.getPackageName();
-                            out.startTag(null, "pkg");
-                            out.attribute(null, "n", lastPkg);
-                        }
-                        out.startTag(null, "uid");
-                        out.attribute(null, "n", Integer.toString(pkg.getUid()));
-                        synchronized (this) {
-                            Ops ops = getOpsRawLocked(pkg.getUid(), pkg.getPackageName(),
-                                    false /* edit */, false /* uidMismatchExpected */);
-                            // Should always be present as the list of PackageOps is generated
-                            // from Ops.
-                            if (ops != null) {
-                                out.attribute(null, "p", Boolean.toString(ops.isPrivileged));
-                            } else {
-                                out.attribute(null, "p", Boolean.toString(false));
-                            }
-                        }
-                        List<AppOpsManager.OpEntry> ops = pkg.getOps();
-                        for (int j=0; j<ops.size(); j++) {
-                            AppOpsManager.OpEntry op = ops.get(j);
-                            out.startTag(null, "op");
-                            out.attribute(null, "n", Integer.toString(op.getOp()));
-                            out.attribute(null, "ns", AppOpsManager.opToName(op.getOp()));
-                            int defaultMode = AppOpsManager.opToDefaultMode(op.getOp());
-                            if (op.getMode() != defaultMode) {
-                                out.attribute(null, "m", Integer.toString(op.getMode()));
-                            } else {
-                                out.attribute(null, "dm", Integer.toString(defaultMode));
-                            }
-                            for (int k = 0; k < _NUM_UID_STATE; k++) {
-                                final long time = op.getLastTimeFor(k);
-                                if (time != 0) {
-                                    out.attribute(null, UID_STATE_TIME_ATTRS[k],
-                                            Long.toString(time));
-                                }
-                                final long rejectTime = op.getLastRejectTimeFor(k);
-                                if (rejectTime != 0) {
-                                    out.attribute(null, UID_STATE_REJECT_ATTRS[k],
-                                            Long.toString(rejectTime));
-                                }
-                            }
-                            int dur = op.getDuration();
-                            if (dur != 0) {
-                                out.attribute(null, "d", Integer.toString(dur));
-                            }
-                            int proxyUid = op.getProxyUid();
-                            if (proxyUid != -1) {
-                                out.attribute(null, "pu", Integer.toString(proxyUid));
-                            }
-                            String proxyPackageName = op.getProxyPackageName();
-                            if (proxyPackageName != null) {
-                                out.attribute(null, "pp", proxyPackageName);
-                            }
-                            int allowed = op.getAllowedCount();
-                            if (allowed != 0) {
-                                out.attribute(null, "ac", Integer.toString(allowed));
-                            }
-                            int ignored = op.getIgnoredCount();
-                            if (ignored != 0) {
-                                out.attribute(null, "ic", Integer.toString(ignored));
-                            }
-                            out.endTag(null, "op");
-                        }
-                        out.endTag(null, "uid");
-                    }
-                    if (lastPkg != null) {
-                        out.endTag(null, "pkg");
-                    }
+    /**
+     * Encodes the persisted state of one uid into a journal record.
+     *
+     * @return the record, or {@code null} if the uid has no state worth keeping
+     */
+    private byte[] writeUidStateLocked(int uid) throws IOException {
+        final UidState uidState = mUidStates.get(uid);
+        if (uidState == null || uidState.isDefault()) {
+            return null;
+        }
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final DataOutputStream out = new DataOutputStream(bytes);
+        final SparseIntArray uidOpModes = uidState.opModes;
+        final int uidOpCount = uidOpModes != null ? uidOpModes.size() : 0;
+        out.writeInt(uidOpCount);
+        for (int i = 0; i < uidOpCount; i++) {
+            out.writeInt(uidOpModes.keyAt(i));
+            out.writeInt(uidOpModes.valueAt(i));
+        }
+
+        final ArrayMap<String, Ops> pkgOps = uidState.pkgOps;
+        final int pkgCount = pkgOps != null ? pkgOps.size() : 0;
+        out.writeInt(pkgCount);
+        final long elapsedNow = SystemClock.elapsedRealtime();
+        for (int i = 0; i < pkgCount; i++) {
+            final Ops ops = pkgOps.valueAt(i);
+            out.writeUTF(ops.packageName);
+            out.writeBoolean(ops.isPrivileged);
+            out.writeInt(ops.size());
+            for (int j = 0; j < ops.size(); j++) {
+                final Op op = ops.valueAt(j);
+                out.writeUTF(AppOpsManager.opToName(op.op));
+                out.writeInt(op.mode);
+                writeTimes(out, op.time);
+                writeTimes(out, op.rejectTime);
+                // Like the xml, store how long a running op has been running for so far
+                out.writeInt(op.duration == -1
+                        ? (int) (elapsedNow - op.startRealtime) : op.duration);
+                out.writeInt(op.proxyUid);
+                out.writeBoolean(op.proxyPackageName != null);
+                if (op.proxyPackageName != null) {
+                    out.writeUTF(op.proxyPackageName);
                 }
+                out.writeInt(op.allowedCount);
+                out.writeInt(op.ignoredCount);
+            }
+        }
+        out.flush();
+        return bytes.toByteArray();
+    }
 
-                out.endTag(null, "app-ops");
-                out.endDocument();
-                mFile.finishWrite(stream);
-            } catch (IOException e) {
-                Slog.w(TAG, "Failed to write state, restoring backup.", e);
-                mFile.failWrite(stream);
+    /**
+     * Writes the times that are set, preceded by a bitmask of which ones they are, most are
+     * never set.
+     */
+    private static void writeTimes(DataOutputStream out, long[] times) throws IOException {
+        int present = 0;
+        for (int i = 0; i < _NUM_UID_STATE; i++) {
+            if (times[i] != 0) {
+                present |= 1 << i;
+            }
+        }
+        out.writeByte(present);
+        for (int i = 0; i < _NUM_UID_STATE; i++) {
+            if (times[i] != 0) {
+                out.writeLong(times[i]);
             }
         }
     }
@@ -3338,6 +3574,7 @@ public class AppOpsService extends IAppOpsService.Stub {
         synchronized (this) {
             pw.println("Current AppOps Service state:");
             mConstants.dump(pw);
+            mModeCache.dump(pw);
             pw.println();
             final long now = System.currentTimeMillis();
             final long nowElapsed = SystemClock.elapsedRealtime();
@@ -3797,6 +4034,7 @@ public class AppOpsService extends IAppOpsService.Stub {
                 mOpUserRestrictions.remove(token);
                 restrictionState.destroy();
             }
+            updateRestrictedOpsLocked();
         }
     }
 
@@ -3822,6 +4060,7 @@ public class AppOpsService extends IAppOpsService.Stub {
                 ClientRestrictionState opRestrictions = mOpUserRestrictions.valueAt(i);
                 opRestrictions.removeUser(userHandle);
             }
+            updateRestrictedOpsLocked();
             removeUidsForUserLocked(userHandle);
         }
     }
@@ -3856,6 +4095,8 @@ public class AppOpsService extends IAppOpsService.Stub {
             final int uid = mUidStates.keyAt(i);
             if (UserHandle.getUserId(uid) == userHandle) {
                 mUidStates.removeAt(i);
+                mDirtyUids.put(uid, true);
+                mModeCache.invalidate(uid);
             }
         }
     }
@@ -3985,7 +4226,8 @@ public class AppOpsService extends IAppOpsService.Stub {
                         // if there is nothing else interesting in it.
                         pruneOp(op, uid, packageName);
                     }
-                    scheduleWriteLocked();
+                    mModeCache.invalidate(uid);
+                    scheduleWriteLocked(uid);
                 }
             }
             UidState uidState = getUidStateLocked(uid, false);
@@ -4179,6 +4421,7 @@ public class AppOpsService extends IAppOpsService.Stub {
         public void binderDied() {
             synchronized (AppOpsService.this) {
                 mOpUserRestrictions.remove(token);
+                updateRestrictedOpsLocked();
                 if (perUserRestrictions == null) {
                     return;
                 }
@@ -33,6 +33,9 @@ public class BinderCallsStatsService extends Binder {
     private static final String PERSIST_SYS_BINDER_CALLS_DETAILED_TRACKING
             = "persist.sys.binder_calls_detailed_tracking";
 
+    private static final String PERSIST_SYS_BINDER_CALLS_SAMPLING_INTERVAL
+            = "persist.sys.binder_calls_sampling_interval";
+
     public static void start() {
         BinderCallsStatsService service = new BinderCallsStatsService();
         ServiceManager.addService("binder_calls_stats", service);
@@ -45,6 +48,12 @@ public class BinderCallsStatsService extends Binder {
                     + " or via dumpsys binder_calls_stats --enable-detailed-tracking");
             BinderCallsStats.getInstance().setDetailedTracking(true);
         }
+        int samplingInterval = SystemProperties.getInt(
+                PERSIST_SYS_BINDER_CALLS_SAMPLING_INTERVAL, 1);
+        if (samplingInterval > 1) {
+            Slog.i(TAG, "Sampling 1 in " + samplingInterval + " binder calls");
+            BinderCallsStats.getInstance().setSamplingInterval(samplingInterval);
+        }
     }
 
     public static void reset() {
@@ -55,7 +64,8 @@ public class BinderCallsStatsService extends Binder {
     @Override
     protected void dump(FileDescriptor fd, PrintWriter pw, String[] args) {
         if (args != null) {
-            for (final String arg : args) {
+            for (int i = 0; i < args.length; i++) {
+                final String arg = args[i];
                 if ("-a".equals(arg)) {
                     // We currently dump all information by default
                     continue;
@@ -73,11 +83,30 @@ public class BinderCallsStatsService extends Binder {
                     BinderCallsStats.getInstance().setDetailedTracking(false);
                     pw.println("Detailed tracking disabled");
                     return;
+                } else if ("--sampling-interval".equals(arg)) {
+                    final int interval;
+                    try {
+                        interval = Integer.parseInt(args[++i]);
+                    } catch (ArrayIndexOutOfBoundsException | NumberFormatException e) {
+                        pw.println("--sampling-interval requires a positive integer");
+                        return;
+                    }
+                    if (interval < 1) {
+                        pw.println("--sampling-interval requires a positive integer");
+                        return;
+                    }
+                    SystemProperties.set(PERSIST_SYS_BINDER_CALLS_SAMPLING_INTERVAL,
+                            Integer.toString(interval));
+                    BinderCallsStats.getInstance().setSamplingInterval(interval);
+                    pw.println("Sampling interval set to " + interval);
+                    return;
                 } else if ("-h".equals(arg)) {
                     pw.println("binder_calls_stats commands:");
                     pw.println("  --reset: Reset stats");
                     pw.println("  --enable-detailed-tracking: Enables detailed tracking");
                     pw.println("  --disable-detailed-tracking: Disables detailed tracking");
+                    pw.println("  --sampling-interval N: Measure CPU time and latency of one"
+                            + " in every N calls");
                     return;
                 } else {
                     pw.println("Unknown option: " + arg);
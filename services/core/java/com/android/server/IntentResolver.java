@@ -23,6 +23,7 @@ import java.util.Collections;
 import java.util.Comparator;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Objects;
 import java.util.Set;
 
 import android.net.Uri;
@@ -34,6 +35,7 @@ import android.util.MutableInt;
 import android.util.PrintWriterPrinter;
 import android.util.Slog;
 import android.util.LogPrinter;
+import android.util.LruCache;
 import android.util.Printer;
 
 import android.content.Intent;
@@ -51,6 +53,65 @@ public abstract class IntentResolver<F extends IntentFilter, R extends Object> {
     final private static boolean localLOGV = DEBUG || false;
     final private static boolean localVerificationLOGV = DEBUG || false;
 
+    /** Number of distinct intents whose matching filters are remembered */
+    final private static int MATCH_CACHE_SIZE = 64;
+
+    /**
+     * The properties of an intent that {@link IntentFilter#match} depends on.
+     */
+    private static final class MatchKey {
+        final String action;
+        final String resolvedType;
+        final Uri data;
+        final Set<String> categories;
+        final int hashCode;
+
+        MatchKey(Intent intent, String resolvedType) {
+            this.action = intent.getAction();
+            this.resolvedType = resolvedType;
+            this.data = intent.getData();
+            final Set<String> categories = intent.getCategories();
+            this.categories = categories != null ? new ArraySet<>(categories) : null;
+            this.hashCode = Objects.hash(action, resolvedType, data, this.categories);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof MatchKey)) {
+                return false;
+            }
+            final MatchKey other = (MatchKey) o;
+            return hashCode == other.hashCode
+                    && Objects.equals(action, other.action)
+                    && Objects.equals(resolvedType, other.resolvedType)
+                    && Objects.equals(data, other.data)
+                    && Objects.equals(categories, other.categories);
+        }
+
+        @Override
+        public int hashCode() {
+            return hashCode;
+        }
+    }
+
+    /**
+     * The filters that matched an intent, with their match codes, as of a given
+     * resolver generation.
+     */
+    private final class MatchResult {
+        final int generation;
+        final F[] filters;
+        final int[] matches;
+        final int count;
+
+        MatchResult(int generation, F[] filters, int[] matches, int count) {
+            this.generation = generation;
+            this.filters = filters;
+            this.matches = matches;
+            this.count = count;
+        }
+    }
+
     public void addFilter(F f) {
         if (localLOGV) {
             Slog.v(TAG, "Adding filter: " + f);
@@ -59,6 +120,7 @@ public abstract class IntentResolver<F extends IntentFilter, R extends Object> {
         }
 
         mFilters.add(f);
+        mGeneration++;
         int numS = register_intent_filter(f, f.schemesIterator(),
                 mSchemeToFilter, "      Scheme: ");
         int numT = register_mime_types(f, "      Type: ");
@@ -202,6 +264,8 @@ public abstract class IntentResolver<F extends IntentFilter, R extends Object> {
             Slog.v(TAG, "    Cleaning Lookup Maps:");
         }
 
+        mGeneration++;
+
         int numS = unregister_intent_filter(f, f.schemesIterator(),
                 mSchemeToFilter, "      Scheme: ");
         int numT = unregister_mime_types(f, "      Type: ");
@@ -335,6 +399,11 @@ public abstract class IntentResolver<F extends IntentFilter, R extends Object> {
                 mTypedActionToFilter, packageName, printFilter, collapseDuplicates)) {
             curPrefix = sepPrefix;
         }
+        if (curPrefix == sepPrefix && packageName == null) {
+            out.print(sepPrefix); out.print("Match cache: ");
+            out.print(mMatchCacheHits); out.print(" hits, ");
+            out.print(mMatchCacheMisses); out.println(" misses");
+        }
         return curPrefix == sepPrefix;
     }
 
@@ -409,6 +478,51 @@ public abstract class IntentResolver<F extends IntentFilter, R extends Object> {
             TAG, "Resolving type=" + resolvedType + " scheme=" + scheme
             + " defaultOnly=" + defaultOnly + " userId=" + userId + " of " + intent);
 
+        FastImmutableArraySet<String> categories = getFastIntentCategories(intent);
+
+        if (!debug) {
+            // The filters matching an intent only change when filters are added or
+            // removed, so reuse them and only apply the per-query checks below.
+            final MatchKey key = new MatchKey(intent, resolvedType);
+            MatchResult matches = mMatchCache.get(key);
+            if (matches == null || matches.generation != mGeneration) {
+                mMatchCacheMisses++;
+                matches = collectMatches(intent, categories, resolvedType, scheme);
+                mMatchCache.put(key, matches);
+            } else {
+                mMatchCacheHits++;
+            }
+            buildResolveList(intent, defaultOnly, matches, finalList, userId);
+            filterResults(finalList);
+            sortResults(finalList);
+            return finalList;
+        }
+
+        final F[][] cuts = getCuts(intent, resolvedType, scheme, debug);
+        for (F[] cut : cuts) {
+            if (cut != null) {
+                buildResolveList(intent, categories, debug, defaultOnly, resolvedType,
+                        scheme, cut, finalList, userId);
+            }
+        }
+        filterResults(finalList);
+        sortResults(finalList);
+
+        if (debug) {
+            Slog.v(TAG, "Final result list:");
+            for (int i=0; i<finalList.size(); i++) {
+                Slog.v(TAG, "  " + finalList.get(i));
+            }
+        }
+        return finalList;
+    }
+
+    /**
+     * Returns the candidate filter lists for the intent, in the order they must be
+     * matched: up to three MIME type cuts (or the action cut for intents without data)
+     * followed by the scheme cut.
+     */
+    private F[][] getCuts(Intent intent, String resolvedType, String scheme, boolean debug) {
         F[] firstTypeCut = null;
         F[] secondTypeCut = null;
         F[] thirdTypeCut = null;
@@ -468,33 +582,77 @@ public abstract class IntentResolver<F extends IntentFilter, R extends Object> {
             if (debug) Slog.v(TAG, "Action list: " + Arrays.toString(firstTypeCut));
         }
 
-        FastImmutableArraySet<String> categories = getFastIntentCategories(intent);
-        if (firstTypeCut != null) {
-            buildResolveList(intent, categories, debug, defaultOnly, resolvedType,
-                    scheme, firstTypeCut, finalList, userId);
-        }
-        if (secondTypeCut != null) {
-            buildResolveList(intent, categories, debug, defaultOnly, resolvedType,
-                    scheme, secondTypeCut, finalList, userId);
-        }
-        if (thirdTypeCut != null) {
-            buildResolveList(intent, categories, debug, defaultOnly, resolvedType,
-                    scheme, thirdTypeCut, finalList, userId);
+        @SuppressWarnings("unchecked")
+        final F[][] cuts = (F[][]) new IntentFilter[4][];
+        cuts[0] = firstTypeCut;
+        cuts[1] = secondTypeCut;
+        cuts[2] = thirdTypeCut;
+        cuts[3] = schemeCut;
+        return cuts;
+    }
+
+    /**
+     * Runs {@link IntentFilter#match} against every candidate filter for the intent and
+     * returns the filters that matched, in candidate order.
+     */
+    private MatchResult collectMatches(Intent intent, FastImmutableArraySet<String> categories,
+            String resolvedType, String scheme) {
+        final String action = intent.getAction();
+        final Uri data = intent.getData();
+        final F[][] cuts = getCuts(intent, resolvedType, scheme, false);
+
+        int count = 0;
+        for (F[] cut : cuts) {
+            count += cut != null ? cut.length : 0;
         }
-        if (schemeCut != null) {
-            buildResolveList(intent, categories, debug, defaultOnly, resolvedType,
-                    scheme, schemeCut, finalList, userId);
+        final F[] filters = newArray(count);
+        final int[] matches = new int[count];
+        int numMatched = 0;
+        for (int c = 0; c < cuts.length; c++) {
+            final F[] cut = cuts[c];
+            final int N = cut != null ? cut.length : 0;
+            F filter;
+            for (int i = 0; i < N && (filter = cut[i]) != null; i++) {
+                final int match = filter.match(action, resolvedType, scheme, data, categories,
+                        TAG);
+                if (match >= 0) {
+                    filters[numMatched] = filter;
+                    matches[numMatched] = match;
+                    numMatched++;
+                }
+            }
         }
-        filterResults(finalList);
-        sortResults(finalList);
+        return new MatchResult(mGeneration, filters, matches, numMatched);
+    }
 
-        if (debug) {
-            Slog.v(TAG, "Final result list:");
-            for (int i=0; i<finalList.size(); i++) {
-                Slog.v(TAG, "  " + finalList.get(i));
+    /**
+     * Applies the per-query checks to previously {@link #collectMatches collected}
+     * matches and adds the results to {@code dest}.
+     */
+    private void buildResolveList(Intent intent, boolean defaultOnly, MatchResult matches,
+            List<R> dest, int userId) {
+        final String packageName = intent.getPackage();
+        final boolean excludingStopped = intent.isExcludingStopped();
+        final F[] filters = matches.filters;
+        final int N = matches.count;
+        for (int i = 0; i < N; i++) {
+            final F filter = filters[i];
+            if (excludingStopped && isFilterStopped(filter, userId)) {
+                continue;
+            }
+            if (packageName != null && !isPackageForFilter(packageName, filter)) {
+                continue;
+            }
+            if (!allowFilterResult(filter, dest)) {
+                continue;
+            }
+            if (!defaultOnly || filter.hasCategory(Intent.CATEGORY_DEFAULT)) {
+                final R oneResult = newResult(filter, matches.matches[i], userId);
+                if (oneResult != null) {
+                    dest.add(oneResult);
+                }
             }
         }
-        return finalList;
     }
 
     /**
@@ -838,6 +996,15 @@ public abstract class IntentResolver<F extends IntentFilter, R extends Object> {
      */
     private final ArraySet<F> mFilters = new ArraySet<F>();
 
+    /** Incremented whenever a filter is added or removed; stamps {@link #mMatchCache} */
+    private int mGeneration;
+
+    /** Recently computed matches, only valid for the generation they were computed at */
+    private final LruCache<MatchKey, MatchResult> mMatchCache =
+            new LruCache<>(MATCH_CACHE_SIZE);
+    private int mMatchCacheHits;
+    private int mMatchCacheMisses;
+
     /**
      * All of the MIME types that have been registered, such as "image/jpeg",
      * "image/*", or "{@literal *}/*".
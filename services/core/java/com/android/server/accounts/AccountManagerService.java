@@ -130,6 +130,7 @@ import java.util.Map.Entry;
 import java.util.Objects;
 import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.atomic.AtomicReference;
 
@@ -209,13 +210,22 @@ public class AccountManagerService
                 = new HashMap<>();
         final Object cacheLock = new Object();
         final Object dbLock = new Object(); // if needed, dbLock must be obtained before cacheLock
-        /** protected by the {@link #cacheLock} */
-        final HashMap<String, Account[]> accountCache = new LinkedHashMap<>();
-        /** protected by the {@link #cacheLock} */
-        private final Map<Account, Map<String, String>> userDataCache = new HashMap<>();
-        /** protected by the {@link #cacheLock} */
-        private final Map<Account, Map<String, String>> authTokenCache = new HashMap<>();
-        /** protected by the {@link #cacheLock} */
+        /**
+         * Accounts by type. Never modified, only replaced under the {@link #cacheLock} by an
+         * updated copy, so that it can be read without the lock.
+         */
+        volatile Map<String, Account[]> accountCache = Collections.emptyMap();
+        /**
+         * Written under the {@link #cacheLock}, read without it. The map of an account is never
+         * modified, only replaced by an updated copy.
+         */
+        private final Map<Account, Map<String, String>> userDataCache = new ConcurrentHashMap<>();
+        /**
+         * Written under the {@link #cacheLock}, read without it. The map of an account is never
+         * modified, only replaced by an updated copy.
+         */
+        private final Map<Account, Map<String, String>> authTokenCache = new ConcurrentHashMap<>();
+        /** Thread safe; written under the {@link #cacheLock}, read without it. */
         private final TokenCache accountTokenCaches = new TokenCache();
         /** protected by the {@link #cacheLock} */
         private final Map<Account, Map<String, Integer>> visibilityCache = new HashMap<>();
@@ -252,6 +262,20 @@ public class AccountManagerService
                 }
             }
         }
+
+        /**
+         * Replaces the cached accounts of a type, or drops them if {@code accountsOfType} is
+         * null. protected by the {@link #cacheLock}
+         */
+        void setCachedAccountsLocked(String accountType, Account[] accountsOfType) {
+            final Map<String, Account[]> newCache = new LinkedHashMap<>(accountCache);
+            if (accountsOfType == null) {
+                newCache.remove(accountType);
+            } else {
+                newCache.put(accountType, accountsOfType);
+            }
+            accountCache = Collections.unmodifiableMap(newCache);
+        }
     }
 
     private final SparseArray<UserAccounts> mUsers = new SparseArray<>();
@@ -1178,7 +1202,7 @@ public class AccountManagerService
 
                 final Map<Long, Account> accountsMap = accountsDb.findAllDeAccounts();
                 try {
-                    accounts.accountCache.clear();
+                    final Map<String, Account[]> accountCache = new LinkedHashMap<>();
                     final HashMap<String, ArrayList<String>> accountNamesByType
                             = new LinkedHashMap<>();
                     for (Entry<Long, Account> accountEntry : accountsMap.entrySet()) {
@@ -1241,8 +1265,9 @@ public class AccountManagerService
                             accountsForType[i] = new Account(accountNames.get(i), accountType,
                                     UUID.randomUUID().toString());
                         }
-                        accounts.accountCache.put(accountType, accountsForType);
+                        accountCache.put(accountType, accountsForType);
                     }
+                    accounts.accountCache = Collections.unmodifiableMap(accountCache);
                     accounts.visibilityCache.putAll(accountsDb.findAllVisibilityValues());
                 } finally {
                     if (accountDeleted) {
@@ -1314,6 +1339,7 @@ public class AccountManagerService
                     }
                 }
                 syncDeCeAccountsLocked(accounts);
+                prefetchCeDataLocked(accounts);
             }
             if (validateAccounts) {
                 validateAccountsInternal(accounts, true /* invalidateAuthenticatorCache */);
@@ -1322,6 +1348,28 @@ public class AccountManagerService
         }
     }
 
+    /**
+     * Loads the user data and auth tokens of all the accounts of the user into their caches,
+     * with one query each, rather than a couple of queries per account as they are first read.
+     */
+    private void prefetchCeDataLocked(UserAccounts accounts) {
+        Preconditions.checkState(Thread.holdsLock(mUsers), "mUsers lock must be held");
+        synchronized (accounts.dbLock) {
+            synchronized (accounts.cacheLock) {
+                for (Entry<Account, Map<String, String>> entry
+                        : accounts.accountsDb.findAllUserExtras().entrySet()) {
+                    accounts.userDataCache.put(entry.getKey(),
+                            Collections.unmodifiableMap(entry.getValue()));
+                }
+                for (Entry<Account, Map<String, String>> entry
+                        : accounts.accountsDb.findAllAuthTokens().entrySet()) {
+                    accounts.authTokenCache.put(entry.getKey(),
+                            Collections.unmodifiableMap(entry.getValue()));
+                }
+            }
+        }
+    }
+
     private void syncDeCeAccountsLocked(UserAccounts accounts) {
         Preconditions.checkState(Thread.holdsLock(mUsers), "mUsers lock must be held");
         List<Account> accountsToRemove = accounts.accountsDb.findCeAccountsNotInDe();
@@ -2060,8 +2108,12 @@ public class AccountManagerService
              * Update the cached data associated with the renamed
              * account.
              */
-                accounts.userDataCache.put(renamedAccount, tmpData);
-                accounts.authTokenCache.put(renamedAccount, tmpTokens);
+                if (tmpData != null) {
+                    accounts.userDataCache.put(renamedAccount, tmpData);
+                }
+                if (tmpTokens != null) {
+                    accounts.authTokenCache.put(renamedAccount, tmpTokens);
+                }
                 accounts.visibilityCache.put(renamedAccount, tmpVisibility);
                 accounts.previousNameCache.put(
                         renamedAccount,
@@ -2663,12 +2715,11 @@ public class AccountManagerService
     }
 
     private boolean accountExistsCache(UserAccounts accounts, Account account) {
-        synchronized (accounts.cacheLock) {
-            if (accounts.accountCache.containsKey(account.type)) {
-                for (Account acc : accounts.accountCache.get(account.type)) {
-                    if (acc.name.equals(account.name)) {
-                        return true;
-                    }
+        final Account[] accountsOfType = accounts.accountCache.get(account.type);
+        if (accountsOfType != null) {
+            for (Account acc : accountsOfType) {
+                if (acc.name.equals(account.name)) {
+                    return true;
                 }
             }
         }
@@ -5562,8 +5613,9 @@ public class AccountManagerService
     }
 
     private boolean isAccountPresentForCaller(String accountName, String accountType) {
-        if (getUserAccountsForCaller().accountCache.containsKey(accountType)) {
-            for (Account account : getUserAccountsForCaller().accountCache.get(accountType)) {
+        final Account[] accountsOfType = getUserAccountsForCaller().accountCache.get(accountType);
+        if (accountsOfType != null) {
+            for (Account account : accountsOfType) {
                 if (account.name.equals(accountName)) {
                     return true;
                 }
@@ -5804,11 +5856,11 @@ public class AccountManagerService
                 }
             }
             if (newAccountsList.isEmpty()) {
-                accounts.accountCache.remove(account.type);
+                accounts.setCachedAccountsLocked(account.type, null);
             } else {
                 Account[] newAccountsForType = new Account[newAccountsList.size()];
                 newAccountsForType = newAccountsList.toArray(newAccountsForType);
-                accounts.accountCache.put(account.type, newAccountsForType);
+                accounts.setCachedAccountsLocked(account.type, newAccountsForType);
             }
         }
         accounts.userDataCache.remove(account);
@@ -5833,7 +5885,7 @@ public class AccountManagerService
         String token = account.getAccessId() != null ? account.getAccessId()
                 : UUID.randomUUID().toString();
         newAccountsForType[oldLength] = new Account(account, token);
-        accounts.accountCache.put(account.type, newAccountsForType);
+        accounts.setCachedAccountsLocked(account.type, newAccountsForType);
         return newAccountsForType[oldLength];
     }
 
@@ -5951,11 +6003,10 @@ public class AccountManagerService
             int callingUid, @Nullable String callingPackage, boolean includeManagedNotVisible) {
         Preconditions.checkState(!Thread.holdsLock(userAccounts.cacheLock),
                 "Method should not be called with cacheLock");
+        // The cache is replaced rather than modified, so a snapshot of it needs no lock.
+        final Map<String, Account[]> accountCache = userAccounts.accountCache;
         if (accountType != null) {
-            Account[] accounts;
-            synchronized (userAccounts.cacheLock) {
-                accounts = userAccounts.accountCache.get(accountType);
-            }
+            final Account[] accounts = accountCache.get(accountType);
             if (accounts == null) {
                 return EMPTY_ACCOUNT_ARRAY;
             } else {
@@ -5964,21 +6015,18 @@ public class AccountManagerService
             }
         } else {
             int totalLength = 0;
-            Account[] accountsArray;
-            synchronized (userAccounts.cacheLock) {
-                for (Account[] accounts : userAccounts.accountCache.values()) {
-                    totalLength += accounts.length;
-                }
-                if (totalLength == 0) {
-                    return EMPTY_ACCOUNT_ARRAY;
-                }
-                accountsArray = new Account[totalLength];
-                totalLength = 0;
-                for (Account[] accountsOfType : userAccounts.accountCache.values()) {
-                    System.arraycopy(accountsOfType, 0, accountsArray, totalLength,
-                            accountsOfType.length);
-                    totalLength += accountsOfType.length;
-                }
+            for (Account[] accounts : accountCache.values()) {
+                totalLength += accounts.length;
+            }
+            if (totalLength == 0) {
+                return EMPTY_ACCOUNT_ARRAY;
+            }
+            final Account[] accountsArray = new Account[totalLength];
+            totalLength = 0;
+            for (Account[] accountsOfType : accountCache.values()) {
+                System.arraycopy(accountsOfType, 0, accountsArray, totalLength,
+                        accountsOfType.length);
+                totalLength += accountsOfType.length;
             }
             return filterAccounts(userAccounts, accountsArray, callingUid, callingPackage,
                     includeManagedNotVisible);
@@ -5991,13 +6039,16 @@ public class AccountManagerService
         Map<String, String> userDataForAccount = accounts.userDataCache.get(account);
         if (userDataForAccount == null) {
             userDataForAccount = accounts.accountsDb.findUserExtrasForAccount(account);
-            accounts.userDataCache.put(account, userDataForAccount);
+        } else {
+            // Readers may be holding on to the cached map.
+            userDataForAccount = new HashMap<>(userDataForAccount);
         }
         if (value == null) {
             userDataForAccount.remove(key);
         } else {
             userDataForAccount.put(key, value);
         }
+        accounts.userDataCache.put(account, Collections.unmodifiableMap(userDataForAccount));
     }
 
     protected String readCachedTokenInternal(
@@ -6006,10 +6057,7 @@ public class AccountManagerService
             String tokenType,
             String callingPackage,
             byte[] pkgSigDigest) {
-        synchronized (accounts.cacheLock) {
-            return accounts.accountTokenCaches.get(
-                    account, tokenType, callingPackage, pkgSigDigest);
-        }
+        return accounts.accountTokenCaches.get(account, tokenType, callingPackage, pkgSigDigest);
     }
 
     /** protected by the {@code dbLock}, {@code cacheLock} */
@@ -6018,23 +6066,24 @@ public class AccountManagerService
         Map<String, String> authTokensForAccount = accounts.authTokenCache.get(account);
         if (authTokensForAccount == null) {
             authTokensForAccount = accounts.accountsDb.findAuthTokensByAccount(account);
-            accounts.authTokenCache.put(account, authTokensForAccount);
+        } else {
+            // Readers may be holding on to the cached map.
+            authTokensForAccount = new HashMap<>(authTokensForAccount);
         }
         if (value == null) {
             authTokensForAccount.remove(key);
         } else {
             authTokensForAccount.put(key, value);
         }
+        accounts.authTokenCache.put(account, Collections.unmodifiableMap(authTokensForAccount));
     }
 
     protected String readAuthTokenInternal(UserAccounts accounts, Account account,
             String authTokenType) {
-        // Fast path - check if account is already cached
-        synchronized (accounts.cacheLock) {
-            Map<String, String> authTokensForAccount = accounts.authTokenCache.get(account);
-            if (authTokensForAccount != null) {
-                return authTokensForAccount.get(authTokenType);
-            }
+        // Fast path - check if account is already cached, which needs no lock
+        Map<String, String> cachedAuthTokens = accounts.authTokenCache.get(account);
+        if (cachedAuthTokens != null) {
+            return cachedAuthTokens.get(authTokenType);
         }
         // If not cached yet - do slow path and sync with db if necessary
         synchronized (accounts.dbLock) {
@@ -6042,7 +6091,8 @@ public class AccountManagerService
                 Map<String, String> authTokensForAccount = accounts.authTokenCache.get(account);
                 if (authTokensForAccount == null) {
                     // need to populate the cache for this account
-                    authTokensForAccount = accounts.accountsDb.findAuthTokensByAccount(account);
+                    authTokensForAccount = Collections.unmodifiableMap(
+                            accounts.accountsDb.findAuthTokensByAccount(account));
                     accounts.authTokenCache.put(account, authTokensForAccount);
                 }
                 return authTokensForAccount.get(authTokenType);
@@ -6052,10 +6102,8 @@ public class AccountManagerService
 
     private String readUserDataInternal(UserAccounts accounts, Account account, String key) {
         Map<String, String> userDataForAccount;
-        // Fast path - check if data is already cached
-        synchronized (accounts.cacheLock) {
-            userDataForAccount = accounts.userDataCache.get(account);
-        }
+        // Fast path - check if data is already cached, which needs no lock
+        userDataForAccount = accounts.userDataCache.get(account);
         // If not cached yet - do slow path and sync with db if necessary
         if (userDataForAccount == null) {
             synchronized (accounts.dbLock) {
@@ -6063,7 +6111,8 @@ public class AccountManagerService
                     userDataForAccount = accounts.userDataCache.get(account);
                     if (userDataForAccount == null) {
                         // need to populate the cache for this account
-                        userDataForAccount = accounts.accountsDb.findUserExtrasForAccount(account);
+                        userDataForAccount = Collections.unmodifiableMap(
+                                accounts.accountsDb.findUserExtrasForAccount(account));
                         accounts.userDataCache.put(account, userDataForAccount);
                     }
                 }
@@ -21,15 +21,20 @@ import android.content.ContentValues;
 import android.content.Context;
 import android.database.Cursor;
 import android.database.DatabaseUtils;
+import android.database.SQLException;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteDoneException;
 import android.database.sqlite.SQLiteOpenHelper;
 import android.database.sqlite.SQLiteStatement;
 import android.os.FileUtils;
 import android.text.TextUtils;
+import android.util.ArrayMap;
 import android.util.Log;
 import android.util.Pair;
 import android.util.Slog;
 
+import com.android.internal.annotations.GuardedBy;
+
 import java.io.File;
 import java.io.IOException;
 import java.io.PrintWriter;
@@ -166,6 +171,47 @@ class AccountsDb implements AutoCloseable {
 
     private static final String[] COLUMNS_EXTRAS_KEY_AND_VALUE = {EXTRAS_KEY, EXTRAS_VALUE};
 
+    /** Every CE account with each of its auth tokens, or nulls if it has none. */
+    private static final String ALL_CE_ACCOUNTS_AUTHTOKENS = ""
+            + "SELECT " + CE_TABLE_ACCOUNTS + "." + ACCOUNTS_NAME
+            + ", " + CE_TABLE_ACCOUNTS + "." + ACCOUNTS_TYPE
+            + ", " + CE_TABLE_AUTHTOKENS + "." + AUTHTOKENS_TYPE
+            + ", " + CE_TABLE_AUTHTOKENS + "." + AUTHTOKENS_AUTHTOKEN
+            + " FROM " + CE_TABLE_ACCOUNTS
+            + " LEFT JOIN " + CE_TABLE_AUTHTOKENS
+            + " ON " + CE_TABLE_ACCOUNTS + "." + ACCOUNTS_ID
+            + " = " + CE_TABLE_AUTHTOKENS + "." + AUTHTOKENS_ACCOUNTS_ID;
+
+    /** Every CE account with each of its extras, or nulls if it has none. */
+    private static final String ALL_CE_ACCOUNTS_EXTRAS = ""
+            + "SELECT " + CE_TABLE_ACCOUNTS + "." + ACCOUNTS_NAME
+            + ", " + CE_TABLE_ACCOUNTS + "." + ACCOUNTS_TYPE
+            + ", " + CE_TABLE_EXTRAS + "." + EXTRAS_KEY
+            + ", " + CE_TABLE_EXTRAS + "." + EXTRAS_VALUE
+            + " FROM " + CE_TABLE_ACCOUNTS
+            + " LEFT JOIN " + CE_TABLE_EXTRAS
+            + " ON " + CE_TABLE_ACCOUNTS + "." + ACCOUNTS_ID
+            + " = " + CE_TABLE_EXTRAS + "." + EXTRAS_ACCOUNTS_ID;
+
+    // Statements run on every setUserData() and setAuthToken(), which are compiled once.
+    private static final String FIND_DE_ACCOUNT_ID = "SELECT " + ACCOUNTS_ID
+            + " FROM " + TABLE_ACCOUNTS + " WHERE " + ACCOUNTS_NAME + "=? AND "
+            + ACCOUNTS_TYPE + "=?";
+    private static final String FIND_EXTRAS_ID = "SELECT " + EXTRAS_ID
+            + " FROM " + CE_TABLE_EXTRAS + " WHERE " + EXTRAS_ACCOUNTS_ID + "=? AND "
+            + EXTRAS_KEY + "=?";
+    private static final String UPDATE_EXTRA = "UPDATE " + CE_TABLE_EXTRAS
+            + " SET " + EXTRAS_VALUE + "=? WHERE " + EXTRAS_ID + "=?";
+    private static final String INSERT_EXTRA = "INSERT INTO " + CE_TABLE_EXTRAS
+            + " (" + EXTRAS_ACCOUNTS_ID + ", " + EXTRAS_KEY + ", " + EXTRAS_VALUE
+            + ") VALUES (?, ?, ?)";
+    private static final String DELETE_AUTHTOKENS_BY_ACCOUNT_ID_AND_TYPE = "DELETE FROM "
+            + CE_TABLE_AUTHTOKENS + " WHERE " + AUTHTOKENS_ACCOUNTS_ID + "=? AND "
+            + AUTHTOKENS_TYPE + "=?";
+    private static final String INSERT_AUTHTOKEN = "INSERT INTO " + CE_TABLE_AUTHTOKENS
+            + " (" + AUTHTOKENS_ACCOUNTS_ID + ", " + AUTHTOKENS_TYPE + ", "
+            + AUTHTOKENS_AUTHTOKEN + ") VALUES (?, ?, ?)";
+
     private static final String ACCOUNT_ACCESS_GRANTS = ""
             + "SELECT " + AccountsDb.ACCOUNTS_NAME + ", "
             + AccountsDb.GRANTS_GRANTEE_UID
@@ -183,6 +229,13 @@ class AccountsDb implements AutoCloseable {
     private final Context mContext;
     private final File mPreNDatabaseFile;
 
+    /**
+     * Compiled statements by SQL, kept until the database is closed. Only used by threads that
+     * hold the database connection; see {@link #acquireStatement}.
+     */
+    @GuardedBy("mStatements")
+    private final ArrayMap<String, SQLiteStatement> mStatements = new ArrayMap<>();
+
     AccountsDb(DeDatabaseHelper deDatabase, Context context, File preNDatabaseFile) {
         mDeDatabase = deDatabase;
         mContext = context;
@@ -352,11 +405,27 @@ class AccountsDb implements AutoCloseable {
         return authTokensForAccount;
     }
 
+    /**
+     * Returns the auth tokens of every account in the CE database by token type, reading them
+     * all at once. Accounts without auth tokens have an empty map.
+     */
+    Map<Account, Map<String, String>> findAllAuthTokens() {
+        SQLiteDatabase db = mDeDatabase.getReadableDatabaseUserIsUnlocked();
+        return readValuesByAccount(db.rawQuery(ALL_CE_ACCOUNTS_AUTHTOKENS, null));
+    }
+
     boolean deleteAuthtokensByAccountIdAndType(long accountId, String authtokenType) {
         SQLiteDatabase db = mDeDatabase.getWritableDatabaseUserIsUnlocked();
-        return db.delete(CE_TABLE_AUTHTOKENS,
-                AUTHTOKENS_ACCOUNTS_ID + "=?" + " AND " + AUTHTOKENS_TYPE + "=?",
-                new String[]{String.valueOf(accountId), authtokenType}) > 0;
+        SQLiteStatement statement = acquireStatement(db, DELETE_AUTHTOKENS_BY_ACCOUNT_ID_AND_TYPE);
+        synchronized (statement) {
+            try {
+                statement.bindLong(1, accountId);
+                statement.bindString(2, authtokenType);
+                return statement.executeUpdateDelete() > 0;
+            } finally {
+                releaseStatement(DELETE_AUTHTOKENS_BY_ACCOUNT_ID_AND_TYPE, statement);
+            }
+        }
     }
 
     boolean deleteAuthToken(String authTokenId) {
@@ -368,12 +437,20 @@ class AccountsDb implements AutoCloseable {
 
     long insertAuthToken(long accountId, String authTokenType, String authToken) {
         SQLiteDatabase db = mDeDatabase.getWritableDatabaseUserIsUnlocked();
-        ContentValues values = new ContentValues();
-        values.put(AUTHTOKENS_ACCOUNTS_ID, accountId);
-        values.put(AUTHTOKENS_TYPE, authTokenType);
-        values.put(AUTHTOKENS_AUTHTOKEN, authToken);
-        return db.insert(
-                CE_TABLE_AUTHTOKENS, AUTHTOKENS_AUTHTOKEN, values);
+        SQLiteStatement statement = acquireStatement(db, INSERT_AUTHTOKEN);
+        synchronized (statement) {
+            try {
+                statement.bindLong(1, accountId);
+                bindStringOrNull(statement, 2, authTokenType);
+                bindStringOrNull(statement, 3, authToken);
+                return statement.executeInsert();
+            } catch (SQLException e) {
+                Log.e(TAG, "Error inserting auth token of type " + authTokenType, e);
+                return -1;
+            } finally {
+                releaseStatement(INSERT_AUTHTOKEN, statement);
+            }
+        }
     }
 
     int updateCeAccountPassword(long accountId, String password) {
@@ -402,37 +479,91 @@ class AccountsDb implements AutoCloseable {
 
     long findExtrasIdByAccountId(long accountId, String key) {
         SQLiteDatabase db = mDeDatabase.getReadableDatabaseUserIsUnlocked();
-        Cursor cursor = db.query(
-                CE_TABLE_EXTRAS, new String[]{EXTRAS_ID},
-                EXTRAS_ACCOUNTS_ID + "=" + accountId + " AND " + EXTRAS_KEY + "=?",
-                new String[]{key}, null, null, null);
-        try {
-            if (cursor.moveToNext()) {
-                return cursor.getLong(0);
+        SQLiteStatement statement = acquireStatement(db, FIND_EXTRAS_ID);
+        synchronized (statement) {
+            try {
+                statement.bindLong(1, accountId);
+                bindStringOrNull(statement, 2, key);
+                return statement.simpleQueryForLong();
+            } catch (SQLiteDoneException e) {
+                return -1;
+            } finally {
+                releaseStatement(FIND_EXTRAS_ID, statement);
             }
-            return -1;
-        } finally {
-            cursor.close();
         }
     }
 
     boolean updateExtra(long extrasId, String value) {
         SQLiteDatabase db = mDeDatabase.getWritableDatabaseUserIsUnlocked();
-        ContentValues values = new ContentValues();
-        values.put(EXTRAS_VALUE, value);
-        int rows = db.update(
-                TABLE_EXTRAS, values, EXTRAS_ID + "=?",
-                new String[]{String.valueOf(extrasId)});
-        return rows == 1;
+        SQLiteStatement statement = acquireStatement(db, UPDATE_EXTRA);
+        synchronized (statement) {
+            try {
+                bindStringOrNull(statement, 1, value);
+                statement.bindLong(2, extrasId);
+                return statement.executeUpdateDelete() == 1;
+            } finally {
+                releaseStatement(UPDATE_EXTRA, statement);
+            }
+        }
     }
 
     long insertExtra(long accountId, String key, String value) {
         SQLiteDatabase db = mDeDatabase.getWritableDatabaseUserIsUnlocked();
-        ContentValues values = new ContentValues();
-        values.put(EXTRAS_KEY, key);
-        values.put(EXTRAS_ACCOUNTS_ID, accountId);
-        values.put(EXTRAS_VALUE, value);
-        return db.insert(CE_TABLE_EXTRAS, EXTRAS_KEY, values);
+        SQLiteStatement statement = acquireStatement(db, INSERT_EXTRA);
+        synchronized (statement) {
+            try {
+                statement.bindLong(1, accountId);
+                bindStringOrNull(statement, 2, key);
+                bindStringOrNull(statement, 3, value);
+                return statement.executeInsert();
+            } catch (SQLException e) {
+                Log.e(TAG, "Error inserting extra " + key, e);
+                return -1;
+            } finally {
+                releaseStatement(INSERT_EXTRA, statement);
+            }
+        }
+    }
+
+    /**
+     * Returns the extras of every account in the CE database by key, reading them all at once.
+     * Accounts without extras have an empty map.
+     */
+    Map<Account, Map<String, String>> findAllUserExtras() {
+        SQLiteDatabase db = mDeDatabase.getReadableDatabaseUserIsUnlocked();
+        return readValuesByAccount(db.rawQuery(ALL_CE_ACCOUNTS_EXTRAS, null));
+    }
+
+    /**
+     * Reads rows of account name, account type, key and value, the last two being null for
+     * accounts without values, into a map of the values of each account by key.
+     */
+    private static Map<Account, Map<String, String>> readValuesByAccount(Cursor cursor) {
+        Map<Account, Map<String, String>> valuesByAccount = new HashMap<>();
+        try {
+            Account lastAccount = null;
+            Map<String, String> lastValues = null;
+            while (cursor.moveToNext()) {
+                String name = cursor.getString(0);
+                String type = cursor.getString(1);
+                if (lastAccount == null || !lastAccount.name.equals(name)
+                        || !lastAccount.type.equals(type)) {
+                    lastAccount = new Account(name, type);
+                    lastValues = valuesByAccount.get(lastAccount);
+                    if (lastValues == null) {
+                        // Most accounts have a handful of values.
+                        lastValues = new ArrayMap<>();
+                        valuesByAccount.put(lastAccount, lastValues);
+                    }
+                }
+                if (!cursor.isNull(2)) {
+                    lastValues.put(cursor.getString(2), cursor.getString(3));
+                }
+            }
+        } finally {
+            cursor.close();
+        }
+        return valuesByAccount;
     }
 
     Map<String, String> findUserExtrasForAccount(Account account) {
@@ -783,15 +914,17 @@ class AccountsDb implements AutoCloseable {
 
     long findDeAccountId(Account account) {
         SQLiteDatabase db = mDeDatabase.getReadableDatabase();
-        String[] columns = {ACCOUNTS_ID};
-        String selection = "name=? AND type=?";
-        String[] selectionArgs = {account.name, account.type};
-        try (Cursor cursor = db.query(TABLE_ACCOUNTS, columns, selection, selectionArgs,
-                null, null, null)) {
-            if (cursor.moveToNext()) {
-                return cursor.getLong(0);
+        SQLiteStatement statement = acquireStatement(db, FIND_DE_ACCOUNT_ID);
+        synchronized (statement) {
+            try {
+                statement.bindString(1, account.name);
+                statement.bindString(2, account.type);
+                return statement.simpleQueryForLong();
+            } catch (SQLiteDoneException e) {
+                return -1;
+            } finally {
+                releaseStatement(FIND_DE_ACCOUNT_ID, statement);
             }
-            return -1;
         }
     }
 
@@ -1323,9 +1456,58 @@ class AccountsDb implements AutoCloseable {
 
     @Override
     public void close() {
+        synchronized (mStatements) {
+            for (int i = mStatements.size() - 1; i >= 0; i--) {
+                mStatements.valueAt(i).close();
+            }
+            mStatements.clear();
+        }
         mDeDatabase.close();
     }
 
+    /**
+     * Returns a compiled statement for the given SQL, which must be handed back with
+     * {@link #releaseStatement}. Callers synchronize on the statement while binding and running
+     * it.
+     * <p>
+     * The statement compiled for the SQL the first time is kept for reuse, but only by threads
+     * that already hold the database connection, as they do in a transaction: the database has a
+     * single connection, so a thread that waited for it while holding the statement's lock could
+     * deadlock with the transaction that holds the connection and waits for the lock. Other
+     * threads get a statement of their own.
+     */
+    private SQLiteStatement acquireStatement(SQLiteDatabase db, String sql) {
+        if (!db.isDbLockedByCurrentThread()) {
+            return db.compileStatement(sql);
+        }
+        synchronized (mStatements) {
+            SQLiteStatement statement = mStatements.get(sql);
+            if (statement == null) {
+                statement = db.compileStatement(sql);
+                mStatements.put(sql, statement);
+            }
+            return statement;
+        }
+    }
+
+    private void releaseStatement(String sql, SQLiteStatement statement) {
+        statement.clearBindings();
+        synchronized (mStatements) {
+            if (mStatements.get(sql) == statement) {
+                return;
+            }
+        }
+        statement.close();
+    }
+
+    private static void bindStringOrNull(SQLiteStatement statement, int index, String value) {
+        if (value == null) {
+            statement.bindNull(index);
+        } else {
+            statement.bindString(index, value);
+        }
+    }
+
     static void deleteDbFileWarnIfFailed(File dbFile) {
         if (!SQLiteDatabase.deleteDatabase(dbFile)) {
             Log.w(TAG, "Database at " + dbFile + " was not deleted successfully");
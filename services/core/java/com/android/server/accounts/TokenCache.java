@@ -20,21 +20,36 @@ import android.accounts.Account;
 import android.util.LruCache;
 import android.util.Pair;
 
+import com.android.internal.annotations.GuardedBy;
+import com.android.internal.annotations.VisibleForTesting;
 import com.android.internal.util.Preconditions;
 
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Objects;
 
 /**
  * TokenCaches manage time limited authentication tokens in memory. 
+ *
+ * <p>The cache is bounded by the characters of its tokens, each entry also being charged a fixed
+ * overhead so that the number of entries is bounded too. Expired tokens are dropped as soon as
+ * the earliest of them expires, rather than only when looked up. Thread safe, so that lookups
+ * don't need to hold the locks of the account manager.
  */
 /* default */ class TokenCache {
 
     private static final int MAX_CACHE_CHARS = 64000;
 
+    /**
+     * Charged for each entry on top of the length of its token, which bounds the cache to
+     * {@code MAX_CACHE_CHARS / ENTRY_OVERHEAD_CHARS} entries however short the tokens.
+     */
+    @VisibleForTesting
+    static final int ENTRY_OVERHEAD_CHARS = 64;
+
     private static class Value {
         public final String token;
         public final long expiryEpochMillis;
@@ -93,8 +108,17 @@ import java.util.Objects;
                 mKeys.add(k);
             }
 
+            public void remove(Key k) {
+                mKeys.remove(k);
+            }
+
+            public boolean isEmpty() {
+                return mKeys.isEmpty();
+            }
+
             public void evict() {
-                for (Key k : mKeys) {
+                // Removing a key calls back into entryRemoved, which may change mKeys.
+                for (Key k : mKeys.toArray(new Key[mKeys.size()])) {
                     TokenLruCache.this.remove(k);
                 }
             }
@@ -108,46 +132,69 @@ import java.util.Objects;
         private HashMap<Pair<String, String>, Evictor> mTokenEvictors = new HashMap<>();
         private HashMap<Account, Evictor> mAccountEvictors = new HashMap<>();
 
-        public TokenLruCache() {
-            super(MAX_CACHE_CHARS);
+        public TokenLruCache(int maxChars) {
+            super(maxChars);
         }
 
         @Override
         protected int sizeOf(Key k, Value v) {
-            return v.token.length();
+            return v.token.length() + ENTRY_OVERHEAD_CHARS;
         }
 
         @Override
         protected void entryRemoved(boolean evicted, Key k, Value oldVal, Value newVal) {
-            // When a token has been removed, clean up the associated Evictor.
-            if (oldVal != null && newVal == null) {
-                /*
-                 * This is recursive, but it won't spiral out of control because LruCache is
-                 * thread safe and the Evictor can only be removed once.
-                 */
-                Evictor evictor = mTokenEvictors.remove(oldVal.token);
+            if (oldVal == null) {
+                return;
+            }
+            /*
+             * Only detach the key from its lookups here. Removing every key that shares the
+             * token is up to evict(String, String): when the cache drops its least recently used
+             * entry to make room, the others holding the same token must stay.
+             */
+            if (newVal == null || !newVal.token.equals(oldVal.token)) {
+                // The key no longer has this token, so removing the token shouldn't remove it.
+                Pair<String, String> tokenKey = new Pair<>(k.account.type, oldVal.token);
+                Evictor evictor = mTokenEvictors.get(tokenKey);
                 if (evictor != null) {
-                    evictor.evict();
+                    evictor.remove(k);
+                    if (evictor.isEmpty()) {
+                        mTokenEvictors.remove(tokenKey);
+                    }
+                }
+            }
+            if (newVal == null) {
+                // Don't keep the account around for a key that is gone.
+                Evictor accountEvictor = mAccountEvictors.get(k.account);
+                if (accountEvictor != null) {
+                    accountEvictor.remove(k);
+                    if (accountEvictor.isEmpty()) {
+                        mAccountEvictors.remove(k.account);
+                    }
                 }
             }
         }
 
         public void putToken(Key k, Value v) {
             // Prepare for removal by token string.
-            Evictor tokenEvictor = mTokenEvictors.get(v.token);
+            Pair<String, String> tokenKey = new Pair<>(k.account.type, v.token);
+            Evictor tokenEvictor = mTokenEvictors.get(tokenKey);
             if (tokenEvictor == null) {
                 tokenEvictor = new Evictor();
+                mTokenEvictors.put(tokenKey, tokenEvictor);
             }
+            // The key may already be there if the same token is being cached again.
+            tokenEvictor.remove(k);
             tokenEvictor.add(k);
-            mTokenEvictors.put(new Pair<>(k.account.type, v.token), tokenEvictor);
 
             // Prepare for removal by associated account.
             Evictor accountEvictor = mAccountEvictors.get(k.account);
             if (accountEvictor == null) {
                 accountEvictor = new Evictor();
+                mAccountEvictors.put(k.account, accountEvictor);
             }
+            // The key may already be there if its token is being replaced.
+            accountEvictor.remove(k);
             accountEvictor.add(k);
-            mAccountEvictors.put(k.account, tokenEvictor);
 
             // Only cache the token once we can remove it directly or by account.
             put(k, v);
@@ -167,13 +214,31 @@ import java.util.Objects;
                 evictor.evict();
             }
         }
+
+        int getEvictorCount() {
+            return mTokenEvictors.size() + mAccountEvictors.size();
+        }
     }
 
     /**
      * Map associating basic token lookup information with with actual tokens (and optionally their
      * expiration times). 
      */
-    private TokenLruCache mCachedTokens = new TokenLruCache();
+    @GuardedBy("this")
+    private final TokenLruCache mCachedTokens;
+
+    /** When the earliest of the cached tokens expires, or Long.MAX_VALUE if none are cached. */
+    @GuardedBy("this")
+    private long mNextExpiryMillis = Long.MAX_VALUE;
+
+    TokenCache() {
+        this(MAX_CACHE_CHARS);
+    }
+
+    @VisibleForTesting
+    TokenCache(int maxChars) {
+        mCachedTokens = new TokenLruCache(maxChars);
+    }
 
     /**
      * Caches the specified token until the specified expiryMillis. The token will be associated
@@ -185,7 +250,7 @@ import java.util.Objects;
      * @param sigDigest
      * @param expiryMillis
      */
-    public void put(
+    public synchronized void put(
             Account account,
             String token,
             String tokenType,
@@ -193,33 +258,38 @@ import java.util.Objects;
             byte[] sigDigest,
             long expiryMillis) {
         Preconditions.checkNotNull(account);
-        if (token == null || System.currentTimeMillis() > expiryMillis) {
+        long currentTime = System.currentTimeMillis();
+        if (token == null || currentTime > expiryMillis) {
             return;
         }
+        evictExpiredLocked(currentTime);
         Key k = new Key(account, tokenType, packageName, sigDigest);
         Value v = new Value(token, expiryMillis);
         mCachedTokens.putToken(k, v);
+        mNextExpiryMillis = Math.min(mNextExpiryMillis, expiryMillis);
     }
 
     /**
      * Evicts the specified token from the cache. This should be called as part of a token
      * invalidation workflow.
      */
-    public void remove(String accountType, String token) {
+    public synchronized void remove(String accountType, String token) {
         mCachedTokens.evict(accountType, token);
     }
 
-    public void remove(Account account) {
+    public synchronized void remove(Account account) {
         mCachedTokens.evict(account);
     }
 
     /**
      * Gets a token from the cache if possible.
      */
-    public String get(Account account, String tokenType, String packageName, byte[] sigDigest) {
+    public synchronized String get(Account account, String tokenType, String packageName,
+            byte[] sigDigest) {
+        long currentTime = System.currentTimeMillis();
+        evictExpiredLocked(currentTime);
         Key k = new Key(account, tokenType, packageName, sigDigest);
         Value v = mCachedTokens.get(k);
-        long currentTime = System.currentTimeMillis();
         if (v != null && currentTime < v.expiryEpochMillis) {
             return v.token;
         } else if (v != null) {
@@ -227,4 +297,37 @@ import java.util.Objects;
         }
         return null;
     }
+
+    /**
+     * Drops the tokens that have expired by {@code currentTime}, so that they don't hold on to
+     * room in the cache until they are looked up again. Only scans the cache once the earliest
+     * expiry has passed.
+     */
+    @GuardedBy("this")
+    private void evictExpiredLocked(long currentTime) {
+        if (currentTime < mNextExpiryMillis) {
+            return;
+        }
+        long nextExpiryMillis = Long.MAX_VALUE;
+        for (Map.Entry<Key, Value> entry : mCachedTokens.snapshot().entrySet()) {
+            Value v = entry.getValue();
+            if (currentTime >= v.expiryEpochMillis) {
+                mCachedTokens.remove(entry.getKey());
+            } else {
+                nextExpiryMillis = Math.min(nextExpiryMillis, v.expiryEpochMillis);
+            }
+        }
+        mNextExpiryMillis = nextExpiryMillis;
+    }
+
+    @VisibleForTesting
+    synchronized int getTokenCount() {
+        return mCachedTokens.snapshot().size();
+    }
+
+    /** Number of the lookups kept to remove tokens by token string or by account. */
+    @VisibleForTesting
+    synchronized int getEvictorCount() {
+        return mCachedTokens.getEvictorCount();
+    }
 }
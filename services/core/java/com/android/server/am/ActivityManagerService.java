@@ -2948,6 +2948,7 @@ public class ActivityManagerService extends IActivityManager.Stub
                     pw.print(mActivityManagerService.mProcessCpuTracker.printCurrentLoad());
                     pw.print(mActivityManagerService.mProcessCpuTracker.printCurrentState(
                             SystemClock.uptimeMillis()));
+                    pw.print(mActivityManagerService.mProcessCpuTracker.printUpdateStats());
                 }
             }
         };
@@ -5443,6 +5444,9 @@ public class ActivityManagerService extends IActivityManager.Stub
                         mActivityStartController, mWindowManager, mUserController, callingPid);
                 anim.startRecentsActivity(intent, recentsAnimationRunner, recentsComponent,
                         recentsUid, assistDataReceiver);
+
+                // Warm up the snapshots recents will show first while it animates in
+                mRecentTasks.prefetchTaskSnapshots();
             }
         } finally {
             Binder.restoreCallingIdentity(origId);
@@ -53,6 +53,8 @@ import android.util.Slog;
 import android.util.TimeUtils;
 import android.util.proto.ProtoOutputStream;
 
+import com.android.internal.annotations.VisibleForTesting;
+
 import static com.android.server.am.ActivityManagerDebugConfig.*;
 
 /**
@@ -153,6 +155,22 @@ public final class BroadcastQueue {
      */
     int mPendingBroadcastRecvIndex;
 
+    /**
+     * Number of broadcasts dispatched by this queue, and the total and largest time they
+     * spent between being enqueued and being dispatched, in milliseconds.
+     */
+    long mDispatchCount;
+    long mTotalDispatchLatency;
+    long mMaxDispatchLatency;
+
+    /**
+     * Time in milliseconds that serial receivers spent running while other broadcasts were
+     * queued up behind them, and the receiver that held up the queue the longest.
+     */
+    long mTotalHeadOfLineBlockingTime;
+    long mMaxHeadOfLineBlockingTime;
+    String mMaxHeadOfLineBlocker;
+
     static final int BROADCAST_INTENT_MSG = ActivityManagerService.FIRST_BROADCAST_QUEUE_MSG;
     static final int BROADCAST_TIMEOUT_MSG = ActivityManagerService.FIRST_BROADCAST_QUEUE_MSG + 1;
 
@@ -426,6 +444,11 @@ public final class BroadcastQueue {
         r.curApp = null;
         mPendingBroadcast = null;
 
+        if (state != BroadcastRecord.IDLE && mOrderedBroadcasts.size() > 1
+                && mOrderedBroadcasts.get(0) == r) {
+            noteHeadOfLineBlockingLocked(r, SystemClock.uptimeMillis() - r.receiverTime);
+        }
+
         r.resultCode = resultCode;
         r.resultData = resultData;
         r.resultExtras = resultExtras;
@@ -820,6 +843,30 @@ public final class BroadcastQueue {
         return true;
     }
 
+    @VisibleForTesting
+    void noteDispatchLatencyLocked(BroadcastRecord r) {
+        final long latency = Math.max(0, r.dispatchClockTime - r.enqueueClockTime);
+        mDispatchCount++;
+        mTotalDispatchLatency += latency;
+        if (latency > mMaxDispatchLatency) {
+            mMaxDispatchLatency = latency;
+        }
+    }
+
+    @VisibleForTesting
+    void noteHeadOfLineBlockingLocked(BroadcastRecord r, long duration) {
+        if (duration <= 0) {
+            return;
+        }
+        mTotalHeadOfLineBlockingTime += duration;
+        if (duration > mMaxHeadOfLineBlockingTime) {
+            mMaxHeadOfLineBlockingTime = duration;
+            mMaxHeadOfLineBlocker = (r.curComponent != null
+                    ? r.curComponent.flattenToShortString() : "registered receiver")
+                    + " for " + r.intent.getAction();
+        }
+    }
+
     final void processNextBroadcast(boolean fromMsg) {
         synchronized (mService) {
             processNextBroadcastLocked(fromMsg, false);
@@ -845,6 +892,7 @@ public final class BroadcastQueue {
             r = mParallelBroadcasts.remove(0);
             r.dispatchTime = SystemClock.uptimeMillis();
             r.dispatchClockTime = System.currentTimeMillis();
+            noteDispatchLatencyLocked(r);
 
             if (Trace.isTagEnabled(Trace.TRACE_TAG_ACTIVITY_MANAGER)) {
                 Trace.asyncTraceEnd(Trace.TRACE_TAG_ACTIVITY_MANAGER,
@@ -1012,6 +1060,7 @@ public final class BroadcastQueue {
         if (recIdx == 0) {
             r.dispatchTime = r.receiverTime;
             r.dispatchClockTime = System.currentTimeMillis();
+            noteDispatchLatencyLocked(r);
             if (Trace.isTagEnabled(Trace.TRACE_TAG_ACTIVITY_MANAGER)) {
                 Trace.asyncTraceEnd(Trace.TRACE_TAG_ACTIVITY_MANAGER,
                     createBroadcastTraceTitle(r, BroadcastRecord.DELIVERY_PENDING),
@@ -1717,6 +1766,27 @@ public final class BroadcastQueue {
             }
         }
 
+        if (dumpPackage == null && mDispatchCount > 0) {
+            if (needSep) {
+                pw.println();
+            }
+            needSep = true;
+            pw.println("  Dispatch stats [" + mQueueName + "]:");
+            pw.print("    dispatched="); pw.print(mDispatchCount);
+            pw.print(" avgLatency=");
+            TimeUtils.formatDuration(mTotalDispatchLatency / mDispatchCount, pw);
+            pw.print(" maxLatency="); TimeUtils.formatDuration(mMaxDispatchLatency, pw);
+            pw.println();
+            pw.print("    headOfLineBlocked=");
+            TimeUtils.formatDuration(mTotalHeadOfLineBlockingTime, pw);
+            if (mMaxHeadOfLineBlocker != null) {
+                pw.print(" longest=");
+                TimeUtils.formatDuration(mMaxHeadOfLineBlockingTime, pw);
+                pw.print(" by "); pw.print(mMaxHeadOfLineBlocker);
+            }
+            pw.println();
+        }
+
         int i;
         boolean printed = false;
 
@@ -0,0 +1,293 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.am;
+
+import android.util.IntArray;
+import android.util.Slog;
+import android.util.SparseArray;
+import android.util.SparseIntArray;
+
+import com.android.internal.annotations.VisibleForTesting;
+import com.android.internal.util.AppendOnlyLog;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Set;
+
+/**
+ * The persisted tasks of one user, kept as an append-only log in a single file rather than one
+ * file per task.
+ * <p>
+ * Each batch of task writes is appended as records and synced once. A record either puts the
+ * serialized form of a task or removes it, and the last record of a task wins. Once the log
+ * holds more than twice what its live records take, it is compacted into a new file that only
+ * holds those. The file itself is an {@link AppendOnlyLog}, so a record torn by a crash ends
+ * the log rather than its contents being restored.
+ * <p>
+ * Not thread safe; {@link TaskPersister} guards it with its io lock.
+ */
+class PersistedTaskStore {
+    private static final String TAG = TaskPersister.TAG;
+
+    static final String STORE_FILENAME = "tasks.log";
+
+    private static final int MAGIC = 0x54534b53; // TSKS
+    private static final int VERSION = 1;
+    // framing, type, taskId
+    private static final int RECORD_OVERHEAD = AppendOnlyLog.RECORD_OVERHEAD + 4 + 4;
+
+    private static final int RECORD_PUT = 1;
+    private static final int RECORD_REMOVE = 2;
+
+    /** Upper bound for a single record, anything larger means the file is corrupt */
+    private static final int MAX_RECORD_SIZE = 16 * 1024 * 1024;
+
+    /** Don't bother compacting logs smaller than this. */
+    private static final int MIN_COMPACT_SIZE = 64 * 1024;
+
+    private final AppendOnlyLog mLog;
+
+    private boolean mLoaded;
+    /** Size of the records of the tasks in the log, by task id. */
+    private final SparseIntArray mLiveRecordSizes = new SparseIntArray();
+    private long mLiveSize;
+
+    private int mCompactions;
+
+    PersistedTaskStore(File file) {
+        mLog = new AppendOnlyLog(file, null, MAGIC, VERSION, MAX_RECORD_SIZE);
+    }
+
+    boolean exists() {
+        return mLog.exists();
+    }
+
+    /**
+     * Returns the serialized form of the tasks in the store, by task id.
+     */
+    SparseArray<byte[]> read() {
+        final SparseArray<byte[]> tasks = new SparseArray<>();
+        readLog(tasks);
+        return tasks;
+    }
+
+    /**
+     * Reads the log, collecting the latest contents of the tasks in it into {@code tasks} when
+     * not null, and resets what we know of the log from it.
+     */
+    private void readLog(SparseArray<byte[]> tasks) {
+        mLoaded = true;
+        mLiveRecordSizes.clear();
+        mLiveSize = 0;
+        if (!mLog.exists()) {
+            return;
+        }
+
+        try {
+            mLog.read(record -> {
+                final ByteBuffer in = ByteBuffer.wrap(record);
+                if (record.length < 8) {
+                    throw new IOException("Bad record length=" + record.length);
+                }
+                final int type = in.getInt();
+                final int taskId = in.getInt();
+                final int recordSize = AppendOnlyLog.RECORD_OVERHEAD + record.length;
+                if (type == RECORD_PUT) {
+                    putLiveRecord(taskId, recordSize);
+                    if (tasks != null) {
+                        final byte[] data = new byte[in.remaining()];
+                        in.get(data);
+                        tasks.put(taskId, data);
+                    }
+                } else if (type == RECORD_REMOVE) {
+                    removeLiveRecord(taskId);
+                    if (tasks != null) {
+                        tasks.remove(taskId);
+                    }
+                } else {
+                    throw new IOException("Bad record type=" + type);
+                }
+            });
+        } catch (IOException e) {
+            // Most likely an unknown format; what came before the bad record is still good,
+            // and the next write compacts the log.
+            Slog.w(TAG, "Task store " + mLog.getFile() + " ends at " + mLog.getSize(), e);
+        }
+    }
+
+    /**
+     * Stores the given tasks and removes the given ones, syncing the file once for all of them.
+     *
+     * @param puts The serialized form of the tasks to store, by task id.
+     * @param removals The ids of the tasks to remove.
+     */
+    void write(SparseArray<byte[]> puts, IntArray removals) {
+        if (!mLoaded) {
+            readLog(null);
+        }
+        // Only the tasks we have need removing; the caller's array is left alone.
+        final IntArray liveRemovals = new IntArray();
+        if (removals != null) {
+            for (int i = 0; i < removals.size(); i++) {
+                if (mLiveRecordSizes.indexOfKey(removals.get(i)) >= 0) {
+                    liveRemovals.add(removals.get(i));
+                }
+            }
+        }
+        final int numPuts = puts != null ? puts.size() : 0;
+        final int numRemovals = liveRemovals.size();
+        if (numPuts == 0 && numRemovals == 0) {
+            return;
+        }
+        if (mLog.needsSnapshot() || !mLog.exists()) {
+            compact(puts, liveRemovals);
+            return;
+        }
+
+        try {
+            final AppendOnlyLog.Batch batch = new AppendOnlyLog.Batch();
+            for (int i = 0; i < numPuts; i++) {
+                writeRecord(batch, RECORD_PUT, puts.keyAt(i), puts.valueAt(i));
+            }
+            for (int i = 0; i < numRemovals; i++) {
+                writeRecord(batch, RECORD_REMOVE, liveRemovals.get(i), null);
+            }
+            mLog.append(batch, true /* sync */);
+        } catch (IOException e) {
+            // The log needs a snapshot now, the next write compacts it.
+            Slog.e(TAG, "Unable to append to task store " + mLog.getFile(), e);
+            return;
+        }
+
+        for (int i = 0; i < numPuts; i++) {
+            putLiveRecord(puts.keyAt(i), RECORD_OVERHEAD + puts.valueAt(i).length);
+        }
+        for (int i = 0; i < numRemovals; i++) {
+            removeLiveRecord(liveRemovals.get(i));
+        }
+        final long logSize = mLog.getSize();
+        if (logSize > MIN_COMPACT_SIZE
+                && logSize > 2 * (AppendOnlyLog.HEADER_SIZE + mLiveSize)) {
+            compact(null, null);
+        }
+    }
+
+    /**
+     * Removes the tasks whose ids aren't in {@code taskIds}.
+     */
+    void retainAll(Set<Integer> taskIds) {
+        if (!mLoaded) {
+            readLog(null);
+        }
+        IntArray removals = null;
+        for (int i = mLiveRecordSizes.size() - 1; i >= 0; i--) {
+            final int taskId = mLiveRecordSizes.keyAt(i);
+            if (!taskIds.contains(taskId)) {
+                if (removals == null) {
+                    removals = new IntArray();
+                }
+                removals.add(taskId);
+            }
+        }
+        if (removals != null) {
+            write(null, removals);
+        }
+    }
+
+    /**
+     * Rewrites the store with only the live tasks, after applying the given changes.
+     */
+    private void compact(SparseArray<byte[]> puts, IntArray removals) {
+        final SparseArray<byte[]> tasks = new SparseArray<>();
+        readLog(tasks);
+        if (puts != null) {
+            for (int i = 0; i < puts.size(); i++) {
+                tasks.put(puts.keyAt(i), puts.valueAt(i));
+            }
+        }
+        if (removals != null) {
+            for (int i = 0; i < removals.size(); i++) {
+                tasks.remove(removals.get(i));
+            }
+        }
+
+        try {
+            final AppendOnlyLog.Batch batch = new AppendOnlyLog.Batch();
+            for (int i = 0; i < tasks.size(); i++) {
+                writeRecord(batch, RECORD_PUT, tasks.keyAt(i), tasks.valueAt(i));
+            }
+            mLog.writeSnapshot(batch);
+        } catch (IOException e) {
+            Slog.e(TAG, "Unable to write task store " + mLog.getFile(), e);
+            // Whatever is on disk is what we'll have to go on next time.
+            readLog(null);
+            return;
+        }
+
+        mCompactions++;
+        mLiveRecordSizes.clear();
+        mLiveSize = 0;
+        for (int i = 0; i < tasks.size(); i++) {
+            putLiveRecord(tasks.keyAt(i), RECORD_OVERHEAD + tasks.valueAt(i).length);
+        }
+    }
+
+    private void putLiveRecord(int taskId, int recordSize) {
+        mLiveSize += recordSize - mLiveRecordSizes.get(taskId, 0);
+        mLiveRecordSizes.put(taskId, recordSize);
+    }
+
+    private void removeLiveRecord(int taskId) {
+        mLiveSize -= mLiveRecordSizes.get(taskId, 0);
+        mLiveRecordSizes.delete(taskId);
+    }
+
+    private static void writeRecord(AppendOnlyLog.Batch batch, int type, int taskId,
+            byte[] data) throws IOException {
+        final DataOutputStream out = batch.beginRecord();
+        out.writeInt(type);
+        out.writeInt(taskId);
+        if (data != null) {
+            out.write(data);
+        }
+        batch.endRecord();
+    }
+
+    /**
+     * Syncs and closes the file. The store can still be written after this.
+     */
+    void close() {
+        mLog.close();
+    }
+
+    void delete() {
+        mLog.delete();
+        mLoaded = false;
+    }
+
+    @VisibleForTesting
+    long getLogSize() {
+        return mLog.getSize();
+    }
+
+    @VisibleForTesting
+    int getCompactions() {
+        return mCompactions;
+    }
+}
@@ -107,6 +107,9 @@ class RecentTasks {
 
     private static final int DEFAULT_INITIAL_CAPACITY = 5;
 
+    // Number of the most recent tasks whose snapshots are loaded ahead when recents starts
+    private static final int SNAPSHOT_PREFETCH_COUNT = 4;
+
     // Whether or not to move all affiliated tasks to the front when one of the tasks is launched
     private static final boolean MOVE_AFFILIATED_TASKS_TO_FRONT = false;
 
@@ -859,6 +862,29 @@ class RecentTasks {
         return res;
     }
 
+    /**
+     * Has the window manager load the snapshots of the first tasks recents will show in the
+     * background, so that it doesn't have to wait for them to be decoded.
+     */
+    void prefetchTaskSnapshots() {
+        final int size = mTasks.size();
+        final int[] taskIds = new int[Math.min(size, SNAPSHOT_PREFETCH_COUNT)];
+        final int[] userIds = new int[taskIds.length];
+        int count = 0;
+        for (int i = 0; i < size && count < taskIds.length; i++) {
+            final TaskRecord tr = mTasks.get(i);
+            if (isVisibleRecentTask(tr)) {
+                taskIds[count] = tr.taskId;
+                userIds[count] = tr.userId;
+                count++;
+            }
+        }
+        if (count > 0) {
+            mService.mWindowManager.prefetchTaskSnapshots(Arrays.copyOf(taskIds, count),
+                    Arrays.copyOf(userIds, count));
+        }
+    }
+
     /**
      * @return the task in the task list with the given {@param id} if one exists.
      */
@@ -25,12 +25,13 @@ import android.os.FileUtils;
 import android.os.Process;
 import android.os.SystemClock;
 import android.util.ArraySet;
-import android.util.AtomicFile;
+import android.util.IntArray;
 import android.util.Slog;
 import android.util.SparseArray;
 import android.util.SparseBooleanArray;
 import android.util.Xml;
 
+import com.android.internal.annotations.GuardedBy;
 import com.android.internal.annotations.VisibleForTesting;
 import com.android.internal.util.FastXmlSerializer;
 import com.android.internal.util.XmlUtils;
@@ -42,6 +43,7 @@ import org.xmlpull.v1.XmlSerializer;
 
 import java.io.BufferedReader;
 import java.io.BufferedWriter;
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
@@ -49,6 +51,7 @@ import java.io.FileReader;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.io.StringWriter;
+import java.nio.file.Files;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
@@ -87,6 +90,8 @@ public class TaskPersister {
     private final ActivityStackSupervisor mStackSupervisor;
     private final RecentTasks mRecentTasks;
     private final SparseArray<SparseBooleanArray> mTaskIdsInFile = new SparseArray<>();
+    @GuardedBy("mIoLock")
+    private final SparseArray<PersistedTaskStore> mTaskStores = new SparseArray<>();
     private final File mTaskIdsDir;
     // To lock file operations in TaskPersister
     private final Object mIoLock = new Object();
@@ -248,6 +253,13 @@ public class TaskPersister {
 
     void unloadUserDataFromMemory(int userId) {
         mTaskIdsInFile.delete(userId);
+        synchronized (mIoLock) {
+            final PersistedTaskStore store = mTaskStores.get(userId);
+            if (store != null) {
+                store.close();
+                mTaskStores.remove(userId);
+            }
+        }
     }
 
     void wakeup(TaskRecord task, boolean flush) {
@@ -377,23 +389,6 @@ public class TaskPersister {
         return stringWriter;
     }
 
-    private String fileToString(File file) {
-        final String newline = System.lineSeparator();
-        try {
-            BufferedReader reader = new BufferedReader(new FileReader(file));
-            StringBuffer sb = new StringBuffer((int) file.length() * 2);
-            String line;
-            while ((line = reader.readLine()) != null) {
-                sb.append(line + newline);
-            }
-            reader.close();
-            return sb.toString();
-        } catch (IOException ioe) {
-            Slog.e(TAG, "Couldn't read file " + file.getName());
-            return null;
-        }
-    }
-
     private TaskRecord taskIdToTask(int taskId, ArrayList<TaskRecord> tasks) {
         if (taskId < 0) {
             return null;
@@ -412,44 +407,31 @@ public class TaskPersister {
         final ArrayList<TaskRecord> tasks = new ArrayList<TaskRecord>();
         ArraySet<Integer> recoveredTaskIds = new ArraySet<Integer>();
 
-        File userTasksDir = getUserTasksDir(userId);
-
-        File[] recentFiles = userTasksDir.listFiles();
-        if (recentFiles == null) {
-            Slog.e(TAG, "restoreTasksForUserLocked: Unable to list files from " + userTasksDir);
-            return tasks;
+        final SparseArray<byte[]> taskData;
+        synchronized (mIoLock) {
+            final PersistedTaskStore store = getTaskStoreLocked(userId);
+            if (!store.exists()) {
+                migrateTaskFilesLocked(userId, store);
+            }
+            taskData = store.read();
         }
 
-        for (int taskNdx = 0; taskNdx < recentFiles.length; ++taskNdx) {
-            File taskFile = recentFiles[taskNdx];
+        for (int taskNdx = 0; taskNdx < taskData.size(); ++taskNdx) {
+            final int storedTaskId = taskData.keyAt(taskNdx);
             if (DEBUG) {
                 Slog.d(TAG, "restoreTasksForUserLocked: userId=" + userId
-                        + ", taskFile=" + taskFile.getName());
+                        + ", taskId=" + storedTaskId);
             }
-
-            if (!taskFile.getName().endsWith(TASK_FILENAME_SUFFIX)) {
-                continue;
-            }
-            try {
-                final int taskId = Integer.parseInt(taskFile.getName().substring(
-                        0 /* beginIndex */,
-                        taskFile.getName().length() - TASK_FILENAME_SUFFIX.length()));
-                if (preaddedTasks.get(taskId, false)) {
-                    Slog.w(TAG, "Task #" + taskId +
-                            " has already been created so we don't restore again");
-                    continue;
-                }
-            } catch (NumberFormatException e) {
-                Slog.w(TAG, "Unexpected task file name", e);
+            if (preaddedTasks.get(storedTaskId, false)) {
+                Slog.w(TAG, "Task #" + storedTaskId +
+                        " has already been created so we don't restore again");
                 continue;
             }
 
-            BufferedReader reader = null;
-            boolean deleteFile = false;
+            final byte[] data = taskData.valueAt(taskNdx);
             try {
-                reader = new BufferedReader(new FileReader(taskFile));
                 final XmlPullParser in = Xml.newPullParser();
-                in.setInput(reader);
+                in.setInput(new ByteArrayInputStream(data), null);
 
                 int event;
                 while (((event = in.next()) != XmlPullParser.END_DOCUMENT) &&
@@ -474,8 +456,8 @@ public class TaskPersister {
                                     Slog.wtf(TAG, "Existing task with taskId " + taskId + "found");
                                 } else if (userId != task.userId) {
                                     // Should not happen.
-                                    Slog.wtf(TAG, "Task with userId " + task.userId + " found in "
-                                            + userTasksDir.getAbsolutePath());
+                                    Slog.wtf(TAG, "Task with userId " + task.userId
+                                            + " found in the tasks of user " + userId);
                                 } else {
                                     // Looks fine.
                                     mStackSupervisor.setNextTaskIdForUserLocked(taskId, userId);
@@ -484,8 +466,8 @@ public class TaskPersister {
                                     recoveredTaskIds.add(taskId);
                                 }
                             } else {
-                                Slog.e(TAG, "restoreTasksForUserLocked: Unable to restore taskFile="
-                                        + taskFile + ": " + fileToString(taskFile));
+                                Slog.e(TAG, "restoreTasksForUserLocked: Unable to restore task="
+                                        + storedTaskId + ": " + new String(data));
                             }
                         } else {
                             Slog.wtf(TAG, "restoreTasksForUserLocked: Unknown xml event=" + event
@@ -495,20 +477,16 @@ public class TaskPersister {
                     XmlUtils.skipCurrentTag(in);
                 }
             } catch (Exception e) {
-                Slog.wtf(TAG, "Unable to parse " + taskFile + ". Error ", e);
-                Slog.e(TAG, "Failing file: " + fileToString(taskFile));
-                deleteFile = true;
-            } finally {
-                IoUtils.closeQuietly(reader);
-                if (deleteFile) {
-                    if (DEBUG) Slog.d(TAG, "Deleting file=" + taskFile.getName());
-                    taskFile.delete();
-                }
+                Slog.wtf(TAG, "Unable to parse task " + storedTaskId + ". Error ", e);
+                Slog.e(TAG, "Failing task: " + new String(data));
             }
         }
 
         if (!DEBUG) {
-            removeObsoleteFiles(recoveredTaskIds, userTasksDir.listFiles());
+            // Drops the tasks we couldn't restore.
+            synchronized (mIoLock) {
+                getTaskStoreLocked(userId).retainAll(recoveredTaskIds);
+            }
         }
 
         // Fix up task affiliation from taskIds
@@ -534,6 +512,53 @@ public class TaskPersister {
         return tasks;
     }
 
+    /**
+     * Moves the tasks of a user from the file per task they used to be kept in to its store.
+     */
+    @GuardedBy("mIoLock")
+    private void migrateTaskFilesLocked(int userId, PersistedTaskStore store) {
+        final File[] files = getUserTasksDir(userId).listFiles();
+        if (files == null) {
+            return;
+        }
+        final SparseArray<byte[]> taskData = new SparseArray<>();
+        for (File file : files) {
+            final String name = file.getName();
+            if (!name.endsWith(TASK_FILENAME_SUFFIX)) {
+                continue;
+            }
+            try {
+                final int taskId = Integer.parseInt(name.substring(0 /* beginIndex */,
+                        name.length() - TASK_FILENAME_SUFFIX.length()));
+                taskData.put(taskId, Files.readAllBytes(file.toPath()));
+            } catch (NumberFormatException | IOException e) {
+                Slog.w(TAG, "Unable to migrate task file " + file, e);
+            }
+        }
+        if (taskData.size() == 0) {
+            return;
+        }
+        store.write(taskData, null);
+        if (store.exists()) {
+            for (File file : files) {
+                if (file.getName().endsWith(TASK_FILENAME_SUFFIX)) {
+                    file.delete();
+                }
+            }
+        }
+    }
+
+    @GuardedBy("mIoLock")
+    private PersistedTaskStore getTaskStoreLocked(int userId) {
+        PersistedTaskStore store = mTaskStores.get(userId);
+        if (store == null) {
+            store = new PersistedTaskStore(
+                    new File(getUserTasksDir(userId), PersistedTaskStore.STORE_FILENAME));
+            mTaskStores.put(userId, store);
+        }
+        return store;
+    }
+
     private static void removeObsoleteFiles(ArraySet<Integer> persistentTaskIds, File[] files) {
         if (DEBUG) Slog.d(TAG, "removeObsoleteFiles: persistentTaskIds=" + persistentTaskIds +
                 " files=" + files);
@@ -593,7 +618,58 @@ public class TaskPersister {
         }
         for (int userId : candidateUserIds) {
             removeObsoleteFiles(persistentTaskIds, getUserImagesDir(userId).listFiles());
-            removeObsoleteFiles(persistentTaskIds, getUserTasksDir(userId).listFiles());
+            synchronized (mIoLock) {
+                getTaskStoreLocked(userId).retainAll(persistentTaskIds);
+            }
+        }
+    }
+
+    /**
+     * Writes out the given tasks, or removes them if they are no longer in recents, with one
+     * append to the store of each user.
+     */
+    private void writeTasks(ArrayList<TaskRecord> tasks) {
+        final SparseArray<SparseArray<byte[]>> putsPerUser = new SparseArray<>();
+        final SparseArray<IntArray> removalsPerUser = new SparseArray<>();
+        synchronized (mService) {
+            for (int taskNdx = 0; taskNdx < tasks.size(); ++taskNdx) {
+                final TaskRecord task = tasks.get(taskNdx);
+                if (!task.inRecents) {
+                    IntArray removals = removalsPerUser.get(task.userId);
+                    if (removals == null) {
+                        removals = new IntArray();
+                        removalsPerUser.put(task.userId, removals);
+                    }
+                    removals.add(task.taskId);
+                    continue;
+                }
+                try {
+                    if (DEBUG) Slog.d(TAG, "Saving task=" + task);
+                    final byte[] data = saveToXml(task).toString().getBytes();
+                    SparseArray<byte[]> puts = putsPerUser.get(task.userId);
+                    if (puts == null) {
+                        puts = new SparseArray<>();
+                        putsPerUser.put(task.userId, puts);
+                    }
+                    puts.put(task.taskId, data);
+                } catch (IOException e) {
+                } catch (XmlPullParserException e) {
+                }
+            }
+        }
+
+        // Write out while not holding mService lock.
+        synchronized (mIoLock) {
+            for (int i = 0; i < putsPerUser.size(); i++) {
+                final int userId = putsPerUser.keyAt(i);
+                getTaskStoreLocked(userId).write(putsPerUser.valueAt(i),
+                        removalsPerUser.get(userId));
+                removalsPerUser.remove(userId);
+            }
+            for (int i = 0; i < removalsPerUser.size(); i++) {
+                getTaskStoreLocked(removalsPerUser.keyAt(i)).write(null,
+                        removalsPerUser.valueAt(i));
+            }
         }
     }
 
@@ -674,6 +750,7 @@ public class TaskPersister {
 
             // If mNextWriteTime, then don't delay between each call to saveToXml().
             final WriteQueueItem item;
+            ArrayList<TaskRecord> tasks = null;
             synchronized (TaskPersister.this) {
                 if (mNextWriteTime != FLUSH_QUEUE) {
                     // The next write we don't have to wait so long.
@@ -696,6 +773,20 @@ public class TaskPersister {
                     // from now.
                 }
                 item = mWriteQueue.remove(0);
+                if (item instanceof TaskWriteQueueItem) {
+                    // Take all the queued tasks, so that they make one write per user.
+                    tasks = new ArrayList<>();
+                    tasks.add(((TaskWriteQueueItem) item).mTask);
+                    for (int queueNdx = 0; queueNdx < mWriteQueue.size(); ) {
+                        final WriteQueueItem next = mWriteQueue.get(queueNdx);
+                        if (next instanceof TaskWriteQueueItem) {
+                            tasks.add(((TaskWriteQueueItem) next).mTask);
+                            mWriteQueue.remove(queueNdx);
+                        } else {
+                            ++queueNdx;
+                        }
+                    }
+                }
 
                 long now = SystemClock.uptimeMillis();
                 if (DEBUG) Slog.d(TAG, "LazyTaskWriter: now=" + now + " mNextWriteTime=" +
@@ -732,41 +823,8 @@ public class TaskPersister {
                     IoUtils.closeQuietly(imageFile);
                 }
             } else if (item instanceof TaskWriteQueueItem) {
-                // Write out one task.
-                StringWriter stringWriter = null;
-                TaskRecord task = ((TaskWriteQueueItem) item).mTask;
-                if (DEBUG) Slog.d(TAG, "Writing task=" + task);
-                synchronized (mService) {
-                    if (task.inRecents) {
-                        // Still there.
-                        try {
-                            if (DEBUG) Slog.d(TAG, "Saving task=" + task);
-                            stringWriter = saveToXml(task);
-                        } catch (IOException e) {
-                        } catch (XmlPullParserException e) {
-                        }
-                    }
-                }
-                if (stringWriter != null) {
-                    // Write out xml file while not holding mService lock.
-                    FileOutputStream file = null;
-                    AtomicFile atomicFile = null;
-                    try {
-                        atomicFile = new AtomicFile(new File(
-                                getUserTasksDir(task.userId),
-                                String.valueOf(task.taskId) + TASK_FILENAME_SUFFIX));
-                        file = atomicFile.startWrite();
-                        file.write(stringWriter.toString().getBytes());
-                        file.write('\n');
-                        atomicFile.finishWrite(file);
-                    } catch (IOException e) {
-                        if (file != null) {
-                            atomicFile.failWrite(file);
-                        }
-                        Slog.e(TAG,
-                                "Unable to open " + atomicFile + " for persisting. " + e);
-                    }
-                }
+                if (DEBUG) Slog.d(TAG, "Writing tasks=" + tasks);
+                writeTasks(tasks);
             }
         }
     }
@@ -0,0 +1,241 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.content;
+
+import android.database.IContentObserver;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.IBinder;
+import android.os.Looper;
+import android.os.Message;
+import android.os.RemoteException;
+import android.util.ArrayMap;
+import android.util.Slog;
+
+import com.android.internal.annotations.GuardedBy;
+import com.android.internal.annotations.VisibleForTesting;
+import com.android.server.content.ContentService.ObserverCall;
+import com.android.server.content.ContentService.ObserverNode;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+
+/**
+ * Coalesces the change notifications of content observers registered for batched
+ * notifications, so that every uri such an observer is told about within the batching window
+ * reaches it in a single binder transaction. Also keeps the counts of notifications received
+ * and of the binder transactions sent to observers for them, for dumpsys.
+ */
+final class ContentObserverBatcher {
+    private static final String TAG = ContentService.TAG;
+
+    /** A batch is delivered right away once it holds this many uris */
+    @VisibleForTesting
+    static final int MAX_BATCH_SIZE = 128;
+
+    private static final int MSG_FLUSH = 1;
+
+    interface Callback {
+        /** Called when delivering a batch to {@code observer} failed because it is dead. */
+        void onObserverDied(ObserverNode node, IContentObserver observer);
+    }
+
+    private static final class Batch {
+        final ObserverNode node;
+        final IContentObserver observer;
+        final boolean selfChange;
+        final int userHandle;
+        final ArrayList<Uri> uris = new ArrayList<>();
+
+        Batch(ObserverNode node, IContentObserver observer, boolean selfChange,
+                int userHandle) {
+            this.node = node;
+            this.observer = observer;
+            this.selfChange = selfChange;
+            this.userHandle = userHandle;
+        }
+    }
+
+    private final Object mLock = new Object();
+    private final Handler mHandler;
+    private final Callback mCallback;
+    private final long mWindowMs;
+
+    /** Batches waiting for the end of the window, by observer binder */
+    @GuardedBy("mLock")
+    private final ArrayMap<IBinder, Batch> mPending = new ArrayMap<>();
+
+    @GuardedBy("mLock")
+    private long mNotificationsReceived;
+    @GuardedBy("mLock")
+    private long mObserverCalls;
+    @GuardedBy("mLock")
+    private long mBatchedCalls;
+    @GuardedBy("mLock")
+    private long mCoalescedCalls;
+    @GuardedBy("mLock")
+    private long mTransactionsSent;
+    @GuardedBy("mLock")
+    private long mBatchesSent;
+
+    /**
+     * @param windowMs how long notifications are held back for, batching is disabled if 0
+     */
+    ContentObserverBatcher(Looper looper, Callback callback, long windowMs) {
+        mHandler = new Handler(looper) {
+            @Override
+            public void handleMessage(Message msg) {
+                if (msg.what == MSG_FLUSH) {
+                    flush();
+                }
+            }
+        };
+        mCallback = callback;
+        mWindowMs = Math.max(0, windowMs);
+    }
+
+    /** Whether observers registered for batched notifications get them batched. */
+    boolean isEnabled() {
+        return mWindowMs > 0;
+    }
+
+    /** Counts one notification, which reached {@code observerCalls} observers. */
+    void noteNotification(int observerCalls) {
+        synchronized (mLock) {
+            mNotificationsReceived++;
+            mObserverCalls += observerCalls;
+        }
+    }
+
+    /** Counts a binder transaction sent to an observer outside of a batch. */
+    void noteTransaction() {
+        synchronized (mLock) {
+            mTransactionsSent++;
+        }
+    }
+
+    /**
+     * Adds {@code uri} to the batch of the observer of {@code call}, to be delivered at the end
+     * of the window. Should only be called if {@link #isEnabled}.
+     */
+    void enqueue(ObserverCall call, Uri uri, int userHandle) {
+        final IBinder binder = call.mObserver.asBinder();
+        Batch superseded = null;
+        Batch full = null;
+        synchronized (mLock) {
+            mBatchedCalls++;
+            Batch batch = mPending.get(binder);
+            if (batch != null && (batch.selfChange != call.mSelfChange
+                    || batch.userHandle != userHandle)) {
+                // One transaction only carries one selfChange and user, keep things in order
+                // by delivering what the observer has pending first.
+                mPending.remove(binder);
+                superseded = batch;
+                batch = null;
+            }
+            if (batch == null) {
+                batch = new Batch(call.mNode, call.mObserver, call.mSelfChange, userHandle);
+                mPending.put(binder, batch);
+                if (!mHandler.hasMessages(MSG_FLUSH)) {
+                    mHandler.sendEmptyMessageDelayed(MSG_FLUSH, mWindowMs);
+                }
+            }
+            if (batch.uris.contains(uri)) {
+                mCoalescedCalls++;
+            } else {
+                batch.uris.add(uri);
+            }
+            if (batch.uris.size() >= MAX_BATCH_SIZE) {
+                mPending.remove(binder);
+                full = batch;
+            }
+        }
+        if (superseded != null) {
+            deliver(superseded);
+        }
+        if (full != null) {
+            deliver(full);
+        }
+    }
+
+    /**
+     * Drops the pending batch of an observer that was unregistered.
+     */
+    void removeObserver(IContentObserver observer) {
+        synchronized (mLock) {
+            mPending.remove(observer.asBinder());
+        }
+    }
+
+    /**
+     * Delivers every pending batch now.
+     */
+    @VisibleForTesting
+    void flush() {
+        final ArrayList<Batch> batches;
+        synchronized (mLock) {
+            mHandler.removeMessages(MSG_FLUSH);
+            if (mPending.isEmpty()) {
+                return;
+            }
+            batches = new ArrayList<>(mPending.values());
+            mPending.clear();
+        }
+        for (int i = 0; i < batches.size(); i++) {
+            deliver(batches.get(i));
+        }
+    }
+
+    private void deliver(Batch batch) {
+        try {
+            batch.observer.onChangeUris(batch.selfChange,
+                    batch.uris.toArray(new Uri[batch.uris.size()]), batch.userHandle);
+            if (ContentService.DEBUG) Slog.d(TAG, "Notified " + batch.observer + " of "
+                    + batch.uris.size() + " updates");
+        } catch (RemoteException ex) {
+            mCallback.onObserverDied(batch.node, batch.observer);
+        }
+        synchronized (mLock) {
+            mTransactionsSent++;
+            mBatchesSent++;
+        }
+    }
+
+    void dump(PrintWriter pw) {
+        synchronized (mLock) {
+            pw.print("  Batching window: ");
+            pw.print(mWindowMs);
+            pw.println("ms");
+            pw.print("  Notifications received: ");
+            pw.println(mNotificationsReceived);
+            pw.print("  Observer calls: ");
+            pw.print(mObserverCalls);
+            pw.print(" (batched: ");
+            pw.print(mBatchedCalls);
+            pw.print(", coalesced: ");
+            pw.print(mCoalescedCalls);
+            pw.println(")");
+            pw.print("  Binder transactions sent: ");
+            pw.print(mTransactionsSent);
+            pw.print(" (batches: ");
+            pw.print(mBatchesSent);
+            pw.println(")");
+            pw.print("  Pending batches: ");
+            pw.println(mPending.size());
+        }
+    }
+}
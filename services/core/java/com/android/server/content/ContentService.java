@@ -53,6 +53,7 @@ import android.os.Process;
 import android.os.RemoteException;
 import android.os.ResultReceiver;
 import android.os.ShellCallback;
+import android.os.SystemProperties;
 import android.os.UserHandle;
 import android.text.TextUtils;
 import android.util.ArrayMap;
@@ -63,6 +64,7 @@ import android.util.SparseArray;
 import android.util.SparseIntArray;
 
 import com.android.internal.annotations.GuardedBy;
+import com.android.internal.os.BackgroundThread;
 import com.android.internal.util.ArrayUtils;
 import com.android.internal.util.DumpUtils;
 import com.android.internal.util.IndentingPrintWriter;
@@ -132,6 +134,16 @@ public final class ContentService extends IContentService.Stub {
 
     private final ObserverNode mRootNode = new ObserverNode("");
 
+    /**
+     * How long notifications to observers registered for batched notifications are held
+     * back for, so that they can be delivered together. Batching is disabled if 0.
+     */
+    private static final String NOTIFY_BATCH_WINDOW_PROPERTY =
+            "persist.sys.content.notify_batch_ms";
+    private static final long DEFAULT_NOTIFY_BATCH_WINDOW_MS = 50;
+
+    private final ContentObserverBatcher mObserverBatcher;
+
     private SyncManager mSyncManager = null;
     private final Object mSyncManagerLock = new Object();
 
@@ -238,6 +250,10 @@ public final class ContentService extends IContentService.Stub {
                 pw.print(" Total number of observers: "); pw.println(counts[1]);
             }
 
+            pw.println();
+            pw.println("Observer notifications:");
+            mObserverBatcher.dump(pw);
+
             synchronized (mCache) {
                 pw.println();
                 pw.println("Cached content:");
@@ -273,6 +289,9 @@ public final class ContentService extends IContentService.Stub {
     /*package*/ ContentService(Context context, boolean factoryTest) {
         mContext = context;
         mFactoryTest = factoryTest;
+        mObserverBatcher = new ContentObserverBatcher(BackgroundThread.get().getLooper(),
+                this::removeDeadObserver, SystemProperties.getLong(
+                        NOTIFY_BATCH_WINDOW_PROPERTY, DEFAULT_NOTIFY_BATCH_WINDOW_MS));
 
         // Let the package manager query for the sync adapters for a given authority
         // as we grant default permissions to sync adapters for specific authorities.
@@ -322,7 +341,8 @@ public final class ContentService extends IContentService.Stub {
      */
     @Override
     public void registerContentObserver(Uri uri, boolean notifyForDescendants,
-            IContentObserver observer, int userHandle, int targetSdkVersion) {
+            IContentObserver observer, int userHandle, int targetSdkVersion,
+            boolean batchNotifications) {
         if (observer == null || uri == null) {
             throw new IllegalArgumentException("You must pass a valid uri and observer");
         }
@@ -351,7 +371,7 @@ public final class ContentService extends IContentService.Stub {
 
         synchronized (mRootNode) {
             mRootNode.addObserverLocked(uri, observer, notifyForDescendants, mRootNode,
-                    uid, pid, userHandle);
+                    uid, pid, userHandle, batchNotifications);
             if (false) Log.v(TAG, "Registered observer " + observer + " at " + uri +
                     " with notifyForDescendants " + notifyForDescendants);
         }
@@ -360,7 +380,7 @@ public final class ContentService extends IContentService.Stub {
     public void registerContentObserver(Uri uri, boolean notifyForDescendants,
                                         IContentObserver observer) {
         registerContentObserver(uri, notifyForDescendants, observer,
-                UserHandle.getCallingUserId(), Build.VERSION_CODES.CUR_DEVELOPMENT);
+                UserHandle.getCallingUserId(), Build.VERSION_CODES.CUR_DEVELOPMENT, false);
     }
 
     @Override
@@ -372,6 +392,7 @@ public final class ContentService extends IContentService.Stub {
             mRootNode.removeObserverLocked(observer);
             if (false) Log.v(TAG, "Unregistered observer " + observer);
         }
+        mObserverBatcher.removeObserver(observer);
     }
 
     /**
@@ -426,29 +447,22 @@ public final class ContentService extends IContentService.Stub {
                         flags, userHandle, calls);
             }
             final int numCalls = calls.size();
+            mObserverBatcher.noteNotification(numCalls);
+            final boolean batching = mObserverBatcher.isEnabled();
             for (int i=0; i<numCalls; i++) {
                 ObserverCall oc = calls.get(i);
+                if (oc.mBatch && batching) {
+                    mObserverBatcher.enqueue(oc, uri, userHandle);
+                    continue;
+                }
                 try {
                     oc.mObserver.onChange(oc.mSelfChange, uri, userHandle);
                     if (DEBUG) Slog.d(TAG, "Notified " + oc.mObserver + " of " + "update at "
                             + uri);
                 } catch (RemoteException ex) {
-                    synchronized (mRootNode) {
-                        Log.w(TAG, "Found dead observer, removing");
-                        IBinder binder = oc.mObserver.asBinder();
-                        final ArrayList<ObserverNode.ObserverEntry> list
-                                = oc.mNode.mObservers;
-                        int numList = list.size();
-                        for (int j=0; j<numList; j++) {
-                            ObserverNode.ObserverEntry oe = list.get(j);
-                            if (oe.observer.asBinder() == binder) {
-                                list.remove(j);
-                                j--;
-                                numList--;
-                            }
-                        }
-                    }
+                    removeDeadObserver(oc.mNode, oc.mObserver);
                 }
+                mObserverBatcher.noteTransaction();
             }
             if ((flags&ContentResolver.NOTIFY_SYNC_TO_NETWORK) != 0) {
                 SyncManager syncManager = getSyncManager();
@@ -467,6 +481,23 @@ public final class ContentService extends IContentService.Stub {
         }
     }
 
+    private void removeDeadObserver(ObserverNode node, IContentObserver observer) {
+        synchronized (mRootNode) {
+            Log.w(TAG, "Found dead observer, removing");
+            IBinder binder = observer.asBinder();
+            final ArrayList<ObserverNode.ObserverEntry> list = node.mObservers;
+            int numList = list.size();
+            for (int j=0; j<numList; j++) {
+                ObserverNode.ObserverEntry oe = list.get(j);
+                if (oe.observer.asBinder() == binder) {
+                    list.remove(j);
+                    j--;
+                    numList--;
+                }
+            }
+        }
+    }
+
     private int checkUriPermission(Uri uri, int pid, int uid, int modeFlags, int userHandle) {
         try {
             return ActivityManager.getService().checkUriPermission(
@@ -494,12 +525,19 @@ public final class ContentService extends IContentService.Stub {
         final IContentObserver mObserver;
         final boolean mSelfChange;
         final int mObserverUserId;
+        final boolean mBatch;
 
         ObserverCall(ObserverNode node, IContentObserver observer, boolean selfChange, int observerUserId) {
+            this(node, observer, selfChange, observerUserId, false);
+        }
+
+        ObserverCall(ObserverNode node, IContentObserver observer, boolean selfChange,
+                int observerUserId, boolean batch) {
             mNode = node;
             mObserver = observer;
             mSelfChange = selfChange;
             mObserverUserId = observerUserId;
+            mBatch = batch;
         }
     }
 
@@ -1329,17 +1367,19 @@ public final class ContentService extends IContentService.Stub {
             public final int uid;
             public final int pid;
             public final boolean notifyForDescendants;
+            public final boolean batch;
             private final int userHandle;
             private final Object observersLock;
 
             public ObserverEntry(IContentObserver o, boolean n, Object observersLock,
-                                 int _uid, int _pid, int _userHandle) {
+                                 int _uid, int _pid, int _userHandle, boolean _batch) {
                 this.observersLock = observersLock;
                 observer = o;
                 uid = _uid;
                 pid = _pid;
                 userHandle = _userHandle;
                 notifyForDescendants = n;
+                batch = _batch;
                 try {
                     observer.asBinder().linkToDeath(this, 0);
                 } catch (RemoteException e) {
@@ -1360,7 +1400,11 @@ public final class ContentService extends IContentService.Stub {
                 pw.print(prefix); pw.print(name); pw.print(": pid=");
                 pw.print(pid); pw.print(" uid=");
                 pw.print(uid); pw.print(" user=");
-                pw.print(userHandle); pw.print(" target=");
+                pw.print(userHandle);
+                if (batch) {
+                    pw.print(" batched");
+                }
+                pw.print(" target=");
                 pw.println(Integer.toHexString(System.identityHashCode(
                         observer != null ? observer.asBinder() : null)));
             }
@@ -1432,17 +1476,28 @@ public final class ContentService extends IContentService.Stub {
         public void addObserverLocked(Uri uri, IContentObserver observer,
                                       boolean notifyForDescendants, Object observersLock,
                                       int uid, int pid, int userHandle) {
+            addObserverLocked(uri, observer, notifyForDescendants, observersLock, uid, pid,
+                    userHandle, false);
+        }
+
+        /**
+         * @param batch whether the observer wants its notifications batched, see
+         *     {@link ContentObserverBatcher}
+         */
+        public void addObserverLocked(Uri uri, IContentObserver observer,
+                                      boolean notifyForDescendants, Object observersLock,
+                                      int uid, int pid, int userHandle, boolean batch) {
             addObserverLocked(uri, 0, observer, notifyForDescendants, observersLock,
-                    uid, pid, userHandle);
+                    uid, pid, userHandle, batch);
         }
 
         private void addObserverLocked(Uri uri, int index, IContentObserver observer,
                                        boolean notifyForDescendants, Object observersLock,
-                                       int uid, int pid, int userHandle) {
+                                       int uid, int pid, int userHandle, boolean batch) {
             // If this is the leaf node add the observer
             if (index == countUriSegments(uri)) {
                 mObservers.add(new ObserverEntry(observer, notifyForDescendants, observersLock,
-                        uid, pid, userHandle));
+                        uid, pid, userHandle, batch));
                 return;
             }
 
@@ -1456,7 +1511,7 @@ public final class ContentService extends IContentService.Stub {
                 ObserverNode node = mChildren.get(i);
                 if (node.mName.equals(segment)) {
                     node.addObserverLocked(uri, index + 1, observer, notifyForDescendants,
-                            observersLock, uid, pid, userHandle);
+                            observersLock, uid, pid, userHandle, batch);
                     return;
                 }
             }
@@ -1465,7 +1520,7 @@ public final class ContentService extends IContentService.Stub {
             ObserverNode node = new ObserverNode(segment);
             mChildren.add(node);
             node.addObserverLocked(uri, index + 1, observer, notifyForDescendants,
-                    observersLock, uid, pid, userHandle);
+                    observersLock, uid, pid, userHandle, batch);
         }
 
         public boolean removeObserverLocked(IContentObserver observer) {
@@ -1540,7 +1595,7 @@ public final class ContentService extends IContentService.Stub {
                             + " flags=" + Integer.toHexString(flags)
                             + " desc=" + entry.notifyForDescendants);
                     calls.add(new ObserverCall(this, entry.observer, selfChange,
-                            UserHandle.getUserId(entry.uid)));
+                            UserHandle.getUserId(entry.uid), entry.batch));
                 }
             }
         }
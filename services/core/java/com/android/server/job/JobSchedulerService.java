@@ -1694,7 +1694,8 @@ public class JobSchedulerService extends com.android.server.SystemService
         noteJobsNonpending(mPendingJobs);
         mPendingJobs.clear();
         stopNonReadyActiveJobsLocked();
-        mJobs.forEachJob(mReadyQueueFunctor);
+        noteReadinessPassLocked();
+        mJobs.forEachReadyJob(mReadyQueueFunctor);
         mReadyQueueFunctor.postProcess();
 
         if (DEBUG) {
@@ -1842,16 +1843,33 @@ public class JobSchedulerService extends com.android.server.SystemService
     }
     private final MaybeReadyJobQueueFunctor mMaybeQueueFunctor = new MaybeReadyJobQueueFunctor();
 
+    // Readiness evaluation stats, for dumpsys
+    private long mReadinessPasses;
+    private long mReadinessJobsEvaluated;
+    private long mReadinessJobsSkipped;
+
     private void maybeQueueReadyJobsForExecutionLocked() {
         if (DEBUG) Slog.d(TAG, "Maybe queuing ready jobs...");
 
         noteJobsNonpending(mPendingJobs);
         mPendingJobs.clear();
         stopNonReadyActiveJobsLocked();
-        mJobs.forEachJob(mMaybeQueueFunctor);
+        noteReadinessPassLocked();
+        mJobs.forEachReadyJob(mMaybeQueueFunctor);
         mMaybeQueueFunctor.postProcess();
     }
 
+    /**
+     * Only the jobs whose constraints are satisfied are visited when looking for jobs to
+     * queue; keep track of how many that saves for dumpsys.
+     */
+    private void noteReadinessPassLocked() {
+        final int evaluated = mJobs.countReadyJobs();
+        mReadinessPasses++;
+        mReadinessJobsEvaluated += evaluated;
+        mReadinessJobsSkipped += mJobs.size() - evaluated;
+    }
+
     /**
      * Heartbeat tracking.  The heartbeat alarm is intentionally non-wakeup.
      */
@@ -2760,9 +2778,9 @@ public class JobSchedulerService extends com.android.server.SystemService
                     return JobSchedulerShellCommand.CMD_ERR_NO_JOB;
                 }
 
-                js.overrideState = (force) ? JobStatus.OVERRIDE_FULL : JobStatus.OVERRIDE_SOFT;
+                js.setOverrideState((force) ? JobStatus.OVERRIDE_FULL : JobStatus.OVERRIDE_SOFT);
                 if (!js.isConstraintsSatisfied()) {
-                    js.overrideState = 0;
+                    js.setOverrideState(0);
                     return JobSchedulerShellCommand.CMD_ERR_CONSTRAINTS;
                 }
 
@@ -3210,6 +3228,14 @@ public class JobSchedulerService extends com.android.server.SystemService
                 pw.print("mReadyToRock="); pw.println(mReadyToRock);
                 pw.print("mReportedActive="); pw.println(mReportedActive);
                 pw.print("mMaxActiveJobs="); pw.println(mMaxActiveJobs);
+                pw.print("Readiness passes: "); pw.print(mReadinessPasses);
+                pw.print(", jobs evaluated: "); pw.print(mReadinessJobsEvaluated);
+                pw.print(", skipped as not ready: "); pw.print(mReadinessJobsSkipped);
+                if (mReadinessPasses > 0) {
+                    pw.print(", avg evaluated per pass: ");
+                    pw.print(mReadinessJobsEvaluated / mReadinessPasses);
+                }
+                pw.println();
             }
             pw.println();
             pw.print("PersistStats: ");
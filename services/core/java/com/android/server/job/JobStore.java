@@ -30,11 +30,11 @@ import android.os.Environment;
 import android.os.Handler;
 import android.os.PersistableBundle;
 import android.os.Process;
-import android.os.SystemClock;
 import android.os.UserHandle;
 import android.text.format.DateUtils;
 import android.util.ArraySet;
 import android.util.AtomicFile;
+import android.util.LongSparseArray;
 import android.util.Pair;
 import android.util.Slog;
 import android.util.SparseArray;
@@ -53,12 +53,12 @@ import org.xmlpull.v1.XmlPullParser;
 import org.xmlpull.v1.XmlPullParserException;
 import org.xmlpull.v1.XmlSerializer;
 
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.List;
@@ -97,8 +97,19 @@ public final class JobStore {
 
     private int mDirtyOperations;
 
+    /**
+     * Keys (see {@link JobStoreJournal#getKey}) of the persisted jobs that were added or
+     * removed since the last write.
+     */
+    private final ArraySet<Long> mDirtyJobKeys = new ArraySet<>();
+
+    /** Set when the next write must rewrite every persisted job */
+    private boolean mSnapshotNeeded;
+
     private static final Object sSingletonLock = new Object();
+    /** Legacy XML store, only read when there is no journal yet */
     private final AtomicFile mJobsFile;
+    private final JobStoreJournal mJobsJournal;
     /** Handler backed by IoThread for writing to disk. */
     private final Handler mIoHandler = IoThread.getHandler();
     private static JobStore sSingleton;
@@ -138,6 +149,7 @@ public final class JobStore {
         File jobDir = new File(systemDir, "job");
         jobDir.mkdirs();
         mJobsFile = new AtomicFile(new File(jobDir, "jobs.xml"), "jobs");
+        mJobsJournal = new JobStoreJournal(new File(jobDir, "jobs.journal"));
 
         mJobSet = new JobSet();
 
@@ -152,7 +164,8 @@ public final class JobStore {
         // an incorrect historical timestamp.  That's fine; at worst we'll reboot with
         // a *correct* timestamp, see a bunch of overdue jobs, and run them; then
         // settle into normal operation.
-        mXmlTimestamp = mJobsFile.getLastModifiedTime();
+        mXmlTimestamp = mJobsJournal.exists()
+                ? mJobsJournal.getLastModifiedTime() : mJobsFile.getLastModifiedTime();
         mRtcGood = (sSystemClock.millis() > mXmlTimestamp);
 
         readJobMapFromDisk(mJobSet, mRtcGood);
@@ -200,6 +213,7 @@ public final class JobStore {
         boolean replaced = mJobSet.remove(jobStatus);
         mJobSet.add(jobStatus);
         if (jobStatus.isPersisted()) {
+            markJobDirty(jobStatus);
             maybeWriteStatusToDiskAsync();
         }
         if (DEBUG) {
@@ -237,8 +251,11 @@ public final class JobStore {
             }
             return false;
         }
-        if (writeBack && jobStatus.isPersisted()) {
-            maybeWriteStatusToDiskAsync();
+        if (jobStatus.isPersisted()) {
+            markJobDirty(jobStatus);
+            if (writeBack) {
+                maybeWriteStatusToDiskAsync();
+            }
         }
         return removed;
     }
@@ -249,11 +266,13 @@ public final class JobStore {
      */
     public void removeJobsOfNonUsers(int[] whitelist) {
         mJobSet.removeJobsOfNonUsers(whitelist);
+        mSnapshotNeeded = true;
     }
 
     @VisibleForTesting
     public void clear() {
         mJobSet.clear();
+        mSnapshotNeeded = true;
         maybeWriteStatusToDiskAsync();
     }
 
@@ -301,6 +320,18 @@ public final class JobStore {
         mJobSet.forEachJob(uid, functor);
     }
 
+    /**
+     * Iterate over the jobs whose constraints are currently satisfied, which is a cheap way
+     * to skip the jobs that {@link JobStatus#isReady()} would reject.
+     */
+    public void forEachReadyJob(Consumer<JobStatus> functor) {
+        mJobSet.forEachReadyJob(functor);
+    }
+
+    public int countReadyJobs() {
+        return mJobSet.readySize();
+    }
+
     public void forEachJobForSourceUid(int sourceUid, Consumer<JobStatus> functor) {
         mJobSet.forEachJobForSourceUid(sourceUid, functor);
     }
@@ -314,9 +345,14 @@ public final class JobStore {
     private static final String XML_TAG_ONEOFF = "one-off";
     private static final String XML_TAG_EXTRAS = "extras";
 
+    private void markJobDirty(JobStatus jobStatus) {
+        mDirtyJobKeys.add(JobStoreJournal.getKey(jobStatus.getUid(), jobStatus.getJobId()));
+    }
+
     /**
-     * Every time the state changes we write all the jobs in one swath, instead of trying to
-     * track incremental changes.
+     * Every time the state changes we append the jobs that were added or removed since the
+     * last write to the journal, as a single batch. All jobs are only written out when the
+     * journal is compacted.
      */
     private void maybeWriteStatusToDiskAsync() {
         mDirtyOperations++;
@@ -335,45 +371,74 @@ public final class JobStore {
     }
 
     /**
-     * Runnable that writes {@link #mJobSet} out to xml.
+     * Runnable that writes the changes to {@link #mJobSet} out to the journal.
      * NOTE: This Runnable locks on mLock
      */
     private final Runnable mWriteRunnable = new Runnable() {
         @Override
         public void run() {
             final long startElapsed = sElapsedRealtimeClock.millis();
-            final List<JobStatus> storeCopy = new ArrayList<JobStatus>();
+            // Copies of the jobs to write, by journal key. A null job is a removal.
+            final LongSparseArray<JobStatus> changes = new LongSparseArray<>();
+            final boolean snapshot;
+            final int[] counts = new int[3];
             synchronized (mLock) {
-                // Clone the jobs so we can release the lock before writing.
+                // Clone the jobs so we can release the lock before writing. Unless the journal
+                // is being compacted, only the jobs that changed are cloned.
+                snapshot = mSnapshotNeeded || mJobsJournal.needsSnapshot();
+                if (snapshot) {
+                    mJobSet.forEachJob(null, (job) -> {
+                        if (job.isPersisted()) {
+                            changes.put(JobStoreJournal.getKey(job.getUid(), job.getJobId()),
+                                    new JobStatus(job));
+                        }
+                    });
+                    mSnapshotNeeded = false;
+                } else {
+                    for (int i = 0; i < mDirtyJobKeys.size(); i++) {
+                        final long key = mDirtyJobKeys.valueAt(i);
+                        final JobStatus job = mJobSet.get((int) (key >> 32), (int) key);
+                        changes.put(key, job != null && job.isPersisted()
+                                ? new JobStatus(job) : null);
+                    }
+                }
+                mDirtyJobKeys.clear();
                 mJobSet.forEachJob(null, (job) -> {
                     if (job.isPersisted()) {
-                        storeCopy.add(new JobStatus(job));
+                        counts[0]++;
+                        if (job.getUid() == Process.SYSTEM_UID) {
+                            counts[1]++;
+                            if (isSyncJob(job)) {
+                                counts[2]++;
+                            }
+                        }
                     }
                 });
             }
-            writeJobsMapImpl(storeCopy);
+            mPersistInfo.countAllJobsSaved = counts[0];
+            mPersistInfo.countSystemServerJobsSaved = counts[1];
+            mPersistInfo.countSystemSyncManagerJobsSaved = counts[2];
+            writeJobsMapImpl(changes, snapshot);
             if (DEBUG) {
-                Slog.v(TAG, "Finished writing, took " + (sElapsedRealtimeClock.millis()
-                        - startElapsed) + "ms");
+                Slog.v(TAG, "Finished writing " + changes.size() + " jobs"
+                        + (snapshot ? " (snapshot)" : "") + ", took "
+                        + (sElapsedRealtimeClock.millis() - startElapsed) + "ms");
             }
         }
 
-        private void writeJobsMapImpl(List<JobStatus> jobList) {
-            int numJobs = 0;
-            int numSystemJobs = 0;
-            int numSyncJobs = 0;
+        private void writeJobsMapImpl(LongSparseArray<JobStatus> changes, boolean snapshot) {
+            boolean success = false;
             try {
-                final long startTime = SystemClock.uptimeMillis();
+                final LongSparseArray<byte[]> payloads = new LongSparseArray<>(changes.size());
                 ByteArrayOutputStream baos = new ByteArrayOutputStream();
                 XmlSerializer out = new FastXmlSerializer();
                 out.setOutput(baos, StandardCharsets.UTF_8.name());
-                out.startDocument(null, true);
-                out.setFeature("http://xmlpull.org/v1/doc/features.html#indent-output", true);
-
-                out.startTag(null, "job-info");
-                out.attribute(null, "version", Integer.toString(JOBS_FILE_VERSION));
-                for (int i=0; i<jobList.size(); i++) {
-                    JobStatus jobStatus = jobList.get(i);
+                for (int i = 0; i < changes.size(); i++) {
+                    final JobStatus jobStatus = changes.valueAt(i);
+                    if (jobStatus == null) {
+                        payloads.put(changes.keyAt(i), null);
+                        continue;
+                    }
                     if (DEBUG) {
                         Slog.d(TAG, "Saving job " + jobStatus.getJobId());
                     }
@@ -383,23 +448,22 @@ public final class JobStore {
                     writeExecutionCriteriaToXml(out, jobStatus);
                     writeBundleToXml(jobStatus.getJob().getExtras(), out);
                     out.endTag(null, "job");
+                    out.flush();
+                    payloads.put(changes.keyAt(i), baos.toByteArray());
+                    baos.reset();
+                }
 
-                    numJobs++;
-                    if (jobStatus.getUid() == Process.SYSTEM_UID) {
-                        numSystemJobs++;
-                        if (isSyncJob(jobStatus)) {
-                            numSyncJobs++;
-                        }
+                if (snapshot) {
+                    mJobsJournal.writeSnapshot(payloads);
+                    if (mJobsFile.exists()) {
+                        // The journal supersedes the legacy xml file from now on.
+                        mJobsFile.delete();
                     }
+                } else {
+                    mJobsJournal.append(payloads);
                 }
-                out.endTag(null, "job-info");
-                out.endDocument();
-
-                // Write out to disk in one fell swoop.
-                FileOutputStream fos = mJobsFile.startWrite(startTime);
-                fos.write(baos.toByteArray());
-                mJobsFile.finishWrite(fos);
                 mDirtyOperations = 0;
+                success = true;
             } catch (IOException e) {
                 if (DEBUG) {
                     Slog.v(TAG, "Error writing out job data.", e);
@@ -409,9 +473,12 @@ public final class JobStore {
                     Slog.d(TAG, "Error persisting bundle.", e);
                 }
             } finally {
-                mPersistInfo.countAllJobsSaved = numJobs;
-                mPersistInfo.countSystemServerJobsSaved = numSystemJobs;
-                mPersistInfo.countSystemSyncManagerJobsSaved = numSyncJobs;
+                if (!success) {
+                    // The changes in this batch are lost, so start over from the full set.
+                    synchronized (mLock) {
+                        mSnapshotNeeded = true;
+                    }
+                }
             }
         }
 
@@ -594,7 +661,7 @@ public final class JobStore {
             int numSyncJobs = 0;
             try {
                 List<JobStatus> jobs;
-                FileInputStream fis = mJobsFile.openRead();
+                InputStream fis = openJobsDocument();
                 synchronized (mLock) {
                     jobs = readJobMapImpl(fis, rtcGood);
                     if (jobs != null) {
@@ -633,7 +700,38 @@ public final class JobStore {
             Slog.i(TAG, "Read " + numJobs + " jobs");
         }
 
-        private List<JobStatus> readJobMapImpl(FileInputStream fis, boolean rtcIsGood)
+        /**
+         * Opens the persisted jobs as a single xml document, replayed from the journal. Falls
+         * back to the legacy xml file, which is migrated to the journal on the next write.
+         */
+        private InputStream openJobsDocument() throws IOException {
+            if (mJobsJournal.exists()) {
+                try {
+                    final LongSparseArray<byte[]> jobs = mJobsJournal.read();
+                    final ByteArrayOutputStream doc = new ByteArrayOutputStream();
+                    doc.write(("<?xml version='1.0' encoding='utf-8' standalone='yes' ?>\n"
+                            + "<job-info version=\"" + JOBS_FILE_VERSION + "\">\n")
+                            .getBytes(StandardCharsets.UTF_8));
+                    for (int i = 0; i < jobs.size(); i++) {
+                        doc.write(jobs.valueAt(i));
+                    }
+                    doc.write("</job-info>\n".getBytes(StandardCharsets.UTF_8));
+                    if (mJobsFile.exists()) {
+                        // Left behind by a crash right after the first compaction.
+                        mJobsFile.delete();
+                    }
+                    return new ByteArrayInputStream(doc.toByteArray());
+                } catch (IOException e) {
+                    Slog.wtf(TAG, "Error reading job journal, falling back to xml.", e);
+                }
+            }
+            synchronized (mLock) {
+                mSnapshotNeeded = true;
+            }
+            return mJobsFile.openRead();
+        }
+
+        private List<JobStatus> readJobMapImpl(InputStream fis, boolean rtcIsGood)
                 throws XmlPullParserException, IOException {
             XmlPullParser parser = Xml.newPullParser();
             parser.setInput(fis, StandardCharsets.UTF_8.name());
@@ -1017,6 +1115,22 @@ public final class JobStore {
         @VisibleForTesting // Same data but with the key as getSourceUid() of the jobs in each sheaf
         final SparseArray<ArraySet<JobStatus>> mJobsPerSourceUid;
 
+        /**
+         * The jobs whose constraints are currently satisfied, see {@link JobStatus#isReady()}.
+         * Kept up to date by the jobs themselves, so that readiness checks only need to visit
+         * these rather than every job.
+         */
+        @VisibleForTesting
+        final ArraySet<JobStatus> mReadyJobs = new ArraySet<>();
+
+        private final JobStatus.ReadyListener mReadyListener = (job, ready) -> {
+            if (ready) {
+                mReadyJobs.add(job);
+            } else {
+                mReadyJobs.remove(job);
+            }
+        };
+
         public JobSet() {
             mJobs = new SparseArray<ArraySet<JobStatus>>();
             mJobsPerSourceUid = new SparseArray<>();
@@ -1064,6 +1178,9 @@ public final class JobStore {
                 Slog.wtf(TAG, "mJobs and mJobsPerSourceUid mismatch; caller= " + added
                         + " source= " + addedInSource);
             }
+            if (job.setReadyListener(mReadyListener)) {
+                mReadyJobs.add(job);
+            }
             return added || addedInSource;
         }
 
@@ -1079,6 +1196,8 @@ public final class JobStore {
                         + " source=" + sourceRemove);
             }
             if (didRemove || sourceRemove) {
+                job.setReadyListener(null);
+                mReadyJobs.remove(job);
                 // no more jobs for this uid?  let the now-empty set objects be GC'd.
                 if (jobs != null && jobs.size() == 0) {
                     mJobs.remove(uid);
@@ -1108,8 +1227,11 @@ public final class JobStore {
             for (int jobSetIndex = mJobs.size() - 1; jobSetIndex >= 0; jobSetIndex--) {
                 final ArraySet<JobStatus> jobs = mJobs.valueAt(jobSetIndex);
                 for (int jobIndex = jobs.size() - 1; jobIndex >= 0; jobIndex--) {
-                    if (predicate.test(jobs.valueAt(jobIndex))) {
+                    final JobStatus job = jobs.valueAt(jobIndex);
+                    if (predicate.test(job)) {
                         jobs.removeAt(jobIndex);
+                        job.setReadyListener(null);
+                        mReadyJobs.remove(job);
                     }
                 }
                 if (jobs.size() == 0) {
@@ -1166,8 +1288,10 @@ public final class JobStore {
         }
 
         public void clear() {
+            forEachJob(null, job -> job.setReadyListener(null));
             mJobs.clear();
             mJobsPerSourceUid.clear();
+            mReadyJobs.clear();
         }
 
         public int size() {
@@ -1209,6 +1333,20 @@ public final class JobStore {
             }
         }
 
+        /**
+         * Invokes {@code functor} on each job whose constraints are currently satisfied.
+         * The functor must not add or remove jobs.
+         */
+        public void forEachReadyJob(Consumer<JobStatus> functor) {
+            for (int i = mReadyJobs.size() - 1; i >= 0; i--) {
+                functor.accept(mReadyJobs.valueAt(i));
+            }
+        }
+
+        public int readySize() {
+            return mReadyJobs.size();
+        }
+
         public void forEachJob(int callingUid, Consumer<JobStatus> functor) {
             ArraySet<JobStatus> jobs = mJobs.get(callingUid);
             if (jobs != null) {
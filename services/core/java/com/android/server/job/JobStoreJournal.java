@@ -0,0 +1,187 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.server.job;
+
+import android.util.LongSparseArray;
+
+import com.android.internal.util.AppendOnlyLog;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Binary, append-only log of the persisted jobs.
+ * <p>
+ * The file starts with a snapshot of every persisted job, written when the journal is
+ * compacted, followed by batches of put and remove records for the jobs that changed since.
+ * Each record is keyed by the job's (uid, job id) pair, see {@link #getKey}. The file itself
+ * is an {@link AppendOnlyLog}.
+ * <p>
+ * Not thread safe: all writes happen on the IO thread, and reads happen once at boot before
+ * any write is posted.
+ */
+final class JobStoreJournal {
+    private static final int JOURNAL_MAGIC = 0x4a4f424a; // "JOBJ"
+    private static final int JOURNAL_VERSION = 1;
+
+    private static final int OP_PUT = 1;
+    private static final int OP_REMOVE = 2;
+
+    /** Never compact before this many records have been appended */
+    private static final int MIN_RECORDS_BEFORE_COMPACTION = 128;
+
+    /** Upper bound for a single record, anything larger means the file is corrupt */
+    private static final int MAX_RECORD_SIZE = 4 * 1024 * 1024;
+
+    private final AppendOnlyLog mLog;
+
+    /** Digests of the job payloads as they are currently persisted, by key */
+    private final LongSparseArray<byte[]> mPersisted = new LongSparseArray<>();
+
+    JobStoreJournal(File file) {
+        mLog = new AppendOnlyLog(file, "jobs", JOURNAL_MAGIC, JOURNAL_VERSION, MAX_RECORD_SIZE);
+    }
+
+    /** Key under which the job {@code jobId} scheduled by {@code uid} is journaled. */
+    static long getKey(int uid, int jobId) {
+        return ((long) uid << 32) | (jobId & 0xffffffffL);
+    }
+
+    boolean exists() {
+        return mLog.exists();
+    }
+
+    long getLastModifiedTime() {
+        return mLog.getLastModifiedTime();
+    }
+
+    void delete() {
+        mLog.delete();
+        mPersisted.clear();
+    }
+
+    /**
+     * Whether the next write must be a {@link #writeSnapshot snapshot} rather than an
+     * {@link #append}.
+     */
+    boolean needsSnapshot() {
+        return mLog.needsSnapshot() || mLog.getRecordCount()
+                > Math.max(MIN_RECORDS_BEFORE_COMPACTION, 2 * mPersisted.size());
+    }
+
+    /**
+     * Replays the snapshot and every batch appended after it.
+     *
+     * @return the payload of each live job, by key
+     */
+    LongSparseArray<byte[]> read() throws IOException {
+        final LongSparseArray<byte[]> jobs = new LongSparseArray<>();
+        mPersisted.clear();
+        mLog.read(record -> {
+            if (record.length < 9) {
+                throw new IOException("Bad journal record");
+            }
+            final int op = record[0];
+            long key = 0;
+            for (int i = 1; i < 9; i++) {
+                key = (key << 8) | (record[i] & 0xff);
+            }
+            switch (op) {
+                case OP_PUT: {
+                    final byte[] payload = new byte[record.length - 9];
+                    System.arraycopy(record, 9, payload, 0, payload.length);
+                    jobs.put(key, payload);
+                } break;
+                case OP_REMOVE: {
+                    jobs.delete(key);
+                } break;
+                default:
+                    throw new IOException("Bad journal op " + op);
+            }
+        });
+        for (int i = 0; i < jobs.size(); i++) {
+            mPersisted.put(jobs.keyAt(i), AppendOnlyLog.digest(jobs.valueAt(i)));
+        }
+        return jobs;
+    }
+
+    /**
+     * Rewrites the journal so that it holds exactly {@code jobs}.
+     */
+    void writeSnapshot(LongSparseArray<byte[]> jobs) throws IOException {
+        final AppendOnlyLog.Batch batch = new AppendOnlyLog.Batch();
+        for (int i = 0; i < jobs.size(); i++) {
+            writeRecord(batch, OP_PUT, jobs.keyAt(i), jobs.valueAt(i));
+        }
+        mLog.writeSnapshot(batch);
+        mPersisted.clear();
+        for (int i = 0; i < jobs.size(); i++) {
+            mPersisted.put(jobs.keyAt(i), AppendOnlyLog.digest(jobs.valueAt(i)));
+        }
+    }
+
+    /**
+     * Appends one batch of changes with a single sync. A {@code null} payload removes the job.
+     * Puts whose payload is identical to the persisted one are skipped.
+     *
+     * @return the number of records appended
+     */
+    int append(LongSparseArray<byte[]> changes) throws IOException {
+        final AppendOnlyLog.Batch batch = new AppendOnlyLog.Batch();
+        for (int i = 0; i < changes.size(); i++) {
+            final long key = changes.keyAt(i);
+            final byte[] payload = changes.valueAt(i);
+            final int index = mPersisted.indexOfKey(key);
+            if (payload == null) {
+                if (index >= 0) {
+                    writeRecord(batch, OP_REMOVE, key, null);
+                }
+            } else if (index < 0
+                    || !Arrays.equals(mPersisted.valueAt(index), AppendOnlyLog.digest(payload))) {
+                writeRecord(batch, OP_PUT, key, payload);
+            }
+        }
+        mLog.append(batch, true /* sync */);
+
+        for (int i = 0; i < changes.size(); i++) {
+            final byte[] payload = changes.valueAt(i);
+            if (payload == null) {
+                mPersisted.delete(changes.keyAt(i));
+            } else {
+                mPersisted.put(changes.keyAt(i), AppendOnlyLog.digest(payload));
+            }
+        }
+        return batch.getRecordCount();
+    }
+
+    /**
+     * Adds one record to {@code batch}, holding the operation, the job key and, for puts, the
+     * payload.
+     */
+    private static void writeRecord(AppendOnlyLog.Batch batch, int op, long key,
+            byte[] payload) throws IOException {
+        final DataOutputStream out = batch.beginRecord();
+        out.writeByte(op);
+        out.writeLong(key);
+        if (payload != null) {
+            out.write(payload);
+        }
+        batch.endRecord();
+    }
+}
@@ -18,6 +18,7 @@ package com.android.server.job.controllers;
 
 import static com.android.server.job.JobSchedulerService.sElapsedRealtimeClock;
 
+import android.annotation.Nullable;
 import android.app.AppGlobals;
 import android.app.IActivityManager;
 import android.app.job.JobInfo;
@@ -224,9 +225,21 @@ public final class JobStatus {
 
     public int nextPendingWorkId = 1;
 
-    // Used by shell commands
+    // Used by shell commands, set through setOverrideState()
     public int overrideState = 0;
 
+    /**
+     * Receives a callback whenever the result of {@link #isReady()} flips, so that the
+     * collection holding a job can index it by readiness instead of polling every job.
+     */
+    public interface ReadyListener {
+        void onReadyChanged(JobStatus job, boolean ready);
+    }
+
+    private ReadyListener mReadyListener;
+    /** Last readiness reported to {@link #mReadyListener} */
+    private boolean mReady;
+
     // When this job was enqueued, for ordering.  (in elapsedRealtimeMillis)
     public long enqueueTime;
 
@@ -899,9 +912,35 @@ public final class JobStatus {
             return false;
         }
         satisfiedConstraints = (satisfiedConstraints&~constraint) | (state ? constraint : 0);
+        notifyReadyChangedIfNeeded();
         return true;
     }
 
+    public void setOverrideState(int state) {
+        overrideState = state;
+        notifyReadyChangedIfNeeded();
+    }
+
+    /**
+     * Sets the listener told about changes to {@link #isReady()}, replacing any previous one.
+     * @return whether the job is currently ready.
+     */
+    public boolean setReadyListener(@Nullable ReadyListener listener) {
+        mReadyListener = listener;
+        mReady = isReady();
+        return mReady;
+    }
+
+    private void notifyReadyChangedIfNeeded() {
+        if (mReadyListener != null) {
+            final boolean ready = isReady();
+            if (ready != mReady) {
+                mReady = ready;
+                mReadyListener.onReadyChanged(this, ready);
+            }
+        }
+    }
+
     boolean isConstraintSatisfied(int constraint) {
         return (satisfiedConstraints&constraint) != 0;
     }
@@ -72,7 +72,9 @@ import java.io.PrintWriter;
 import java.net.ProtocolException;
 import java.time.ZonedDateTime;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.Objects;
@@ -96,6 +98,12 @@ public class NetworkStatsCollection implements FileRotator.Reader {
 
     private ArrayMap<Key, NetworkStatsHistory> mStats = new ArrayMap<>();
 
+    /**
+     * Keys of {@link #mStats} sorted by UID, so that per-UID queries can binary search
+     * instead of walking every key. Built lazily, {@code null} when keys have changed.
+     */
+    private Key[] mKeysByUid;
+
     private final long mBucketDuration;
 
     private long mStartMillis;
@@ -114,6 +122,7 @@ public class NetworkStatsCollection implements FileRotator.Reader {
 
     public void reset() {
         mStats.clear();
+        mKeysByUid = null;
         mStartMillis = Long.MAX_VALUE;
         mEndMillis = Long.MIN_VALUE;
         mTotalBytes = 0;
@@ -220,16 +229,14 @@ public class NetworkStatsCollection implements FileRotator.Reader {
 
     public int[] getRelevantUids(@NetworkStatsAccess.Level int accessLevel,
                 final int callerUid) {
-        IntArray uids = new IntArray();
-        for (int i = 0; i < mStats.size(); i++) {
-            final Key key = mStats.keyAt(i);
-            if (NetworkStatsAccess.isAccessibleToUser(key.uid, callerUid, accessLevel)) {
-                int j = uids.binarySearch(key.uid);
-
-                if (j < 0) {
-                    j = ~j;
-                    uids.add(j, key.uid);
-                }
+        final IntArray uids = new IntArray();
+        final Key[] keys = getKeysByUid();
+        for (int i = 0; i < keys.length; i++) {
+            final int uid = keys[i].uid;
+            // keys are sorted by uid, so only the first key of each uid needs checking
+            if (i > 0 && keys[i - 1].uid == uid) continue;
+            if (NetworkStatsAccess.isAccessibleToUser(uid, callerUid, accessLevel)) {
+                uids.add(uid);
             }
         }
         return uids.toArray();
@@ -289,11 +296,12 @@ public class NetworkStatsCollection implements FileRotator.Reader {
             collectEnd = roundUp(collectEnd);
         }
 
-        for (int i = 0; i < mStats.size(); i++) {
-            final Key key = mStats.keyAt(i);
-            if (key.uid == uid && NetworkStats.setMatches(set, key.set) && key.tag == tag
+        final Key[] keys = getKeysByUid();
+        for (int i = findFirstKeyForUid(keys, uid); i < keys.length && keys[i].uid == uid; i++) {
+            final Key key = keys[i];
+            if (NetworkStats.setMatches(set, key.set) && key.tag == tag
                     && templateMatches(template, key.ident)) {
-                final NetworkStatsHistory value = mStats.valueAt(i);
+                final NetworkStatsHistory value = mStats.get(key);
                 combined.recordHistory(value, collectStart, collectEnd);
             }
         }
@@ -364,12 +372,23 @@ public class NetworkStatsCollection implements FileRotator.Reader {
         final NetworkStats.Entry entry = new NetworkStats.Entry();
         NetworkStatsHistory.Entry historyEntry = null;
 
+        // many keys share the same ident, only match each ident against the template once
+        final ArrayMap<NetworkIdentitySet, Boolean> identMatches = new ArrayMap<>();
+
         for (int i = 0; i < mStats.size(); i++) {
             final Key key = mStats.keyAt(i);
-            if (templateMatches(template, key.ident)
+            final NetworkStatsHistory value = mStats.valueAt(i);
+            // skip histories with no buckets inside the requested range
+            if (value.getStart() >= end || value.getEnd() <= start) continue;
+
+            Boolean matches = identMatches.get(key.ident);
+            if (matches == null) {
+                matches = templateMatches(template, key.ident);
+                identMatches.put(key.ident, matches);
+            }
+            if (matches
                     && NetworkStatsAccess.isAccessibleToUser(key.uid, callerUid, accessLevel)
                     && key.set < NetworkStats.SET_DEBUG_START) {
-                final NetworkStatsHistory value = mStats.valueAt(i);
                 historyEntry = value.getValues(start, end, now, historyEntry);
 
                 entry.iface = IFACE_ALL;
@@ -416,6 +435,7 @@ public class NetworkStatsCollection implements FileRotator.Reader {
         if (target == null) {
             target = new NetworkStatsHistory(history.getBucketDuration());
             mStats.put(key, target);
+            mKeysByUid = null;
         }
         target.recordEntireHistory(history);
     }
@@ -446,6 +466,9 @@ public class NetworkStatsCollection implements FileRotator.Reader {
         }
 
         if (updated != null) {
+            if (existing == null) {
+                mKeysByUid = null;
+            }
             mStats.put(key, updated);
             return updated;
         } else {
@@ -649,6 +672,7 @@ public class NetworkStatsCollection implements FileRotator.Reader {
                     removedHistory.recordEntireHistory(uidHistory);
                 }
                 mStats.remove(key);
+                mKeysByUid = null;
                 mDirty = true;
             }
         }
@@ -666,6 +690,33 @@ public class NetworkStatsCollection implements FileRotator.Reader {
                 / mBucketDuration);
     }
 
+    private Key[] getKeysByUid() {
+        if (mKeysByUid == null) {
+            final Key[] keys = mStats.keySet().toArray(new Key[mStats.size()]);
+            Arrays.sort(keys, Key.UID_COMPARATOR);
+            mKeysByUid = keys;
+        }
+        return mKeysByUid;
+    }
+
+    /**
+     * Return the index of the first key for {@code uid} in {@code keys}, which must be
+     * sorted by {@link Key#UID_COMPARATOR}, or the index where such a key would be inserted.
+     */
+    private static int findFirstKeyForUid(Key[] keys, int uid) {
+        int lo = 0;
+        int hi = keys.length;
+        while (lo < hi) {
+            final int mid = (lo + hi) >>> 1;
+            if (keys[mid].uid < uid) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
     private ArrayList<Key> getSortedKeys() {
         final ArrayList<Key> keys = Lists.newArrayList();
         keys.addAll(mStats.keySet());
@@ -773,6 +824,21 @@ public class NetworkStatsCollection implements FileRotator.Reader {
     }
 
     private static class Key implements Comparable<Key> {
+        /** Orders keys by UID first, then tag and set, then ident. */
+        static final Comparator<Key> UID_COMPARATOR = (a, b) -> {
+            int res = Integer.compare(a.uid, b.uid);
+            if (res == 0) {
+                res = Integer.compare(a.tag, b.tag);
+            }
+            if (res == 0) {
+                res = Integer.compare(a.set, b.set);
+            }
+            if (res == 0 && a.ident != null && b.ident != null) {
+                res = a.ident.compareTo(b.ident);
+            }
+            return res;
+        };
+
         public final NetworkIdentitySet ident;
         public final int uid;
         public final int set;
@@ -758,9 +758,10 @@ public class NetworkStatsService extends INetworkStatsService.Stub {
         assertSystemReady();
         assertBandwidthControlEnabled();
 
+        // only the rotated files overlapping the requested range need to be read
         final NetworkStatsCollection uidComplete;
         synchronized (mStatsLock) {
-            uidComplete = mUidRecorder.getOrLoadCompleteLocked();
+            uidComplete = mUidRecorder.getOrLoadPartialLocked(start, end);
         }
         return uidComplete.getSummary(template, start, end, NetworkStatsAccess.Level.DEVICE,
                 android.os.Process.SYSTEM_UID);
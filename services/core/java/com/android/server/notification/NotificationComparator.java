@@ -37,12 +37,15 @@ public class NotificationComparator
     private final Context mContext;
     private final NotificationMessagingUtil mMessagingUtil;
     private String mDefaultPhoneApp;
+    /** Changes whenever the order of records that haven't changed themselves may change. */
+    private volatile int mGeneration;
 
     public NotificationComparator(Context context) {
         mContext = context;
         mContext.registerReceiver(mPhoneAppBroadcastReceiver,
                 new IntentFilter(TelecomManager.ACTION_DEFAULT_DIALER_CHANGED));
-        mMessagingUtil = new NotificationMessagingUtil(mContext);
+        // Messages from the default SMS app rank higher, so changing it reorders records.
+        mMessagingUtil = new NotificationMessagingUtil(mContext, () -> mGeneration++);
     }
 
     @Override
@@ -117,6 +120,14 @@ public class NotificationComparator
         return -1 * Long.compare(left.getRankingTimeMs(), right.getRankingTimeMs());
     }
 
+    /**
+     * Returns a number that changes whenever records may compare differently than they did
+     * before, without any of them having changed.
+     */
+    public int getGeneration() {
+        return mGeneration;
+    }
+
     private boolean isImportantColorized(NotificationRecord record) {
         if (record.getImportance() < NotificationManager.IMPORTANCE_LOW) {
             return false;
@@ -178,6 +189,7 @@ public class NotificationComparator
         public void onReceive(Context context, Intent intent) {
             mDefaultPhoneApp =
                     intent.getStringExtra(TelecomManager.EXTRA_CHANGE_DEFAULT_DIALER_PACKAGE_NAME);
+            mGeneration++;
         }
     };
 }
@@ -4074,7 +4074,7 @@ public class NotificationManagerService extends SystemService {
                             mNotificationList, pkg, null, notificationId, userId);
                     if (r != null) {
                         removeForegroundServiceFlagLocked(r);
-                        mRankingHelper.sort(mNotificationList);
+                        mRankingHelper.sort(mNotificationList, r);
                         mListeners.notifyPostedLocked(r, r);
                     }
                 }
@@ -4582,7 +4582,7 @@ public class NotificationManagerService extends SystemService {
                     }
 
                     applyZenModeLocked(r);
-                    mRankingHelper.sort(mNotificationList);
+                    mRankingHelper.sort(mNotificationList, r);
 
                     if (notification.getSmallIcon() != null) {
                         StatusBarNotification oldSbn = (old != null) ? old.sbn : null;
@@ -5358,7 +5358,7 @@ public class NotificationManagerService extends SystemService {
             int visibilityBefore = record.getPackageVisibilityOverride();
             recon.applyChangesLocked(record);
             applyZenModeLocked(record);
-            mRankingHelper.sort(mNotificationList);
+            mRankingHelper.sort(mNotificationList, record);
             int indexAfter = findNotificationRecordIndexLocked(record);
             boolean interceptAfter = record.isIntercepted();
             float contactAffinityAfter = record.getContactAffinity();
@@ -5403,6 +5403,8 @@ public class NotificationManagerService extends SystemService {
                 mRankingHelper.extractSignals(r);
             }
             mRankingHelper.sort(mNotificationList);
+            // Whatever changed may have changed in place, so the listeners' next update is full.
+            mListeners.resetRankingDeltasLocked();
             for (int i = 0; i < N; i++) {
                 final NotificationRecord r = mNotificationList.get(i);
                 if (!orderBefore.get(i).equals(r.getKey())
@@ -5589,6 +5591,7 @@ public class NotificationManagerService extends SystemService {
                 != null) {
             mNotificationList.remove(recordInList);
             mNotificationsByKey.remove(recordInList.sbn.getKey());
+            mRankingHelper.onNotificationRemoved(recordInList);
             wasPosted = true;
         }
         while ((recordInList = findNotificationByListLocked(mEnqueuedNotifications, r.getKey()))
@@ -6007,6 +6010,7 @@ public class NotificationManagerService extends SystemService {
             }
             notificationList.remove(i);
             mNotificationsByKey.remove(r.getKey());
+            mRankingHelper.onNotificationRemoved(r);
             canceledNotifications.add(r);
             cancelNotificationLocked(r, sendDelete, reason, wasPosted, listenerName);
         }
@@ -6118,6 +6122,7 @@ public class NotificationManagerService extends SystemService {
                         childSbn.getTag(), userId, 0, 0, reason, listenerName);
                 notificationList.remove(i);
                 mNotificationsByKey.remove(childR.getKey());
+                mRankingHelper.onNotificationRemoved(childR);
                 cancelNotificationLocked(childR, sendDelete, reason, wasPosted, listenerName);
             }
         }
@@ -6414,10 +6419,19 @@ public class NotificationManagerService extends SystemService {
     /**
      * Generates a NotificationRankingUpdate from 'sbns', considering only
      * notifications visible to the given listener.
+     *
+     * <p>Once the listener has got a full update, the following ones are deltas from the previous
+     * one: they only hold the ranking of the notifications whose ranking changed, besides the
+     * order, importance and interception of all of them.
      */
     @GuardedBy("mNotificationLock")
     private NotificationRankingUpdate makeRankingUpdateLocked(ManagedServiceInfo info) {
         final int N = mNotificationList.size();
+        final IBinder binder = info.service.asBinder();
+        final ArrayMap<String, SentRanking> sentBefore = mListeners.getSentRankingsLocked(binder);
+        final ArrayMap<String, SentRanking> sent =
+                mListeners.isTrackingRankingsLocked(binder) ? new ArrayMap<>(N) : null;
+        ArrayList<String> changedKeys = sentBefore != null ? new ArrayList<>() : null;
         ArrayList<String> keys = new ArrayList<String>(N);
         ArrayList<String> interceptedKeys = new ArrayList<String>(N);
         ArrayList<Integer> importance = new ArrayList<>(N);
@@ -6439,13 +6453,23 @@ public class NotificationManagerService extends SystemService {
             final String key = record.sbn.getKey();
             keys.add(key);
             importance.add(record.getImportance());
-            if (record.getImportanceExplanation() != null) {
-                explanation.putCharSequence(key, record.getImportanceExplanation());
-            }
             if (record.isIntercepted()) {
                 interceptedKeys.add(key);
 
             }
+            if (sent != null) {
+                final SentRanking ranking = new SentRanking(record);
+                sent.put(key, ranking);
+                if (sentBefore != null && ranking.equals(sentBefore.get(key))) {
+                    continue;
+                }
+            }
+            if (changedKeys != null) {
+                changedKeys.add(key);
+            }
+            if (record.getImportanceExplanation() != null) {
+                explanation.putCharSequence(key, record.getImportanceExplanation());
+            }
             suppressedVisualEffects.putInt(key, record.getSuppressedVisualEffects());
             if (record.getPackageVisibilityOverride()
                     != NotificationListenerService.Ranking.VISIBILITY_NO_OVERRIDE) {
@@ -6459,6 +6483,9 @@ public class NotificationManagerService extends SystemService {
             userSentiment.putInt(key, record.getUserSentiment());
             hidden.putBoolean(key, record.isHidden());
         }
+        if (sent != null) {
+            mListeners.setSentRankingsLocked(binder, sent);
+        }
         final int M = keys.size();
         String[] keysAr = keys.toArray(new String[M]);
         String[] interceptedKeysAr = interceptedKeys.toArray(new String[interceptedKeys.size()]);
@@ -6466,9 +6493,70 @@ public class NotificationManagerService extends SystemService {
         for (int i = 0; i < M; i++) {
             importanceAr[i] = importance.get(i);
         }
+        String[] changedKeysAr = changedKeys != null
+                ? changedKeys.toArray(new String[changedKeys.size()]) : null;
         return new NotificationRankingUpdate(keysAr, interceptedKeysAr, visibilityOverrides,
                 suppressedVisualEffects, importanceAr, explanation, overrideGroupKeys,
-                channels, overridePeople, snoozeCriteria, showBadge, userSentiment, hidden);
+                channels, overridePeople, snoozeCriteria, showBadge, userSentiment, hidden,
+                changedKeysAr);
+    }
+
+    /**
+     * The ranking of a notification as last sent to a listener, other than its order, importance
+     * and interception, which are sent for all notifications in every update.
+     */
+    private static final class SentRanking {
+        private final CharSequence mExplanation;
+        private final int mSuppressedVisualEffects;
+        private final int mVisibilityOverride;
+        private final String mOverrideGroupKey;
+        private final NotificationChannel mChannel;
+        private final ArrayList<String> mPeopleOverride;
+        private final ArrayList<SnoozeCriterion> mSnoozeCriteria;
+        private final boolean mShowBadge;
+        private final int mUserSentiment;
+        private final boolean mHidden;
+
+        SentRanking(NotificationRecord record) {
+            mExplanation = record.getImportanceExplanation();
+            mSuppressedVisualEffects = record.getSuppressedVisualEffects();
+            mVisibilityOverride = record.getPackageVisibilityOverride();
+            mOverrideGroupKey = record.sbn.getOverrideGroupKey();
+            // Channels are updated in place, but every such update triggers a full ranking sort,
+            // after which listeners get a full update.
+            mChannel = record.getChannel();
+            mPeopleOverride = record.getPeopleOverride() != null
+                    ? new ArrayList<>(record.getPeopleOverride()) : null;
+            mSnoozeCriteria = record.getSnoozeCriteria() != null
+                    ? new ArrayList<>(record.getSnoozeCriteria()) : null;
+            mShowBadge = record.canShowBadge();
+            mUserSentiment = record.getUserSentiment();
+            mHidden = record.isHidden();
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof SentRanking)) return false;
+            SentRanking that = (SentRanking) o;
+            return mSuppressedVisualEffects == that.mSuppressedVisualEffects
+                    && mVisibilityOverride == that.mVisibilityOverride
+                    && mShowBadge == that.mShowBadge
+                    && mUserSentiment == that.mUserSentiment
+                    && mHidden == that.mHidden
+                    && Objects.equals(mExplanation, that.mExplanation)
+                    && Objects.equals(mOverrideGroupKey, that.mOverrideGroupKey)
+                    && mChannel == that.mChannel
+                    && Objects.equals(mPeopleOverride, that.mPeopleOverride)
+                    && Objects.equals(mSnoozeCriteria, that.mSnoozeCriteria);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(mExplanation, mSuppressedVisualEffects, mVisibilityOverride,
+                    mOverrideGroupKey, mChannel, mPeopleOverride, mSnoozeCriteria, mShowBadge,
+                    mUserSentiment, mHidden);
+        }
     }
 
     boolean hasCompanionDevice(ManagedServiceInfo info) {
@@ -6699,6 +6787,15 @@ public class NotificationManagerService extends SystemService {
 
         private final ArraySet<ManagedServiceInfo> mLightTrimListeners = new ArraySet<>();
 
+        /**
+         * The ranking last sent to each listener, by notification key, that the next update is a
+         * delta from. A listener that isn't in here only gets full updates; one that maps to null
+         * gets a full update next, which is then kept track of.
+         */
+        @GuardedBy("mNotificationLock")
+        private final ArrayMap<IBinder, ArrayMap<String, SentRanking>> mSentRankings =
+                new ArrayMap<>();
+
         public NotificationListeners(IPackageManager pm) {
             super(getContext(), mNotificationLock, mUserProfiles, pm);
 
@@ -6742,12 +6839,21 @@ public class NotificationManagerService extends SystemService {
             final INotificationListener listener = (INotificationListener) info.service;
             final NotificationRankingUpdate update;
             synchronized (mNotificationLock) {
+                mSentRankings.remove(listener.asBinder());
                 update = makeRankingUpdateLocked(info);
             }
             try {
                 listener.onListenerConnected(update);
             } catch (RemoteException e) {
                 // we tried
+                return;
+            }
+            // Updates made from now on reach the listener after the one it connected with, so
+            // they can be deltas, starting from the next full one.
+            synchronized (mNotificationLock) {
+                if (isServiceTokenValidLocked(listener)) {
+                    mSentRankings.put(listener.asBinder(), null);
+                }
             }
         }
 
@@ -6759,6 +6865,46 @@ public class NotificationManagerService extends SystemService {
                 updateEffectsSuppressorLocked();
             }
             mLightTrimListeners.remove(removed);
+            mSentRankings.remove(removed.service.asBinder());
+        }
+
+        @GuardedBy("mNotificationLock")
+        boolean isTrackingRankingsLocked(IBinder listener) {
+            return mSentRankings.containsKey(listener);
+        }
+
+        @GuardedBy("mNotificationLock")
+        ArrayMap<String, SentRanking> getSentRankingsLocked(IBinder listener) {
+            return mSentRankings.get(listener);
+        }
+
+        @GuardedBy("mNotificationLock")
+        void setSentRankingsLocked(IBinder listener, ArrayMap<String, SentRanking> sent) {
+            mSentRankings.put(listener, sent);
+        }
+
+        /**
+         * Makes the next ranking update of the listener a full one, after it may have missed
+         * one.
+         */
+        private void resetRankingDeltas(ManagedServiceInfo info) {
+            synchronized (mNotificationLock) {
+                final IBinder binder = info.service.asBinder();
+                if (mSentRankings.containsKey(binder)) {
+                    mSentRankings.put(binder, null);
+                }
+            }
+        }
+
+        /**
+         * Makes the next ranking update of every listener a full one, for changes that can't be
+         * told from what was sent to them before.
+         */
+        @GuardedBy("mNotificationLock")
+        public void resetRankingDeltasLocked() {
+            for (int i = mSentRankings.size() - 1; i >= 0; i--) {
+                mSentRankings.setValueAt(i, null);
+            }
         }
 
         @GuardedBy("mNotificationLock")
@@ -7062,12 +7208,19 @@ public class NotificationManagerService extends SystemService {
                 listener.onNotificationPosted(sbnHolder, rankingUpdate);
             } catch (RemoteException ex) {
                 Log.e(TAG, "unable to notify listener (posted): " + listener, ex);
+                resetRankingDeltas(info);
             }
         }
 
         private void notifyRemoved(ManagedServiceInfo info, StatusBarNotification sbn,
                 NotificationRankingUpdate rankingUpdate, NotificationStats stats, int reason) {
             if (!info.enabledAndUserMatches(sbn.getUserId())) {
+                // The profiles changed after notifyRemovedLocked checked them. Later deltas
+                // would build on this update, so start them over rather than send it to a
+                // listener of another user.
+                if (rankingUpdate.isDelta()) {
+                    resetRankingDeltas(info);
+                }
                 return;
             }
             final INotificationListener listener = (INotificationListener) info.service;
@@ -7076,6 +7229,7 @@ public class NotificationManagerService extends SystemService {
                 listener.onNotificationRemoved(sbnHolder, rankingUpdate, stats, reason);
             } catch (RemoteException ex) {
                 Log.e(TAG, "unable to notify listener (removed): " + listener, ex);
+                resetRankingDeltas(info);
             }
         }
 
@@ -7086,6 +7240,7 @@ public class NotificationManagerService extends SystemService {
                 listener.onNotificationRankingUpdate(rankingUpdate);
             } catch (RemoteException ex) {
                 Log.e(TAG, "unable to notify listener (ranking update): " + listener, ex);
+                resetRankingDeltas(info);
             }
         }
 
@@ -42,6 +42,7 @@ import android.util.SparseBooleanArray;
 import android.util.proto.ProtoOutputStream;
 
 import com.android.internal.R;
+import com.android.internal.annotations.GuardedBy;
 import com.android.internal.annotations.VisibleForTesting;
 import com.android.internal.logging.MetricsLogger;
 import com.android.internal.logging.nano.MetricsProto;
@@ -61,10 +62,12 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Objects;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 
 public class RankingHelper implements RankingConfig {
@@ -72,6 +75,12 @@ public class RankingHelper implements RankingConfig {
 
     private static final int XML_VERSION = 1;
 
+    /**
+     * Incremental sorts fall back to sorting every record once more than one in this many of them
+     * has to be placed.
+     */
+    private static final int MAX_INCREMENTAL_SORT_FRACTION = 4;
+
     static final String TAG_RANKING = "ranking";
     private static final String TAG_PACKAGE = "package";
     private static final String TAG_CHANNEL = "channel";
@@ -112,6 +121,15 @@ public class RankingHelper implements RankingConfig {
 
     private final ArrayMap<String, Record> mRecords = new ArrayMap<>(); // pkg|uid => Record
     private final ArrayMap<String, NotificationRecord> mProxyByGroupTmp = new ArrayMap<>();
+    /**
+     * The records of the last sort in preliminary order, kept so that a single change can be
+     * placed into it instead of sorting all the records again.
+     */
+    @GuardedBy("mProxyByGroupTmp")
+    private final ArrayList<NotificationRecord> mPreliminaryOrder = new ArrayList<>();
+    @GuardedBy("mProxyByGroupTmp")
+    private int mPreliminaryOrderGeneration = -1;
+    private final StringBuilder mSortKeyBuilder = new StringBuilder();
     private final ArrayMap<String, Record> mRestoredWithoutUids = new ArrayMap<>(); // pkg => Record
 
     private final Context mContext;
@@ -465,19 +483,35 @@ public class RankingHelper implements RankingConfig {
     }
 
     public void sort(ArrayList<NotificationRecord> notificationList) {
+        sort(notificationList, null, true);
+    }
+
+    /**
+     * Sorts the list, assuming that the only record whose ranking signals changed since the last
+     * sort is {@code changed}, if any, besides the records that were added to it. The records that
+     * were added or changed are placed into the order of the last sort rather than all of them
+     * being sorted again; the result is the same as that of {@link #sort(ArrayList)}, except for
+     * the relative order of records that compare as equal.
+     */
+    public void sort(ArrayList<NotificationRecord> notificationList, NotificationRecord changed) {
+        sort(notificationList, changed, false);
+    }
+
+    private void sort(ArrayList<NotificationRecord> notificationList, NotificationRecord changed,
+            boolean full) {
         final int N = notificationList.size();
         // clear global sort keys
         for (int i = N - 1; i >= 0; i--) {
             notificationList.get(i).setGlobalSortKey(null);
         }
 
-        // rank each record individually
-        Collections.sort(notificationList, mPreliminaryComparator);
-
         synchronized (mProxyByGroupTmp) {
+            // rank each record individually
+            updatePreliminaryOrderLocked(notificationList, changed, full);
+
             // record individual ranking result and nominate proxies for each group
             for (int i = N - 1; i >= 0; i--) {
-                final NotificationRecord record = notificationList.get(i);
+                final NotificationRecord record = mPreliminaryOrder.get(i);
                 record.setAuthoritativeRank(i);
                 final String groupKey = record.getGroupKey();
                 NotificationRecord existingProxy = mProxyByGroupTmp.get(groupKey);
@@ -487,8 +521,9 @@ public class RankingHelper implements RankingConfig {
             }
             // assign global sort key:
             //   is_recently_intrusive:group_rank:is_group_summary:group_sort_key:rank
+            final StringBuilder sb = mSortKeyBuilder;
             for (int i = 0; i < N; i++) {
-                final NotificationRecord record = notificationList.get(i);
+                final NotificationRecord record = mPreliminaryOrder.get(i);
                 NotificationRecord groupProxy = mProxyByGroupTmp.get(record.getGroupKey());
                 String groupSortKey = record.getNotification().getSortKey();
 
@@ -507,15 +542,19 @@ public class RankingHelper implements RankingConfig {
                 }
 
                 boolean isGroupSummary = record.getNotification().isGroupSummary();
-                record.setGlobalSortKey(
-                        String.format("intrsv=%c:grnk=0x%04x:gsmry=%c:%s:rnk=0x%04x",
-                        record.isRecentlyIntrusive()
-                                && record.getImportance() > NotificationManager.IMPORTANCE_MIN
-                                ? '0' : '1',
-                        groupProxy.getAuthoritativeRank(),
-                        isGroupSummary ? '0' : '1',
-                        groupSortKeyPortion,
-                        record.getAuthoritativeRank()));
+                // Same as "intrsv=%c:grnk=0x%04x:gsmry=%c:%s:rnk=0x%04x", without the cost of
+                // String.format for every record on every sort.
+                sb.setLength(0);
+                sb.append("intrsv=").append(record.isRecentlyIntrusive()
+                        && record.getImportance() > NotificationManager.IMPORTANCE_MIN
+                        ? '0' : '1');
+                sb.append(":grnk=0x");
+                appendPaddedHex(sb, groupProxy.getAuthoritativeRank());
+                sb.append(":gsmry=").append(isGroupSummary ? '0' : '1');
+                sb.append(':').append(groupSortKeyPortion);
+                sb.append(":rnk=0x");
+                appendPaddedHex(sb, record.getAuthoritativeRank());
+                record.setGlobalSortKey(sb.toString());
             }
             mProxyByGroupTmp.clear();
         }
@@ -524,6 +563,91 @@ public class RankingHelper implements RankingConfig {
         Collections.sort(notificationList, mFinalComparator);
     }
 
+    /**
+     * Brings {@link #mPreliminaryOrder} up to date with the records in {@code notificationList}.
+     * Records that were removed are dropped from it, and records that were added, as well as
+     * {@code changed}, are binary-inserted into it, unless there are so many of them that sorting
+     * everything again is cheaper.
+     */
+    @GuardedBy("mProxyByGroupTmp")
+    private void updatePreliminaryOrderLocked(ArrayList<NotificationRecord> notificationList,
+            NotificationRecord changed, boolean full) {
+        final int N = notificationList.size();
+        final int generation = mPreliminaryComparator.getGeneration();
+        if (full || generation != mPreliminaryOrderGeneration || mPreliminaryOrder.isEmpty()) {
+            sortPreliminaryOrderLocked(notificationList, generation);
+            return;
+        }
+
+        final Set<NotificationRecord> current =
+                Collections.newSetFromMap(new IdentityHashMap<>(N));
+        current.addAll(notificationList);
+        final Set<NotificationRecord> ordered =
+                Collections.newSetFromMap(new IdentityHashMap<>(N));
+        for (int i = mPreliminaryOrder.size() - 1; i >= 0; i--) {
+            final NotificationRecord record = mPreliminaryOrder.get(i);
+            if (record == changed || !current.contains(record) || !ordered.add(record)) {
+                mPreliminaryOrder.remove(i);
+            }
+        }
+
+        final int toInsert = N - mPreliminaryOrder.size();
+        if (toInsert * MAX_INCREMENTAL_SORT_FRACTION > N) {
+            sortPreliminaryOrderLocked(notificationList, generation);
+            return;
+        }
+        for (int i = 0; i < N && mPreliminaryOrder.size() < N; i++) {
+            final NotificationRecord record = notificationList.get(i);
+            if (ordered.contains(record)) {
+                continue;
+            }
+            int index = Collections.binarySearch(mPreliminaryOrder, record, mPreliminaryComparator);
+            if (index < 0) {
+                index = -index - 1;
+            }
+            mPreliminaryOrder.add(index, record);
+        }
+    }
+
+    /**
+     * Drops a record that was removed from the notification list from the order kept between
+     * sorts, so that it isn't held on to until the next sort.
+     */
+    public void onNotificationRemoved(NotificationRecord record) {
+        synchronized (mProxyByGroupTmp) {
+            for (int i = mPreliminaryOrder.size() - 1; i >= 0; i--) {
+                if (mPreliminaryOrder.get(i) == record) {
+                    mPreliminaryOrder.remove(i);
+                    break;
+                }
+            }
+        }
+    }
+
+    @VisibleForTesting
+    int getPreliminaryOrderSize() {
+        synchronized (mProxyByGroupTmp) {
+            return mPreliminaryOrder.size();
+        }
+    }
+
+    @GuardedBy("mProxyByGroupTmp")
+    private void sortPreliminaryOrderLocked(ArrayList<NotificationRecord> notificationList,
+            int generation) {
+        mPreliminaryOrder.clear();
+        mPreliminaryOrder.addAll(notificationList);
+        Collections.sort(mPreliminaryOrder, mPreliminaryComparator);
+        mPreliminaryOrderGeneration = generation;
+    }
+
+    private static void appendPaddedHex(StringBuilder sb, int value) {
+        final String hex = Integer.toHexString(value);
+        for (int i = hex.length(); i < 4; i++) {
+            sb.append('0');
+        }
+        sb.append(hex);
+    }
+
     public int indexOf(ArrayList<NotificationRecord> notificationList, NotificationRecord target) {
         return Collections.binarySearch(notificationList, target, mFinalComparator);
     }
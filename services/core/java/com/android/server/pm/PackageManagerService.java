@@ -619,7 +619,7 @@ public class PackageManagerService extends IPackageManager.Stub
      * Version number for the package parser cache. Increment this whenever the format or
      * extent of cached data changes. See {@code PackageParser#setCacheDir}.
      */
-    private static final String PACKAGE_PARSER_CACHE_VERSION = "1";
+    private static final String PACKAGE_PARSER_CACHE_VERSION = "2";
 
     /**
      * Whether the package parser cache is enabled.
@@ -8509,6 +8509,11 @@ public class PackageManagerService extends IPackageManager.Stub
             // Process results one by one
             for (; fileCount > 0; fileCount--) {
                 ParallelPackageParser.ParseResult parseResult = parallelPackageParser.take();
+                if (DEBUG_PACKAGE_SCANNING) {
+                    Log.d(TAG, "Parsed " + parseResult.scanFile + " in "
+                            + parseResult.parseTimeMs + "ms, queued "
+                            + parseResult.waitTimeMs + "ms");
+                }
                 Throwable throwable = parseResult.throwable;
                 int errorCode = PackageManager.INSTALL_SUCCEEDED;
 
@@ -9578,9 +9583,11 @@ public class PackageManagerService extends IPackageManager.Stub
         mCompilerStats.writeNow();
         mDexManager.writePackageDexUsageNow();
 
-        // This is the last chance to write out pending restriction settings
+        // This is the last chance to write out pending restriction settings. Each user's
+        // journal append is synced before returning, so a crash after this point can't
+        // lose or tear the flushed state.
         synchronized (mPackages) {
-            if (mHandler.hasMessages(WRITE_PACKAGE_RESTRICTIONS)) {
+            if (!mDirtyUsers.isEmpty()) {
                 mHandler.removeMessages(WRITE_PACKAGE_RESTRICTIONS);
                 for (int userId : mDirtyUsers) {
                     mSettings.writePackageRestrictionsLPr(userId);
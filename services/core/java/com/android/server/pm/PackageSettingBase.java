@@ -31,6 +31,7 @@ import android.os.PersistableBundle;
 import android.service.pm.PackageProto;
 import android.util.ArraySet;
 import android.util.SparseArray;
+import android.util.SparseBooleanArray;
 import android.util.proto.ProtoOutputStream;
 
 import com.android.internal.annotations.VisibleForTesting;
@@ -111,6 +112,12 @@ public abstract class PackageSettingBase extends SettingBase {
     // started until explicitly launched by the user.
     private final SparseArray<PackageUserState> userState = new SparseArray<PackageUserState>();
 
+    /**
+     * Users whose state is known to match what was last written to their package
+     * restrictions. Any modification of a user's state drops it from this set.
+     */
+    private final SparseBooleanArray mPersistedUserStates = new SparseBooleanArray();
+
     /**
      * Non-persisted value. During an "upgrade without restart", we need the set
      * of all previous code paths so we can surgically add the new APKs to the
@@ -254,6 +261,7 @@ public abstract class PackageSettingBase extends SettingBase {
         timeStamp = orig.timeStamp;
         uidError = orig.uidError;
         userState.clear();
+        mPersistedUserStates.clear();
         for (int i=0; i<orig.userState.size(); i++) {
             userState.put(orig.userState.keyAt(i), orig.userState.valueAt(i));
         }
@@ -271,6 +279,7 @@ public abstract class PackageSettingBase extends SettingBase {
     }
 
     private PackageUserState modifyUserState(int userId) {
+        mPersistedUserStates.delete(userId);
         PackageUserState state = userState.get(userId);
         if (state == null) {
             state = new PackageUserState();
@@ -537,6 +546,19 @@ public abstract class PackageSettingBase extends SettingBase {
 
     void removeUser(int userId) {
         userState.delete(userId);
+        mPersistedUserStates.delete(userId);
+    }
+
+    /**
+     * Returns whether the state for {@code userId} is unchanged since it was last
+     * {@link #setUserStatePersisted persisted}.
+     */
+    boolean isUserStatePersisted(int userId) {
+        return mPersistedUserStates.get(userId);
+    }
+
+    void setUserStatePersisted(int userId) {
+        mPersistedUserStates.put(userId, true);
     }
 
     public int[] getNotInstalledUserIds() {
@@ -0,0 +1,352 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.pm;
+
+import android.os.FileUtils;
+import android.util.ArrayMap;
+import android.util.ArraySet;
+
+import com.android.internal.util.AppendOnlyLog;
+import com.android.internal.util.FastXmlSerializer;
+
+import org.xmlpull.v1.XmlSerializer;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Append-only, binary persistence for the entries that make up one of the {@link Settings}
+ * XML documents, such as packages.xml or a user's package-restrictions.xml.
+ * <p>
+ * The journal is an {@link AppendOnlyLog} of records, each of which either stores or removes
+ * one entry of a section (a package, an updated system package, a shared user, or the global
+ * state written before and after them). A write pass hands the journal the serialized entries,
+ * but only the entries whose serialized form changed since the last pass are appended to
+ * disk; the journal keeps a SHA-256 digest of each persisted entry to tell. Entries that are
+ * known to be unchanged may be {@link #keepFragment kept} without being serialized at all,
+ * except on passes that {@link #isCompacting compact} the journal by rewriting it with just
+ * the live entries.
+ * <p>
+ * Entry payloads are produced by the existing {@link Settings} XML writers, so the replayed
+ * journal can be handed to the regular XML parser as a single document.
+ */
+final class PackageSettingsJournal {
+    private static final int JOURNAL_MAGIC = 0x504b474a; // "PKGJ"
+    private static final int JOURNAL_VERSION = 1;
+
+    /** Global state that precedes the packages in packages.xml */
+    static final int SECTION_PROLOGUE = 0;
+    /** One {@code <package>} entry per installed package */
+    static final int SECTION_PACKAGE = 1;
+    /** One {@code <updated-package>} entry per disabled system package */
+    static final int SECTION_DISABLED_PACKAGE = 2;
+    /** One {@code <shared-user>} entry per shared user */
+    static final int SECTION_SHARED_USER = 3;
+    /** Global state that follows the packages in packages.xml */
+    static final int SECTION_EPILOGUE = 4;
+    private static final int SECTION_COUNT = 5;
+
+    private static final int OP_PUT = 1;
+    private static final int OP_REMOVE = 2;
+
+    /** Never compact before this many records have been appended */
+    private static final int MIN_RECORDS_BEFORE_COMPACTION = 64;
+
+    /** Upper bound for a single record, anything larger means the file is corrupt */
+    private static final int MAX_RECORD_SIZE = 16 * 1024 * 1024;
+
+    private final AppendOnlyLog mLog;
+    private final byte[] mDocumentHeader;
+    private final byte[] mDocumentFooter;
+
+    /** Digests of the entries as they are currently persisted, per section */
+    private final ArrayMap<String, byte[]>[] mPersisted = newSectionMaps();
+
+    /** Entries serialized during the current write pass, per section */
+    private final ArrayMap<String, byte[]>[] mPass = newSectionMaps();
+
+    /** Persisted entries kept unchanged by the current write pass, per section */
+    private final ArraySet<String>[] mKept = newSectionSets();
+
+    private final ByteArrayOutputStream mFragment = new ByteArrayOutputStream(4 * 1024);
+    private final XmlSerializer mSerializer = new FastXmlSerializer();
+
+    /**
+     * Set when the on-disk journal can't be trusted to match {@link #mPersisted}, or when
+     * enough records have been appended that it is worth rewriting
+     */
+    private boolean mNeedsCompaction = true;
+
+    /** Whether the current write pass rewrites the journal rather than appending to it */
+    private boolean mCompacting;
+
+    /**
+     * @param file the journal file
+     * @param rootTag the root element of the XML document replayed by {@link #readDocument}
+     */
+    PackageSettingsJournal(File file, String rootTag) {
+        mLog = new AppendOnlyLog(file, null, JOURNAL_MAGIC, JOURNAL_VERSION, MAX_RECORD_SIZE);
+        mDocumentHeader = ("<?xml version='1.0' encoding='utf-8' standalone='yes' ?>\n<"
+                + rootTag + ">\n").getBytes(StandardCharsets.UTF_8);
+        mDocumentFooter = ("</" + rootTag + ">\n").getBytes(StandardCharsets.UTF_8);
+    }
+
+    boolean exists() {
+        return mLog.exists();
+    }
+
+    File getFile() {
+        return mLog.getFile();
+    }
+
+    void delete() {
+        mLog.delete();
+        for (int section = 0; section < SECTION_COUNT; section++) {
+            mPersisted[section].clear();
+        }
+        mNeedsCompaction = true;
+    }
+
+    /**
+     * Replays the journal and returns the resulting entries as a single XML document.
+     * A torn record at the end of the journal, left behind by an interrupted append, is
+     * dropped and the journal is compacted on the next write.
+     */
+    InputStream readDocument() throws IOException {
+        final ArrayMap<String, byte[]>[] entries = newSectionMaps();
+        mNeedsCompaction = true;
+        mLog.read(record -> applyRecord(record, entries));
+
+        final ByteArrayOutputStream doc = new ByteArrayOutputStream(
+                (int) Math.min(mLog.getSize() + 64, Integer.MAX_VALUE));
+        doc.write(mDocumentHeader);
+        int live = 0;
+        for (int section = 0; section < SECTION_COUNT; section++) {
+            final ArrayMap<String, byte[]> sectionEntries = entries[section];
+            live += sectionEntries.size();
+            final ArrayMap<String, byte[]> persisted = mPersisted[section];
+            persisted.clear();
+            for (int i = 0; i < sectionEntries.size(); i++) {
+                final byte[] payload = sectionEntries.valueAt(i);
+                persisted.put(sectionEntries.keyAt(i), AppendOnlyLog.digest(payload));
+                doc.write(payload);
+            }
+        }
+        doc.write(mDocumentFooter);
+        mNeedsCompaction = mLog.needsSnapshot()
+                || mLog.getRecordCount() > Math.max(MIN_RECORDS_BEFORE_COMPACTION, live);
+        return new ByteArrayInputStream(doc.toByteArray());
+    }
+
+    /**
+     * Starts a write pass and returns the serializer that entries must be written to. Each
+     * entry is completed by a call to {@link #putFragment(int, String)}.
+     */
+    XmlSerializer beginWrite() throws IOException {
+        for (int section = 0; section < SECTION_COUNT; section++) {
+            mPass[section].clear();
+            mKept[section].clear();
+        }
+        mCompacting = mNeedsCompaction || mLog.needsSnapshot() || !mLog.exists();
+        mFragment.reset();
+        mSerializer.setOutput(mFragment, StandardCharsets.UTF_8.name());
+        return mSerializer;
+    }
+
+    /**
+     * Whether the current write pass rewrites the whole journal, in which case every live
+     * entry must be put rather than kept.
+     */
+    boolean isCompacting() {
+        return mCompacting;
+    }
+
+    /**
+     * Whether {@code name} is persisted in {@code section}, and so may be kept by a write
+     * pass that doesn't compact.
+     */
+    boolean containsFragment(int section, String name) {
+        return mPersisted[section].containsKey(name);
+    }
+
+    /**
+     * Marks the persisted entry {@code name} of {@code section} as still live and unchanged
+     * without serializing it again. Not allowed while {@link #isCompacting compacting}.
+     */
+    void keepFragment(int section, String name) {
+        if (mCompacting) {
+            throw new IllegalStateException("Entries must be put when compacting");
+        }
+        if (!mPersisted[section].containsKey(name)) {
+            throw new IllegalArgumentException("Unknown entry " + name);
+        }
+        mKept[section].add(name);
+    }
+
+    /**
+     * Records everything written to the pass serializer since the previous call as the
+     * entry {@code name} of {@code section}.
+     */
+    void putFragment(int section, String name) throws IOException {
+        mSerializer.flush();
+        mPass[section].put(name, mFragment.toByteArray());
+        mFragment.reset();
+    }
+
+    /**
+     * Persists the differences between this write pass and the previous one. Entries that
+     * were neither put nor kept during this pass are removed from the journal.
+     *
+     * @return {@code true} if the journal was compacted rather than appended to
+     */
+    boolean commitWrite() throws IOException {
+        final AppendOnlyLog.Batch batch = new AppendOnlyLog.Batch();
+        int live = 0;
+        if (!mCompacting) {
+            for (int section = 0; section < SECTION_COUNT; section++) {
+                final ArrayMap<String, byte[]> pass = mPass[section];
+                final ArraySet<String> kept = mKept[section];
+                final ArrayMap<String, byte[]> persisted = mPersisted[section];
+                live += pass.size() + kept.size();
+                for (int i = 0; i < pass.size(); i++) {
+                    final byte[] previous = persisted.get(pass.keyAt(i));
+                    final byte[] payload = pass.valueAt(i);
+                    if (!Arrays.equals(previous, AppendOnlyLog.digest(payload))) {
+                        writeRecord(batch, OP_PUT, section, pass.keyAt(i), payload);
+                    }
+                }
+                for (int i = 0; i < persisted.size(); i++) {
+                    final String name = persisted.keyAt(i);
+                    if (!pass.containsKey(name) && !kept.contains(name)) {
+                        writeRecord(batch, OP_REMOVE, section, name, null);
+                    }
+                }
+            }
+        }
+
+        try {
+            if (mCompacting) {
+                compactLocked();
+            } else {
+                mLog.append(batch, true /* sync */);
+                mNeedsCompaction =
+                        mLog.getRecordCount() > Math.max(MIN_RECORDS_BEFORE_COMPACTION, live);
+            }
+        } catch (IOException e) {
+            // Whatever made it to disk no longer matches what we think is persisted
+            mNeedsCompaction = true;
+            throw e;
+        }
+
+        for (int section = 0; section < SECTION_COUNT; section++) {
+            final ArrayMap<String, byte[]> pass = mPass[section];
+            final ArraySet<String> kept = mKept[section];
+            final ArrayMap<String, byte[]> persisted = mPersisted[section];
+            for (int i = persisted.size() - 1; i >= 0; i--) {
+                if (!kept.contains(persisted.keyAt(i))) {
+                    persisted.removeAt(i);
+                }
+            }
+            for (int i = 0; i < pass.size(); i++) {
+                persisted.put(pass.keyAt(i), AppendOnlyLog.digest(pass.valueAt(i)));
+            }
+            pass.clear();
+            kept.clear();
+        }
+        return mCompacting;
+    }
+
+    private void compactLocked() throws IOException {
+        final AppendOnlyLog.Batch batch = new AppendOnlyLog.Batch();
+        for (int section = 0; section < SECTION_COUNT; section++) {
+            final ArrayMap<String, byte[]> pass = mPass[section];
+            for (int i = 0; i < pass.size(); i++) {
+                writeRecord(batch, OP_PUT, section, pass.keyAt(i), pass.valueAt(i));
+            }
+        }
+        mLog.writeSnapshot(batch);
+        FileUtils.setPermissions(mLog.getFile().toString(),
+                FileUtils.S_IRUSR | FileUtils.S_IWUSR | FileUtils.S_IRGRP | FileUtils.S_IWGRP,
+                -1, -1);
+        mNeedsCompaction = false;
+    }
+
+    /**
+     * Adds one record to {@code batch}, holding the operation, section, entry name and, for
+     * puts, the payload.
+     */
+    private static void writeRecord(AppendOnlyLog.Batch batch, int op, int section,
+            String name, byte[] payload) throws IOException {
+        final DataOutputStream out = batch.beginRecord();
+        out.writeByte(op);
+        out.writeByte(section);
+        out.writeUTF(name);
+        if (payload != null) {
+            out.writeInt(payload.length);
+            out.write(payload);
+        }
+        batch.endRecord();
+    }
+
+    private static void applyRecord(byte[] record, ArrayMap<String, byte[]>[] entries)
+            throws IOException {
+        final DataInputStream in = new DataInputStream(new ByteArrayInputStream(record));
+        final int op = in.readByte();
+        final int section = in.readByte();
+        if (section < 0 || section >= SECTION_COUNT) {
+            throw new IOException("Bad journal section " + section);
+        }
+        final String name = in.readUTF();
+        switch (op) {
+            case OP_PUT: {
+                final byte[] payload = new byte[in.readInt()];
+                in.readFully(payload);
+                entries[section].put(name, payload);
+            } break;
+            case OP_REMOVE: {
+                entries[section].remove(name);
+            } break;
+            default:
+                throw new IOException("Bad journal op " + op);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static ArraySet<String>[] newSectionSets() {
+        final ArraySet<String>[] sets = new ArraySet[SECTION_COUNT];
+        for (int i = 0; i < SECTION_COUNT; i++) {
+            sets[i] = new ArraySet<>();
+        }
+        return sets;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <V> ArrayMap<String, V>[] newSectionMaps() {
+        final ArrayMap<String, V>[] maps = new ArrayMap[SECTION_COUNT];
+        for (int i = 0; i < SECTION_COUNT; i++) {
+            maps[i] = new ArrayMap<>();
+        }
+        return maps;
+    }
+}
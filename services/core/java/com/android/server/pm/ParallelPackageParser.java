@@ -18,29 +18,39 @@ package com.android.server.pm;
 
 import android.content.pm.PackageParser;
 import android.os.Process;
+import android.os.SystemClock;
 import android.os.Trace;
 import android.util.DisplayMetrics;
+import android.util.Slog;
 
 import com.android.internal.annotations.VisibleForTesting;
-import com.android.internal.util.ConcurrentUtils;
 
 import java.io.File;
 import java.util.List;
-import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static android.os.Trace.TRACE_TAG_PACKAGE_MANAGER;
 
 /**
  * Helper class for parallel parsing of packages using {@link PackageParser}.
- * <p>Parsing requests are processed by a thread-pool of {@link #MAX_THREADS}.
- * At any time, at most {@link #QUEUE_CAPACITY} results are kept in RAM</p>
+ * <p>Parsing requests are processed by a thread-pool sized to the number of available cores,
+ * up to {@link #MAX_THREADS}. Pending requests are parsed largest package first, so that big
+ * APKs don't end up serialized behind small ones at the end of a scan. Results are handed
+ * back in completion order.</p>
  */
 class ParallelPackageParser implements AutoCloseable {
+    private static final String TAG = "ParallelPackageParser";
 
-    private static final int QUEUE_CAPACITY = 10;
-    private static final int MAX_THREADS = 4;
+    private static final int MAX_THREADS = 8;
+
+    /** Parses taking at least this long are logged individually */
+    private static final long SLOW_PARSE_THRESHOLD_MS = 500;
 
     private final String[] mSeparateProcesses;
     private final boolean mOnlyCore;
@@ -49,10 +59,36 @@ class ParallelPackageParser implements AutoCloseable {
     private final PackageParser.Callback mPackageParserCallback;
     private volatile String mInterruptedInThread;
 
-    private final BlockingQueue<ParseResult> mQueue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+    private final BlockingQueue<ParseResult> mQueue = new LinkedBlockingQueue<>();
+
+    private final int mThreadCount = getThreadCount();
+
+    private final ThreadPoolExecutor mService = new ThreadPoolExecutor(mThreadCount,
+            mThreadCount, 0L, TimeUnit.MILLISECONDS, new PriorityBlockingQueue<>(),
+            new ThreadFactory() {
+                private final AtomicInteger threadNum = new AtomicInteger(0);
+
+                @Override
+                public Thread newThread(final Runnable r) {
+                    return new Thread("package-parsing-thread" + threadNum.incrementAndGet()) {
+                        @Override
+                        public void run() {
+                            Process.setThreadPriority(Process.THREAD_PRIORITY_FOREGROUND);
+                            r.run();
+                        }
+                    };
+                }
+            });
+
+    /** Submission order, breaks ties between packages of the same size */
+    private int mSequence;
 
-    private final ExecutorService mService = ConcurrentUtils.newFixedThreadPool(MAX_THREADS,
-            "package-parsing-thread", Process.THREAD_PRIORITY_FOREGROUND);
+    // Totals over all completed parses, for the summary logged on close
+    private final AtomicInteger mParsedCount = new AtomicInteger();
+    private volatile long mTotalParseTimeMs;
+    private volatile long mTotalWaitTimeMs;
+    private volatile long mMaxWaitTimeMs;
+    private final long mStartTime = SystemClock.uptimeMillis();
 
     ParallelPackageParser(String[] separateProcesses, boolean onlyCoreApps,
             DisplayMetrics metrics, File cacheDir, PackageParser.Callback callback) {
@@ -68,6 +104,8 @@ class ParallelPackageParser implements AutoCloseable {
         PackageParser.Package pkg; // Parsed package
         File scanFile; // File that was parsed
         Throwable throwable; // Set if an error occurs during parsing
+        long waitTimeMs; // Time spent queued before parsing started
+        long parseTimeMs; // Time spent parsing
 
         @Override
         public String toString() {
@@ -75,36 +113,43 @@ class ParallelPackageParser implements AutoCloseable {
                     "pkg=" + pkg +
                     ", scanFile=" + scanFile +
                     ", throwable=" + throwable +
+                    ", waitTimeMs=" + waitTimeMs +
+                    ", parseTimeMs=" + parseTimeMs +
                     '}';
         }
     }
 
     /**
-     * Take the parsed package from the parsing queue, waiting if necessary until the element
-     * appears in the queue.
-     * @return parsed package
+     * A pending parse. Orders larger packages first, then by submission order.
      */
-    public ParseResult take() {
-        try {
-            if (mInterruptedInThread != null) {
-                throw new InterruptedException("Interrupted in " + mInterruptedInThread);
+    private final class ParseTask implements Runnable, Comparable<ParseTask> {
+        final File scanFile;
+        final int parseFlags;
+        final long size;
+        final int sequence;
+        final long submitTime;
+
+        ParseTask(File scanFile, int parseFlags, long size, int sequence) {
+            this.scanFile = scanFile;
+            this.parseFlags = parseFlags;
+            this.size = size;
+            this.sequence = sequence;
+            this.submitTime = SystemClock.uptimeMillis();
+        }
+
+        @Override
+        public int compareTo(ParseTask other) {
+            if (size != other.size) {
+                return size > other.size ? -1 : 1;
             }
-            return mQueue.take();
-        } catch (InterruptedException e) {
-            // We cannot recover from interrupt here
-            Thread.currentThread().interrupt();
-            throw new IllegalStateException(e);
+            return Integer.compare(sequence, other.sequence);
         }
-    }
 
-    /**
-     * Submits the file for parsing
-     * @param scanFile file to scan
-     * @param parseFlags parse falgs
-     */
-    public void submit(File scanFile, int parseFlags) {
-        mService.submit(() -> {
+        @Override
+        public void run() {
             ParseResult pr = new ParseResult();
+            final long startTime = SystemClock.uptimeMillis();
+            pr.waitTimeMs = startTime - submitTime;
             Trace.traceBegin(TRACE_TAG_PACKAGE_MANAGER, "parallel parsePackage [" + scanFile + "]");
             try {
                 PackageParser pp = new PackageParser();
@@ -120,6 +165,8 @@ class ParallelPackageParser implements AutoCloseable {
             } finally {
                 Trace.traceEnd(TRACE_TAG_PACKAGE_MANAGER);
             }
+            pr.parseTimeMs = SystemClock.uptimeMillis() - startTime;
+            recordTimes(pr);
             try {
                 mQueue.put(pr);
             } catch (InterruptedException e) {
@@ -129,7 +176,40 @@ class ParallelPackageParser implements AutoCloseable {
                 // ParallelPackageParser to finish in case of interruption
                 mInterruptedInThread = Thread.currentThread().getName();
             }
-        });
+        }
+
+        @Override
+        public String toString() {
+            return "ParseTask{" + scanFile + ", size=" + size + "}";
+        }
+    }
+
+    /**
+     * Take the parsed package from the parsing queue, waiting if necessary until the element
+     * appears in the queue.
+     * @return parsed package
+     */
+    public ParseResult take() {
+        try {
+            if (mInterruptedInThread != null) {
+                throw new InterruptedException("Interrupted in " + mInterruptedInThread);
+            }
+            return mQueue.take();
+        } catch (InterruptedException e) {
+            // We cannot recover from interrupt here
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Submits the file for parsing
+     * @param scanFile file to scan
+     * @param parseFlags parse falgs
+     */
+    public void submit(File scanFile, int parseFlags) {
+        mService.execute(new ParseTask(scanFile, parseFlags, getPackageSize(scanFile),
+                mSequence++));
     }
 
     @VisibleForTesting
@@ -138,9 +218,54 @@ class ParallelPackageParser implements AutoCloseable {
         return packageParser.parsePackage(scanFile, parseFlags, true /* useCaches */);
     }
 
+    /**
+     * Returns the on-disk size used to schedule a package: the APK size for monolithic
+     * packages, or the total size of the APKs in a cluster package directory.
+     */
+    @VisibleForTesting
+    protected long getPackageSize(File scanFile) {
+        if (!scanFile.isDirectory()) {
+            return scanFile.length();
+        }
+        long size = 0;
+        final File[] files = scanFile.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                if (PackageParser.isApkFile(file)) {
+                    size += file.length();
+                }
+            }
+        }
+        return size;
+    }
+
+    private synchronized void recordTimes(ParseResult pr) {
+        mParsedCount.incrementAndGet();
+        mTotalParseTimeMs += pr.parseTimeMs;
+        mTotalWaitTimeMs += pr.waitTimeMs;
+        if (pr.waitTimeMs > mMaxWaitTimeMs) {
+            mMaxWaitTimeMs = pr.waitTimeMs;
+        }
+        if (pr.parseTimeMs >= SLOW_PARSE_THRESHOLD_MS) {
+            Slog.i(TAG, "Slow parse of " + pr.scanFile + ": " + pr.parseTimeMs + "ms, queued "
+                    + pr.waitTimeMs + "ms");
+        }
+    }
+
+    private static int getThreadCount() {
+        return Math.max(1, Math.min(Runtime.getRuntime().availableProcessors(), MAX_THREADS));
+    }
+
     @Override
     public void close() {
         List<Runnable> unfinishedTasks = mService.shutdownNow();
+        final int parsedCount = mParsedCount.get();
+        if (parsedCount > 0) {
+            Slog.i(TAG, "Parsed " + parsedCount + " packages on " + mThreadCount
+                    + " threads in " + (SystemClock.uptimeMillis() - mStartTime)
+                    + "ms: parse time " + mTotalParseTimeMs + "ms, queue wait "
+                    + mTotalWaitTimeMs + "ms (max " + mMaxWaitTimeMs + "ms)");
+        }
         if (!unfinishedTasks.isEmpty()) {
             throw new IllegalStateException("Not all tasks finished before calling close: "
                     + unfinishedTasks);
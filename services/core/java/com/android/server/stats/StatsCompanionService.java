@@ -203,7 +203,8 @@ public class StatsCompanionService extends IStatsCompanionService.Stub {
             firstCpuOfCluster += powerProfile.getNumCoresInCpuCluster(i);
         }
         // use default throttling in
-        // frameworks/base/core/java/com/android/internal/os/KernelCpuProcReader
+        // frameworks/base/core/java/com/android/internal/os/KernelUidCpuTimeCollector, which
+        // shares its snapshots with BatteryStats
         mKernelUidCpuFreqTimeReader.setThrottleInterval(0);
         long[] freqs = mKernelUidCpuFreqTimeReader.readFreqs(powerProfile);
         mKernelUidCpuClusterTimeReader.setThrottleInterval(0);
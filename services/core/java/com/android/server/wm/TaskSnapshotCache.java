@@ -17,10 +17,15 @@
 package com.android.server.wm;
 
 import android.annotation.Nullable;
+import android.app.ActivityManager;
 import android.app.ActivityManager.TaskSnapshot;
+import android.graphics.GraphicBuffer;
+import android.os.SystemClock;
 import android.util.ArrayMap;
 import android.util.LruCache;
 
+import com.android.internal.annotations.VisibleForTesting;
+
 import java.io.PrintWriter;
 import java.util.Map;
 import java.util.Map.Entry;
@@ -28,18 +33,55 @@ import java.util.Map.Entry;
 /**
  * Caches snapshots. See {@link TaskSnapshotController}.
  * <p>
+ * Snapshots of running apps are kept in the running cache. Snapshots restored from disk, and
+ * those of apps that are no longer running, are kept in the retained cache, an LRU bounded by
+ * the size of their buffers, so that scrolling through recents doesn't decode the same files
+ * over and over. The retained cache is only used by lookups that may restore from disk, as it
+ * holds exactly what would be read from there.
+ * <p>
  * Access to this class should be guarded by the global window manager lock.
  */
 class TaskSnapshotCache {
 
+    @VisibleForTesting
+    static final int MAX_RETAINED_CACHE_BYTES = ActivityManager.isLowRamDeviceStatic()
+            ? 6 * 1024 * 1024 : 24 * 1024 * 1024;
+
     private final WindowManagerService mService;
     private final TaskSnapshotLoader mLoader;
     private final ArrayMap<AppWindowToken, Integer> mAppTaskMap = new ArrayMap<>();
     private final ArrayMap<Integer, CacheEntry> mRunningCache = new ArrayMap<>();
+    private final LruCache<Integer, CacheEntry> mRetainedCache;
+
+    /**
+     * Bumped whenever a snapshot is replaced or removed, so that a snapshot restored from disk
+     * without the lock held isn't retained if it went stale in the meantime.
+     */
+    private int mGeneration;
+
+    private int mRunningCacheHits;
+    private int mRetainedCacheHits;
+    private int mDiskLoads;
+    private int mPrefetchLoads;
+    private int mFailedDiskLoads;
+    private long mTotalDiskLoadTimeUs;
+    private long mMaxDiskLoadTimeUs;
 
     TaskSnapshotCache(WindowManagerService service, TaskSnapshotLoader loader) {
+        this(service, loader, MAX_RETAINED_CACHE_BYTES);
+    }
+
+    @VisibleForTesting
+    TaskSnapshotCache(WindowManagerService service, TaskSnapshotLoader loader,
+            int maxRetainedBytes) {
         mService = service;
         mLoader = loader;
+        mRetainedCache = new LruCache<Integer, CacheEntry>(maxRetainedBytes) {
+            @Override
+            protected int sizeOf(Integer taskId, CacheEntry entry) {
+                return entry.getByteSize();
+            }
+        };
     }
 
     void putSnapshot(Task task, TaskSnapshot snapshot) {
@@ -47,6 +89,8 @@ class TaskSnapshotCache {
         if (entry != null) {
             mAppTaskMap.remove(entry.topApp);
         }
+        mRetainedCache.remove(task.mTaskId);
+        mGeneration++;
         final AppWindowToken top = task.getTopChild();
         mAppTaskMap.put(top, task.mTaskId);
         mRunningCache.put(task.mTaskId, new CacheEntry(snapshot, task.getTopChild()));
@@ -58,28 +102,66 @@ class TaskSnapshotCache {
     @Nullable TaskSnapshot getSnapshot(int taskId, int userId, boolean restoreFromDisk,
             boolean reducedResolution) {
 
+        final int generation;
         synchronized (mService.mWindowMap) {
             // Try the running cache.
             final CacheEntry entry = mRunningCache.get(taskId);
             if (entry != null) {
+                mRunningCacheHits++;
                 return entry.snapshot;
             }
+            if (!restoreFromDisk) {
+                return null;
+            }
+
+            // Then what we already restored from disk.
+            final CacheEntry retained = mRetainedCache.get(taskId);
+            if (retained != null && retained.hasResolution(reducedResolution)) {
+                mRetainedCacheHits++;
+                return retained.snapshot;
+            }
+            mDiskLoads++;
+            generation = mGeneration;
         }
+        return tryRestoreFromDisk(taskId, userId, reducedResolution, generation);
+    }
 
-        // Try to restore from disk if asked.
-        if (!restoreFromDisk) {
-            return null;
+    /**
+     * Restores the reduced resolution snapshot of a task from disk ahead of it being asked for,
+     * unless it is already cached.
+     * <p>
+     * DO NOT HOLD THE WINDOW MANAGER LOCK WHEN CALLING THIS METHOD!
+     */
+    void prefetchSnapshot(int taskId, int userId) {
+        final int generation;
+        synchronized (mService.mWindowMap) {
+            if (mRunningCache.containsKey(taskId) || mRetainedCache.get(taskId) != null) {
+                return;
+            }
+            mPrefetchLoads++;
+            generation = mGeneration;
         }
-        return tryRestoreFromDisk(taskId, userId, reducedResolution);
+        tryRestoreFromDisk(taskId, userId, true /* reducedResolution */, generation);
     }
 
     /**
      * DO NOT HOLD THE WINDOW MANAGER LOCK WHEN CALLING THIS METHOD!
      */
-    private TaskSnapshot tryRestoreFromDisk(int taskId, int userId, boolean reducedResolution) {
+    private TaskSnapshot tryRestoreFromDisk(int taskId, int userId, boolean reducedResolution,
+            int generation) {
+        final long startTimeUs = SystemClock.elapsedRealtimeNanos() / 1000;
         final TaskSnapshot snapshot = mLoader.loadTask(taskId, userId, reducedResolution);
-        if (snapshot == null) {
-            return null;
+        final long loadTimeUs = SystemClock.elapsedRealtimeNanos() / 1000 - startTimeUs;
+        synchronized (mService.mWindowMap) {
+            mTotalDiskLoadTimeUs += loadTimeUs;
+            mMaxDiskLoadTimeUs = Math.max(mMaxDiskLoadTimeUs, loadTimeUs);
+            if (snapshot == null) {
+                mFailedDiskLoads++;
+                return null;
+            }
+            if (generation == mGeneration && !mRunningCache.containsKey(taskId)) {
+                mRetainedCache.put(taskId, new CacheEntry(snapshot, null /* topApp */));
+            }
         }
         return snapshot;
     }
@@ -106,13 +188,20 @@ class TaskSnapshotCache {
 
     void onTaskRemoved(int taskId) {
         removeRunningEntry(taskId);
+        mRetainedCache.remove(taskId);
+        mGeneration++;
     }
 
+    /**
+     * Drops the snapshot of a task whose app is gone from the running cache. It is still the one
+     * on disk, so it moves to the retained cache.
+     */
     private void removeRunningEntry(int taskId) {
         final CacheEntry entry = mRunningCache.get(taskId);
         if (entry != null) {
             mAppTaskMap.remove(entry.topApp);
             mRunningCache.remove(taskId);
+            mRetainedCache.put(taskId, new CacheEntry(entry.snapshot, null /* topApp */));
         }
     }
 
@@ -126,6 +215,32 @@ class TaskSnapshotCache {
             pw.println(triplePrefix + "topApp=" + entry.topApp);
             pw.println(triplePrefix + "snapshot=" + entry.snapshot);
         }
+        final Map<Integer, CacheEntry> retained = mRetainedCache.snapshot();
+        for (Entry<Integer, CacheEntry> entry : retained.entrySet()) {
+            pw.println(doublePrefix + "RetainedEntry taskId=" + entry.getKey());
+            pw.println(triplePrefix + "snapshot=" + entry.getValue().snapshot);
+        }
+        pw.println(doublePrefix + "retainedBytes=" + mRetainedCache.size()
+                + " maxRetainedBytes=" + mRetainedCache.maxSize());
+        pw.println(doublePrefix + "runningHits=" + mRunningCacheHits
+                + " retainedHits=" + mRetainedCacheHits
+                + " diskLoads=" + mDiskLoads
+                + " prefetchLoads=" + mPrefetchLoads
+                + " failedDiskLoads=" + mFailedDiskLoads);
+        final int loads = mDiskLoads + mPrefetchLoads;
+        pw.println(doublePrefix + "diskLoadTime avg="
+                + (loads > 0 ? mTotalDiskLoadTimeUs / loads : 0) + "us"
+                + " max=" + mMaxDiskLoadTimeUs + "us");
+    }
+
+    @VisibleForTesting
+    int getRetainedCacheHits() {
+        return mRetainedCacheHits;
+    }
+
+    @VisibleForTesting
+    int getDiskLoads() {
+        return mDiskLoads;
     }
 
     private static final class CacheEntry {
@@ -140,5 +255,22 @@ class TaskSnapshotCache {
             this.snapshot = snapshot;
             this.topApp = topApp;
         }
+
+        /**
+         * Whether the snapshot is good for a request of the given resolution; a full resolution
+         * snapshot does for a reduced one.
+         */
+        boolean hasResolution(boolean reducedResolution) {
+            return reducedResolution || !snapshot.isReducedResolution();
+        }
+
+        int getByteSize() {
+            final GraphicBuffer buffer = snapshot.getSnapshot();
+            if (buffer == null) {
+                return 1;
+            }
+            // Snapshots are RGBA_8888.
+            return Math.max(buffer.getWidth() * buffer.getHeight() * 4, 1);
+        }
     }
 }
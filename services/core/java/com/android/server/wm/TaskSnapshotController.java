@@ -43,6 +43,7 @@ import android.view.WindowManager.LayoutParams;
 
 import com.android.internal.annotations.VisibleForTesting;
 import com.android.internal.graphics.ColorUtils;
+import com.android.server.IoThread;
 import com.android.server.policy.WindowManagerPolicy.ScreenOffListener;
 import com.android.server.policy.WindowManagerPolicy.StartingSurface;
 import com.android.server.wm.TaskSnapshotSurface.SystemBarBackgroundPainter;
@@ -210,6 +211,18 @@ class TaskSnapshotController {
                 || DISABLE_FULL_SIZED_BITMAPS);
     }
 
+    /**
+     * Restores the reduced resolution snapshots of the given tasks from disk in the background,
+     * so that recents finds them in memory when it gets to them.
+     */
+    void prefetchSnapshots(int[] taskIds, int[] userIds) {
+        IoThread.getHandler().post(() -> {
+            for (int i = 0; i < taskIds.length; i++) {
+                mCache.prefetchSnapshot(taskIds[i], userIds[i]);
+            }
+        });
+    }
+
     /**
      * Creates a starting surface for {@param token} with {@param snapshot}. DO NOT HOLD THE WINDOW
      * MANAGER LOCK WHEN CALLING THIS METHOD!
@@ -3783,6 +3783,16 @@ public class WindowManagerService extends IWindowManager.Stub
                 reducedResolution);
     }
 
+    /**
+     * Loads the snapshots of the given tasks in the background, ahead of recents asking for them.
+     *
+     * @param taskIds The ids of the tasks, in the order they are likely to be shown.
+     * @param userIds The ids of the users the tasks belong to.
+     */
+    public void prefetchTaskSnapshots(int[] taskIds, int[] userIds) {
+        mTaskSnapshotController.prefetchSnapshots(taskIds, userIds);
+    }
+
     /**
      * In case a task write/delete operation was lost because the system crashed, this makes sure to
      * clean up the directory to remove obsolete files.
@@ -17,6 +17,7 @@
 package com.android.server;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
@@ -122,6 +123,7 @@ public class AppOpsUpgradeTest {
         mContext = InstrumentationRegistry.getTargetContext();
         mAppOpsFile = new File(mContext.getFilesDir(), APP_OPS_FILENAME);
         extractAppOpsFile();
+        AppOpsJournal.getJournalFile(mAppOpsFile).delete();
         HandlerThread handlerThread = new HandlerThread(TAG);
         handlerThread.start();
         mHandler = new Handler(handlerThread.getLooper());
@@ -138,8 +140,14 @@ public class AppOpsUpgradeTest {
         testService.mContext = mContext;
         mHandler.removeCallbacks(testService.mWriteRunner);
         testService.writeState();
-        assertTrue(parser.parse());
-        assertEquals(CURRENT_VERSION, parser.mVersion);
+        // The upgraded state moved to the journal
+        assertFalse(mAppOpsFile.exists());
+        final AppOpsJournal journal = new AppOpsJournal(AppOpsJournal.getJournalFile(mAppOpsFile));
+        assertEquals(CURRENT_VERSION, journal.read(new SparseArray<>()));
+
+        testService = new AppOpsService(mAppOpsFile, mHandler);
+        assertSameModes(testService.mUidStates, AppOpsManager.OP_RUN_IN_BACKGROUND,
+                AppOpsManager.OP_RUN_ANY_IN_BACKGROUND);
     }
 
     /**
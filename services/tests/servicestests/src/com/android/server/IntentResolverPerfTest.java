@@ -0,0 +1,131 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server;
+
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.net.Uri;
+import android.perftests.utils.BenchmarkState;
+import android.perftests.utils.PerfStatusReporter;
+import android.support.test.filters.LargeTest;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.Random;
+
+/**
+ * Measures intent resolution latency against a resolver holding 10k filters, shaped like the
+ * mix of action-only, MIME typed and scheme filters registered by a large package set.
+ */
+@LargeTest
+@RunWith(AndroidJUnit4.class)
+public class IntentResolverPerfTest {
+    private static final int FILTER_COUNT = 10000;
+    private static final int ACTION_COUNT = 500;
+
+    @Rule
+    public PerfStatusReporter mPerfStatusReporter = new PerfStatusReporter();
+
+    private TestResolver mResolver;
+
+    static class TestResolver extends IntentResolver<IntentFilter, IntentFilter> {
+        @Override
+        protected boolean isPackageForFilter(String packageName, IntentFilter filter) {
+            return false;
+        }
+
+        @Override
+        protected IntentFilter[] newArray(int size) {
+            return new IntentFilter[size];
+        }
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        final Random random = new Random(0);
+        mResolver = new TestResolver();
+        for (int i = 0; i < FILTER_COUNT; i++) {
+            final IntentFilter filter = new IntentFilter(
+                    "com.android.perftest.ACTION_" + random.nextInt(ACTION_COUNT));
+            filter.addAction(Intent.ACTION_VIEW);
+            filter.addCategory(Intent.CATEGORY_DEFAULT);
+            switch (i % 4) {
+                case 0:
+                    filter.addDataType("image/*");
+                    break;
+                case 1:
+                    filter.addDataType("text/plain");
+                    break;
+                case 2:
+                    filter.addDataScheme("https");
+                    filter.addDataAuthority("host" + random.nextInt(ACTION_COUNT) + ".com",
+                            null);
+                    break;
+                default:
+                    // action only
+                    break;
+            }
+            mResolver.addFilter(filter);
+        }
+    }
+
+    @Test
+    public void timeQueryAction() {
+        final Intent intent = new Intent("com.android.perftest.ACTION_1");
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        while (state.keepRunning()) {
+            mResolver.queryIntent(intent, null, true, 0);
+        }
+    }
+
+    @Test
+    public void timeQueryMimeType() {
+        final Intent intent = new Intent(Intent.ACTION_VIEW);
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        while (state.keepRunning()) {
+            mResolver.queryIntent(intent, "text/plain", true, 0);
+        }
+    }
+
+    @Test
+    public void timeQueryScheme() {
+        final Intent intent = new Intent(Intent.ACTION_VIEW, Uri.parse("https://host1.com/"));
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        while (state.keepRunning()) {
+            mResolver.queryIntent(intent, null, true, 0);
+        }
+    }
+
+    @Test
+    public void timeQueryUncached() {
+        // Every query follows a filter change, so none of them hit the match cache
+        final Intent intent = new Intent(Intent.ACTION_VIEW);
+        final IntentFilter extra = new IntentFilter("com.android.perftest.EXTRA");
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        while (state.keepRunning()) {
+            state.pauseTiming();
+            mResolver.addFilter(extra);
+            mResolver.removeFilter(extra);
+            state.resumeTiming();
+            mResolver.queryIntent(intent, "text/plain", true, 0);
+        }
+    }
+}
@@ -0,0 +1,73 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.net.Uri;
+import android.support.test.filters.SmallTest;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.List;
+
+@SmallTest
+@RunWith(AndroidJUnit4.class)
+public class IntentResolverTest {
+    private static final String ACTION = "com.android.test.ACTION";
+
+    @Test
+    public void testQueryReflectsAddedAndRemovedFilters() {
+        final IntentResolverPerfTest.TestResolver resolver =
+                new IntentResolverPerfTest.TestResolver();
+        final Intent intent = new Intent(ACTION);
+        assertTrue(resolver.queryIntent(intent, null, false, 0).isEmpty());
+
+        final IntentFilter filter = new IntentFilter(ACTION);
+        resolver.addFilter(filter);
+        List<IntentFilter> results = resolver.queryIntent(intent, null, false, 0);
+        assertEquals(1, results.size());
+        assertEquals(filter, results.get(0));
+        // Repeated queries are answered from the match cache
+        assertEquals(1, resolver.queryIntent(intent, null, false, 0).size());
+
+        resolver.removeFilter(filter);
+        assertTrue(resolver.queryIntent(intent, null, false, 0).isEmpty());
+    }
+
+    @Test
+    public void testQueryAppliesPerQueryChecks() {
+        final IntentResolverPerfTest.TestResolver resolver =
+                new IntentResolverPerfTest.TestResolver();
+        final IntentFilter filter = new IntentFilter(Intent.ACTION_VIEW);
+        filter.addDataScheme("https");
+        resolver.addFilter(filter);
+
+        final Intent intent = new Intent(Intent.ACTION_VIEW, Uri.parse("https://example.com"));
+        assertEquals(1, resolver.queryIntent(intent, null, false, 0).size());
+        // Same match, but the filter lacks CATEGORY_DEFAULT
+        assertTrue(resolver.queryIntent(intent, null, true, 0).isEmpty());
+        // Same match, but the intent is limited to a package the filter isn't from
+        intent.setPackage("com.android.test");
+        assertTrue(resolver.queryIntent(intent, null, false, 0).isEmpty());
+    }
+}
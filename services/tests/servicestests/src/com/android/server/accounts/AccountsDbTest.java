@@ -34,6 +34,7 @@ import java.io.File;
 import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CountDownLatch;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
@@ -195,6 +196,30 @@ public class AccountsDbTest {
         assertEquals(-1, actualExtraId);
     }
 
+    @Test
+    public void testFindAllUserExtrasAndAuthTokens() {
+        mAccountsDb.attachCeDatabase(ceDb);
+        Account account = new Account("name", "example.com");
+        long accId = mAccountsDb.insertCeAccount(account, "password");
+        mAccountsDb.insertDeAccount(account, accId);
+        Account account2 = new Account("name2", "example.com");
+        long accId2 = mAccountsDb.insertCeAccount(account2, "password");
+        mAccountsDb.insertDeAccount(account2, accId2);
+        mAccountsDb.insertExtra(accId, "key1", "value1");
+        mAccountsDb.insertExtra(accId, "key2", "value2");
+        mAccountsDb.insertAuthToken(accId2, "type", "token");
+
+        Map<Account, Map<String, String>> extras = mAccountsDb.findAllUserExtras();
+        assertEquals(2, extras.size());
+        assertEquals(mAccountsDb.findUserExtrasForAccount(account), extras.get(account));
+        assertEquals(0, extras.get(account2).size());
+
+        Map<Account, Map<String, String>> authTokens = mAccountsDb.findAllAuthTokens();
+        assertEquals(2, authTokens.size());
+        assertEquals(0, authTokens.get(account).size());
+        assertEquals(mAccountsDb.findAuthTokensByAccount(account2), authTokens.get(account2));
+    }
+
     @Test
     public void testGrantsInsertFindDelete() {
         mAccountsDb.attachCeDatabase(ceDb);
@@ -320,6 +345,32 @@ public class AccountsDbTest {
         assertEquals(expectedList, ceAccounts);
     }
 
+    @Test(timeout = 10000)
+    public void testLookupOutsideTransactionDoesNotBlockTransaction() throws Exception {
+        Account account = new Account("name", "example.com");
+        mAccountsDb.insertDeAccount(account, 1);
+        final long[] otherId = new long[1];
+        final CountDownLatch started = new CountDownLatch(1);
+        Thread other = new Thread(() -> {
+            started.countDown();
+            otherId[0] = mAccountsDb.findDeAccountId(account);
+        });
+        mAccountsDb.beginTransaction();
+        try {
+            // The other thread waits for the connection the transaction holds...
+            other.start();
+            started.await();
+            Thread.sleep(100);
+            // ...without keeping the transaction from running the same lookup.
+            assertEquals(1, mAccountsDb.findDeAccountId(account));
+            mAccountsDb.setTransactionSuccessful();
+        } finally {
+            mAccountsDb.endTransaction();
+        }
+        other.join();
+        assertEquals(1, otherId[0]);
+    }
+
     @Test
     public void testCrossDbTransactions() {
         mAccountsDb.attachCeDatabase(ceDb);
@@ -0,0 +1,134 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.server.accounts;
+
+import android.accounts.Account;
+import android.support.test.runner.AndroidJUnit4;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Tests for {@link TokenCache}.
+ * <p>Run with:<pre>
+ * atest FrameworksServicesTests:com.android.server.accounts.TokenCacheTest
+ * </pre>
+ */
+@RunWith(AndroidJUnit4.class)
+@SmallTest
+public class TokenCacheTest {
+    private static final Account ACCOUNT1 = new Account("account1", "type1");
+    private static final Account ACCOUNT2 = new Account("account2", "type1");
+    private static final String TOKEN_TYPE = "tokenType";
+    private static final String PACKAGE1 = "com.example.package1";
+    private static final String PACKAGE2 = "com.example.package2";
+    private static final byte[] DIGEST = new byte[] {1, 2, 3};
+    private static final long HOUR_MILLIS = 60 * 60 * 1000;
+
+    @Test
+    public void testPutAndGet() {
+        TokenCache cache = new TokenCache();
+        cache.put(ACCOUNT1, "token1", TOKEN_TYPE, PACKAGE1, DIGEST, expiry());
+        assertEquals("token1", cache.get(ACCOUNT1, TOKEN_TYPE, PACKAGE1, DIGEST));
+        assertNull(cache.get(ACCOUNT1, TOKEN_TYPE, PACKAGE2, DIGEST));
+        assertNull(cache.get(ACCOUNT2, TOKEN_TYPE, PACKAGE1, DIGEST));
+    }
+
+    @Test
+    public void testRemoveByToken() {
+        TokenCache cache = new TokenCache();
+        cache.put(ACCOUNT1, "token1", TOKEN_TYPE, PACKAGE1, DIGEST, expiry());
+        cache.put(ACCOUNT1, "token1", TOKEN_TYPE, PACKAGE2, DIGEST, expiry());
+        cache.put(ACCOUNT2, "token2", TOKEN_TYPE, PACKAGE1, DIGEST, expiry());
+
+        cache.remove(ACCOUNT1.type, "token1");
+        assertNull(cache.get(ACCOUNT1, TOKEN_TYPE, PACKAGE1, DIGEST));
+        assertNull(cache.get(ACCOUNT1, TOKEN_TYPE, PACKAGE2, DIGEST));
+        assertEquals("token2", cache.get(ACCOUNT2, TOKEN_TYPE, PACKAGE1, DIGEST));
+    }
+
+    @Test
+    public void testRemoveByAccount() {
+        TokenCache cache = new TokenCache();
+        cache.put(ACCOUNT1, "token1", TOKEN_TYPE, PACKAGE1, DIGEST, expiry());
+        cache.put(ACCOUNT1, "token3", TOKEN_TYPE, PACKAGE2, DIGEST, expiry());
+        cache.put(ACCOUNT2, "token2", TOKEN_TYPE, PACKAGE1, DIGEST, expiry());
+
+        cache.remove(ACCOUNT1);
+        assertNull(cache.get(ACCOUNT1, TOKEN_TYPE, PACKAGE1, DIGEST));
+        assertNull(cache.get(ACCOUNT1, TOKEN_TYPE, PACKAGE2, DIGEST));
+        assertEquals("token2", cache.get(ACCOUNT2, TOKEN_TYPE, PACKAGE1, DIGEST));
+    }
+
+    @Test
+    public void testReplacedTokenIsNotRemovedWithOldOne() {
+        TokenCache cache = new TokenCache();
+        cache.put(ACCOUNT1, "token1", TOKEN_TYPE, PACKAGE1, DIGEST, expiry());
+        cache.put(ACCOUNT1, "token2", TOKEN_TYPE, PACKAGE1, DIGEST, expiry());
+
+        cache.remove(ACCOUNT1.type, "token1");
+        assertEquals("token2", cache.get(ACCOUNT1, TOKEN_TYPE, PACKAGE1, DIGEST));
+    }
+
+    @Test
+    public void testSizeIsBoundedByEntries() {
+        TokenCache cache = new TokenCache(10 * TokenCache.ENTRY_OVERHEAD_CHARS + 10);
+        for (int i = 0; i < 100; i++) {
+            cache.put(new Account("account" + i, "type1"), "t", TOKEN_TYPE, PACKAGE1, DIGEST,
+                    expiry());
+        }
+        // Making room drops the least recently used entries, not every entry with their token.
+        assertEquals(10, cache.getTokenCount());
+        // Evicted entries don't leave their lookups behind: one for the token they all share,
+        // one per account.
+        assertEquals(11, cache.getEvictorCount());
+    }
+
+    @Test
+    public void testRemoveByTokenRemovesEverySharer() {
+        TokenCache cache = new TokenCache(10 * TokenCache.ENTRY_OVERHEAD_CHARS + 10);
+        for (int i = 0; i < 20; i++) {
+            cache.put(new Account("account" + i, "type1"), "t", TOKEN_TYPE, PACKAGE1, DIGEST,
+                    expiry());
+        }
+        cache.remove("type1", "t");
+        assertEquals(0, cache.getTokenCount());
+        assertEquals(0, cache.getEvictorCount());
+    }
+
+    @Test
+    public void testExpiredTokensAreEvicted() throws Exception {
+        TokenCache cache = new TokenCache();
+        cache.put(ACCOUNT1, "token1", TOKEN_TYPE, PACKAGE1, DIGEST,
+                System.currentTimeMillis() + 10);
+        cache.put(ACCOUNT2, "token2", TOKEN_TYPE, PACKAGE1, DIGEST, expiry());
+        Thread.sleep(20);
+
+        // Looking up another token drops the expired one too.
+        assertEquals("token2", cache.get(ACCOUNT2, TOKEN_TYPE, PACKAGE1, DIGEST));
+        assertEquals(1, cache.getTokenCount());
+        assertEquals(2, cache.getEvictorCount());
+    }
+
+    private static long expiry() {
+        return System.currentTimeMillis() + HOUR_MILLIS;
+    }
+}
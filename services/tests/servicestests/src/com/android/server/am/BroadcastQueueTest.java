@@ -0,0 +1,145 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.am;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.mockito.Mockito.mock;
+
+import android.content.ComponentName;
+import android.content.Intent;
+import android.content.pm.ActivityInfo;
+import android.content.pm.ApplicationInfo;
+import android.content.pm.ResolveInfo;
+import android.os.Handler;
+import android.os.Looper;
+import android.support.test.filters.SmallTest;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * atest FrameworksServicesTests:BroadcastQueueTest
+ */
+@RunWith(AndroidJUnit4.class)
+@SmallTest
+public class BroadcastQueueTest {
+    private static final int USER_ID = 0;
+    private static final int UID1 = 10001;
+    private static final int UID2 = 10002;
+
+    private BroadcastQueue mQueue;
+
+    @Before
+    public void setUp() {
+        mQueue = new BroadcastQueue(mock(ActivityManagerService.class),
+                new Handler(Looper.getMainLooper()), "background", 0, true);
+    }
+
+    @Test
+    public void testSameUidKeepsEnqueueOrder() {
+        // One broadcast with several receivers, then one with a single receiver: the receiver
+        // they share gets them in the order they were sent.
+        final BroadcastRecord first = newRecord("first", receiver(UID1), receiver(UID2));
+        final BroadcastRecord second = newRecord("second", receiver(UID1));
+        mQueue.enqueueOrderedBroadcastLocked(first);
+        mQueue.enqueueOrderedBroadcastLocked(second);
+
+        assertEquals(2, mQueue.mOrderedBroadcasts.size());
+        assertSame(first, mQueue.mOrderedBroadcasts.get(0));
+        assertSame(second, mQueue.mOrderedBroadcasts.get(1));
+    }
+
+    @Test
+    public void testReplacePending() {
+        final BroadcastRecord inFlight = newRecord("other", receiver(UID1));
+        final BroadcastRecord pending = newRecord("action", receiver(UID1), receiver(UID2));
+        mQueue.enqueueOrderedBroadcastLocked(inFlight);
+        mQueue.enqueueOrderedBroadcastLocked(pending);
+
+        // The pending copy is replaced in place, whatever its receivers, rather than the
+        // receivers getting both.
+        final BroadcastRecord replacement = newRecord("action", receiver(UID1));
+        assertSame(pending, mQueue.replaceOrderedBroadcastLocked(replacement));
+        assertEquals(2, mQueue.mOrderedBroadcasts.size());
+        assertSame(replacement, mQueue.mOrderedBroadcasts.get(1));
+
+        // Nothing to replace for another action.
+        assertNull(mQueue.replaceOrderedBroadcastLocked(newRecord("third", receiver(UID2))));
+    }
+
+    @Test
+    public void testDispatchLatency() {
+        noteDispatch(1000, 1300);
+        noteDispatch(2000, 2100);
+        // A clock change between enqueue and dispatch doesn't count as negative latency.
+        noteDispatch(3000, 2500);
+
+        assertEquals(3, mQueue.mDispatchCount);
+        assertEquals(400, mQueue.mTotalDispatchLatency);
+        assertEquals(300, mQueue.mMaxDispatchLatency);
+    }
+
+    @Test
+    public void testHeadOfLineBlocking() {
+        final BroadcastRecord first = newRecord("first", receiver(UID1));
+        first.curComponent = new ComponentName("com.example.uid" + UID1, "Receiver");
+        final BroadcastRecord second = newRecord("second", receiver(UID2));
+
+        mQueue.noteHeadOfLineBlockingLocked(first, 500);
+        mQueue.noteHeadOfLineBlockingLocked(second, 200);
+        mQueue.noteHeadOfLineBlockingLocked(second, 0);
+
+        assertEquals(700, mQueue.mTotalHeadOfLineBlockingTime);
+        assertEquals(500, mQueue.mMaxHeadOfLineBlockingTime);
+        assertEquals("com.example.uid" + UID1 + "/Receiver for first",
+                mQueue.mMaxHeadOfLineBlocker);
+    }
+
+    private void noteDispatch(long enqueueClockTime, long dispatchClockTime) {
+        final BroadcastRecord r = newRecord("action", receiver(UID1));
+        r.enqueueClockTime = enqueueClockTime;
+        r.dispatchClockTime = dispatchClockTime;
+        mQueue.noteDispatchLatencyLocked(r);
+    }
+
+    private BroadcastRecord newRecord(String action, ResolveInfo... receivers) {
+        final List<ResolveInfo> receiverList = new ArrayList<>();
+        for (ResolveInfo receiver : receivers) {
+            receiverList.add(receiver);
+        }
+        return new BroadcastRecord(mQueue, new Intent(action), null, "android", 0, 0, false,
+                null, null, 0, null, receiverList, null, 0, null, null, false, false, false,
+                USER_ID);
+    }
+
+    private static ResolveInfo receiver(int uid) {
+        final ResolveInfo info = new ResolveInfo();
+        info.activityInfo = new ActivityInfo();
+        info.activityInfo.packageName = "com.example.uid" + uid;
+        info.activityInfo.name = "Receiver";
+        info.activityInfo.applicationInfo = new ApplicationInfo();
+        info.activityInfo.applicationInfo.uid = uid;
+        return info;
+    }
+}
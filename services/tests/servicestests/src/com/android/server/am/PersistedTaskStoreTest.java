@@ -0,0 +1,162 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.am;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import android.support.test.InstrumentationRegistry;
+import android.support.test.filters.SmallTest;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.ArraySet;
+import android.util.IntArray;
+import android.util.SparseArray;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * atest FrameworksServicesTests:PersistedTaskStoreTest
+ */
+@RunWith(AndroidJUnit4.class)
+@SmallTest
+public class PersistedTaskStoreTest {
+    private File mFile;
+    private final List<PersistedTaskStore> mStores = new ArrayList<>();
+
+    @Before
+    public void setUp() {
+        mFile = new File(InstrumentationRegistry.getContext().getFilesDir(),
+                PersistedTaskStore.STORE_FILENAME);
+        new PersistedTaskStore(mFile).delete();
+    }
+
+    @After
+    public void tearDown() {
+        for (PersistedTaskStore store : mStores) {
+            store.close();
+        }
+        new PersistedTaskStore(mFile).delete();
+    }
+
+    @Test
+    public void testWriteAndRead() {
+        final PersistedTaskStore store = openStore();
+        store.write(tasks(1, "a", 2, "b", 3, "c"), null);
+        store.write(tasks(2, "b2"), removals(3));
+
+        final SparseArray<byte[]> read = openStore().read();
+        assertEquals(2, read.size());
+        assertTask(read, 1, "a");
+        assertTask(read, 2, "b2");
+    }
+
+    @Test
+    public void testRetainAll() {
+        final PersistedTaskStore store = openStore();
+        store.write(tasks(1, "a", 2, "b", 3, "c"), null);
+        final ArraySet<Integer> taskIds = new ArraySet<>();
+        taskIds.add(2);
+        store.retainAll(taskIds);
+
+        final SparseArray<byte[]> read = openStore().read();
+        assertEquals(1, read.size());
+        assertTask(read, 2, "b");
+    }
+
+    @Test
+    public void testTornRecord() throws Exception {
+        final PersistedTaskStore store = openStore();
+        store.write(tasks(1, "a"), null);
+        store.write(tasks(2, "b"), null);
+
+        // Cut the last record short, as a crash in the middle of a write would.
+        try (RandomAccessFile file = new RandomAccessFile(mFile, "rw")) {
+            file.setLength(file.length() - 3);
+        }
+        final PersistedTaskStore reopened = openStore();
+        SparseArray<byte[]> read = reopened.read();
+        assertEquals(1, read.size());
+        assertTask(read, 1, "a");
+
+        // Writing after it drops the torn record rather than appending after it.
+        reopened.write(tasks(3, "c"), null);
+        read = openStore().read();
+        assertEquals(2, read.size());
+        assertTask(read, 1, "a");
+        assertTask(read, 3, "c");
+    }
+
+    @Test
+    public void testCompaction() {
+        final PersistedTaskStore store = openStore();
+        final String data = new String(new char[1000]).replace('\0', 'x');
+        for (int i = 0; i < 500; i++) {
+            store.write(tasks(1, data + i, 2, data), null);
+        }
+
+        assertTrue(store.getCompactions() > 0);
+        assertTrue(store.getLogSize() < 64 * 1024 * 2);
+        final SparseArray<byte[]> read = openStore().read();
+        assertEquals(2, read.size());
+        assertTask(read, 1, data + 499);
+        assertTask(read, 2, data);
+    }
+
+    @Test
+    public void testWriteLeavesRemovalsAlone() {
+        final PersistedTaskStore store = openStore();
+        store.write(tasks(1, "a"), null);
+        final IntArray removals = removals(1, 2);
+        store.write(null, removals);
+
+        assertArrayEquals(new int[] { 1, 2 }, removals.toArray());
+        assertEquals(0, openStore().read().size());
+    }
+
+    private PersistedTaskStore openStore() {
+        final PersistedTaskStore store = new PersistedTaskStore(mFile);
+        mStores.add(store);
+        return store;
+    }
+
+    private static SparseArray<byte[]> tasks(Object... idsAndData) {
+        final SparseArray<byte[]> tasks = new SparseArray<>();
+        for (int i = 0; i < idsAndData.length; i += 2) {
+            tasks.put((Integer) idsAndData[i],
+                    ((String) idsAndData[i + 1]).getBytes(StandardCharsets.UTF_8));
+        }
+        return tasks;
+    }
+
+    private static IntArray removals(int... taskIds) {
+        return IntArray.wrap(taskIds);
+    }
+
+    private static void assertTask(SparseArray<byte[]> tasks, int taskId, String data) {
+        assertArrayEquals(data.getBytes(StandardCharsets.UTF_8), tasks.get(taskId));
+    }
+}
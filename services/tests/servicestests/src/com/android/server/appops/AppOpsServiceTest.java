@@ -23,6 +23,7 @@ import static android.app.AppOpsManager.OP_WRITE_SMS;
 import static com.google.common.truth.Truth.assertThat;
 import static com.google.common.truth.Truth.assertWithMessage;
 
+import android.app.AppOpsManager;
 import android.app.AppOpsManager.OpEntry;
 import android.app.AppOpsManager.PackageOps;
 import android.content.Context;
@@ -69,6 +70,10 @@ public class AppOpsServiceTest {
             // Start with a clean state (persisted into XML).
             mAppOpsFile.delete();
         }
+        final File journalFile = AppOpsJournal.getJournalFile(mAppOpsFile);
+        if (journalFile.exists()) {
+            journalFile.delete();
+        }
 
         HandlerThread handlerThread = new HandlerThread(TAG);
         handlerThread.start();
@@ -103,6 +108,24 @@ public class AppOpsServiceTest {
         assertContainsOp(loggedOps, OP_WRITE_SMS, -1, mTestStartMillis, MODE_ERRORED);
     }
 
+    // Tests that checkOperation, which is answered from a cache, sees mode changes.
+    @Test
+    public void testCheckOperationAfterModeChange() {
+        mAppOpsService.setMode(OP_READ_SMS, mMyUid, mMyPackageName, MODE_ALLOWED);
+        assertThat(mAppOpsService.checkOperation(OP_READ_SMS, mMyUid, mMyPackageName))
+                .isEqualTo(MODE_ALLOWED);
+        assertThat(mAppOpsService.checkOperation(OP_READ_SMS, mMyUid, mMyPackageName))
+                .isEqualTo(MODE_ALLOWED);
+
+        mAppOpsService.setMode(OP_READ_SMS, mMyUid, mMyPackageName, MODE_ERRORED);
+        assertThat(mAppOpsService.checkOperation(OP_READ_SMS, mMyUid, mMyPackageName))
+                .isEqualTo(MODE_ERRORED);
+
+        mAppOpsService.packageRemoved(mMyUid, mMyPackageName);
+        assertThat(mAppOpsService.checkOperation(OP_READ_SMS, mMyUid, mMyPackageName))
+                .isEqualTo(AppOpsManager.opToDefaultMode(OP_READ_SMS));
+    }
+
     // Tests the dumping and restoring of the in-memory state to/from XML.
     @Test
     public void testStatePersistence() {
@@ -123,6 +146,50 @@ public class AppOpsServiceTest {
         assertContainsOp(loggedOps, OP_WRITE_SMS, -1, mTestStartMillis, MODE_ERRORED);
     }
 
+    // Tests that changes written after the first write are appended and restored.
+    @Test
+    public void testIncrementalStatePersistence() {
+        mAppOpsService.setMode(OP_READ_SMS, mMyUid, mMyPackageName, MODE_ALLOWED);
+        mAppOpsService.noteOperation(OP_READ_SMS, mMyUid, mMyPackageName);
+        mAppOpsService.writeState();
+        mAppOpsService.setMode(OP_WRITE_SMS, mMyUid, mMyPackageName, MODE_ERRORED);
+        mAppOpsService.noteOperation(OP_WRITE_SMS, mMyUid, mMyPackageName);
+        mAppOpsService.writeState();
+
+        mAppOpsService = new AppOpsService(mAppOpsFile, mHandler);
+        mAppOpsService.mContext = mContext;
+        mAppOpsService.readState();
+
+        List<PackageOps> loggedOps = getLoggedOps();
+        assertContainsOp(loggedOps, OP_READ_SMS, mTestStartMillis, -1, MODE_ALLOWED);
+        assertContainsOp(loggedOps, OP_WRITE_SMS, -1, mTestStartMillis, MODE_ERRORED);
+
+        mAppOpsService.uidRemoved(mMyUid);
+        mAppOpsService.writeState();
+        mAppOpsService = new AppOpsService(mAppOpsFile, mHandler);
+        mAppOpsService.mContext = mContext;
+        assertThat(getLoggedOps()).isNull();
+    }
+
+    // Tests that ops noted after the last mode change are written too.
+    @Test
+    public void testNotedOpsArePersisted() {
+        mAppOpsService.setMode(OP_READ_SMS, mMyUid, mMyPackageName, MODE_ALLOWED);
+        mAppOpsService.setMode(OP_WRITE_SMS, mMyUid, mMyPackageName, MODE_ERRORED);
+        mAppOpsService.writeState();
+        mAppOpsService.noteOperation(OP_READ_SMS, mMyUid, mMyPackageName);
+        mAppOpsService.noteOperation(OP_WRITE_SMS, mMyUid, mMyPackageName);
+        mAppOpsService.writeState();
+
+        mAppOpsService = new AppOpsService(mAppOpsFile, mHandler);
+        mAppOpsService.mContext = mContext;
+        mAppOpsService.readState();
+
+        List<PackageOps> loggedOps = getLoggedOps();
+        assertContainsOp(loggedOps, OP_READ_SMS, mTestStartMillis, -1, MODE_ALLOWED);
+        assertContainsOp(loggedOps, OP_WRITE_SMS, -1, mTestStartMillis, MODE_ERRORED);
+    }
+
     // Tests that ops are persisted during shutdown.
     @Test
     public void testShutdown() {
@@ -0,0 +1,122 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.content;
+
+import android.database.IContentObserver;
+import android.net.Uri;
+import android.os.UserHandle;
+import android.os.test.TestLooper;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import com.android.server.content.ContentService.ObserverCall;
+import com.android.server.content.ContentService.ObserverNode;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * bit FrameworksServicesTests:com.android.server.content.ContentObserverBatcherTest
+ */
+@SmallTest
+public class ContentObserverBatcherTest extends AndroidTestCase {
+    private static final long WINDOW_MS = 50;
+
+    static class RecordingObserver extends IContentObserver.Stub {
+        final List<List<Uri>> batches = new ArrayList<>();
+
+        @Override
+        public void onChange(boolean selfUpdate, Uri uri, int userId) {
+            fail("Batched observer got an unbatched notification");
+        }
+
+        @Override
+        public void onChangeUris(boolean selfUpdate, Uri[] uris, int userId) {
+            batches.add(Arrays.asList(uris));
+        }
+    }
+
+    private TestLooper mLooper;
+    private ContentObserverBatcher mBatcher;
+    private ObserverNode mRoot;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mLooper = new TestLooper();
+        mRoot = new ObserverNode("");
+        mBatcher = new ContentObserverBatcher(mLooper.getLooper(),
+                (node, observer) -> fail("Observer died"), WINDOW_MS);
+    }
+
+    public void testCoalescesWithinWindow() {
+        final RecordingObserver observer = new RecordingObserver();
+        final Uri a = Uri.parse("content://c/a");
+        final Uri b = Uri.parse("content://c/b");
+
+        enqueue(observer, a);
+        enqueue(observer, b);
+        enqueue(observer, a);
+        mLooper.dispatchAll();
+        assertTrue(observer.batches.isEmpty());
+
+        mLooper.moveTimeForward(WINDOW_MS);
+        mLooper.dispatchAll();
+        assertEquals(1, observer.batches.size());
+        assertEquals(Arrays.asList(a, b), observer.batches.get(0));
+    }
+
+    public void testSeparateObservers() {
+        final RecordingObserver first = new RecordingObserver();
+        final RecordingObserver second = new RecordingObserver();
+        final Uri uri = Uri.parse("content://c/a");
+
+        enqueue(first, uri);
+        enqueue(second, uri);
+        mBatcher.flush();
+        assertEquals(1, first.batches.size());
+        assertEquals(1, second.batches.size());
+    }
+
+    public void testFullBatchDeliveredImmediately() {
+        final RecordingObserver observer = new RecordingObserver();
+        for (int i = 0; i < ContentObserverBatcher.MAX_BATCH_SIZE; i++) {
+            enqueue(observer, Uri.parse("content://c/" + i));
+        }
+        assertEquals(1, observer.batches.size());
+        assertEquals(ContentObserverBatcher.MAX_BATCH_SIZE, observer.batches.get(0).size());
+
+        mLooper.moveTimeForward(WINDOW_MS);
+        mLooper.dispatchAll();
+        assertEquals(1, observer.batches.size());
+    }
+
+    public void testRemovedObserverNotNotified() {
+        final RecordingObserver observer = new RecordingObserver();
+        enqueue(observer, Uri.parse("content://c/a"));
+        mBatcher.removeObserver(observer);
+        mBatcher.flush();
+        assertTrue(observer.batches.isEmpty());
+    }
+
+    private void enqueue(IContentObserver observer, Uri uri) {
+        final int userHandle = UserHandle.myUserId();
+        mBatcher.enqueue(new ObserverCall(mRoot, observer, false, userHandle, true), uri,
+                userHandle);
+    }
+}
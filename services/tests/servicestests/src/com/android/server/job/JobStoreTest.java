@@ -34,11 +34,15 @@ import com.android.server.LocalServices;
 import com.android.server.job.JobStore.JobSet;
 import com.android.server.job.controllers.JobStatus;
 
+import libcore.io.IoUtils;
+
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 
+import java.io.File;
+import java.io.FileOutputStream;
 import java.time.Clock;
 import java.time.ZoneOffset;
 import java.util.Arrays;
@@ -190,6 +194,62 @@ public class JobStoreTest {
                 taskStatus2.getLatestRunTimeElapsed(), loaded2.getLatestRunTimeElapsed());
     }
 
+    @Test
+    public void testJournalAppendsChangedJobs() throws Exception {
+        final JobInfo task1 = new Builder(8, mComponent)
+                .setRequiresDeviceIdle(true)
+                .setPersisted(true)
+                .build();
+        final JobInfo task2 = new Builder(12, mComponent)
+                .setOverrideDeadline(30000L)
+                .setPersisted(true)
+                .build();
+        final JobStatus taskStatus1 = JobStatus.createFromJobInfo(task1, SOME_UID, null, -1, null);
+        final JobStatus taskStatus2 = JobStatus.createFromJobInfo(task2, SOME_UID, null, -1, null);
+        final File journal = new File(mTestContext.getFilesDir(), "system/job/jobs.journal");
+
+        mTaskStoreUnderTest.add(taskStatus1);
+        waitForPendingIo();
+        final byte[] afterFirst = IoUtils.readFileAsByteArray(journal.getAbsolutePath());
+
+        mTaskStoreUnderTest.add(taskStatus2);
+        waitForPendingIo();
+        final byte[] afterSecond = IoUtils.readFileAsByteArray(journal.getAbsolutePath());
+        // Only the new job is appended; the first one is not rewritten.
+        assertTrue("Journal didn't grow", afterSecond.length > afterFirst.length);
+        assertTrue("Journal was rewritten", Arrays.equals(afterFirst,
+                Arrays.copyOf(afterSecond, afterFirst.length)));
+
+        mTaskStoreUnderTest.remove(taskStatus1, true);
+        waitForPendingIo();
+
+        final JobSet jobStatusSet = new JobSet();
+        mTaskStoreUnderTest.readJobMapFromDisk(jobStatusSet, true);
+        assertEquals("Incorrect # of persisted tasks.", 1, jobStatusSet.size());
+        assertTasksEqual(task2, jobStatusSet.getAllJobs().get(0).getJob());
+    }
+
+    @Test
+    public void testJournalTornRecordIsDropped() throws Exception {
+        final JobInfo task = new Builder(8, mComponent)
+                .setRequiresCharging(true)
+                .setPersisted(true)
+                .build();
+        mTaskStoreUnderTest.add(JobStatus.createFromJobInfo(task, SOME_UID, null, -1, null));
+        waitForPendingIo();
+
+        // Simulate a crash in the middle of appending a record.
+        final File journal = new File(mTestContext.getFilesDir(), "system/job/jobs.journal");
+        try (FileOutputStream fos = new FileOutputStream(journal, true)) {
+            fos.write(new byte[] { 0, 0, 1, 0, 1, 2, 3 });
+        }
+
+        final JobSet jobStatusSet = new JobSet();
+        mTaskStoreUnderTest.readJobMapFromDisk(jobStatusSet, true);
+        assertEquals("Incorrect # of persisted tasks.", 1, jobStatusSet.size());
+        assertTasksEqual(task, jobStatusSet.getAllJobs().get(0).getJob());
+    }
+
     @Test
     public void testWritingTaskWithExtras() throws Exception {
         JobInfo.Builder b = new Builder(8, mComponent)
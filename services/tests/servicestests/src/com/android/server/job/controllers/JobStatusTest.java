@@ -17,11 +17,14 @@
 package com.android.server.job.controllers;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
 
 import android.app.job.JobInfo;
 import android.content.ComponentName;
 import android.os.SystemClock;
 import android.support.test.runner.AndroidJUnit4;
+import android.util.ArraySet;
 
 import com.android.server.job.JobSchedulerService;
 
@@ -66,6 +69,39 @@ public class JobStatusTest {
         assertEquals(1, createJobStatus(now - 2000, now).getFractionRunTime(), DELTA);
     }
 
+    @Test
+    public void testReadyListener() throws Exception {
+        final JobStatus job = createJobStatus(0, Long.MAX_VALUE);
+        final ArraySet<JobStatus> ready = new ArraySet<>();
+        assertFalse(job.setReadyListener((js, isReady) -> {
+            if (isReady) {
+                ready.add(js);
+            } else {
+                ready.remove(js);
+            }
+        }));
+
+        job.setDeviceNotDozingConstraintSatisfied(true, false);
+        job.setBackgroundNotRestrictedConstraintSatisfied(true);
+        assertTrue(ready.isEmpty());
+
+        // The last missing constraint makes the job ready.
+        job.setConnectivityConstraintSatisfied(true);
+        assertTrue(ready.contains(job));
+
+        job.setConnectivityConstraintSatisfied(false);
+        assertTrue(ready.isEmpty());
+
+        // Overrides are reported too.
+        job.setOverrideState(JobStatus.OVERRIDE_FULL);
+        assertTrue(ready.contains(job));
+
+        // No callbacks once the listener is cleared.
+        job.setReadyListener(null);
+        job.setOverrideState(0);
+        assertTrue(ready.contains(job));
+    }
+
     private static JobStatus createJobStatus(long earliestRunTimeElapsedMillis,
             long latestRunTimeElapsedMillis) {
         final JobInfo job = new JobInfo.Builder(101, new ComponentName("foo", "bar"))
@@ -111,6 +111,70 @@ public class PackageManagerSettingsTests {
         verifyKeySetMetaData(settings);
     }
 
+    /** migrate packages.xml to the journal, then make sure incremental writes are replayed */
+    @Test
+    public void testWriteSettingsJournal() throws Exception {
+        writeOldFiles();
+        final Context context = InstrumentationRegistry.getContext();
+        final Object lock = new Object();
+        PermissionManagerInternal pmInt = PermissionManagerService.create(context, null, lock);
+        Settings settings =
+                new Settings(context.getFilesDir(), pmInt.getPermissionSettings(), lock);
+        assertThat(settings.readLPw(createFakeUsers()), is(true));
+
+        // the first write compacts into a full snapshot and retires packages.xml
+        assertThat(settings.writeSettingsJournalLPr(), is(true));
+        final File systemDir = new File(context.getFilesDir(), "system");
+        assertThat(new File(systemDir, "packages.xml").exists(), is(false));
+        final File journal = new File(systemDir, "packages.journal");
+        final long snapshotLength = journal.length();
+
+        // a single change is appended rather than rewriting the journal
+        settings.getPackageLPr(PACKAGE_NAME_1).installerPackageName = PACKAGE_NAME_2;
+        settings.mPackages.remove(PACKAGE_NAME_3);
+        assertThat(settings.writeSettingsJournalLPr(), is(false));
+        assertThat(journal.length() > snapshotLength, is(true));
+
+        // nothing changed, nothing appended
+        final long appendedLength = journal.length();
+        assertThat(settings.writeSettingsJournalLPr(), is(false));
+        assertThat(journal.length(), is(appendedLength));
+
+        settings = new Settings(context.getFilesDir(), pmInt.getPermissionSettings(), lock);
+        assertThat(settings.readLPw(createFakeUsers()), is(true));
+        assertThat(settings.getPackageLPr(PACKAGE_NAME_1).installerPackageName,
+                is(PACKAGE_NAME_2));
+        assertThat(settings.getPackageLPr(PACKAGE_NAME_2), is(notNullValue()));
+        assertThat(settings.getPackageLPr(PACKAGE_NAME_3), is(nullValue()));
+    }
+
+    /** a record torn by a crash mid-append is dropped, the rest of the journal survives */
+    @Test
+    public void testReadSettingsJournalTornRecord() throws Exception {
+        writeOldFiles();
+        final Context context = InstrumentationRegistry.getContext();
+        final Object lock = new Object();
+        PermissionManagerInternal pmInt = PermissionManagerService.create(context, null, lock);
+        Settings settings =
+                new Settings(context.getFilesDir(), pmInt.getPermissionSettings(), lock);
+        assertThat(settings.readLPw(createFakeUsers()), is(true));
+        settings.writeSettingsJournalLPr();
+
+        final File journal = new File(context.getFilesDir(), "system/packages.journal");
+        try (FileOutputStream fos = new FileOutputStream(journal, true)) {
+            fos.write(new byte[] { 0, 0, 1, 0, 1, 1 });
+        }
+
+        settings = new Settings(context.getFilesDir(), pmInt.getPermissionSettings(), lock);
+        assertThat(settings.readLPw(createFakeUsers()), is(true));
+        assertThat(settings.getPackageLPr(PACKAGE_NAME_1), is(notNullValue()));
+        assertThat(settings.getPackageLPr(PACKAGE_NAME_3), is(notNullValue()));
+        verifyKeySetMetaData(settings);
+
+        // the next write rewrites the journal without the torn record
+        assertThat(settings.writeSettingsJournalLPr(), is(true));
+    }
+
     @Test
     public void testSettingsReadOld() {
         // Write the package files and make sure they're parsed properly the first time
@@ -156,6 +220,39 @@ public class PackageManagerSettingsTests {
         assertThat(ps.getEnabled(1), is(COMPONENT_ENABLED_STATE_DEFAULT));
     }
 
+    /** only packages whose user state changed are appended to the restrictions journal */
+    @Test
+    public void testWritePackageRestrictionsIncremental() {
+        final Context context = InstrumentationRegistry.getContext();
+        final Settings settings = new Settings(context.getFilesDir(), null, new Object());
+        settings.mPackages.put(PACKAGE_NAME_1, createPackageSetting(PACKAGE_NAME_1));
+        settings.mPackages.put(PACKAGE_NAME_2, createPackageSetting(PACKAGE_NAME_2));
+        settings.mPackages.put(PACKAGE_NAME_3, createPackageSetting(PACKAGE_NAME_3));
+        settings.writePackageRestrictionsLPr(0);
+
+        final PackageSetting ps1 = settings.mPackages.get(PACKAGE_NAME_1);
+        final PackageSetting ps2 = settings.mPackages.get(PACKAGE_NAME_2);
+        assertThat(ps1.isUserStatePersisted(0), is(true));
+        assertThat(ps2.isUserStatePersisted(0), is(true));
+
+        ps2.setStopped(true, 0);
+        ps2.setHidden(true, 0);
+        assertThat(ps1.isUserStatePersisted(0), is(true));
+        assertThat(ps2.isUserStatePersisted(0), is(false));
+        settings.writePackageRestrictionsLPr(0);
+        assertThat(ps2.isUserStatePersisted(0), is(true));
+
+        final Settings readSettings = new Settings(context.getFilesDir(), null, new Object());
+        readSettings.mPackages.put(PACKAGE_NAME_1, createPackageSetting(PACKAGE_NAME_1));
+        readSettings.mPackages.put(PACKAGE_NAME_2, createPackageSetting(PACKAGE_NAME_2));
+        readSettings.mPackages.put(PACKAGE_NAME_3, createPackageSetting(PACKAGE_NAME_3));
+        readSettings.readPackageRestrictionsLPr(0);
+        assertThat(readSettings.mPackages.get(PACKAGE_NAME_1).getStopped(0), is(false));
+        assertThat(readSettings.mPackages.get(PACKAGE_NAME_2).getStopped(0), is(true));
+        assertThat(readSettings.mPackages.get(PACKAGE_NAME_2).getHidden(0), is(true));
+        assertThat(readSettings.mPackages.get(PACKAGE_NAME_3).getHidden(0), is(false));
+    }
+
     private PersistableBundle getPersistableBundle(String packageName, long longVal,
             double doubleVal, boolean boolVal, String textVal) {
         final PersistableBundle bundle = new PersistableBundle();
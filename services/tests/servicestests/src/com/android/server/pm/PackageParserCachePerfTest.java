@@ -0,0 +1,143 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.pm;
+
+import android.app.Activity;
+import android.content.pm.PackageCacheEntry;
+import android.content.pm.PackageParser;
+import android.os.Bundle;
+import android.perftests.utils.BenchmarkState;
+import android.perftests.utils.PerfStatusReporter;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.filters.LargeTest;
+import android.support.test.runner.AndroidJUnit4;
+
+import libcore.io.IoUtils;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Compares reading back a boot's worth of package parser cache entries in the mapped cache
+ * format against reading and unparcelling the raw payload, which was the previous format.
+ */
+@LargeTest
+@RunWith(AndroidJUnit4.class)
+public class PackageParserCachePerfTest {
+    private static final File FRAMEWORK = new File("/system/framework/framework-res.apk");
+    private static final int PACKAGE_COUNT = 300;
+
+    @Rule
+    public PerfStatusReporter mPerfStatusReporter = new PerfStatusReporter();
+
+    private File mTmpDir;
+    private File[] mLegacyFiles;
+    private File[] mMappedFiles;
+
+    @Before
+    public void setUp() throws Exception {
+        mTmpDir = IoUtils.createTemporaryDirectory("PackageParserCachePerfTest");
+        final PackageParser.Package pkg = new PackageParser().parsePackage(FRAMEWORK,
+                0 /* parseFlags */);
+        final byte[] payload = PackageParser.toCacheEntryStatic(pkg);
+
+        mLegacyFiles = new File[PACKAGE_COUNT];
+        mMappedFiles = new File[PACKAGE_COUNT];
+        for (int i = 0; i < PACKAGE_COUNT; i++) {
+            mLegacyFiles[i] = new File(mTmpDir, "legacy-" + i);
+            try (FileOutputStream fos = new FileOutputStream(mLegacyFiles[i])) {
+                fos.write(payload);
+            }
+            mMappedFiles[i] = new File(mTmpDir, "mapped-" + i);
+            try (FileOutputStream fos = new FileOutputStream(mMappedFiles[i])) {
+                PackageCacheEntry.write(new BufferedOutputStream(fos), pkg, payload);
+            }
+        }
+    }
+
+    @After
+    public void tearDown() {
+        IoUtils.deleteContents(mTmpDir);
+        mTmpDir.delete();
+    }
+
+    @Test
+    public void timeReadLegacyFormat() throws Exception {
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        while (state.keepRunning()) {
+            for (File file : mLegacyFiles) {
+                PackageParser.fromCacheEntryStatic(
+                        IoUtils.readFileAsByteArray(file.getAbsolutePath()));
+            }
+        }
+    }
+
+    @Test
+    public void timeReadMappedFormat() throws Exception {
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        while (state.keepRunning()) {
+            for (File file : mMappedFiles) {
+                final PackageCacheEntry entry = PackageCacheEntry.open(file);
+                entry.getPackageName();
+                PackageParser.fromCacheEntryStatic(entry.getPayload());
+            }
+        }
+    }
+
+    @Test
+    public void testHeapUsage() throws Exception {
+        final Bundle status = new Bundle();
+
+        final List<Object> legacy = new ArrayList<>(PACKAGE_COUNT);
+        long before = usedHeap();
+        for (File file : mLegacyFiles) {
+            legacy.add(PackageParser.fromCacheEntryStatic(
+                    IoUtils.readFileAsByteArray(file.getAbsolutePath())));
+        }
+        status.putLong("HeapUsage_Legacy", usedHeap() - before);
+        legacy.clear();
+
+        final List<Object> mapped = new ArrayList<>(PACKAGE_COUNT);
+        before = usedHeap();
+        for (File file : mMappedFiles) {
+            final PackageCacheEntry entry = PackageCacheEntry.open(file);
+            entry.getPackageName();
+            mapped.add(PackageParser.fromCacheEntryStatic(entry.getPayload()));
+        }
+        status.putLong("HeapUsage_Mapped", usedHeap() - before);
+        mapped.clear();
+
+        InstrumentationRegistry.getInstrumentation().sendStatus(Activity.RESULT_OK, status);
+    }
+
+    private static long usedHeap() {
+        final Runtime runtime = Runtime.getRuntime();
+        runtime.gc();
+        runtime.runFinalization();
+        runtime.gc();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
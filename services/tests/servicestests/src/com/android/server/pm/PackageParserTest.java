@@ -21,6 +21,7 @@ import android.content.pm.ConfigurationInfo;
 import android.content.pm.FeatureGroupInfo;
 import android.content.pm.FeatureInfo;
 import android.content.pm.InstrumentationInfo;
+import android.content.pm.PackageCacheEntry;
 import android.content.pm.PackageParser;
 import android.content.pm.ProviderInfo;
 import android.content.pm.ServiceInfo;
@@ -33,6 +34,7 @@ import android.support.test.filters.SmallTest;
 import android.support.test.runner.AndroidJUnit4;
 
 import java.io.File;
+import java.io.FileOutputStream;
 import java.lang.reflect.Array;
 import java.lang.reflect.Field;
 import java.nio.charset.StandardCharsets;
@@ -110,6 +112,37 @@ public class PackageParserTest {
         assertEquals("android", pkg.packageName);
     }
 
+    @Test
+    public void testParse_cacheEntryHeader() throws Exception {
+        PackageParser pp = new PackageParser();
+        pp.setCacheDir(mTmpDir);
+        PackageParser.Package pkg = pp.parsePackage(FRAMEWORK, 0 /* parseFlags */,
+                true /* useCaches */);
+
+        // The package name is readable without decoding the package.
+        PackageCacheEntry entry = PackageCacheEntry.open(mTmpDir.listFiles()[0]);
+        assertEquals(pkg.packageName, entry.getPackageName());
+
+        assertPackagesEqual(pkg, PackageParser.fromCacheEntryStatic(entry.getPayload()));
+    }
+
+    @Test
+    public void testParse_unreadableCacheEntry() throws Exception {
+        PackageParser pp = new PackageParser();
+        pp.setCacheDir(mTmpDir);
+        pp.parsePackage(FRAMEWORK, 0 /* parseFlags */, true /* useCaches */);
+
+        // Entries in an unknown format are treated as a miss and regenerated.
+        File cacheFile = mTmpDir.listFiles()[0];
+        try (FileOutputStream fos = new FileOutputStream(cacheFile)) {
+            fos.write(new byte[] { 1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12, 13, 14, 15, 16 });
+        }
+        PackageParser.Package pkg = pp.parsePackage(FRAMEWORK, 0 /* parseFlags */,
+                true /* useCaches */);
+        assertEquals("android", pkg.packageName);
+        assertEquals("android", PackageCacheEntry.open(mTmpDir.listFiles()[0]).getPackageName());
+    }
+
     @Test
     public void test_serializePackage() throws Exception {
         PackageParser pp = new PackageParser();
@@ -0,0 +1,183 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.pm;
+
+import android.content.Context;
+import android.content.pm.UserInfo;
+import android.os.UserHandle;
+import android.os.UserManagerInternal;
+import android.perftests.utils.BenchmarkState;
+import android.perftests.utils.PerfStatusReporter;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.filters.LargeTest;
+
+import com.android.server.LocalServices;
+import com.android.server.pm.permission.PermissionManagerInternal;
+import com.android.server.pm.permission.PermissionManagerService;
+
+import libcore.io.IoUtils;
+import libcore.io.Streams;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+import org.junit.runners.Parameterized.Parameters;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Compares the cost of persisting and restoring package settings through the settings
+ * journal against the legacy packages.xml path.
+ */
+@LargeTest
+@RunWith(Parameterized.class)
+public class PackageSettingsPerfTest {
+    @Parameters(name = "{0}")
+    public static Collection<Object[]> packageCounts() {
+        return Arrays.asList(new Object[][] { { 100 }, { 500 }, { 2000 } });
+    }
+
+    @Rule
+    public PerfStatusReporter mPerfStatusReporter = new PerfStatusReporter();
+
+    private final int mPackageCount;
+
+    private Context mContext;
+    private Object mLock;
+    private PermissionManagerInternal mPermissionManager;
+    private File mSystemDir;
+
+    public PackageSettingsPerfTest(int packageCount) {
+        mPackageCount = packageCount;
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        mContext = InstrumentationRegistry.getContext();
+        mSystemDir = new File(mContext.getFilesDir(), "system");
+        mLock = new Object();
+        InstrumentationRegistry.getInstrumentation().runOnMainSync(() -> {
+            LocalServices.removeServiceForTest(UserManagerInternal.class);
+            new UserManagerService(mContext);
+        });
+        mPermissionManager = PermissionManagerService.create(mContext, null, mLock);
+
+        final Settings settings = newSettings();
+        for (int i = 0; i < mPackageCount; i++) {
+            final String name = "com.android.perftest.app" + i;
+            settings.addPackageLPw(name, name, new File(mContext.getFilesDir(), name),
+                    new File(mContext.getFilesDir(), name), null /*legacyNativeLibraryPath*/,
+                    "arm64-v8a", "armeabi-v7a", null /*cpuAbiOverride*/,
+                    10000 + i, 1 /*versionCode*/, 0 /*pkgFlags*/, 0 /*pkgPrivateFlags*/,
+                    null /*parentPackageName*/, null /*childPackageNames*/,
+                    null /*usesStaticLibraries*/, null /*usesStaticLibraryNames*/);
+        }
+        settings.writeSettingsJournalLPr();
+    }
+
+    @After
+    public void tearDown() {
+        deleteFolder(mSystemDir);
+    }
+
+    @Test
+    public void timeWriteFull() throws Exception {
+        final Settings settings = readSettings();
+        final File journal = new File(mSystemDir, "packages.journal");
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        while (state.keepRunning()) {
+            state.pauseTiming();
+            journal.delete();
+            state.resumeTiming();
+            settings.writeSettingsJournalLPr();
+        }
+    }
+
+    @Test
+    public void timeWriteSinglePackageChange() throws Exception {
+        final Settings settings = readSettings();
+        final PackageSetting ps = settings.getPackageLPr("com.android.perftest.app0");
+        long version = 1;
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        while (state.keepRunning()) {
+            ps.versionCode = ++version;
+            settings.writeSettingsJournalLPr();
+        }
+    }
+
+    @Test
+    public void timeReadJournal() {
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        while (state.keepRunning()) {
+            readSettings();
+        }
+    }
+
+    @Test
+    public void timeReadLegacyXml() throws Exception {
+        // The replayed journal is a complete packages.xml document
+        final File journal = new File(mSystemDir, "packages.journal");
+        InputStream in = null;
+        FileOutputStream out = null;
+        try {
+            in = new PackageSettingsJournal(journal, "packages").readDocument();
+            out = new FileOutputStream(new File(mSystemDir, "packages.xml"));
+            Streams.copy(in, out);
+        } finally {
+            IoUtils.closeQuietly(in);
+            IoUtils.closeQuietly(out);
+        }
+        journal.delete();
+
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        while (state.keepRunning()) {
+            readSettings();
+        }
+    }
+
+    private Settings newSettings() {
+        return new Settings(mContext.getFilesDir(), mPermissionManager.getPermissionSettings(),
+                mLock);
+    }
+
+    private Settings readSettings() {
+        final Settings settings = newSettings();
+        final List<UserInfo> users = new ArrayList<>();
+        users.add(new UserInfo(UserHandle.USER_SYSTEM, "test user", UserInfo.FLAG_INITIALIZED));
+        settings.readLPw(users);
+        return settings;
+    }
+
+    private static void deleteFolder(File folder) {
+        final File[] files = folder.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                deleteFolder(file);
+            }
+        }
+        folder.delete();
+    }
+}
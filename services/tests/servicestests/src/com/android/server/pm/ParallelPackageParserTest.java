@@ -17,6 +17,7 @@
 package com.android.server.pm;
 
 import android.content.pm.PackageParser;
+import android.os.SystemClock;
 import android.support.test.runner.AndroidJUnit4;
 import android.util.Log;
 
@@ -27,8 +28,12 @@ import org.junit.Test;
 import org.junit.runner.RunWith;
 
 import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
+import java.util.concurrent.CountDownLatch;
 
 /**
  * Tests for {@link ParallelPackageParser}
@@ -66,6 +71,84 @@ public class ParallelPackageParserTest {
         }
     }
 
+    @Test(timeout = 1000)
+    public void testReportsTimes() {
+        ParallelPackageParser parser = new TestParallelPackageParser() {
+            @Override
+            protected PackageParser.Package parsePackage(PackageParser packageParser,
+                    File scanFile, int parseFlags) throws PackageParser.PackageParserException {
+                SystemClock.sleep(20);
+                return null;
+            }
+        };
+        parser.submit(new File("f"), 0);
+        ParallelPackageParser.ParseResult result = parser.take();
+        Assert.assertTrue("parseTimeMs=" + result.parseTimeMs, result.parseTimeMs >= 20);
+        Assert.assertTrue("waitTimeMs=" + result.waitTimeMs, result.waitTimeMs >= 0);
+        parser.close();
+    }
+
+    @Test(timeout = 5000)
+    public void testLargestFirst() throws Exception {
+        final int threads = Math.max(1, Math.min(Runtime.getRuntime().availableProcessors(), 8));
+        final CountDownLatch started = new CountDownLatch(threads);
+        final CountDownLatch releaseFirst = new CountDownLatch(1);
+        final CountDownLatch releaseRest = new CountDownLatch(1);
+        final List<Long> parseOrder = Collections.synchronizedList(new ArrayList<>());
+        ParallelPackageParser parser = new TestParallelPackageParser() {
+            @Override
+            protected PackageParser.Package parsePackage(PackageParser packageParser,
+                    File scanFile, int parseFlags) throws PackageParser.PackageParserException {
+                final String name = scanFile.getName();
+                if (name.startsWith("blocker")) {
+                    started.countDown();
+                    try {
+                        (name.equals("blocker0") ? releaseFirst : releaseRest).await();
+                    } catch (InterruptedException e) {
+                        throw new RuntimeException(e);
+                    }
+                } else {
+                    parseOrder.add(Long.parseLong(name));
+                }
+                return null;
+            }
+
+            @Override
+            protected long getPackageSize(File scanFile) {
+                return scanFile.getName().startsWith("blocker") ? 0
+                        : Long.parseLong(scanFile.getName());
+            }
+        };
+        // Occupy every parsing thread so that the remaining submissions are queued
+        for (int i = 0; i < threads; i++) {
+            parser.submit(new File("blocker" + i), 0);
+        }
+        started.await();
+        // More packages than threads, submitted in no particular order of size
+        final List<Long> sizes = new ArrayList<>();
+        for (long i = 1; i <= 2 * threads + 4; i++) {
+            sizes.add(i * 10);
+        }
+        Collections.shuffle(sizes);
+        for (long size : sizes) {
+            parser.submit(new File(Long.toString(size)), 0);
+        }
+        // A single thread drains the queue, so packages are parsed in the order they are
+        // handed out
+        releaseFirst.countDown();
+        for (int i = 0; i < 1 + sizes.size(); i++) {
+            parser.take();
+        }
+        releaseRest.countDown();
+        for (int i = 1; i < threads; i++) {
+            parser.take();
+        }
+        parser.close();
+
+        Collections.sort(sizes, Collections.reverseOrder());
+        Assert.assertEquals(sizes, parseOrder);
+    }
+
     class TestParallelPackageParser extends ParallelPackageParser {
 
         TestParallelPackageParser() {
@@ -0,0 +1,162 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.usage;
+
+import android.app.usage.EventList;
+import android.app.usage.UsageEvents;
+import android.app.usage.UsageStatsManager;
+import android.perftests.utils.BenchmarkState;
+import android.perftests.utils.PerfStatusReporter;
+import android.support.test.filters.LargeTest;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.AtomicFile;
+
+import libcore.io.IoUtils;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Measures the disk side of a 7-day queryEvents call: reading the daily XML files, which was
+ * the previous format, against reading the event ranges of the binary files, and against the
+ * database answering from its cache.
+ */
+@LargeTest
+@RunWith(AndroidJUnit4.class)
+public class UsageStatsDatabasePerfTest {
+    private static final long DAY = 24 * 60 * 60 * 1000L;
+    private static final int DAYS = 8;
+    private static final int EVENTS_PER_DAY = 2000;
+    private static final int PACKAGE_COUNT = 100;
+
+    @Rule
+    public PerfStatusReporter mPerfStatusReporter = new PerfStatusReporter();
+
+    private File mTmpDir;
+    private AtomicFile[] mXmlFiles;
+    private AtomicFile[] mBinaryFiles;
+    private UsageStatsDatabase mDatabase;
+    private long mBeginTime;
+    private long mEndTime;
+
+    @Before
+    public void setUp() throws Exception {
+        mTmpDir = IoUtils.createTemporaryDirectory("UsageStatsDatabasePerfTest");
+        final File xmlDir = new File(mTmpDir, "xml");
+        xmlDir.mkdirs();
+        mDatabase = new UsageStatsDatabase(new File(mTmpDir, "db"));
+        mDatabase.init(System.currentTimeMillis());
+
+        final long firstDay = (System.currentTimeMillis() / DAY - DAYS - 1) * DAY;
+        mXmlFiles = new AtomicFile[DAYS];
+        mBinaryFiles = new AtomicFile[DAYS];
+        for (int day = 0; day < DAYS; day++) {
+            final IntervalStats stats = newStats(firstDay + day * DAY);
+            mXmlFiles[day] = new AtomicFile(new File(xmlDir, Long.toString(stats.beginTime)));
+            UsageStatsXml.write(mXmlFiles[day], stats);
+            mDatabase.putUsageStats(UsageStatsManager.INTERVAL_DAILY, stats);
+            mBinaryFiles[day] = new AtomicFile(new File(new File(mTmpDir, "db/daily"),
+                    Long.toString(stats.beginTime)));
+        }
+
+        // Seven days that start and end in the middle of a daily file
+        mBeginTime = firstDay + DAY / 2;
+        mEndTime = mBeginTime + 7 * DAY;
+    }
+
+    @After
+    public void tearDown() {
+        IoUtils.deleteContents(mTmpDir);
+        mTmpDir.delete();
+    }
+
+    private static IntervalStats newStats(long beginTime) {
+        final IntervalStats stats = new IntervalStats();
+        stats.beginTime = beginTime;
+        stats.endTime = beginTime + DAY;
+        stats.events = new EventList();
+        for (int i = 0; i < EVENTS_PER_DAY; i++) {
+            final String pkg = "com.android.test" + (i % PACKAGE_COUNT);
+            final long timeStamp = beginTime + i * (DAY / EVENTS_PER_DAY);
+            final int eventType = i % 2 == 0 ? UsageEvents.Event.MOVE_TO_FOREGROUND
+                    : UsageEvents.Event.MOVE_TO_BACKGROUND;
+            stats.update(pkg, timeStamp, eventType);
+            final UsageEvents.Event event = stats.buildEvent(pkg, pkg + ".MainActivity");
+            event.mTimeStamp = timeStamp;
+            event.mEventType = eventType;
+            stats.events.insert(event);
+        }
+        return stats;
+    }
+
+    private static void collectEvents(IntervalStats stats, long beginTime, long endTime,
+            List<UsageEvents.Event> out) {
+        final int size = stats.events.size();
+        for (int i = stats.events.firstIndexOnOrAfter(beginTime); i < size; i++) {
+            final UsageEvents.Event event = stats.events.get(i);
+            if (event.mTimeStamp >= endTime) {
+                return;
+            }
+            out.add(event);
+        }
+    }
+
+    @Test
+    public void timeQueryEventsXml() throws Exception {
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        final IntervalStats stats = new IntervalStats();
+        while (state.keepRunning()) {
+            final List<UsageEvents.Event> events = new ArrayList<>();
+            for (AtomicFile file : mXmlFiles) {
+                UsageStatsXml.read(file, stats, UsageStatsDatabase.QUERY_FLAG_FETCH_EVENTS);
+                collectEvents(stats, mBeginTime, mEndTime, events);
+            }
+        }
+    }
+
+    @Test
+    public void timeQueryEventsBinary() throws Exception {
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        while (state.keepRunning()) {
+            final List<UsageEvents.Event> events = new ArrayList<>();
+            for (AtomicFile file : mBinaryFiles) {
+                final IntervalStats stats = new IntervalStats();
+                UsageStatsBinary.read(file, stats, UsageStatsDatabase.QUERY_FLAG_FETCH_EVENTS,
+                        mBeginTime, mEndTime);
+                collectEvents(stats, mBeginTime, mEndTime, events);
+            }
+        }
+    }
+
+    @Test
+    public void timeQueryEventsCached() {
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        while (state.keepRunning()) {
+            mDatabase.queryUsageStats(UsageStatsManager.INTERVAL_DAILY, mBeginTime, mEndTime,
+                    UsageStatsDatabase.QUERY_FLAG_FETCH_EVENTS,
+                    (stats, mutable, accumulatedResult) ->
+                            collectEvents(stats, mBeginTime, mEndTime, accumulatedResult));
+        }
+    }
+}
@@ -0,0 +1,188 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.usage;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+import android.app.usage.EventList;
+import android.app.usage.UsageEvents;
+import android.app.usage.UsageStats;
+import android.app.usage.UsageStatsManager;
+import android.support.test.filters.SmallTest;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.AtomicFile;
+
+import libcore.io.IoUtils;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.util.List;
+
+@RunWith(AndroidJUnit4.class)
+@SmallTest
+public class UsageStatsDatabaseTest {
+    private static final long DAY = 24 * 60 * 60 * 1000L;
+    private static final int EVENT_COUNT = 500;
+    private static final String PKG = "com.android.test";
+
+    private static final UsageStatsDatabase.StatCombiner<UsageEvents.Event> EVENT_COMBINER =
+            (stats, mutable, accumulatedResult) -> {
+                if (stats.events == null) {
+                    return;
+                }
+                for (int i = 0; i < stats.events.size(); i++) {
+                    accumulatedResult.add(stats.events.get(i));
+                }
+            };
+
+    private File mDir;
+    private long mBeginTime;
+
+    @Before
+    public void setUp() throws Exception {
+        mDir = IoUtils.createTemporaryDirectory("UsageStatsDatabaseTest");
+        mBeginTime = (System.currentTimeMillis() / DAY - 2) * DAY;
+    }
+
+    @After
+    public void tearDown() {
+        IoUtils.deleteContents(mDir);
+        mDir.delete();
+    }
+
+    private UsageStatsDatabase newDatabase() {
+        final UsageStatsDatabase db = new UsageStatsDatabase(mDir);
+        db.init(System.currentTimeMillis());
+        return db;
+    }
+
+    /** One event every minute, starting at the begin time. */
+    private IntervalStats newStats(int eventCount) {
+        final IntervalStats stats = new IntervalStats();
+        stats.beginTime = mBeginTime;
+        stats.endTime = mBeginTime + DAY;
+        stats.events = new EventList();
+        for (int i = 0; i < eventCount; i++) {
+            final UsageEvents.Event event = stats.buildEvent(PKG, "Activity" + (i % 3));
+            event.mTimeStamp = mBeginTime + i * 60_000L;
+            event.mEventType = i % 2 == 0 ? UsageEvents.Event.MOVE_TO_FOREGROUND
+                    : UsageEvents.Event.MOVE_TO_BACKGROUND;
+            stats.events.insert(event);
+        }
+        final UsageStats usageStats = stats.getOrCreateUsageStats(PKG);
+        usageStats.mLastTimeUsed = mBeginTime + 1000;
+        usageStats.mTotalTimeInForeground = 1234;
+        usageStats.mAppLaunchCount = 5;
+        stats.updateChooserCounts(PKG, "text/plain", "android.intent.action.SEND");
+        return stats;
+    }
+
+    private List<UsageEvents.Event> queryEvents(UsageStatsDatabase db, long beginTime,
+            long endTime) {
+        return db.queryUsageStats(UsageStatsManager.INTERVAL_DAILY, beginTime, endTime,
+                UsageStatsDatabase.QUERY_FLAG_FETCH_EVENTS, EVENT_COMBINER);
+    }
+
+    private void assertEventsInRange(List<UsageEvents.Event> events, long beginTime,
+            long endTime) {
+        final long first = Math.max(0, (beginTime - mBeginTime + 59_999L) / 60_000L);
+        final long last = Math.min(EVENT_COUNT, (endTime - mBeginTime + 59_999L) / 60_000L);
+        assertEquals(last - first, events.size());
+        for (int i = 0; i < events.size(); i++) {
+            final UsageEvents.Event event = events.get(i);
+            assertEquals(mBeginTime + (first + i) * 60_000L, event.mTimeStamp);
+            assertEquals(PKG, event.mPackage);
+            assertEquals("Activity" + ((first + i) % 3), event.mClass);
+        }
+    }
+
+    @Test
+    public void testEventsRoundTrip() throws Exception {
+        final UsageStatsDatabase db = newDatabase();
+        db.putUsageStats(UsageStatsManager.INTERVAL_DAILY, newStats(EVENT_COUNT));
+
+        assertEventsInRange(queryEvents(db, mBeginTime, mBeginTime + DAY),
+                mBeginTime, mBeginTime + DAY);
+    }
+
+    @Test
+    public void testQueryEventsTimeRange() throws Exception {
+        final UsageStatsDatabase db = newDatabase();
+        db.putUsageStats(UsageStatsManager.INTERVAL_DAILY, newStats(EVENT_COUNT));
+
+        // Ranges that start and end inside blocks of the event index, and on their edges
+        final long[][] ranges = {
+                {mBeginTime + 100 * 60_000L + 1, mBeginTime + 300 * 60_000L},
+                {mBeginTime + 64 * 60_000L, mBeginTime + 128 * 60_000L},
+                {mBeginTime + 499 * 60_000L, mBeginTime + DAY},
+                {mBeginTime + 10 * 60_000L, mBeginTime + 11 * 60_000L},
+        };
+        for (long[] range : ranges) {
+            assertEventsInRange(queryEvents(db, range[0], range[1]), range[0], range[1]);
+        }
+    }
+
+    @Test
+    public void testPackagesRoundTrip() throws Exception {
+        final UsageStatsDatabase db = newDatabase();
+        db.putUsageStats(UsageStatsManager.INTERVAL_DAILY, newStats(EVENT_COUNT));
+
+        final List<UsageStats> packages = db.queryUsageStats(UsageStatsManager.INTERVAL_DAILY,
+                mBeginTime, mBeginTime + DAY, UsageStatsDatabase.QUERY_FLAG_FETCH_PACKAGES,
+                (stats, mutable, accumulatedResult) ->
+                        accumulatedResult.addAll(stats.packageStats.values()));
+        assertEquals(1, packages.size());
+        final UsageStats usageStats = packages.get(0);
+        assertEquals(PKG, usageStats.mPackageName);
+        assertEquals(mBeginTime + 1000, usageStats.mLastTimeUsed);
+        assertEquals(1234, usageStats.mTotalTimeInForeground);
+        assertEquals(5, usageStats.mAppLaunchCount);
+        assertNotNull(usageStats.mChooserCounts);
+        assertEquals(1, (int) usageStats.mChooserCounts.get("android.intent.action.SEND")
+                .get("text/plain"));
+    }
+
+    @Test
+    public void testQueryAfterWriteSeesNewEvents() throws Exception {
+        final UsageStatsDatabase db = newDatabase();
+        db.putUsageStats(UsageStatsManager.INTERVAL_DAILY, newStats(EVENT_COUNT / 2));
+        assertEquals(EVENT_COUNT / 2, queryEvents(db, mBeginTime, mBeginTime + DAY).size());
+
+        db.putUsageStats(UsageStatsManager.INTERVAL_DAILY, newStats(EVENT_COUNT));
+        assertEventsInRange(queryEvents(db, mBeginTime, mBeginTime + DAY),
+                mBeginTime, mBeginTime + DAY);
+    }
+
+    @Test
+    public void testReadsLegacyXmlFiles() throws Exception {
+        newDatabase();
+        final File file = new File(new File(mDir, "daily"), Long.toString(mBeginTime));
+        UsageStatsXml.write(new AtomicFile(file), newStats(EVENT_COUNT));
+
+        final UsageStatsDatabase db = newDatabase();
+        final long beginTime = mBeginTime + 100 * 60_000L;
+        final long endTime = mBeginTime + 200 * 60_000L;
+        final List<UsageEvents.Event> events = queryEvents(db, beginTime, endTime);
+        // The whole XML file is read, the combiner is left to filter the events
+        assertEventsInRange(events.subList(100, 200), beginTime, endTime);
+    }
+}
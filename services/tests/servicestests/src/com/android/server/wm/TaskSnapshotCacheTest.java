@@ -17,8 +17,12 @@
 package com.android.server.wm;
 
 import static android.view.WindowManager.LayoutParams.FIRST_APPLICATION_WINDOW;
+import static junit.framework.Assert.assertEquals;
 import static junit.framework.Assert.assertNotNull;
 import static junit.framework.Assert.assertNull;
+import static junit.framework.Assert.assertSame;
+
+import android.app.ActivityManager.TaskSnapshot;
 
 import android.platform.test.annotations.Presubmit;
 import android.support.test.filters.SmallTest;
@@ -108,4 +112,79 @@ public class TaskSnapshotCacheTest extends TaskSnapshotPersisterTestBase {
         assertNotNull(mCache.getSnapshot(window.getTask().mTaskId, sWm.mCurrentUserId,
                 true /* restoreFromDisk */, false /* reducedResolution */));
     }
+
+    @Test
+    public void testAppDied_retained() throws Exception {
+        final WindowState window = createWindow(null, FIRST_APPLICATION_WINDOW, "window");
+        final TaskSnapshot snapshot = createSnapshot();
+        mCache.putSnapshot(window.getTask(), snapshot);
+        mCache.onAppDied(window.mAppToken);
+
+        // The snapshot is still served to those that would otherwise read it from disk.
+        assertSame(snapshot, mCache.getSnapshot(window.getTask().mTaskId, 0 /* userId */,
+                true /* restoreFromDisk */, false /* reducedResolution */));
+        assertEquals(1, mCache.getRetainedCacheHits());
+        assertEquals(0, mCache.getDiskLoads());
+    }
+
+    @Test
+    public void testTaskRemoved_retained() throws Exception {
+        final WindowState window = createWindow(null, FIRST_APPLICATION_WINDOW, "window");
+        mCache.putSnapshot(window.getTask(), createSnapshot());
+        mCache.onAppDied(window.mAppToken);
+        mCache.onTaskRemoved(window.getTask().mTaskId);
+        assertNull(mCache.getSnapshot(window.getTask().mTaskId, 0 /* userId */,
+                true /* restoreFromDisk */, false /* reducedResolution */));
+    }
+
+    @Test
+    public void testRestoreFromDisk_retained() throws Exception {
+        final WindowState window = createWindow(null, FIRST_APPLICATION_WINDOW, "window");
+        mPersister.persistSnapshot(window.getTask().mTaskId, sWm.mCurrentUserId, createSnapshot());
+        mPersister.waitForQueueEmpty();
+
+        final TaskSnapshot reduced = mCache.getSnapshot(window.getTask().mTaskId,
+                sWm.mCurrentUserId, true /* restoreFromDisk */, true /* reducedResolution */);
+        assertNotNull(reduced);
+        assertSame(reduced, mCache.getSnapshot(window.getTask().mTaskId, sWm.mCurrentUserId,
+                true /* restoreFromDisk */, true /* reducedResolution */));
+        assertEquals(1, mCache.getDiskLoads());
+
+        // A reduced resolution snapshot doesn't do for a full resolution one.
+        assertNotNull(mCache.getSnapshot(window.getTask().mTaskId, sWm.mCurrentUserId,
+                true /* restoreFromDisk */, false /* reducedResolution */));
+        assertEquals(2, mCache.getDiskLoads());
+    }
+
+    @Test
+    public void testRetainedCacheBoundedByBytes() throws Exception {
+        // Room for two 100x100 snapshots.
+        mCache = new TaskSnapshotCache(sWm, mLoader, 2 * 100 * 100 * 4);
+        final WindowState[] windows = new WindowState[3];
+        for (int i = 0; i < windows.length; i++) {
+            windows[i] = createWindow(null, FIRST_APPLICATION_WINDOW, "window" + i);
+            mCache.putSnapshot(windows[i].getTask(), createSnapshot());
+            mCache.onAppDied(windows[i].mAppToken);
+        }
+
+        assertNull(mCache.getSnapshot(windows[0].getTask().mTaskId, 0 /* userId */,
+                true /* restoreFromDisk */, false /* reducedResolution */));
+        assertNotNull(mCache.getSnapshot(windows[1].getTask().mTaskId, 0 /* userId */,
+                true /* restoreFromDisk */, false /* reducedResolution */));
+        assertNotNull(mCache.getSnapshot(windows[2].getTask().mTaskId, 0 /* userId */,
+                true /* restoreFromDisk */, false /* reducedResolution */));
+    }
+
+    @Test
+    public void testPrefetch() throws Exception {
+        final WindowState window = createWindow(null, FIRST_APPLICATION_WINDOW, "window");
+        mPersister.persistSnapshot(window.getTask().mTaskId, sWm.mCurrentUserId, createSnapshot());
+        mPersister.waitForQueueEmpty();
+
+        mCache.prefetchSnapshot(window.getTask().mTaskId, sWm.mCurrentUserId);
+        assertNotNull(mCache.getSnapshot(window.getTask().mTaskId, sWm.mCurrentUserId,
+                true /* restoreFromDisk */, true /* reducedResolution */));
+        assertEquals(1, mCache.getRetainedCacheHits());
+        assertEquals(0, mCache.getDiskLoads());
+    }
 }
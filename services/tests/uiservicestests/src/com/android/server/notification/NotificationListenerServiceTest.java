@@ -24,7 +24,9 @@ import static android.service.notification.NotificationListenerService.Ranking
         .USER_SENTIMENT_POSITIVE;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
 import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.ArgumentMatchers.anyInt;
 import static org.mockito.Mockito.mock;
@@ -94,6 +96,69 @@ public class NotificationListenerServiceTest extends UiServiceTestCase {
         }
     }
 
+    @Test
+    public void testRankingDelta() throws Exception {
+        TestListenerService service = new TestListenerService();
+        service.applyUpdateLocked(generateUpdate());
+
+        // key2 is gone, key1 changed and key4 is new.
+        String[] keys = new String[] { "key", "key1", "key3", "key4"};
+        String[] changedKeys = new String[] { "key1", "key4"};
+        Bundle visibilityOverrides = new Bundle();
+        Bundle overrideGroupKeys = new Bundle();
+        Bundle suppressedVisualEffects = new Bundle();
+        Bundle explanation = new Bundle();
+        Bundle channels = new Bundle();
+        Bundle overridePeople = new Bundle();
+        Bundle snoozeCriteria = new Bundle();
+        Bundle showBadge = new Bundle();
+        Bundle userSentiment = new Bundle();
+        Bundle hidden = new Bundle();
+        for (String key : changedKeys) {
+            visibilityOverrides.putInt(key, 100);
+            overrideGroupKeys.putString(key, key + "changed");
+            suppressedVisualEffects.putInt(key, 100);
+            explanation.putString(key, key + "changed");
+            channels.putParcelable(key, getChannel(key, 4));
+            overridePeople.putStringArrayList(key, getPeople(key, 4));
+            snoozeCriteria.putParcelableArrayList(key, getSnoozeCriteria(key, 4));
+            showBadge.putBoolean(key, true);
+            userSentiment.putInt(key, USER_SENTIMENT_POSITIVE);
+            hidden.putBoolean(key, true);
+        }
+        service.applyUpdateLocked(new NotificationRankingUpdate(keys, new String[] { "key4" },
+                visibilityOverrides, suppressedVisualEffects, new int[] { 0, 1, 3, 4 },
+                explanation, overrideGroupKeys, channels, overridePeople, snoozeCriteria,
+                showBadge, userSentiment, hidden, changedKeys));
+
+        Ranking ranking = new Ranking();
+        assertFalse(service.getCurrentRanking().getRanking("key2", ranking));
+        for (int i : new int[] { 0, 3 }) {
+            String key = mKeys[i];
+            assertTrue(service.getCurrentRanking().getRanking(key, ranking));
+            assertEquals(getVisibilityOverride(i), ranking.getVisibilityOverride());
+            assertEquals(getOverrideGroupKey(key), ranking.getOverrideGroupKey());
+            assertTrue(ranking.matchesInterruptionFilter());
+            assertEquals(getExplanation(key), ranking.getImportanceExplanation());
+            assertEquals(getChannel(key, i), ranking.getChannel());
+            assertEquals(getPeople(key, i), ranking.getAdditionalPeople());
+            assertEquals(getShowBadge(i), ranking.canShowBadge());
+            assertEquals(getHidden(i), ranking.isSuspended());
+        }
+        for (String key : changedKeys) {
+            assertTrue(service.getCurrentRanking().getRanking(key, ranking));
+            assertEquals(100, ranking.getVisibilityOverride());
+            assertEquals(key + "changed", ranking.getOverrideGroupKey());
+            assertEquals(key + "changed", ranking.getImportanceExplanation());
+            assertEquals(getChannel(key, 4), ranking.getChannel());
+            assertEquals(getPeople(key, 4), ranking.getAdditionalPeople());
+            assertEquals(USER_SENTIMENT_POSITIVE, ranking.getUserSentiment());
+            assertTrue(ranking.isSuspended());
+        }
+        service.getCurrentRanking().getRanking("key4", ranking);
+        assertFalse(ranking.matchesInterruptionFilter());
+    }
+
     private NotificationRankingUpdate generateUpdate() {
         List<String> interceptedKeys = new ArrayList<>();
         Bundle visibilityOverrides = new Bundle();
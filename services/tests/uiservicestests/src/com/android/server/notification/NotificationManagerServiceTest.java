@@ -53,6 +53,8 @@ import static org.mockito.Mockito.any;
 import static org.mockito.Mockito.anyInt;
 import static org.mockito.Mockito.atLeastOnce;
 import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doNothing;
+import static org.mockito.Mockito.doThrow;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.reset;
@@ -99,6 +101,7 @@ import android.provider.Settings.Secure;
 import android.service.notification.Adjustment;
 import android.service.notification.INotificationListener;
 import android.service.notification.NotificationListenerService;
+import android.service.notification.NotificationRankingUpdate;
 import android.service.notification.NotificationStats;
 import android.service.notification.NotifyingApp;
 import android.service.notification.StatusBarNotification;
@@ -3164,4 +3167,73 @@ public class NotificationManagerServiceTest extends UiServiceTestCase {
         mBinderService.areNotificationsEnabledForPackage(mContext.getPackageName(),
                 mUid + UserHandle.PER_USER_RANGE);
     }
+
+    @Test
+    public void testRankingUpdatesAreDeltasAfterConnect() throws Exception {
+        // mListeners is a mock, so run a service with real listeners.
+        final TestableNotificationManagerService service =
+                new TestableNotificationManagerService(mContext);
+        final NotificationListeners listeners = service.new NotificationListeners(mPackageManager);
+        final LightsManager lights = mock(LightsManager.class);
+        when(lights.getLight(anyInt())).thenReturn(mock(Light.class));
+        try {
+            service.init(mTestableLooper.getLooper(),
+                    mPackageManager, mPackageManagerClient, lights,
+                    listeners, mAssistants, mConditionProviders,
+                    mCompanionMgr, mSnoozeHelper, mUsageStats, mPolicyFile, mActivityManager,
+                    mGroupHelper, mAm, mAppUsageStats,
+                    mock(DevicePolicyManagerInternal.class));
+        } catch (SecurityException e) {
+            if (!e.getMessage().contains("Permission Denial: not allowed to send broadcast")) {
+                throw e;
+            }
+        }
+        final NotificationRecord r1 = generateNotificationRecord(mTestNotificationChannel, 1,
+                null, false);
+        final NotificationRecord r2 = generateNotificationRecord(mTestNotificationChannel, 2,
+                null, false);
+        service.addNotification(r1);
+        service.addNotification(r2);
+
+        final INotificationListener listener = mock(INotificationListener.class);
+        when(listener.asBinder()).thenReturn(new Binder());
+        listeners.registerService(listener, new ComponentName(PKG, "test_class"), mUid);
+        final ArgumentCaptor<NotificationRankingUpdate> connected =
+                ArgumentCaptor.forClass(NotificationRankingUpdate.class);
+        verify(listener).onListenerConnected(connected.capture());
+        assertFalse(connected.getValue().isDelta());
+        assertEquals(2, connected.getValue().getOrderedKeys().length);
+
+        // The first update after connecting is full, the next ones only hold what changed.
+        assertFalse(sendRankingUpdate(service, listeners, listener).isDelta());
+        NotificationRankingUpdate update = sendRankingUpdate(service, listeners, listener);
+        assertTrue(update.isDelta());
+        assertEquals(2, update.getOrderedKeys().length);
+        assertEquals(0, update.getChangedKeys().length);
+
+        r2.setShowBadge(false);
+        update = sendRankingUpdate(service, listeners, listener);
+        assertTrue(update.isDelta());
+        assertEquals(1, update.getChangedKeys().length);
+        assertEquals(r2.getKey(), update.getChangedKeys()[0]);
+
+        // A listener that missed an update gets a full one next.
+        doThrow(new RemoteException()).when(listener).onNotificationRankingUpdate(any());
+        r1.setShowBadge(false);
+        sendRankingUpdate(service, listeners, listener);
+        doNothing().when(listener).onNotificationRankingUpdate(any());
+        assertFalse(sendRankingUpdate(service, listeners, listener).isDelta());
+    }
+
+    private NotificationRankingUpdate sendRankingUpdate(NotificationManagerService service,
+            NotificationListeners listeners, INotificationListener listener) throws Exception {
+        synchronized (service.mNotificationLock) {
+            listeners.notifyRankingUpdateLocked(null);
+        }
+        waitForIdle();
+        final ArgumentCaptor<NotificationRankingUpdate> captor =
+                ArgumentCaptor.forClass(NotificationRankingUpdate.class);
+        verify(listener, atLeastOnce()).onNotificationRankingUpdate(captor.capture());
+        return captor.getValue();
+    }
 }
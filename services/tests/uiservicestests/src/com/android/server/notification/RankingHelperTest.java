@@ -87,6 +87,7 @@ import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -358,6 +359,71 @@ public class RankingHelperTest extends UiServiceTestCase {
         mHelper.sort(notificationList);
     }
 
+    @Test
+    public void testIncrementalSortMatchesFullSort() throws Exception {
+        ArrayList<NotificationRecord> notificationList = new ArrayList<NotificationRecord>();
+        for (int i = 0; i < 20; i++) {
+            notificationList.add(getSortRecord(i));
+        }
+        mHelper.sort(notificationList);
+
+        NotificationRecord added = getSortRecord(20);
+        notificationList.add(added);
+        mHelper.sort(notificationList, added);
+        assertSortedAsFully(notificationList);
+
+        NotificationRecord changed = notificationList.get(notificationList.size() - 1);
+        changed.setImportance(IMPORTANCE_HIGH, null);
+        notificationList.remove(0);
+        mHelper.sort(notificationList, changed);
+        assertEquals(changed, notificationList.get(0));
+        assertSortedAsFully(notificationList);
+    }
+
+    @Test
+    public void testRemovedRecordIsForgotten() throws Exception {
+        ArrayList<NotificationRecord> notificationList = new ArrayList<NotificationRecord>();
+        for (int i = 0; i < 20; i++) {
+            notificationList.add(getSortRecord(i));
+        }
+        mHelper.sort(notificationList);
+        assertEquals(20, mHelper.getPreliminaryOrderSize());
+
+        NotificationRecord removed = notificationList.remove(5);
+        mHelper.onNotificationRemoved(removed);
+        assertEquals(19, mHelper.getPreliminaryOrderSize());
+
+        NotificationRecord added = getSortRecord(20);
+        notificationList.add(added);
+        mHelper.sort(notificationList, added);
+        assertEquals(20, mHelper.getPreliminaryOrderSize());
+        assertSortedAsFully(notificationList);
+    }
+
+    private NotificationRecord getSortRecord(int id) {
+        Notification n = new Notification.Builder(mContext, TEST_CHANNEL_ID)
+                .setContentTitle("N" + id)
+                .setWhen(1000 + id)
+                .build();
+        return new NotificationRecord(mContext, new StatusBarNotification(
+                PKG, PKG, id, null, 0, 0, n, UserHandle.ALL,
+                null, System.currentTimeMillis()), getDefaultChannel());
+    }
+
+    private void assertSortedAsFully(ArrayList<NotificationRecord> notificationList) {
+        ArrayList<String> sortKeys = new ArrayList<>();
+        for (NotificationRecord record : notificationList) {
+            sortKeys.add(record.getGlobalSortKey());
+        }
+        ArrayList<NotificationRecord> expected = new ArrayList<>(notificationList);
+        Collections.shuffle(expected);
+        mHelper.sort(expected);
+        assertEquals(expected, notificationList);
+        for (int i = 0; i < expected.size(); i++) {
+            assertEquals(expected.get(i).getGlobalSortKey(), sortKeys.get(i));
+        }
+    }
+
     @Test
     public void testChannelXml() throws Exception {
         NotificationChannelGroup ncg = new NotificationChannelGroup("1", "bye");
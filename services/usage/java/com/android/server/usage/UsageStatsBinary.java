@@ -0,0 +1,516 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.android.server.usage;
+
+import android.app.usage.ConfigurationStats;
+import android.app.usage.EventList;
+import android.app.usage.UsageEvents;
+import android.app.usage.UsageStats;
+import android.content.res.Configuration;
+import android.os.LocaleList;
+import android.util.ArrayMap;
+import android.util.AtomicFile;
+
+import libcore.io.IoUtils;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.ProtocolException;
+
+/**
+ * UsageStats reader/writer for the binary file format, which replaced {@link UsageStatsXml}.
+ * <p>
+ * A file holds, in order: a header with the end time and the interactive and keyguard
+ * trackers, a table of every string the file refers to, the packages section, the
+ * configurations section and the event log. Each section is prefixed with its length so that
+ * a reader that doesn't want it can skip it without decoding it. The event log is split in
+ * blocks of {@link #EVENTS_PER_BLOCK} events and starts with an index of the time of the first
+ * event of each block, so that reading the events of a time range only decodes the blocks
+ * that overlap it. Like in the XML format, times are stored as an offset of the begin time,
+ * which comes from the file name.
+ */
+final class UsageStatsBinary {
+    private static final int MAGIC = 0x55535442; // "USTB"
+    private static final int VERSION = 1;
+
+    /** Number of events between two entries of the event index */
+    private static final int EVENTS_PER_BLOCK = 64;
+
+    private static final int NO_STRING = -1;
+
+    private static final int BUFFER_SIZE = 16 * 1024;
+
+    /**
+     * Reads a binary stats file, but only the events of {@code statsOut} that happened in
+     * {@code [eventsBeginTime, eventsEndTime)}, if events are asked for at all.
+     *
+     * @return false if the file isn't in the binary format, in which case nothing was read
+     */
+    static boolean read(AtomicFile file, IntervalStats statsOut, int flags, long eventsBeginTime,
+            long eventsEndTime) throws IOException {
+        FileInputStream fis = null;
+        try {
+            fis = file.openRead();
+            final DataInputStream in = new DataInputStream(
+                    new BufferedInputStream(fis, BUFFER_SIZE));
+            try {
+                if (in.readInt() != MAGIC) {
+                    return false;
+                }
+            } catch (EOFException e) {
+                return false;
+            }
+            final int version = in.readInt();
+            if (version != VERSION) {
+                throw new IOException("Unrecognized version " + version);
+            }
+            statsOut.beginTime = UsageStatsXml.parseBeginTime(file);
+            read(in, statsOut, flags, eventsBeginTime, eventsEndTime);
+            statsOut.lastTimeSaved = file.getLastModifiedTime();
+            return true;
+        } finally {
+            IoUtils.closeQuietly(fis);
+        }
+    }
+
+    static void write(AtomicFile file, IntervalStats stats) throws IOException {
+        FileOutputStream fos = file.startWrite();
+        try {
+            final DataOutputStream out = new DataOutputStream(
+                    new BufferedOutputStream(fos, BUFFER_SIZE));
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            write(out, stats);
+            out.flush();
+            file.finishWrite(fos);
+            fos = null;
+        } finally {
+            // When fos is null (successful write), this will no-op
+            file.failWrite(fos);
+        }
+    }
+
+    private static void read(DataInputStream in, IntervalStats statsOut, int flags,
+            long eventsBeginTime, long eventsEndTime) throws IOException {
+        statsOut.packageStats.clear();
+        statsOut.configurations.clear();
+        statsOut.activeConfiguration = null;
+        if (statsOut.events != null) {
+            statsOut.events.clear();
+        }
+
+        statsOut.endTime = statsOut.beginTime + in.readLong();
+        readCountAndTime(in, statsOut.interactiveTracker);
+        readCountAndTime(in, statsOut.nonInteractiveTracker);
+        readCountAndTime(in, statsOut.keyguardShownTracker);
+        readCountAndTime(in, statsOut.keyguardHiddenTracker);
+
+        final String[] strings = new String[in.readInt()];
+        for (int i = 0; i < strings.length; i++) {
+            strings[i] = in.readUTF();
+        }
+
+        int length = in.readInt();
+        if ((flags & UsageStatsDatabase.QUERY_FLAG_FETCH_PACKAGES) != 0) {
+            final int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                readUsageStats(in, strings, statsOut);
+            }
+        } else {
+            skipFully(in, length);
+        }
+
+        length = in.readInt();
+        if ((flags & UsageStatsDatabase.QUERY_FLAG_FETCH_CONFIGURATIONS) != 0) {
+            final int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                readConfigStats(in, statsOut);
+            }
+        } else {
+            skipFully(in, length);
+        }
+
+        if ((flags & UsageStatsDatabase.QUERY_FLAG_FETCH_EVENTS) != 0) {
+            readEvents(in, strings, statsOut, eventsBeginTime, eventsEndTime);
+        }
+    }
+
+    private static void readCountAndTime(DataInputStream in, IntervalStats.EventTracker tracker)
+            throws IOException {
+        tracker.count = in.readInt();
+        tracker.duration = in.readLong();
+    }
+
+    private static void readUsageStats(DataInputStream in, String[] strings,
+            IntervalStats statsOut) throws IOException {
+        final UsageStats stats = statsOut.getOrCreateUsageStats(readString(in, strings));
+
+        // Apply the offset to the beginTime to find the absolute time.
+        stats.mLastTimeUsed = statsOut.beginTime + in.readLong();
+        stats.mTotalTimeInForeground = in.readLong();
+        stats.mLastEvent = in.readInt();
+        stats.mAppLaunchCount = in.readInt();
+
+        final int actionCount = in.readInt();
+        if (actionCount == 0) {
+            return;
+        }
+        stats.mChooserCounts = new ArrayMap<>(actionCount);
+        for (int i = 0; i < actionCount; i++) {
+            final String action = readString(in, strings);
+            final int categoryCount = in.readInt();
+            final ArrayMap<String, Integer> counts = new ArrayMap<>(categoryCount);
+            for (int j = 0; j < categoryCount; j++) {
+                final String category = readString(in, strings);
+                counts.put(category, in.readInt());
+            }
+            stats.mChooserCounts.put(action, counts);
+        }
+    }
+
+    private static void readConfigStats(DataInputStream in, IntervalStats statsOut)
+            throws IOException {
+        final long lastTimeActive = in.readLong();
+        final long totalTimeActive = in.readLong();
+        final int activationCount = in.readInt();
+        final boolean active = in.readBoolean();
+        final ConfigurationStats configStats = statsOut.getOrCreateConfigurationStats(
+                readConfiguration(in));
+
+        // Apply the offset to the beginTime to find the absolute time.
+        configStats.mLastTimeActive = statsOut.beginTime + lastTimeActive;
+        configStats.mTotalTimeActive = totalTimeActive;
+        configStats.mActivationCount = activationCount;
+        if (active) {
+            statsOut.activeConfiguration = configStats.mConfiguration;
+        }
+    }
+
+    private static void readEvents(DataInputStream in, String[] strings, IntervalStats statsOut,
+            long eventsBeginTime, long eventsEndTime) throws IOException {
+        final int eventCount = in.readInt();
+        final int blockCount = in.readInt();
+        final long[] blockTimes = new long[blockCount];
+        final int[] blockOffsets = new int[blockCount];
+        for (int i = 0; i < blockCount; i++) {
+            blockTimes[i] = statsOut.beginTime + in.readLong();
+            blockOffsets[i] = in.readInt();
+        }
+        if (statsOut.events == null) {
+            statsOut.events = new EventList();
+        }
+        if (eventCount == 0 || eventsBeginTime >= eventsEndTime) {
+            return;
+        }
+
+        // Start at the last block that begins strictly before the range, as the events equal to
+        // eventsBeginTime may have been split across it and the next one.
+        int block = 0;
+        while (block + 1 < blockCount && blockTimes[block + 1] < eventsBeginTime) {
+            block++;
+        }
+        if (blockTimes[block] >= eventsEndTime) {
+            return;
+        }
+        skipFully(in, blockOffsets[block]);
+
+        for (int i = block * EVENTS_PER_BLOCK; i < eventCount; i++) {
+            final UsageEvents.Event event = readEvent(in, strings, statsOut);
+            if (event.mTimeStamp >= eventsEndTime) {
+                break;
+            }
+            if (event.mTimeStamp >= eventsBeginTime) {
+                statsOut.events.insert(event);
+            }
+        }
+    }
+
+    private static UsageEvents.Event readEvent(DataInputStream in, String[] strings,
+            IntervalStats statsOut) throws IOException {
+        final UsageEvents.Event event = new UsageEvents.Event();
+
+        // Apply the offset to the beginTime to find the absolute time of this event.
+        event.mTimeStamp = statsOut.beginTime + in.readLong();
+        event.mPackage = readString(in, strings);
+        if (event.mPackage == null) {
+            throw new ProtocolException("no package present");
+        }
+        event.mClass = readString(in, strings);
+        event.mFlags = in.readInt();
+        event.mEventType = in.readInt();
+        switch (event.mEventType) {
+            case UsageEvents.Event.CONFIGURATION_CHANGE:
+                if (in.readBoolean()) {
+                    event.mConfiguration = readConfiguration(in);
+                }
+                break;
+            case UsageEvents.Event.SHORTCUT_INVOCATION:
+                event.mShortcutId = readString(in, strings);
+                break;
+            case UsageEvents.Event.STANDBY_BUCKET_CHANGED:
+                event.mBucketAndReason = in.readInt();
+                break;
+        }
+        return event;
+    }
+
+    /**
+     * Reads the fields of a configuration that {@link Configuration#readXmlAttrs} reads.
+     */
+    private static Configuration readConfiguration(DataInputStream in) throws IOException {
+        final Configuration config = new Configuration();
+        config.fontScale = in.readFloat();
+        config.mcc = in.readInt();
+        config.mnc = in.readInt();
+        config.setLocales(LocaleList.forLanguageTags(in.readUTF()));
+        config.touchscreen = in.readInt();
+        config.keyboard = in.readInt();
+        config.keyboardHidden = in.readInt();
+        config.hardKeyboardHidden = in.readInt();
+        config.navigation = in.readInt();
+        config.navigationHidden = in.readInt();
+        config.orientation = in.readInt();
+        config.screenLayout = in.readInt();
+        config.colorMode = in.readInt();
+        config.uiMode = in.readInt();
+        config.screenWidthDp = in.readInt();
+        config.screenHeightDp = in.readInt();
+        config.smallestScreenWidthDp = in.readInt();
+        config.densityDpi = in.readInt();
+        return config;
+    }
+
+    private static String readString(DataInputStream in, String[] strings) throws IOException {
+        final int index = in.readInt();
+        if (index == NO_STRING) {
+            return null;
+        }
+        if (index < 0 || index >= strings.length) {
+            throw new ProtocolException("Bad string index " + index);
+        }
+        return strings[index];
+    }
+
+    private static void skipFully(DataInputStream in, int length) throws IOException {
+        if (in.skipBytes(length) != length) {
+            throw new EOFException();
+        }
+    }
+
+    private static void write(DataOutputStream out, IntervalStats stats) throws IOException {
+        final ArrayMap<String, Integer> strings = new ArrayMap<>();
+
+        // The sections refer to the string table, which has to be written before them.
+        final ByteArrayOutputStream packages = new ByteArrayOutputStream();
+        writePackages(new DataOutputStream(packages), stats, strings);
+        final ByteArrayOutputStream configs = new ByteArrayOutputStream();
+        writeConfigurations(new DataOutputStream(configs), stats);
+        final ByteArrayOutputStream events = new ByteArrayOutputStream();
+        final int eventCount = stats.events != null ? stats.events.size() : 0;
+        final int blockCount = (eventCount + EVENTS_PER_BLOCK - 1) / EVENTS_PER_BLOCK;
+        final int[] blockOffsets = new int[blockCount];
+        final DataOutputStream eventsOut = new DataOutputStream(events);
+        for (int i = 0; i < eventCount; i++) {
+            if (i % EVENTS_PER_BLOCK == 0) {
+                blockOffsets[i / EVENTS_PER_BLOCK] = eventsOut.size();
+            }
+            writeEvent(eventsOut, stats, stats.events.get(i), strings);
+        }
+
+        out.writeLong(stats.endTime - stats.beginTime);
+        writeCountAndTime(out, stats.interactiveTracker);
+        writeCountAndTime(out, stats.nonInteractiveTracker);
+        writeCountAndTime(out, stats.keyguardShownTracker);
+        writeCountAndTime(out, stats.keyguardHiddenTracker);
+
+        final int stringCount = strings.size();
+        final String[] table = new String[stringCount];
+        for (int i = 0; i < stringCount; i++) {
+            table[strings.valueAt(i)] = strings.keyAt(i);
+        }
+        out.writeInt(stringCount);
+        for (String string : table) {
+            out.writeUTF(string);
+        }
+
+        out.writeInt(packages.size());
+        packages.writeTo(out);
+        out.writeInt(configs.size());
+        configs.writeTo(out);
+
+        out.writeInt(eventCount);
+        out.writeInt(blockCount);
+        for (int i = 0; i < blockCount; i++) {
+            out.writeLong(stats.events.get(i * EVENTS_PER_BLOCK).mTimeStamp - stats.beginTime);
+            out.writeInt(blockOffsets[i]);
+        }
+        events.writeTo(out);
+    }
+
+    private static void writeCountAndTime(DataOutputStream out,
+            IntervalStats.EventTracker tracker) throws IOException {
+        out.writeInt(tracker.count);
+        out.writeLong(tracker.duration);
+    }
+
+    private static void writePackages(DataOutputStream out, IntervalStats stats,
+            ArrayMap<String, Integer> strings) throws IOException {
+        final int count = stats.packageStats.size();
+        out.writeInt(count);
+        for (int i = 0; i < count; i++) {
+            final UsageStats usageStats = stats.packageStats.valueAt(i);
+            writeString(out, usageStats.mPackageName, strings);
+
+            // Write the time offset.
+            out.writeLong(usageStats.mLastTimeUsed - stats.beginTime);
+            out.writeLong(usageStats.mTotalTimeInForeground);
+            out.writeInt(usageStats.mLastEvent);
+            out.writeInt(usageStats.mAppLaunchCount);
+            writeChooserCounts(out, usageStats, strings);
+        }
+    }
+
+    private static void writeChooserCounts(DataOutputStream out, UsageStats usageStats,
+            ArrayMap<String, Integer> strings) throws IOException {
+        final ArrayMap<String, ArrayMap<String, Integer>> chooserCounts =
+                usageStats.mChooserCounts;
+        int actionCount = 0;
+        final int size = chooserCounts != null ? chooserCounts.size() : 0;
+        for (int i = 0; i < size; i++) {
+            if (isChooserActionWritten(chooserCounts.keyAt(i), chooserCounts.valueAt(i))) {
+                actionCount++;
+            }
+        }
+        out.writeInt(actionCount);
+        for (int i = 0; i < size; i++) {
+            final String action = chooserCounts.keyAt(i);
+            final ArrayMap<String, Integer> counts = chooserCounts.valueAt(i);
+            if (!isChooserActionWritten(action, counts)) {
+                continue;
+            }
+            writeString(out, action, strings);
+            int categoryCount = 0;
+            for (int j = 0; j < counts.size(); j++) {
+                if (counts.valueAt(j) > 0) {
+                    categoryCount++;
+                }
+            }
+            out.writeInt(categoryCount);
+            for (int j = 0; j < counts.size(); j++) {
+                final int count = counts.valueAt(j);
+                if (count > 0) {
+                    writeString(out, counts.keyAt(j), strings);
+                    out.writeInt(count);
+                }
+            }
+        }
+    }
+
+    private static boolean isChooserActionWritten(String action,
+            ArrayMap<String, Integer> counts) {
+        return action != null && counts != null && !counts.isEmpty();
+    }
+
+    private static void writeConfigurations(DataOutputStream out, IntervalStats stats)
+            throws IOException {
+        final int count = stats.configurations.size();
+        out.writeInt(count);
+        for (int i = 0; i < count; i++) {
+            final ConfigurationStats configStats = stats.configurations.valueAt(i);
+
+            // Write the time offset.
+            out.writeLong(configStats.mLastTimeActive - stats.beginTime);
+            out.writeLong(configStats.mTotalTimeActive);
+            out.writeInt(configStats.mActivationCount);
+            out.writeBoolean(stats.configurations.keyAt(i).equals(stats.activeConfiguration));
+            writeConfiguration(out, configStats.mConfiguration);
+        }
+    }
+
+    private static void writeEvent(DataOutputStream out, IntervalStats stats,
+            UsageEvents.Event event, ArrayMap<String, Integer> strings) throws IOException {
+        // Store the time offset.
+        out.writeLong(event.mTimeStamp - stats.beginTime);
+        writeString(out, event.mPackage, strings);
+        writeString(out, event.mClass, strings);
+        out.writeInt(event.mFlags);
+        out.writeInt(event.mEventType);
+        switch (event.mEventType) {
+            case UsageEvents.Event.CONFIGURATION_CHANGE:
+                out.writeBoolean(event.mConfiguration != null);
+                if (event.mConfiguration != null) {
+                    writeConfiguration(out, event.mConfiguration);
+                }
+                break;
+            case UsageEvents.Event.SHORTCUT_INVOCATION:
+                writeString(out, event.mShortcutId, strings);
+                break;
+            case UsageEvents.Event.STANDBY_BUCKET_CHANGED:
+                out.writeInt(event.mBucketAndReason);
+                break;
+        }
+    }
+
+    /**
+     * Writes the fields of a configuration that {@link Configuration#writeXmlAttrs} writes.
+     */
+    private static void writeConfiguration(DataOutputStream out, Configuration config)
+            throws IOException {
+        out.writeFloat(config.fontScale);
+        out.writeInt(config.mcc);
+        out.writeInt(config.mnc);
+        out.writeUTF(config.getLocales().toLanguageTags());
+        out.writeInt(config.touchscreen);
+        out.writeInt(config.keyboard);
+        out.writeInt(config.keyboardHidden);
+        out.writeInt(config.hardKeyboardHidden);
+        out.writeInt(config.navigation);
+        out.writeInt(config.navigationHidden);
+        out.writeInt(config.orientation);
+        out.writeInt(config.screenLayout);
+        out.writeInt(config.colorMode);
+        out.writeInt(config.uiMode);
+        out.writeInt(config.screenWidthDp);
+        out.writeInt(config.screenHeightDp);
+        out.writeInt(config.smallestScreenWidthDp);
+        out.writeInt(config.densityDpi);
+    }
+
+    private static void writeString(DataOutputStream out, String string,
+            ArrayMap<String, Integer> strings) throws IOException {
+        if (string == null) {
+            out.writeInt(NO_STRING);
+            return;
+        }
+        Integer index = strings.get(string);
+        if (index == null) {
+            index = strings.size();
+            strings.put(string, index);
+        }
+        out.writeInt(index);
+    }
+
+    private UsageStatsBinary() {
+    }
+}
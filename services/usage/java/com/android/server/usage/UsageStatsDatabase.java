@@ -22,6 +22,7 @@ import android.app.usage.UsageStatsManager;
 import android.os.Build;
 import android.os.SystemProperties;
 import android.util.AtomicFile;
+import android.util.LruCache;
 import android.util.Slog;
 import android.util.TimeUtils;
 
@@ -40,10 +41,12 @@ import java.util.ArrayList;
 import java.util.List;
 
 /**
- * Provides an interface to query for UsageStat data from an XML database.
+ * Provides an interface to query for UsageStat data from a database of binary stats files.
+ * Files written by older versions in XML are converted when the database is upgraded, but can
+ * still be read.
  */
 class UsageStatsDatabase {
-    private static final int CURRENT_VERSION = 3;
+    private static final int CURRENT_VERSION = 4;
 
     // Current version of the backup schema
     static final int BACKUP_VERSION = 1;
@@ -68,6 +71,10 @@ class UsageStatsDatabase {
     private static final int SELECTION_LOG_RETENTION_LEN =
             SystemProperties.getInt(RETENTION_LEN_KEY, 14);
 
+    // Upper bound for the number of packages, configurations and events kept decoded in the
+    // stats cache, enough for a week of daily files on a heavily used device.
+    private static final int MAX_CACHED_STATS_SIZE = 64 * 1024;
+
     private final Object mLock = new Object();
     private final File[] mIntervalDirs;
     private final TimeSparseArray<AtomicFile>[] mSortedStatFiles;
@@ -76,6 +83,46 @@ class UsageStatsDatabase {
     private boolean mFirstUpdate;
     private boolean mNewUpdate;
 
+    /**
+     * Stats files recently decoded by {@link #queryUsageStats}, by file. Entries are dropped
+     * when their file is written, and the whole cache when the files are indexed again.
+     */
+    private final LruCache<AtomicFile, CachedStats> mStatsCache =
+            new LruCache<AtomicFile, CachedStats>(MAX_CACHED_STATS_SIZE) {
+                @Override
+                protected int sizeOf(AtomicFile file, CachedStats cached) {
+                    final IntervalStats stats = cached.stats;
+                    return 1 + stats.packageStats.size() + stats.configurations.size()
+                            + (stats.events != null ? stats.events.size() : 0);
+                }
+            };
+
+    /**
+     * A decoded stats file, which only holds what {@link #flags} asked for and, if that includes
+     * events, only the events in {@code [eventsBeginTime, eventsEndTime)}.
+     */
+    private static final class CachedStats {
+        final IntervalStats stats;
+        final int flags;
+        final long eventsBeginTime;
+        final long eventsEndTime;
+
+        CachedStats(IntervalStats stats, int flags, long eventsBeginTime, long eventsEndTime) {
+            this.stats = stats;
+            this.flags = flags;
+            this.eventsBeginTime = eventsBeginTime;
+            this.eventsEndTime = eventsEndTime;
+        }
+
+        boolean covers(int flags, long beginTime, long endTime) {
+            if ((this.flags & flags) != flags) {
+                return false;
+            }
+            return (flags & QUERY_FLAG_FETCH_EVENTS) == 0
+                    || (eventsBeginTime <= beginTime && endTime <= eventsEndTime);
+        }
+    }
+
     public UsageStatsDatabase(File dir) {
         mIntervalDirs = new File[] {
                 new File(dir, "daily"),
@@ -161,7 +208,7 @@ class UsageStatsDatabase {
             try {
                 IntervalStats stats = new IntervalStats();
                 for (int i = start; i < fileCount - 1; i++) {
-                    UsageStatsXml.read(files.valueAt(i), stats, QUERY_FLAG_FETCH_EVERYTHING);
+                    readStatsFile(files.valueAt(i), stats, QUERY_FLAG_FETCH_EVERYTHING);
                     if (!checkinAction.checkin(stats)) {
                         return false;
                     }
@@ -188,6 +235,7 @@ class UsageStatsDatabase {
                 // AtomicFile needs to set a new backup path with the same -c extension, so
                 // we replace the old AtomicFile with the updated one.
                 files.setValueAt(i, new AtomicFile(checkedInFile));
+                mStatsCache.remove(file);
             }
         }
         return true;
@@ -201,6 +249,9 @@ class UsageStatsDatabase {
             }
         };
 
+        // The cache is keyed by the files being replaced.
+        mStatsCache.evictAll();
+
         // Index the available usage stat files on disk.
         for (int i = 0; i < mSortedStatFiles.length; i++) {
             if (mSortedStatFiles[i] == null) {
@@ -298,6 +349,54 @@ class UsageStatsDatabase {
                 }
             }
         }
+        if (thisVersion < 4) {
+            Slog.i(TAG, "Converting usage stats files to the binary format");
+            for (int i = 0; i < mIntervalDirs.length; i++) {
+                convertFilesToBinary(mIntervalDirs[i]);
+            }
+        }
+    }
+
+    private static void convertFilesToBinary(File dir) {
+        File[] files = dir.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File f : files) {
+            if (f.getPath().endsWith(BAK_SUFFIX)) {
+                continue;
+            }
+            final AtomicFile af = new AtomicFile(f);
+            final IntervalStats stats = new IntervalStats();
+            try {
+                if (!UsageStatsBinary.read(af, stats, 0, 0, 0)) {
+                    UsageStatsXml.read(af, stats, QUERY_FLAG_FETCH_EVERYTHING);
+                    UsageStatsBinary.write(af, stats);
+                }
+            } catch (IOException e) {
+                // Keep the file, it is still read as XML.
+                Slog.e(TAG, "Failed to convert usage stats file " + f, e);
+            }
+        }
+    }
+
+    /**
+     * Reads a stats file, whether it is in the binary format or in the XML one it replaced.
+     */
+    private static void readStatsFile(AtomicFile file, IntervalStats statsOut, int flags)
+            throws IOException {
+        readStatsFile(file, statsOut, flags, Long.MIN_VALUE, Long.MAX_VALUE);
+    }
+
+    /**
+     * Reads a stats file, but only the events in {@code [eventsBeginTime, eventsEndTime)} when
+     * the file is in the binary format.
+     */
+    private static void readStatsFile(AtomicFile file, IntervalStats statsOut, int flags,
+            long eventsBeginTime, long eventsEndTime) throws IOException {
+        if (!UsageStatsBinary.read(file, statsOut, flags, eventsBeginTime, eventsEndTime)) {
+            UsageStatsXml.read(file, statsOut, flags);
+        }
     }
 
     public void onTimeChanged(long timeDiffMillis) {
@@ -364,7 +463,7 @@ class UsageStatsDatabase {
             try {
                 final AtomicFile f = mSortedStatFiles[intervalType].valueAt(fileCount - 1);
                 IntervalStats stats = new IntervalStats();
-                UsageStatsXml.read(f, stats, QUERY_FLAG_FETCH_EVERYTHING);
+                readStatsFile(f, stats, QUERY_FLAG_FETCH_EVERYTHING);
                 return stats;
             } catch (IOException e) {
                 Slog.e(TAG, "Failed to read usage stats file", e);
@@ -440,19 +539,16 @@ class UsageStatsDatabase {
                 }
             }
 
-            final IntervalStats stats = new IntervalStats();
             final ArrayList<T> results = new ArrayList<>();
             for (int i = startIndex; i <= endIndex; i++) {
                 final AtomicFile f = intervalStats.valueAt(i);
 
-                if (DEBUG) {
-                    Slog.d(TAG, "Reading stat file " + f.getBaseFile().getAbsolutePath());
-                }
-
                 try {
-                    UsageStatsXml.read(f, stats, flags);
+                    final IntervalStats stats = getCachedStatsLocked(f, flags, beginTime,
+                            endTime);
+                    // The stats are kept in the cache, so the combiner has to copy them.
                     if (beginTime < stats.endTime) {
-                        combiner.combine(stats, false, results);
+                        combiner.combine(stats, true, results);
                     }
                 } catch (IOException e) {
                     Slog.e(TAG, "Failed to read usage stats file", e);
@@ -464,6 +560,36 @@ class UsageStatsDatabase {
         }
     }
 
+    /**
+     * Returns the stats of a file from the cache, decoding it if the cached entry doesn't hold
+     * what {@code flags} asks for.
+     */
+    private IntervalStats getCachedStatsLocked(AtomicFile f, int flags, long beginTime,
+            long endTime) throws IOException {
+        final CachedStats cached = mStatsCache.get(f);
+        if (cached != null && cached.covers(flags, beginTime, endTime)) {
+            return cached.stats;
+        }
+
+        if (DEBUG) {
+            Slog.d(TAG, "Reading stat file " + f.getBaseFile().getAbsolutePath());
+        }
+
+        // Widen what is decoded to what the cached entry had, so that queries for different
+        // data from the same files don't keep evicting each other.
+        if (cached != null) {
+            flags |= cached.flags;
+            if ((cached.flags & QUERY_FLAG_FETCH_EVENTS) != 0) {
+                beginTime = Math.min(beginTime, cached.eventsBeginTime);
+                endTime = Math.max(endTime, cached.eventsEndTime);
+            }
+        }
+        final IntervalStats stats = new IntervalStats();
+        readStatsFile(f, stats, flags, beginTime, endTime);
+        mStatsCache.put(f, new CachedStats(stats, flags, beginTime, endTime));
+        return stats;
+    }
+
     /**
      * Find the interval that best matches this range.
      *
@@ -569,7 +695,7 @@ class UsageStatsDatabase {
                     try {
                         final AtomicFile af = new AtomicFile(f);
                         final IntervalStats stats = new IntervalStats();
-                        UsageStatsXml.read(af, stats, QUERY_FLAG_FETCH_EVERYTHING);
+                        readStatsFile(af, stats, QUERY_FLAG_FETCH_EVERYTHING);
                         final int pkgCount = stats.packageStats.size();
                         for (int i = 0; i < pkgCount; i++) {
                             UsageStats pkgStats = stats.packageStats.valueAt(i);
@@ -577,7 +703,7 @@ class UsageStatsDatabase {
                                 pkgStats.mChooserCounts.clear();
                             }
                         }
-                        UsageStatsXml.write(af, stats);
+                        UsageStatsBinary.write(af, stats);
                     } catch (IOException e) {
                         Slog.e(TAG, "Failed to delete chooser counts from usage stats file", e);
                     }
@@ -603,7 +729,8 @@ class UsageStatsDatabase {
                 mSortedStatFiles[intervalType].put(stats.beginTime, f);
             }
 
-            UsageStatsXml.write(f, stats);
+            mStatsCache.remove(f);
+            UsageStatsBinary.write(f, stats);
             stats.lastTimeSaved = f.getLastModifiedTime();
         }
     }
@@ -737,7 +864,7 @@ class UsageStatsDatabase {
             throws IOException {
         IntervalStats stats = new IntervalStats();
         try {
-            UsageStatsXml.read(statsFile, stats, QUERY_FLAG_FETCH_EVERYTHING);
+            readStatsFile(statsFile, stats, QUERY_FLAG_FETCH_EVERYTHING);
         } catch (IOException e) {
             Slog.e(TAG, "Failed to read usage stats file", e);
             out.writeInt(0);
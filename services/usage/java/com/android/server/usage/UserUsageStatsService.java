@@ -404,7 +404,7 @@ class UserUsageStatsService {
         final ArraySet<String> names = new ArraySet<>();
         names.add(packageName);
         final List<UsageEvents.Event> results = queryStats(UsageStatsManager.INTERVAL_DAILY,
-                beginTime, endTime, UsageStatsDatabase.QUERY_FLAG_FETCH_PACKAGES,
+                beginTime, endTime, UsageStatsDatabase.QUERY_FLAG_FETCH_EVENTS,
                 (stats, mutable, accumulatedResult) -> {
                     if (stats.events == null) {
                         return;
@@ -621,7 +621,7 @@ class UserUsageStatsService {
         final long beginTime = yesterday.getTimeInMillis();
 
         List<UsageEvents.Event> events = queryStats(UsageStatsManager.INTERVAL_DAILY,
-                beginTime, endTime, UsageStatsDatabase.QUERY_FLAG_FETCH_PACKAGES,
+                beginTime, endTime, UsageStatsDatabase.QUERY_FLAG_FETCH_EVENTS,
                 new StatCombiner<UsageEvents.Event>() {
                     @Override
                     public void combine(IntervalStats stats, boolean mutable,
@@ -19,10 +19,12 @@ package com.android.server.net;
 import static android.net.ConnectivityManager.TYPE_MOBILE;
 import static android.net.NetworkStats.SET_ALL;
 import static android.net.NetworkStats.SET_DEFAULT;
+import static android.net.NetworkStats.SET_FOREGROUND;
 import static android.net.NetworkStats.TAG_NONE;
 import static android.net.NetworkStats.UID_ALL;
 import static android.net.NetworkStatsHistory.FIELD_ALL;
 import static android.net.NetworkTemplate.buildTemplateMobileAll;
+import static android.net.TrafficStats.UID_REMOVED;
 import static android.os.Process.myUid;
 import static android.text.format.DateUtils.HOUR_IN_MILLIS;
 import static android.text.format.DateUtils.MINUTE_IN_MILLIS;
@@ -265,6 +267,55 @@ public class NetworkStatsCollectionTest {
                 0, NetworkStatsAccess.Level.DEVICE);
     }
 
+    @Test
+    public void testUidQueries() throws Exception {
+        final NetworkStatsCollection collection = new NetworkStatsCollection(HOUR_IN_MILLIS);
+        final NetworkStats.Entry entry = new NetworkStats.Entry();
+        final NetworkIdentitySet identSet = new NetworkIdentitySet();
+        identSet.add(new NetworkIdentity(TYPE_MOBILE, TelephonyManager.NETWORK_TYPE_UNKNOWN,
+                TEST_IMSI, null, false, true, true));
+        final NetworkTemplate template = buildTemplateMobileAll(TEST_IMSI);
+
+        // Record in descending uid order, with two sets and a tag for each uid.
+        final int baseUid = Process.FIRST_APPLICATION_UID;
+        for (int uid = baseUid + 99; uid >= baseUid; uid--) {
+            entry.rxBytes = uid;
+            collection.recordData(identSet, uid, SET_DEFAULT, TAG_NONE, 0, HOUR_IN_MILLIS,
+                    entry);
+            collection.recordData(identSet, uid, SET_FOREGROUND, TAG_NONE, HOUR_IN_MILLIS,
+                    2 * HOUR_IN_MILLIS, entry);
+            collection.recordData(identSet, uid, SET_DEFAULT, 0xF00D, 0, HOUR_IN_MILLIS,
+                    entry);
+        }
+
+        final int[] uids = collection.getRelevantUids(NetworkStatsAccess.Level.DEVICE);
+        assertEquals(100, uids.length);
+        for (int i = 0; i < uids.length; i++) {
+            assertEquals(baseUid + i, uids[i]);
+        }
+
+        for (int uid = baseUid; uid < baseUid + 100; uid++) {
+            final NetworkStatsHistory history = collection.getHistory(template, null, uid,
+                    SET_ALL, TAG_NONE, FIELD_ALL, Long.MIN_VALUE, Long.MAX_VALUE,
+                    NetworkStatsAccess.Level.DEVICE, Process.SYSTEM_UID);
+            assertEquals(2 * uid, history.getTotalBytes());
+        }
+
+        // Only the first hour is requested, so the SET_FOREGROUND histories don't contribute.
+        final NetworkStats summary = collection.getSummary(template, 0, HOUR_IN_MILLIS,
+                NetworkStatsAccess.Level.DEVICE, Process.SYSTEM_UID);
+        assertEquals(100 * baseUid + 4950, summary.getTotal(null).rxBytes);
+
+        // Removing uids must be reflected in later uid queries.
+        collection.removeUids(new int[] { baseUid, baseUid + 50 });
+        final int[] remaining = collection.getRelevantUids(NetworkStatsAccess.Level.DEVICE);
+        assertEquals(99, remaining.length);
+        assertEquals(UID_REMOVED, remaining[0]);
+        assertEquals(0, collection.getHistory(template, null, baseUid + 50, SET_ALL, TAG_NONE,
+                FIELD_ALL, Long.MIN_VALUE, Long.MAX_VALUE, NetworkStatsAccess.Level.DEVICE,
+                Process.SYSTEM_UID).getTotalBytes());
+    }
+
     @Test
     public void testAugmentPlan() throws Exception {
         final File testFile =